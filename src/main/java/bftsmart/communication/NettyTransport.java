@@ -0,0 +1,122 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Netty transports used by the communication layers (clients and servers).
+ *
+ * The native epoll transport (Linux only, shipped with netty-all) is used if
+ * system.communication.nettyTransport is set to epoll and it can be loaded,
+ * otherwise the NIO transport is used. This class also applies the socket
+ * options of the configuration to the bootstraps.
+ */
+public enum NettyTransport {
+
+    NIO,
+    EPOLL;
+
+    /**
+     * Selects the transport of the configuration, falling back to NIO if epoll
+     * is not available in this platform.
+     *
+     * @param conf the configuration
+     * @return the transport
+     */
+    public static NettyTransport select(TOMConfiguration conf) {
+        if (!conf.isEpollTransport()) {
+            return NIO;
+        }
+        if (Epoll.isAvailable()) {
+            return EPOLL;
+        }
+
+        LoggerFactory.getLogger(NettyTransport.class).warn("Epoll transport is not available, using NIO: "
+                + Epoll.unavailabilityCause());
+        return NIO;
+    }
+
+    /**
+     * Creates an event loop group of this transport.
+     *
+     * @param threads the number of threads (0 for one per processor)
+     * @param name the prefix of the names of the threads
+     * @return the event loop group
+     */
+    public EventLoopGroup newEventLoopGroup(int threads, String name) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+
+        return this == EPOLL ? new EpollEventLoopGroup(n, threadFactory) : new NioEventLoopGroup(n, threadFactory);
+    }
+
+    public Class<? extends SocketChannel> getSocketChannelClass() {
+        return this == EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public Class<? extends ServerSocketChannel> getServerSocketChannelClass() {
+        return this == EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * Applies the socket options of the configuration to the connections of a
+     * bootstrap (the accepted ones, for a server bootstrap).
+     *
+     * @param b the bootstrap
+     * @param conf the configuration
+     */
+    public static void setSocketOptions(AbstractBootstrap<?, ?> b, TOMConfiguration conf) {
+        setOption(b, ChannelOption.SO_KEEPALIVE, true);
+        setOption(b, ChannelOption.TCP_NODELAY, conf.isTcpNoDelay());
+        if (conf.getSendBufferSize() > 0) {
+            setOption(b, ChannelOption.SO_SNDBUF, conf.getSendBufferSize());
+        }
+        if (conf.getReceiveBufferSize() > 0) {
+            setOption(b, ChannelOption.SO_RCVBUF, conf.getReceiveBufferSize());
+            if (b instanceof ServerBootstrap) {
+                // windows bigger than 64KB must be set on the listening socket
+                b.option(ChannelOption.SO_RCVBUF, conf.getReceiveBufferSize());
+            }
+        }
+        setOption(b, ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(conf.getWriteBufferLowWaterMark(), conf.getWriteBufferHighWaterMark()));
+    }
+
+    private static <T> void setOption(AbstractBootstrap<?, ?> b, ChannelOption<T> option, T value) {
+        if (b instanceof ServerBootstrap) {
+            ((ServerBootstrap) b).childOption(option, value);
+        } else {
+            b.option(option, value);
+        }
+    }
+}
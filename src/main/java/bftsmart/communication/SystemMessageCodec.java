@@ -0,0 +1,365 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.durability.CSTRequestF1;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.TOMUtil;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary codec of the messages exchanged between replicas, used instead of Java
+ * serialization (a new ObjectOutputStream/ObjectInputStream per message).
+ *
+ * Every message starts with the format version and a type tag, followed by the
+ * sender and the fields of its type. Consensus, leader change and forwarded
+ * messages are written field by field. State transfer messages carry application
+ * states and views, which are still Java serialized inside the message (they are
+ * rare and can be big). Other messages (e.g., reconfiguration messages from the
+ * TTP) are Java serialized as a whole.
+ *
+ * Messages Java serialized by replicas that don't use the codec are still decoded.
+ */
+public final class SystemMessageCodec {
+
+    /** Version of the format written by the codec */
+    public static final byte FORMAT_VERSION = 1;
+
+    /** Type tag of messages Java serialized as a whole */
+    public static final byte JAVA_SERIALIZED_TAG = 0;
+    /** Type tag of consensus messages */
+    public static final byte CONSENSUS_TAG = 1;
+    /** Type tag of leader change messages */
+    public static final byte LEADER_CHANGE_TAG = 2;
+    /** Type tag of forwarded requests */
+    public static final byte FORWARDED_TAG = 3;
+    /** Type tag of standard state transfer messages */
+    public static final byte STANDARD_SM_TAG = 4;
+    /** Type tag of collaborative state transfer messages */
+    public static final byte CST_SM_TAG = 5;
+
+    private static final int PREFIX_SIZE = 2 + Integer.BYTES; // format version, tag, sender
+
+    // Proof of consensus messages
+    private static final byte NO_PROOF = 0;
+    private static final byte BYTES_PROOF = 1;
+    private static final byte OBJECT_PROOF = 2;
+
+    private SystemMessageCodec() {
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param sm the message
+     * @return the encoded message
+     * @throws IOException if an object carried by the message can't be serialized
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        if (sm instanceof ConsensusMessage) {
+            return encodeConsensus((ConsensusMessage) sm);
+        } else if (sm instanceof LCMessage) {
+            return encodeLeaderChange((LCMessage) sm);
+        } else if (sm instanceof ForwardedMessage) {
+            return encodeForwarded((ForwardedMessage) sm);
+        } else if (sm instanceof StandardSMMessage) {
+            StandardSMMessage smm = (StandardSMMessage) sm;
+            return encodeStateTransfer(smm, STANDARD_SM_TAG, Integer.BYTES).putInt(smm.getReplica()).array();
+        } else if (sm instanceof CSTSMMessage) {
+            byte[] cstConfig = serialize(((CSTSMMessage) sm).getCstConfig());
+            ByteBuffer buffer = encodeStateTransfer((SMMessage) sm, CST_SM_TAG, nullableSize(cstConfig));
+            putNullableBytes(buffer, cstConfig);
+            return buffer.array();
+        }
+
+        byte[] serialized = serialize(sm);
+        ByteBuffer buffer = allocate(JAVA_SERIALIZED_TAG, sm.getSender(), serialized.length);
+        buffer.put(serialized);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param data the encoded message
+     * @return the message
+     * @throws IOException if the data is malformed or of an unknown type
+     * @throws ClassNotFoundException if an object carried by the message is of an unknown class
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        if (isJavaSerialized(data)) {
+            return (SystemMessage) deserialize(data, 0, data.length);
+        }
+        if (data.length < PREFIX_SIZE) {
+            throw new EOFException("Encoded message is too short");
+        }
+        if (data[0] != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported format version " + data[0]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(2);
+
+        try {
+            int sender = buffer.getInt();
+            SystemMessage sm;
+
+            switch (data[1]) {
+                case CONSENSUS_TAG:
+                    sm = decodeConsensus(buffer, sender);
+                    break;
+                case LEADER_CHANGE_TAG:
+                    int type = buffer.getInt();
+                    int ts = buffer.getInt();
+                    checkNotLocal(sender, type, TOMUtil.TRIGGER_LC_LOCALLY);
+                    sm = new LCMessage(sender, type, ts, getBytes(buffer));
+                    break;
+                case FORWARDED_TAG:
+                    sm = decodeForwarded(buffer, sender);
+                    break;
+                case STANDARD_SM_TAG:
+                case CST_SM_TAG:
+                    sm = decodeStateTransfer(buffer, sender, data[1]);
+                    break;
+                case JAVA_SERIALIZED_TAG:
+                    sm = (SystemMessage) deserialize(data, PREFIX_SIZE, data.length - PREFIX_SIZE);
+                    buffer.position(data.length);
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown type tag " + data[1]);
+            }
+
+            if (buffer.hasRemaining()) {
+                throw new StreamCorruptedException(buffer.remaining() + " unexpected bytes after encoded message");
+            }
+
+            return sm;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded message is truncated");
+        }
+    }
+
+    /**
+     * Tests if the data was written by Java serialization instead of the codec.
+     *
+     * @param data the encoded message
+     * @return true if the data starts with the Java serialization magic number
+     */
+    public static boolean isJavaSerialized(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    private static byte[] encodeConsensus(ConsensusMessage cm) throws IOException {
+        byte[] value = cm.getValue();
+        Object proof = cm.getProof();
+        byte[] proofBytes = null;
+        byte proofType = NO_PROOF;
+
+        if (proof instanceof byte[]) {
+            proofBytes = (byte[]) proof;
+            proofType = BYTES_PROOF;
+        } else if (proof != null) {
+            proofBytes = serialize(proof);
+            proofType = OBJECT_PROOF;
+        }
+
+        ByteBuffer buffer = allocate(CONSENSUS_TAG, cm.getSender(), Integer.BYTES * 3 + nullableSize(value) + 1 +
+                (proofBytes != null ? Integer.BYTES + proofBytes.length : 0));
+        buffer.putInt(cm.getNumber()).putInt(cm.getEpoch()).putInt(cm.getType());
+        putNullableBytes(buffer, value);
+        buffer.put(proofType);
+        if (proofBytes != null) {
+            putBytes(buffer, proofBytes);
+        }
+
+        return buffer.array();
+    }
+
+    private static ConsensusMessage decodeConsensus(ByteBuffer buffer, int sender)
+            throws IOException, ClassNotFoundException {
+
+        int number = buffer.getInt();
+        int epoch = buffer.getInt();
+        int type = buffer.getInt();
+        ConsensusMessage cm = new ConsensusMessage(type, number, epoch, sender, getNullableBytes(buffer));
+
+        byte proofType = buffer.get();
+        if (proofType == BYTES_PROOF) {
+            cm.setProof(getBytes(buffer));
+        } else if (proofType == OBJECT_PROOF) {
+            byte[] proof = getBytes(buffer);
+            cm.setProof(deserialize(proof, 0, proof.length));
+        } else if (proofType != NO_PROOF) {
+            throw new StreamCorruptedException("Unknown proof type " + proofType);
+        }
+
+        return cm;
+    }
+
+    private static byte[] encodeLeaderChange(LCMessage lcm) {
+        byte[] payload = lcm.getPayload() != null ? lcm.getPayload() : new byte[0];
+
+        ByteBuffer buffer = allocate(LEADER_CHANGE_TAG, lcm.getSender(), Integer.BYTES * 3 + payload.length);
+        buffer.putInt(lcm.getType()).putInt(lcm.getReg());
+        putBytes(buffer, payload);
+
+        return buffer.array();
+    }
+
+    private static byte[] encodeForwarded(ForwardedMessage fm) {
+        TOMMessage request = fm.getRequest();
+        byte[] signature = request.signed ? request.serializedMessageSignature : null;
+
+        ByteBuffer buffer = allocate(FORWARDED_TAG, fm.getSender(), Integer.BYTES + request.serializedMessage.length +
+                nullableSize(signature));
+        putBytes(buffer, request.serializedMessage);
+        putNullableBytes(buffer, signature);
+
+        return buffer.array();
+    }
+
+    private static ForwardedMessage decodeForwarded(ByteBuffer buffer, int sender) throws StreamCorruptedException {
+        byte[] serializedMessage = getBytes(buffer);
+        byte[] signature = getNullableBytes(buffer);
+
+        TOMMessage request;
+        try {
+            request = TOMMessage.fromSerialized(serializedMessage);
+        } catch (IOException ex) {
+            throw new StreamCorruptedException("Unable to read forwarded request: " + ex.getMessage());
+        }
+        if (signature != null) {
+            request.serializedMessageSignature = signature;
+        }
+
+        return new ForwardedMessage(sender, request);
+    }
+
+    private static ByteBuffer encodeStateTransfer(SMMessage smm, byte tag, int extraSize) throws IOException {
+
+        byte[] state = serialize(smm.getState());
+        byte[] view = serialize(smm.getView());
+
+        ByteBuffer buffer = allocate(tag, smm.getSender(), Integer.BYTES * 4 + nullableSize(state) +
+                nullableSize(view) + extraSize);
+        buffer.putInt(smm.getCID()).putInt(smm.getType()).putInt(smm.getRegency()).putInt(smm.getLeader());
+        putNullableBytes(buffer, state);
+        putNullableBytes(buffer, view);
+
+        return buffer;
+    }
+
+    private static SMMessage decodeStateTransfer(ByteBuffer buffer, int sender, byte tag)
+            throws IOException, ClassNotFoundException {
+
+        int cid = buffer.getInt();
+        int type = buffer.getInt();
+        int regency = buffer.getInt();
+        int leader = buffer.getInt();
+        checkNotLocal(sender, type, TOMUtil.TRIGGER_SM_LOCALLY);
+
+        ApplicationState state = (ApplicationState) deserializeNullable(getNullableBytes(buffer));
+        View view = (View) deserializeNullable(getNullableBytes(buffer));
+
+        if (tag == STANDARD_SM_TAG) {
+            return new StandardSMMessage(sender, cid, type, buffer.getInt(), state, view, regency, leader);
+        }
+
+        CSTRequestF1 cstConfig = (CSTRequestF1) deserializeNullable(getNullableBytes(buffer));
+        return new CSTSMMessage(sender, cid, type, cstConfig, state, view, regency, leader);
+    }
+
+    // Messages that trigger a protocol locally are never received from other replicas
+    private static void checkNotLocal(int sender, int type, int localType) throws StreamCorruptedException {
+        if (sender == -1 && type == localType) {
+            throw new StreamCorruptedException("Local message type " + type + " received");
+        }
+    }
+
+    private static ByteBuffer allocate(byte tag, int sender, int size) {
+        return ByteBuffer.allocate(PREFIX_SIZE + size).put(FORMAT_VERSION).put(tag).putInt(sender);
+    }
+
+    private static int nullableSize(byte[] bytes) {
+        return Integer.BYTES + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static void putNullableBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            putBytes(buffer, bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] getNullableBytes(ByteBuffer buffer) {
+        if (buffer.getInt(buffer.position()) == -1) {
+            buffer.getInt();
+            return null;
+        }
+
+        return getBytes(buffer);
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        if (object == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        try (ObjectOutputStream out = new ObjectOutputStream(bOut)) {
+            out.writeObject(object);
+        }
+
+        return bOut.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return in.readObject();
+        }
+    }
+
+    private static Object deserializeNullable(byte[] data) throws IOException, ClassNotFoundException {
+        return data == null ? null : deserialize(data, 0, data.length);
+    }
+}
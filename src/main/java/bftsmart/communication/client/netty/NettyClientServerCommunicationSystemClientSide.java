@@ -15,6 +15,7 @@ limitations under the License.
  */
 package bftsmart.communication.client.netty;
 
+import bftsmart.communication.NettyTransport;
 import bftsmart.communication.client.CommunicationSystemClientSide;
 import bftsmart.communication.client.ReplyReceiver;
 import bftsmart.reconfiguration.ClientViewController;
@@ -23,9 +24,7 @@ import bftsmart.tom.util.TOMUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,12 +74,12 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	private boolean closed = false;
 
 	private EventLoopGroup workerGroup;
+	private NettyTransport transport;
 	private SyncListener listener;
 
 	private SecretKeyFactory secretKeyFactory;
 
 	/* Tulio Ribeiro */
-	private static int tcpSendBufferSize = 8 * 1024 * 1024;
 	private static int connectionTimeoutMsec = 40000; /* (40 seconds, timeout) */
 	private PrivateKey privKey;
 	/* end Tulio Ribeiro */
@@ -89,7 +88,9 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 		super();
 
 		this.clientId = clientId;
-		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+		this.transport = NettyTransport.select(controller.getStaticConf());
+		this.workerGroup = transport.newEventLoopGroup(controller.getStaticConf().getClientWorkerThreads(),
+				"Client " + clientId + " event loop");
 		try {
 
 			this.secretKeyFactory = TOMUtil.getSecretFactory();
@@ -506,10 +507,8 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 
 		Bootstrap b = new Bootstrap();
 		b.group(workerGroup);
-		b.channel(NioSocketChannel.class);
-		b.option(ChannelOption.SO_KEEPALIVE, true);
-		b.option(ChannelOption.TCP_NODELAY, true);
-		b.option(ChannelOption.SO_SNDBUF, tcpSendBufferSize);
+		b.channel(transport.getSocketChannelClass());
+		NettyTransport.setSocketOptions(b, controller.getStaticConf());
 		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
 		b.handler(getChannelInitializer());
 
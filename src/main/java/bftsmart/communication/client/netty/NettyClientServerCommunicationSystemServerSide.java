@@ -15,6 +15,7 @@ limitations under the License.
  */
 package bftsmart.communication.client.netty;
 
+import bftsmart.communication.NettyTransport;
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.reconfiguration.ServerViewController;
@@ -23,9 +24,7 @@ import bftsmart.tom.util.TOMUtil;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,8 +66,6 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	private NettyServerPipelineFactory serverPipelineFactory;
 
 	/* Tulio Ribeiro */
-	private static int tcpSendBufferSize = 8 * 1024 * 1024;
-	private static int bossThreads = 8; /* listens and accepts on server socket; workers handle r/w I/O */
 	private static int connectionBacklog = 1024; /* pending connections boss thread will queue to accept */
 	private static int connectionTimeoutMsec = 40000; /* (40 seconds) */
 	private PrivateKey privKey;
@@ -88,13 +85,16 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 
 			serverPipelineFactory = new NettyServerPipelineFactory(this, sessionReplicaToClient, controller, rl);
 
-			EventLoopGroup bossGroup = new NioEventLoopGroup(bossThreads);
-			EventLoopGroup workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+			// listens and accepts on server socket; workers handle r/w I/O
+			NettyTransport transport = NettyTransport.select(controller.getStaticConf());
+			EventLoopGroup bossGroup = transport.newEventLoopGroup(controller.getStaticConf().getBossThreads(),
+					"Clients acceptor");
+			EventLoopGroup workerGroup = transport.newEventLoopGroup(controller.getStaticConf().getWorkerThreads(),
+					"Clients event loop");
 
 			ServerBootstrap b = new ServerBootstrap();
-			b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_REUSEADDR, true).option(ChannelOption.SO_KEEPALIVE, true)
-					.option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_SNDBUF, tcpSendBufferSize)
+			b.group(bossGroup, workerGroup).channel(transport.getServerSocketChannelClass())
+					.option(ChannelOption.SO_REUSEADDR, true)
 					.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec)
 					.option(ChannelOption.SO_BACKLOG, connectionBacklog)
 					.childHandler(new ChannelInitializer<SocketChannel>() {
@@ -104,7 +104,8 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 							ch.pipeline().addLast(serverPipelineFactory.getEncoder());
 							ch.pipeline().addLast(serverPipelineFactory.getHandler());
 						}
-					}).childOption(ChannelOption.SO_KEEPALIVE, true).childOption(ChannelOption.TCP_NODELAY, true);
+					});
+			NettyTransport.setSocketOptions(b, controller.getStaticConf());
 			String myAddress;
 			String confAddress = controller.getStaticConf().getRemoteAddress(controller.getStaticConf().getProcessId())
 					.getAddress().getHostAddress();
@@ -149,7 +150,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 			logger.info("maxBatch = " + controller.getStaticConf().getMaxBatchSize());
 			if(controller.getStaticConf().getUseSignatures() == 1) logger.info("Using Signatures");
                         else if (controller.getStaticConf().getUseSignatures() == 2) logger.info("Using benchmark signature verification");
-			logger.info("Binded replica to IP address " + myAddress);
+			logger.info("Binded replica to IP address " + myAddress + " (" + transport + " transport)");
 			// ******* EDUARDO END **************//
 
 			/* Tulio Ribeiro */
@@ -23,8 +23,6 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -89,30 +87,36 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
             return;
         }
 
-        // Skip the length field because we know it already.
-        buffer.skipBytes(Integer.BYTES);
+        // The frame is read in place (from the pooled buffer) and consumed even if it is invalid.
+        int offset = buffer.readerIndex() + Integer.BYTES;
+        buffer.skipBytes(Integer.BYTES + dataLength);
 
-        int size = buffer.readInt();
+        int size = dataLength >= 2 * Integer.BYTES ? buffer.getInt(offset) : -1;
+        if (size < 0 || size > dataLength - 2 * Integer.BYTES) {
+            logger.error("Discarding invalid TOMMessage frame with " + dataLength + " bytes");
+            return;
+        }
+        int sigSize = buffer.getInt(offset + Integer.BYTES + size);
+        if (sigSize < 0 || sigSize > dataLength - 2 * Integer.BYTES - size) {
+            logger.error("Discarding invalid TOMMessage frame with " + dataLength + " bytes");
+            return;
+        }
+
+        // The request is copied once, its bytes are kept as the serialized message (for
+        // signature verification and batching) and the content is only copied on demand.
         byte[] data = new byte[size];
-        buffer.readBytes(data);
+        buffer.getBytes(offset + Integer.BYTES, data);
 
         byte[] signature = null;
-        size = buffer.readInt();            
-            
-        if (size > 0) {
-            signature = new byte[size];
-            buffer.readBytes(signature);
+        if (sigSize > 0) {
+            signature = new byte[sigSize];
+            buffer.getBytes(offset + 2 * Integer.BYTES + size, signature);
         }
 
-        DataInputStream dis = null;
         TOMMessage sm = null;
 
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            dis = new DataInputStream(bais);
-            sm = new TOMMessage();
-            sm.rExternal(dis);
-            sm.serializedMessage = data;
+            sm = TOMMessage.fromSerialized(data);
 
             if (signature != null) {
                 sm.serializedMessageSignature = signature;
@@ -40,6 +40,19 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         this.rl = rl;
     }
 
+    /**
+     * Allocates a pooled buffer with the size of the whole frame, so that it is
+     * never grown (and copied) while the message is written.
+     */
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext context, TOMMessage sm, boolean preferDirect) {
+        int signatureLength = sm.signed && sm.serializedMessageSignature != null ?
+                sm.serializedMessageSignature.length : 0;
+        int frameLength = 3 * Integer.BYTES + sm.serializedMessage.length + signatureLength;
+
+        return preferDirect ? context.alloc().ioBuffer(frameLength) : context.alloc().heapBuffer(frameLength);
+    }
+
     @Override
 	protected void encode(ChannelHandlerContext context, TOMMessage sm, ByteBuf buffer) throws Exception {
         byte[] msgData;
@@ -68,8 +81,6 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         } else {
                 buffer.writeInt(0);
         }
-        
-        context.flush();
     }
 
 }
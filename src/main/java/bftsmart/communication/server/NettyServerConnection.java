@@ -0,0 +1,147 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents a connection with other server over the Netty transport.
+ *
+ * Unlike {@link ServerConnection}, it has no threads of its own: messages are framed
+ * into pooled buffers and written by the event loop of the channel, and reconnections
+ * are scheduled on the event loops shared by all connections.
+ *
+ * NettyServerConnections are created by {@link NettyServersCommunicationLayer}.
+ */
+class NettyServerConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(NettyServerConnection.class);
+
+    private final NettyServersCommunicationLayer layer;
+    private final int remoteId;
+    private final int outQueueSize;
+    /** Messages written to the channel but not yet sent */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ChannelFutureListener sent = future -> queued.decrementAndGet();
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile Channel channel;
+    private volatile boolean doWork = true;
+
+    NettyServerConnection(NettyServersCommunicationLayer layer, int remoteId, int outQueueSize) {
+        this.layer = layer;
+        this.remoteId = remoteId;
+        this.outQueueSize = outQueueSize;
+    }
+
+    /**
+     * Used to send packets to the remote server. As with the sender thread of
+     * {@link ServerConnection}, messages are discarded if the out queue is full or
+     * the connection is down.
+     */
+    void send(byte[] data) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            logger.debug("Connection to " + remoteId + " is down (message discarded).");
+            return;
+        }
+
+        if (queued.incrementAndGet() > outQueueSize) {
+            queued.decrementAndGet();
+            logger.debug("Out queue for " + remoteId + " full (message discarded).");
+            return;
+        }
+
+        ByteBuf frame = ch.alloc().ioBuffer(ServerConnection.FRAME_OVERHEAD + data.length);
+        frame.writeInt(data.length).writeBytes(data).writeByte(0); // without MAC
+        ch.writeAndFlush(frame).addListener(sent);
+    }
+
+    /**
+     * Connects to the remote server, if this process shall start the connection
+     * (see {@link ServerConnection#isToConnect}) and it is not connected yet.
+     */
+    void connect() {
+        Channel ch = channel;
+        if (doWork && (ch == null || !ch.isActive()) && layer.isToConnect(remoteId)
+                && connecting.compareAndSet(false, true)) {
+            layer.connect(this);
+        }
+    }
+
+    /**
+     * Sets the channel of the connection, once the remote server is authenticated
+     * (and knows the id of this process). A previous channel is closed.
+     */
+    void setChannel(Channel ch) {
+        Channel previous = channel;
+        channel = ch;
+        connecting.set(false);
+
+        if (previous != null && previous != ch) {
+            logger.debug("ReConnecting with replica: {}", remoteId);
+            previous.close();
+        }
+        if (!doWork) {
+            ch.close();
+        }
+    }
+
+    /**
+     * Called when a channel to the remote server is closed, schedules a reconnection.
+     */
+    void channelClosed(Channel ch) {
+        if (channel == ch) {
+            channel = null;
+        }
+        connecting.set(false);
+
+        if (doWork && layer.isToConnect(remoteId)) {
+            ch.eventLoop().schedule(this::connect, ServerConnection.POOL_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop message sending and reception.
+     */
+    void shutdown() {
+        logger.debug("SHUTDOWN for " + remoteId);
+
+        doWork = false;
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    int getRemoteId() {
+        return remoteId;
+    }
+
+    /**
+     * Number of messages written to the connection but not yet sent.
+     */
+    int getQueued() {
+        return queued.get();
+    }
+}
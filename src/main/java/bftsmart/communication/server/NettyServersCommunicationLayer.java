@@ -0,0 +1,356 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.NettyTransport;
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.ServiceReplica;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Netty transport of the messages exchanged between servers, used by
+ * {@link ServersCommunicationLayer} when system.communication.serverTransport is
+ * set to netty.
+ *
+ * The socket transport uses two threads per connection (sender and receiver) and
+ * blocking reconnections. Here all the connections share one acceptor thread and
+ * a fixed group of event loop threads, whatever the number of servers. Messages
+ * are framed into pooled buffers, flushes are consolidated, and TLS is done by
+ * Netty's SSL handler with the same key store, protocol version and ciphers.
+ *
+ * Connections are established as in the socket transport (the process with the
+ * higher id connects and sends its id after the handshake) and use the same
+ * framing, so both transports can talk to each other (e.g., to the TTP).
+ */
+class NettyServersCommunicationLayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(NettyServersCommunicationLayer.class);
+
+    private static final AttributeKey<Integer> REMOTE_ID = AttributeKey.valueOf("bftsmart.remoteId");
+
+    private final ServerViewController controller;
+    private final LinkedBlockingQueue<SystemMessage> inQueue;
+    private final ServiceReplica replica;
+    private final int me;
+
+    private final SslContext serverSslContext;
+    private final SslContext clientSslContext;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final Bootstrap bootstrap;
+    private final Channel serverChannel;
+    private final MessageReceiver receiver = new MessageReceiver();
+
+    private final ConcurrentHashMap<Integer, NettyServerConnection> connections = new ConcurrentHashMap<>();
+    /** Accepted channels waiting for this process to join the view */
+    private final List<Channel> pendingChannels = new LinkedList<>();
+    private volatile boolean doWork = true;
+
+    NettyServersCommunicationLayer(ServerViewController controller, LinkedBlockingQueue<SystemMessage> inQueue,
+                                   ServiceReplica replica, KeyManagerFactory kmf, TrustManagerFactory trustMgrFactory,
+                                   String myAddress, int myPort) throws SSLException, InterruptedException {
+
+        this.controller = controller;
+        this.inQueue = inQueue;
+        this.replica = replica;
+        this.me = controller.getStaticConf().getProcessId();
+
+        List<String> ciphers = Arrays.asList(controller.getStaticConf().getEnabledCiphers());
+        String protocol = controller.getStaticConf().getSSLTLSProtocolVersion();
+
+        serverSslContext = SslContextBuilder.forServer(kmf).trustManager(trustMgrFactory)
+                .clientAuth(ClientAuth.REQUIRE).sslProvider(SslProvider.JDK).protocols(protocol).ciphers(ciphers)
+                .build();
+        clientSslContext = SslContextBuilder.forClient().keyManager(kmf).trustManager(trustMgrFactory)
+                .sslProvider(SslProvider.JDK).protocols(protocol).ciphers(ciphers).build();
+
+        NettyTransport transport = NettyTransport.select(controller.getStaticConf());
+        bossGroup = transport.newEventLoopGroup(1, "Servers acceptor");
+        workerGroup = transport.newEventLoopGroup(controller.getStaticConf().getServerEventLoopThreads(),
+                "Servers event loop");
+
+        bootstrap = new Bootstrap().group(workerGroup).channel(transport.getSocketChannelClass())
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        Integer remoteId = ch.attr(REMOTE_ID).get();
+                        ch.pipeline().addLast(clientSslContext.newHandler(ch.alloc(),
+                                controller.getStaticConf().getHost(remoteId),
+                                controller.getStaticConf().getServerToServerPort(remoteId)));
+                        addMessageHandlers(ch.pipeline());
+                    }
+                });
+
+        NettyTransport.setSocketOptions(bootstrap, controller.getStaticConf());
+
+        ServerBootstrap b = new ServerBootstrap().group(bossGroup, workerGroup)
+                .channel(transport.getServerSocketChannelClass())
+                .option(ChannelOption.SO_REUSEADDR, true).option(ChannelOption.SO_BACKLOG, 100)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(serverSslContext.newHandler(ch.alloc()));
+                        ch.pipeline().addLast(new RemoteIdDecoder());
+                        addMessageHandlers(ch.pipeline());
+                    }
+                });
+        NettyTransport.setSocketOptions(b, controller.getStaticConf());
+
+        serverChannel = b.bind(new InetSocketAddress(myAddress, myPort)).sync().channel();
+
+        logger.info("Netty transport for servers bound to {}:{} ({} transport, {} event loop threads)", myAddress,
+                myPort, transport, ((MultithreadEventLoopGroup) workerGroup).executorCount());
+    }
+
+    private void addMessageHandlers(ChannelPipeline pipeline) {
+        // length, data and MAC flag (see ServerConnection), the length is stripped
+        pipeline.addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, Integer.BYTES, 1, Integer.BYTES));
+        pipeline.addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES,
+                true));
+        pipeline.addLast(receiver);
+    }
+
+    boolean isToConnect(int remoteId) {
+        return doWork && ServerConnection.isToConnect(controller, remoteId);
+    }
+
+    /**
+     * Gets the connection to a server, connecting to it if this process shall
+     * start the connection.
+     */
+    NettyServerConnection getConnection(int remoteId) {
+        NettyServerConnection connection = connections.get(remoteId);
+        if (connection == null) {
+            NettyServerConnection created = new NettyServerConnection(this, remoteId,
+                    controller.getStaticConf().getOutQueueSize());
+            connection = connections.putIfAbsent(remoteId, created);
+            if (connection == null) {
+                connection = created;
+                connection.connect();
+            }
+        }
+        return connection;
+    }
+
+    void connect(NettyServerConnection connection) {
+        int remoteId = connection.getRemoteId();
+
+        ChannelFuture future = bootstrap.clone().attr(REMOTE_ID, remoteId)
+                .connect(controller.getStaticConf().getHost(remoteId),
+                        controller.getStaticConf().getServerToServerPort(remoteId));
+        Channel ch = future.channel();
+        ch.closeFuture().addListener(f -> connection.channelClosed(ch));
+
+        future.addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess()) {
+                logger.debug("Connection to {} refused, retrying", remoteId);
+                return;
+            }
+
+            ch.pipeline().get(SslHandler.class).handshakeFuture().addListener(h -> {
+                if (!h.isSuccess()) {
+                    logger.error("SSL/TLS handshake with " + remoteId + " failed", h.cause());
+                    ch.close();
+                    return;
+                }
+
+                SSLSession session = ch.pipeline().get(SslHandler.class).engine().getSession();
+                logger.info("SSL/TLS handshake complete!, Id:{}  ## CipherSuite: {}.", remoteId,
+                        session.getCipherSuite());
+
+                ch.writeAndFlush(ch.alloc().ioBuffer(Integer.BYTES).writeInt(me));
+                connection.setChannel(ch);
+            });
+        });
+    }
+
+    //******* EDUARDO BEGIN **************//
+    private void accepted(Channel ch, int remoteId) {
+        if (!controller.isInCurrentView() && controller.getStaticConf().getTTPId() != remoteId) {
+            // the channel is not read until this process joins the view
+            ch.config().setAutoRead(false);
+            synchronized (pendingChannels) {
+                pendingChannels.add(ch);
+            }
+        } else {
+            logger.debug("Trying establish connection with Replica: {}", remoteId);
+            establishConnection(ch, remoteId);
+        }
+    }
+
+    private void establishConnection(Channel ch, int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId || controller.isCurrentViewMember(remoteId)) {
+            getConnection(remoteId).setChannel(ch);
+
+            // messages received after the id are passed on to the frame decoder
+            ch.pipeline().remove(RemoteIdDecoder.class);
+            ch.config().setAutoRead(true);
+        } else {
+            logger.debug("Closing connection with replica: {}", remoteId);
+            ch.close();
+        }
+    }
+
+    void joinViewReceived() {
+        synchronized (pendingChannels) {
+            for (Channel ch : pendingChannels) {
+                ch.eventLoop().execute(() -> establishConnection(ch, ch.attr(REMOTE_ID).get()));
+            }
+            pendingChannels.clear();
+        }
+    }
+
+    void updateConnections() {
+        if (controller.isInCurrentView()) {
+            Iterator<NettyServerConnection> it = connections.values().iterator();
+            while (it.hasNext()) {
+                NettyServerConnection connection = it.next();
+                if (!controller.isCurrentViewMember(connection.getRemoteId())) {
+                    it.remove();
+                    connection.shutdown();
+                }
+            }
+
+            for (int remoteId : controller.getCurrentViewAcceptors()) {
+                if (remoteId != me) {
+                    getConnection(remoteId);
+                }
+            }
+        } else {
+            for (NettyServerConnection connection : connections.values()) {
+                connection.shutdown();
+            }
+        }
+    }
+    //******* EDUARDO END **************//
+
+    void shutdown() {
+        doWork = false;
+
+        for (NettyServerConnection connection : connections.values()) {
+            connection.shutdown();
+        }
+        synchronized (pendingChannels) {
+            for (Channel ch : pendingChannels) {
+                ch.close();
+            }
+            pendingChannels.clear();
+        }
+
+        // the port is released before returning, the replica may be restarted
+        serverChannel.close().awaitUninterruptibly();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+
+        logger.info("Netty transport for servers stopped.");
+    }
+
+    /**
+     * Reads the id sent by the remote server after the handshake, on accepted channels.
+     */
+    private class RemoteIdDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (ctx.channel().attr(REMOTE_ID).get() != null || in.readableBytes() < Integer.BYTES) {
+                return;
+            }
+
+            int remoteId = in.readInt();
+            ctx.channel().attr(REMOTE_ID).set(remoteId);
+            accepted(ctx.channel(), remoteId);
+        }
+    }
+
+    /**
+     * Decodes the messages received from all the servers.
+     */
+    @Sharable
+    private class MessageReceiver extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+            int remoteId = ctx.channel().attr(REMOTE_ID).get();
+
+            byte[] data = new byte[frame.readableBytes() - 1];
+            frame.readBytes(data); // the MAC flag is ignored, messages are authenticated by TLS
+
+            SystemMessage sm;
+            try {
+                sm = SystemMessageCodec.decode(data);
+            } catch (IOException | ClassNotFoundException ex) {
+                logger.info("Invalid message received from " + remoteId + ". Ignoring!", ex);
+                return;
+            }
+
+            if (sm.getSender() != remoteId) {
+                return;
+            }
+
+            if (controller.getStaticConf().getTTPId() == remoteId) {
+                replica.joinMsgReceived((VMMessage) sm);
+            } else {
+                //The verification it is done for the SSL/TLS protocol.
+                sm.authenticated = true;
+
+                if (!inQueue.offer(sm)) {
+                    logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (doWork) {
+                logger.debug("Closing connection with " + ctx.channel().attr(REMOTE_ID).get(), cause);
+            }
+            ctx.close();
+        }
+    }
+}
@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.communication.server;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
@@ -50,7 +51,9 @@ public class ServerConnection {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
 
-    private static final long POOL_TIME = 5000;
+    static final long POOL_TIME = 5000;
+    /** Bytes added to each message when framed: length (4) and MAC flag (1) */
+    static final int FRAME_OVERHEAD = 5;
     private ServerViewController controller;
     private SSLSocket socket;
     private DataOutputStream socketOutStream = null;
@@ -64,6 +67,11 @@ public class ServerConnection {
     /** Only used when there is no sender Thread */
     private Lock sendLock;
     private boolean doWork = true;
+
+    /** Counters of the coalescing sender, only updated by the sender thread */
+    private volatile long flushCount = 0;
+    private volatile long flushedMessages = 0;
+    private volatile long flushedBytes = 0;
     
     private SecretKey secretKey = null;
 
@@ -186,13 +194,8 @@ public class ServerConnection {
 			if (socket != null && socketOutStream != null) {
 				try {
 					// do an extra copy of the data to be sent, but on a single out stream write
-					byte[] data = new byte[5 + messageData.length];// without MAC
-					int value = messageData.length;
-
-					System.arraycopy(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
-							(byte) value }, 0, data, 0, 4);
-					System.arraycopy(messageData, 0, data, 4, messageData.length);
-					System.arraycopy(new byte[] { (byte) 0 }, 0, data, 4 + messageData.length, 1);
+					byte[] data = new byte[FRAME_OVERHEAD + messageData.length];// without MAC
+					frame(messageData, data, 0);
 
 					socketOutStream.write(data);
 
@@ -209,21 +212,96 @@ public class ServerConnection {
 		} while (doWork);
 	}
 
+	/**
+	 * Writes several framed messages at once, used by the coalescing sender. As in
+	 * sendBytes, the messages are discarded if the connection fails.
+	 */
+	private void sendFrames(byte[] frames, int length) {
+		boolean abort = false;
+		do {
+			if (abort)
+				return;
+			if (socket != null && socketOutStream != null) {
+				try {
+					socketOutStream.write(frames, 0, length);
+					return;
+				} catch (IOException ex) {
+					closeSocket();
+					waitAndConnect();
+					abort = true;
+				}
+			} else {
+				waitAndConnect();
+				abort = true;
+			}
+		} while (doWork);
+	}
+
+	/**
+	 * Frames a message (length, data and MAC flag) into a buffer.
+	 *
+	 * @return the position after the framed message
+	 */
+	private static int frame(byte[] messageData, byte[] buffer, int offset) {
+		int value = messageData.length;
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+		System.arraycopy(messageData, 0, buffer, offset + 4, value);
+		buffer[offset + 4 + value] = 0; // without MAC
+
+		return offset + FRAME_OVERHEAD + value;
+	}
+
+	/**
+	 * Number of writes done by the coalescing sender.
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * Number of messages written by the coalescing sender.
+	 */
+	public long getFlushedMessages() {
+		return flushedMessages;
+	}
+
+	/**
+	 * Number of bytes written by the coalescing sender, including the framing.
+	 */
+	public long getFlushedBytes() {
+		return flushedBytes;
+	}
+
+	/**
+	 * Average number of messages written at once by the coalescing sender.
+	 */
+	public double getMessagesPerFlush() {
+		long flushes = flushCount;
+		return flushes == 0 ? 0 : (double) flushedMessages / flushes;
+	}
+
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
     private boolean isToConnect() {
-        if (this.controller.getStaticConf().getTTPId() == remoteId) {
+        return isToConnect(controller, remoteId);
+    }
+
+    static boolean isToConnect(ServerViewController controller, int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId) {
             //Need to wait for the connection request from the TTP, do not tray to connect to it
             return false;
-        } else if (this.controller.getStaticConf().getTTPId() == this.controller.getStaticConf().getProcessId()) {
+        } else if (controller.getStaticConf().getTTPId() == controller.getStaticConf().getProcessId()) {
             //If this is a TTP, one must connect to the remote process
             return true;
         }
         boolean ret = false;
-        if (this.controller.isInCurrentView()) {
+        if (controller.isInCurrentView()) {
             
              //in this case, the node with higher ID starts the connection
-             if (this.controller.getStaticConf().getProcessId() > remoteId) {
+             if (controller.getStaticConf().getProcessId() > remoteId) {
                  ret = true;
              }
                 
@@ -330,11 +408,23 @@ public class ServerConnection {
 
     /**
      * Thread used to send packets to the remote server.
+     *
+     * If a max flush size is configured, all the messages queued are framed into
+     * a buffer reused by every flush and written at once, up to the max flush size,
+     * instead of one write (and one array) per message. The thread may also wait
+     * for more messages (flush linger) before writing.
      */
     private class SenderThread extends Thread {
 
+        private final int maxFlushSize;
+        private final long flushLinger;
+        private byte[] buffer;
+
         public SenderThread() {
             super("Sender for " + remoteId);
+            this.maxFlushSize = controller.getStaticConf().getMaxFlushSize();
+            this.flushLinger = TimeUnit.MICROSECONDS.toNanos(controller.getStaticConf().getFlushLinger());
+            this.buffer = new byte[maxFlushSize];
         }
 
         @Override
@@ -343,18 +433,72 @@ public class ServerConnection {
 
             while (doWork) {
                 //get a message to be sent
-                try {
-                    data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ex) {
+                if (data == null) {
+                    try {
+                        data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                    }
                 }
 
                 if (data != null) {
 					logger.trace("Sending data to, RemoteId:{}", remoteId);
-					sendBytes(data);
+					if (maxFlushSize > 0) {
+						// returns the message that didn't fit in this flush
+						data = flush(data);
+					} else {
+						sendBytes(data);
+						data = null;
+					}
 				}
             }
 
-            logger.debug("Sender for " + remoteId + " stopped!");
+            logger.debug("Sender for " + remoteId + " stopped! Flushes: " + flushCount + ", messages per flush: "
+                    + getMessagesPerFlush());
+        }
+
+        private byte[] flush(byte[] first) {
+            // a message bigger than the max flush size is written alone
+            if (buffer.length < FRAME_OVERHEAD + first.length) {
+                buffer = new byte[FRAME_OVERHEAD + first.length];
+            }
+
+            int length = frame(first, buffer, 0);
+            int messages = 1;
+            long deadline = System.nanoTime() + flushLinger;
+            byte[] next;
+
+            while (true) {
+                next = outQueue.poll();
+                if (next == null && flushLinger > 0) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            next = outQueue.poll(wait, TimeUnit.NANOSECONDS);
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                }
+
+                if (next == null || length + FRAME_OVERHEAD + next.length > maxFlushSize) {
+                    break;
+                }
+
+                length = frame(next, buffer, length);
+                messages++;
+            }
+
+            sendFrames(buffer, length);
+
+            flushCount++;
+            flushedMessages += messages;
+            flushedBytes += length;
+
+            // an oversized buffer is not kept
+            if (buffer.length > maxFlushSize) {
+                buffer = new byte[maxFlushSize];
+            }
+
+            return next;
         }
     }
 
@@ -388,8 +532,7 @@ public class ServerConnection {
 
 						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = SystemMessageCodec.decode(data);
 
 						//The verification it is done for the SSL/TLS protocol.
 						sm.authenticated = true;
@@ -451,8 +594,7 @@ public class ServerConnection {
 							read += socketInStream.read(data, read, dataLength - read);
 						} while (read < dataLength);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = SystemMessageCodec.decode(data);
 
 						if (sm.getSender() == remoteId) {
 							this.replica.joinMsgReceived((VMMessage) sm);
@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.communication.server;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.util.TOMUtil;
@@ -89,6 +90,9 @@ public class ServersCommunicationLayer extends Thread {
 	private SSLServerSocket serverSocketSSLTLS;
 	private String ssltlsProtocolVersion;
 
+	/** Used instead of the server socket and connections if the netty transport is configured */
+	private NettyServersCommunicationLayer nettyServers;
+
     public ServersCommunicationLayer(ServerViewController controller,
                                      LinkedBlockingQueue<SystemMessage> inQueue,
                                      ServiceReplica replica) throws Exception {
@@ -137,27 +141,32 @@ public class ServersCommunicationLayer extends Thread {
 		trustMgrFactory = TrustManagerFactory.getInstance(algorithm);
 		trustMgrFactory.init(ks);
 
-		context = SSLContext.getInstance(this.ssltlsProtocolVersion);
-		context.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), new SecureRandom());
+		if (controller.getStaticConf().isNettyServerTransport()) {
+			nettyServers = new NettyServersCommunicationLayer(controller, inQueue, replica, kmf, trustMgrFactory,
+					myAddress, myPort);
+		} else {
+			context = SSLContext.getInstance(this.ssltlsProtocolVersion);
+			context.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), new SecureRandom());
+
+			serverSocketFactory = context.getServerSocketFactory();
+			this.serverSocketSSLTLS = (SSLServerSocket) serverSocketFactory.createServerSocket(myPort, 100,
+					InetAddress.getByName(myAddress));
 
-		serverSocketFactory = context.getServerSocketFactory();
-		this.serverSocketSSLTLS = (SSLServerSocket) serverSocketFactory.createServerSocket(myPort, 100,
-				InetAddress.getByName(myAddress));
+			serverSocketSSLTLS.setEnabledCipherSuites(this.controller.getStaticConf().getEnabledCiphers());
 
-		serverSocketSSLTLS.setEnabledCipherSuites(this.controller.getStaticConf().getEnabledCiphers());
+			String[] ciphers = serverSocketFactory.getSupportedCipherSuites();
+			for (int i = 0; i < ciphers.length; i++) {
+				logger.trace("Supported Cipher: {} ", ciphers[i]);
+			}
 
-		String[] ciphers = serverSocketFactory.getSupportedCipherSuites();
-		for (int i = 0; i < ciphers.length; i++) {
-			logger.trace("Supported Cipher: {} ", ciphers[i]);
+			//serverSocketSSLTLS.setPerformancePreferences(0, 2, 1);
+			//serverSocketSSLTLS.setSoTimeout(connectionTimeoutMsec);
+			serverSocketSSLTLS.setEnableSessionCreation(true);
+			serverSocketSSLTLS.setReuseAddress(true);
+			serverSocketSSLTLS.setNeedClientAuth(true);
+			serverSocketSSLTLS.setWantClientAuth(true);
 		}
 
-		//serverSocketSSLTLS.setPerformancePreferences(0, 2, 1);
-		//serverSocketSSLTLS.setSoTimeout(connectionTimeoutMsec);
-		serverSocketSSLTLS.setEnableSessionCreation(true);
-		serverSocketSSLTLS.setReuseAddress(true);
-		serverSocketSSLTLS.setNeedClientAuth(true);
-		serverSocketSSLTLS.setWantClientAuth(true);
-		
 
 		SecretKeyFactory fac = TOMUtil.getSecretFactory();
 		PBEKeySpec spec = TOMUtil.generateKeySpec(SECRET.toCharArray());
@@ -168,22 +177,35 @@ public class ServersCommunicationLayer extends Thread {
             int[] initialV = controller.getCurrentViewAcceptors();
             for (int i = 0; i < initialV.length; i++) {
                 if (initialV[i] != me) {
-                    getConnection(initialV[i]);
+                    if (nettyServers != null) {
+                        nettyServers.getConnection(initialV[i]);
+                    } else {
+                        getConnection(initialV[i]);
+                    }
                 }
             }
         }
         
-        start();
+        // the netty transport accepts connections on its own event loop
+        if (nettyServers == null) {
+            start();
+        }
     }
 
     public SecretKey getSecretKey(int id) {
-        if (id == controller.getStaticConf().getProcessId()) 
+        // all the secret keys are generated from the same secret
+        if (id == controller.getStaticConf().getProcessId() || nettyServers != null) 
         	return selfPwd;
         else return connections.get(id).getSecretKey();
     }
 
     //******* EDUARDO BEGIN **************//
     public void updateConnections() {
+        if (nettyServers != null) {
+            nettyServers.updateConnections();
+            return;
+        }
+
         connectionsLock.lock();
 
         if (this.controller.isInCurrentView()) {
@@ -232,14 +254,13 @@ public class ServersCommunicationLayer extends Thread {
 
 
     public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        byte[] data;
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            data = SystemMessageCodec.encode(sm);
         } catch (IOException ex) {
             logger.error("Failed to serialize message", ex);
+            return;
         }
-
-        byte[] data = bOut.toByteArray();
         
         // this shuffling is done to prevent the replica with the lowest ID/index  from being always
         // the last one receiving the messages, which can result in that replica  to become consistently
@@ -254,6 +275,9 @@ public class ServersCommunicationLayer extends Thread {
 					sm.authenticated = true;
 					inQueue.put(sm);
 					logger.debug("Queueing (delivering) my own message, me:{}", target);
+				} else if (nettyServers != null) {
+					logger.debug("Sending message from:{} -> to:{}.", me,  target);
+					nettyServers.getConnection(target).send(data);
 				} else {
 					logger.debug("Sending message from:{} -> to:{}.", me,  target);
 					getConnection(target).send(data);
@@ -270,6 +294,11 @@ public class ServersCommunicationLayer extends Thread {
         
         doWork = false;
 
+        if (nettyServers != null) {
+            nettyServers.shutdown();
+            return;
+        }
+
         //******* EDUARDO BEGIN **************//
         int[] activeServers = controller.getCurrentViewAcceptors();
 
@@ -282,6 +311,11 @@ public class ServersCommunicationLayer extends Thread {
 
     //******* EDUARDO BEGIN **************//
     public void joinViewReceived() {
+        if (nettyServers != null) {
+            nettyServers.joinViewReceived();
+            return;
+        }
+
         waitViewLock.lock();
         for (int i = 0; i < pendingConn.size(); i++) {
             PendingConnection pc = pendingConn.get(i);
@@ -386,7 +420,10 @@ public class ServersCommunicationLayer extends Thread {
         String str = "inQueue=" + inQueue.toString();
         int[] activeServers = controller.getCurrentViewAcceptors();
         for (int i = 0; i < activeServers.length; i++) {
-            if (me != activeServers[i]) {
+            if (me != activeServers[i] && nettyServers != null) {
+                str += ", connections[" + activeServers[i] + "]: queued="
+                        + nettyServers.getConnection(activeServers[i]).getQueued();
+            } else if (me != activeServers[i]) {
                 str += ", connections[" + activeServers[i] + "]: outQueue=" + getConnection(activeServers[i]).outQueue;
             }
         }
@@ -41,6 +41,19 @@ public class TOMConfiguration extends Configuration {
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected int maxFlushSize;
+    protected int flushLinger;
+    protected boolean nettyServerTransport;
+    protected int serverEventLoopThreads;
+    protected boolean epollTransport;
+    protected int bossThreads;
+    protected int workerThreads;
+    protected int clientWorkerThreads;
+    protected boolean tcpNoDelay;
+    protected int sendBufferSize;
+    protected int receiveBufferSize;
+    protected int writeBufferLowWaterMark;
+    protected int writeBufferHighWaterMark;
     private int numNIOThreads;
     private int useSignatures;
     private boolean stateTransferEnabled;
@@ -180,6 +193,127 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.maxFlushSize");
+            if (s == null) {
+                maxFlushSize = 0;
+            } else {
+                maxFlushSize = Integer.parseInt(s);
+                if (maxFlushSize < 0) {
+                    maxFlushSize = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.flushLinger");
+            if (s == null) {
+                flushLinger = 0;
+            } else {
+                flushLinger = Integer.parseInt(s);
+                if (flushLinger < 0) {
+                    flushLinger = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.serverTransport");
+            if (s == null) {
+                nettyServerTransport = false;
+            } else {
+                nettyServerTransport = s.trim().equalsIgnoreCase("netty");
+            }
+
+            s = (String) configs.remove("system.communication.serverEventLoopThreads");
+            if (s == null) {
+                serverEventLoopThreads = 0;
+            } else {
+                serverEventLoopThreads = Integer.parseInt(s);
+                if (serverEventLoopThreads < 0) {
+                    serverEventLoopThreads = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.nettyTransport");
+            if (s == null) {
+                epollTransport = false;
+            } else {
+                epollTransport = s.trim().equalsIgnoreCase("epoll");
+            }
+
+            s = (String) configs.remove("system.communication.bossThreads");
+            if (s == null) {
+                bossThreads = 1;
+            } else {
+                bossThreads = Integer.parseInt(s);
+                if (bossThreads < 1) {
+                    bossThreads = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.workerThreads");
+            if (s == null) {
+                workerThreads = 0;
+            } else {
+                workerThreads = Integer.parseInt(s);
+                if (workerThreads < 0) {
+                    workerThreads = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.clientWorkerThreads");
+            if (s == null) {
+                clientWorkerThreads = 0;
+            } else {
+                clientWorkerThreads = Integer.parseInt(s);
+                if (clientWorkerThreads < 0) {
+                    clientWorkerThreads = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.tcpNoDelay");
+            if (s == null) {
+                tcpNoDelay = true;
+            } else {
+                tcpNoDelay = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.communication.sendBufferSize");
+            if (s == null) {
+                sendBufferSize = 8 * 1024 * 1024;
+            } else {
+                sendBufferSize = Integer.parseInt(s);
+                if (sendBufferSize < 0) {
+                    sendBufferSize = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.receiveBufferSize");
+            if (s == null) {
+                receiveBufferSize = 0;
+            } else {
+                receiveBufferSize = Integer.parseInt(s);
+                if (receiveBufferSize < 0) {
+                    receiveBufferSize = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.writeBufferLowWaterMark");
+            if (s == null) {
+                writeBufferLowWaterMark = 32 * 1024;
+            } else {
+                writeBufferLowWaterMark = Integer.parseInt(s);
+                if (writeBufferLowWaterMark < 0) {
+                    writeBufferLowWaterMark = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.writeBufferHighWaterMark");
+            if (s == null) {
+                writeBufferHighWaterMark = 64 * 1024;
+            } else {
+                writeBufferHighWaterMark = Integer.parseInt(s);
+                if (writeBufferHighWaterMark < writeBufferLowWaterMark) {
+                    writeBufferHighWaterMark = writeBufferLowWaterMark;
+                }
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -485,6 +619,96 @@ public class TOMConfiguration extends Configuration {
         return useSenderThread;
     }
 
+    /**
+     * Max number of bytes written at once by the sender thread of each replica connection. Queued messages are
+     * coalesced into a single write up to this size. If set to 0, each message is written on its own.
+     */
+    public int getMaxFlushSize() {
+        return maxFlushSize;
+    }
+
+    /**
+     * Time (in microseconds) the sender thread waits for more messages before writing the ones already coalesced.
+     */
+    public int getFlushLinger() {
+        return flushLinger;
+    }
+
+    /**
+     * If connections between replicas use the Netty transport (event loops shared by all the connections) instead of
+     * blocking sockets with a sender and a receiver thread per connection.
+     */
+    public boolean isNettyServerTransport() {
+        return nettyServerTransport;
+    }
+
+    /**
+     * Number of event loop threads of the Netty transport between replicas. If set to 0, one per processor.
+     */
+    public int getServerEventLoopThreads() {
+        return serverEventLoopThreads;
+    }
+
+    /**
+     * If the Netty communication layers use the native epoll transport (if available, otherwise NIO is used).
+     */
+    public boolean isEpollTransport() {
+        return epollTransport;
+    }
+
+    /**
+     * Number of threads accepting client connections in the replicas.
+     */
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    /**
+     * Number of event loop threads serving client connections in the replicas. If set to 0, one per processor.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Number of event loop threads of the connections of a client to the replicas. If set to 0, one per processor.
+     */
+    public int getClientWorkerThreads() {
+        return clientWorkerThreads;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Size of the socket send buffer (SO_SNDBUF) of the Netty connections. If set to 0, the OS default is used.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Size of the socket receive buffer (SO_RCVBUF) of the Netty connections. If set to 0, the OS default is used.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Bytes pending to be written below which a Netty connection becomes writable again.
+     */
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * Bytes pending to be written above which a Netty connection is no longer writable.
+     */
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
     /**
      *     *
      */
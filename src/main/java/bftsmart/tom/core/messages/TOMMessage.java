@@ -20,6 +20,7 @@ import bftsmart.tom.util.DebugInfo;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * This class represents a total ordered message
@@ -39,6 +40,13 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	private byte[] content = null; // Content of the message
 
+	/** Size of the fields written by wExternal before the content */
+	public static final int HEADER_SIZE = 8 * Integer.BYTES;
+
+	// bytes from which the content is copied when first needed (see fromSerialized)
+	private transient byte[] contentSource = null;
+	private transient int contentLength;
+
 	//the fields bellow are not serialized!!!
 	private transient int id; // ID for this message. It should be unique
 
@@ -179,7 +187,12 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	 * @return The content of the message
 	 */
 	public byte[] getContent() {
-		return content;
+		byte[] c = content;
+		if (c == null && contentSource != null) {
+			c = Arrays.copyOfRange(contentSource, HEADER_SIZE, HEADER_SIZE + contentLength);
+			content = c;
+		}
+		return c;
 	}
 
 	/**
@@ -227,7 +240,10 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		out.writeInt(operationId);
 		out.writeInt(replyServer);
 		
-		if (content == null) {
+		if (content == null && contentSource != null) {
+			out.writeInt(contentLength);
+			out.write(contentSource, HEADER_SIZE, contentLength);
+		} else if (content == null) {
 			out.writeInt(-1);
 		} else {
 			out.writeInt(content.length);
@@ -245,6 +261,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		replyServer = in.readInt();
 		
 		int toRead = in.readInt();
+		contentSource = null;
 		if (toRead != -1) {
 			content = new byte[toRead];
 			in.readFully(content);
@@ -253,6 +270,49 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		buildId();
 	}
 
+	/**
+	 * Reads a message from the bytes written by wExternal, which become its
+	 * serialized message. Unlike rExternal, the content is not copied: it is
+	 * only read from these bytes when getContent is first called, so requests
+	 * that are just checked, batched and forwarded are never copied again.
+	 *
+	 * @param b the serialized message
+	 * @return the message
+	 * @throws IOException if the bytes are not a valid message
+	 */
+	public static TOMMessage fromSerialized(byte[] b) throws IOException {
+		if (b.length < HEADER_SIZE) {
+			throw new EOFException("TOMMessage with " + b.length + " bytes");
+		}
+
+		TOMMessage m = new TOMMessage();
+		m.sender = readInt(b, 0);
+		m.viewID = readInt(b, 4);
+		m.type = TOMMessageType.fromInt(readInt(b, 8));
+		m.session = readInt(b, 12);
+		m.sequence = readInt(b, 16);
+		m.operationId = readInt(b, 20);
+		m.replyServer = readInt(b, 24);
+
+		int length = readInt(b, 28);
+		if (length != -1) {
+			if (length < 0 || length > b.length - HEADER_SIZE) {
+				throw new EOFException("TOMMessage content with " + length + " bytes");
+			}
+			m.contentSource = b;
+			m.contentLength = length;
+		}
+		m.serializedMessage = b;
+
+		m.buildId();
+		return m;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8)
+				| (b[offset + 3] & 0xFF);
+	}
+
 	/**
 	 * Used to build an unique id for the message
 	 */
@@ -339,7 +399,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
              
                           
                     TOMMessage clone = new TOMMessage(sender, session, sequence,
-                            operationId, content, viewID, type);
+                            operationId, getContent(), viewID, type);
 
                     clone.setReplyServer(replyServer);
                     
@@ -6,11 +6,10 @@ import bitcoinj.Base58;
 
 import org.bouncycastle.util.encoders.Base64;
 
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
 import pt.ipleiria.estg.dei.pi.voidchain.util.*;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
@@ -26,11 +25,28 @@ import java.util.*;
  */
 public class Block implements Serializable {
     /* Attributes */
-    private final Map<byte[], Transaction> transactions;
+    // Pinned to the value computed for the first versions, so blocks and messages they serialized can still be read
+    private static final long serialVersionUID = -4200358117317876204L;
+
+    // Serialized with the layout of the first versions (transactions in a Map keyed by their hash)
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("transactions", Map.class),
+            new ObjectStreamField("blockHeader", BlockHeader.class),
+            new ObjectStreamField("transactionCounter", int.class),
+            new ObjectStreamField("blockHeight", int.class)
+    };
+
+    private final BlockTransactions transactions;
     private final BlockHeader blockHeader;
     private final int transactionCounter;
     private final int blockHeight;
 
+    // Levels of the merkle tree, calculated when the first merkle proof is requested
+    private transient volatile byte[][] merkleLevels = null;
+
+    // The block read by readObject, returned by readResolve (the final fields of the read instance can't be set)
+    private transient Block deserialized = null;
+
     /* Constructors */
 
     /**
@@ -48,14 +64,13 @@ public class Block implements Serializable {
         long timestamp = 1582135200000L;
 
         Transaction t = new Transaction(genesisBytes, config.getProtocolVersion(), timestamp, signature);
-        this.transactions = new Hashtable<>();
-        this.transactions.put(t.getHash(), t);
+        this.transactions = BlockTransactions.of(Collections.singletonList(t));
 
         byte[] nonce = new byte[10];
         new Random(timestamp).nextBytes(nonce);
 
         this.blockHeader = new BlockHeader(new byte[0], config.getProtocolVersion(), timestamp,
-                nonce, MerkleTree.getMerkleRoot(this.transactions));
+                nonce, MerkleTree.getMerkleRoot(this.transactions, config.getProtocolVersion()));
         this.blockHeight = 0;
         this.transactionCounter = 1;
     }
@@ -90,14 +105,13 @@ public class Block implements Serializable {
         System.out.println("New Genesis Block Signature :: " + Base64.toBase64String(signatureBytes));
 
         Transaction t = new Transaction(genesisBytes, config.getProtocolVersion(), timestamp, signatureBytes);
-        this.transactions = new Hashtable<>();
-        this.transactions.put(t.getHash(), t);
+        this.transactions = BlockTransactions.of(Collections.singletonList(t));
 
         byte[] nonce = new byte[10];
         new Random(timestamp).nextBytes(nonce);
 
         this.blockHeader = new BlockHeader(new byte[0], config.getProtocolVersion(), timestamp,
-                nonce, MerkleTree.getMerkleRoot(this.transactions));
+                nonce, MerkleTree.getMerkleRoot(this.transactions, config.getProtocolVersion()));
         this.blockHeight = 0;
         this.transactionCounter = 1;
     }
@@ -115,20 +129,7 @@ public class Block implements Serializable {
      */
     public Block(byte[] previousBlockHash, String protocolVersion, int blockHeight,
                  Map<byte[], Transaction> transactions, long timestamp, byte[] nonce) throws InstantiationException {
-
-        byte[] merkleRoot;
-        if (transactions.size() > 0) {
-            merkleRoot = MerkleTree.getMerkleRoot(transactions);
-
-            if (Arrays.equals(merkleRoot, new byte[0]))
-                throw new InstantiationException("Error occurred while calculating merkle tree root");
-        } else
-            merkleRoot = new byte[0];
-
-        this.blockHeader = new BlockHeader(previousBlockHash, protocolVersion, timestamp, nonce, merkleRoot);
-        this.blockHeight = blockHeight;
-        this.transactionCounter = transactions.size();
-        this.transactions = new Hashtable<>(transactions);
+        this(previousBlockHash, protocolVersion, blockHeight, BlockTransactions.of(transactions), timestamp, nonce);
     }
 
     /**
@@ -144,11 +145,27 @@ public class Block implements Serializable {
      */
     public Block(byte[] previousBlockHash, String protocolVersion, int blockHeight,
                  List<Transaction> transactions, long timestamp, byte[] nonce) throws InstantiationException {
-        this.transactions = new Hashtable<>(Converters.transactionListToMap(transactions));
+        this(previousBlockHash, protocolVersion, blockHeight, BlockTransactions.of(transactions), timestamp, nonce);
+    }
+
+    /**
+     * Instantiates a new Block.
+     *
+     * @param previousBlockHash the previous block hash
+     * @param protocolVersion   the protocol version
+     * @param blockHeight       the block height
+     * @param transactions      the transactions (BlockTransactions)
+     * @param timestamp         the timestamp
+     * @param nonce             the nonce
+     * @throws InstantiationException instantiation exception will be thrown if error occurs while calculating merkle tree root
+     */
+    public Block(byte[] previousBlockHash, String protocolVersion, int blockHeight,
+                 BlockTransactions transactions, long timestamp, byte[] nonce) throws InstantiationException {
+        this.transactions = transactions;
 
         byte[] merkleRoot;
         if (transactions.size() > 0) {
-            merkleRoot = MerkleTree.getMerkleRoot(this.transactions);
+            merkleRoot = MerkleTree.getMerkleRoot(this.transactions, protocolVersion);
 
             if (Arrays.equals(merkleRoot, new byte[0]))
                 throw new InstantiationException("Error occurred while calculating merkle tree root");
@@ -160,50 +177,204 @@ public class Block implements Serializable {
         this.transactionCounter = transactions.size();
     }
 
+    /**
+     * Instantiates a Block from previously calculated data, used when decoding blocks.
+     *
+     * @param blockHeader  the block header
+     * @param blockHeight  the block height
+     * @param transactions the transactions
+     */
+    protected Block(BlockHeader blockHeader, int blockHeight, BlockTransactions transactions) {
+        this.transactions = transactions;
+        this.blockHeader = blockHeader;
+        this.blockHeight = blockHeight;
+        this.transactionCounter = transactions.size();
+    }
+
     /* Methods */
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Map<byte[], Transaction> transactions = new Hashtable<>(this.transactionCounter);
+        List<byte[]> hashes = this.transactions.getHashes();
+        for (int i = 0; i < hashes.size(); i++)
+            transactions.put(hashes.get(i), this.transactions.get(i));
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("transactions", transactions);
+        fields.put("blockHeader", this.blockHeader);
+        fields.put("transactionCounter", this.transactionCounter);
+        fields.put("blockHeight", this.blockHeight);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Object transactions = fields.get("transactions", null);
+        Object blockHeader = fields.get("blockHeader", null);
+
+        if (!(transactions instanceof Map) || !(blockHeader instanceof BlockHeader))
+            throw new InvalidObjectException("Block without transactions or block header");
+
+        List<Transaction> list = new ArrayList<>(((Map<?, ?>) transactions).size());
+        for (Object t : ((Map<?, ?>) transactions).values()) {
+            if (!(t instanceof Transaction))
+                throw new InvalidObjectException("Block with an invalid transaction");
+            list.add((Transaction) t);
+        }
+
+        // The hashes are calculated again, the keys of the map are not trusted
+        this.deserialized = new Block((BlockHeader) blockHeader, fields.get("blockHeight", 0),
+                BlockTransactions.of(list));
+    }
+
+    private Object readResolve() {
+        return this.deserialized;
+    }
+
+    /**
+     * Creates a copy of the block linked to another previous block, with another height.
+     * The transactions and the merkle tree root are reused (not recalculated), only the block header is rebuilt.
+     *
+     * @param previousBlockHash the previous block hash
+     * @param blockHeight       the block height
+     * @return the relinked block
+     */
+    public Block relink(byte[] previousBlockHash, int blockHeight) {
+        BlockHeader blockHeader = new BlockHeader(previousBlockHash, this.blockHeader.protocolVersion,
+                this.blockHeader.timestamp, this.blockHeader.getNonce(), this.blockHeader.merkleRoot);
+
+        return new Block(blockHeader, blockHeight, this.transactions);
+    }
+
+    /**
+     * Creates the merkle proof of a transaction stored in the block.
+     * The levels of the merkle tree are calculated once and kept with the block, so the following proofs don't hash
+     * the transactions again.
+     *
+     * @param position the position of the transaction in the block (in merkle tree order)
+     * @return the merkle proof
+     * @throws IndexOutOfBoundsException index out of bounds exception will be thrown if there is no transaction in the
+     *                                   position
+     */
+    public MerkleProof getMerkleProof(int position) {
+        byte[][] levels = this.getMerkleLevels();
+        byte[] transactionHash = Arrays.copyOfRange(levels[0], position * MerkleEngine.HASH_SIZE,
+                (position + 1) * MerkleEngine.HASH_SIZE);
+
+        return new MerkleProof(transactionHash, this.blockHeight, position, this.transactionCounter,
+                MerkleEngine.getMerklePath(levels, position));
+    }
+
+    /**
+     * Finds the position of a transaction in the block (in merkle tree order).
+     *
+     * @param transactionHash the transaction hash
+     * @return the position or -1 if the transaction is not stored in the block
+     */
+    public int getTransactionPosition(byte[] transactionHash) {
+        return this.transactions.indexOf(transactionHash);
+    }
+
     /**
-     * Saves block to disk according to current system configurations.
+     * Checks if a transaction is stored in the block.
+     *
+     * @param transactionHash the transaction hash
+     * @return true if the transaction is stored in the block or false otherwise
+     */
+    public boolean containsTransaction(byte[] transactionHash) {
+        return this.transactions.contains(transactionHash);
+    }
+
+    private byte[][] getMerkleLevels() {
+        byte[][] levels = this.merkleLevels;
+
+        if (levels == null) {
+            levels = MerkleEngine.getMerkleLevels(this.transactions.getHashes(),
+                    Hash.Algorithm.forProtocolVersion(this.blockHeader.protocolVersion));
+            this.merkleLevels = levels;
+        }
+
+        return levels;
+    }
+
+    /**
+     * Saves block to disk, in the block store.
      *
      * @return true if the block was saved to disk or false if an error occurred
      */
     public boolean toDisk() {
-        Configuration config = Configuration.getInstance();
-
-        return Storage.writeObjectToDisk(this, config.getBlockFileDirectoryFull(),
-                config.getBlockFileBaseName() + Configuration.FILE_NAME_SEPARATOR + this.blockHeight +
-                        Configuration.FILE_EXTENSION_SEPARATOR + config.getDataFileExtension());
+        return BlockStore.getInstance().write(this);
     }
 
     /**
-     * Loads block from disk.
-     * <br>
-     * Will return NULL upon block not found or error occurred while loading from disk
+     * Loads block from disk, from the block store.
      *
      * @param blockHeight the block height of the wanted block
      * @return the block
-     * @throws IOException            the io exception
-     * @throws ClassNotFoundException the class not found exception
+     * @throws IOException io exception will be thrown if the block is not stored or can't be read
      */
-    public static Block fromDisk(int blockHeight) throws IOException, ClassNotFoundException {
-        Configuration config = Configuration.getInstance();
-
-        return (Block) Storage.readObjectFromDisk(config.getBlockFileDirectoryFull() +
-                config.getBlockFileBaseName() + Configuration.FILE_NAME_SEPARATOR + blockHeight +
-                Configuration.FILE_EXTENSION_SEPARATOR + config.getDataFileExtension());
+    public static Block fromDisk(int blockHeight) throws IOException {
+        return BlockStore.getInstance().read(blockHeight);
     }
 
     /* Getters */
 
     /**
-     * Gets all the transactions that are stored in a block
-     * For security reasons, we do not give direct access to the transactions,
-     * a copy of the original is returned.
+     * Gets all the transactions that are stored in a block.
+     * For security reasons, we do not give direct access to the transactions, a read-only view is returned.
      *
      * @return the transactions
      */
-    public Map<byte[], Transaction> getTransactions() {
-        return new Hashtable<>(this.transactions);
+    public List<Transaction> getTransactions() {
+        return this.transactions.getTransactions();
+    }
+
+    /**
+     * Gets a transaction stored in the block, by hash.
+     *
+     * @param transactionHash the transaction hash
+     * @return the transaction or null if it is not stored in the block
+     */
+    public Transaction getTransaction(byte[] transactionHash) {
+        return this.transactions.get(transactionHash);
+    }
+
+    /**
+     * Gets the transactions stored in the block ordered by timestamp, the same order used to calculate the merkle
+     * tree root.
+     *
+     * @return the ordered transactions (read-only view)
+     */
+    public List<Transaction> getOrderedTransactions() {
+        return this.transactions.getTransactions();
+    }
+
+    /**
+     * Gets the hashes of the transactions stored in the block ordered by timestamp, the same order used to calculate
+     * the merkle tree root.
+     *
+     * @return the ordered transaction hashes (read-only view)
+     */
+    public List<byte[]> getOrderedTransactionHashes() {
+        return this.transactions.getHashes();
+    }
+
+    /**
+     * Gets the block transactions container.
+     *
+     * @return the block transactions
+     */
+    protected BlockTransactions getBlockTransactions() {
+        return this.transactions;
+    }
+
+    /**
+     * Gets the block header.
+     *
+     * @return the block header
+     */
+    protected BlockHeader getBlockHeader() {
+        return this.blockHeader;
     }
 
     /**
@@ -213,12 +384,7 @@ public class Block implements Serializable {
      * @return the size
      */
     public int getSize() {
-        int allTransactionSize = 0;
-
-        for (Transaction t : transactions.values())
-            allTransactionSize += t.getSize();
-
-        return this.blockHeader.getSize() + (Integer.BYTES * 2) + allTransactionSize;
+        return this.blockHeader.getSize() + (Integer.BYTES * 2) + this.transactions.getSizeInBytes();
     }
 
     /**
@@ -279,21 +445,14 @@ public class Block implements Serializable {
      * Calculates the hash of the block.
      * To calculate the hash of a block, we double hash it's header (block header).
      * <br>
-     * SHA3_512(RIPEMD160(blockHeader))
+     * SHA3_512(RIPEMD160(blockHeader)) or BLAKE2b-160(blockHeader), see {@link Hash.Algorithm}
      * <br>
-     * Will return byte[0] if error occurred while calculating hash.
+     * The hash is calculated once and kept with the block header.
      *
      * @return the block hash
      */
     public byte[] getHash() {
-        byte[] blockHeaderData = this.blockHeader.getData();
-        byte[] aux = new byte[0];
-
-        if (Arrays.equals(blockHeaderData, aux)) {
-            return aux;
-        }
-
-        return Hash.calculateSHA3512RIPEMD160(blockHeaderData);
+        return this.blockHeader.getHash();
     }
 
     /**
@@ -306,29 +465,6 @@ public class Block implements Serializable {
                 this.getSize());
     }
 
-    /**
-     * Gets block file full name.
-     *
-     * @return the block file full name
-     */
-    public String getBlockFileFullName() {
-        return getBlockFileFullName(this.blockHeight);
-    }
-
-    /**
-     * Gets block file full name.
-     *
-     * @param height the height
-     * @return the block file full name
-     */
-    public static String getBlockFileFullName(int height) {
-        Configuration config = Configuration.getInstance();
-
-        return config.getBlockFileDirectoryFull() + File.separator +
-                config.getBlockFileBaseName() + Configuration.FILE_NAME_SEPARATOR +
-                height + Configuration.FILE_EXTENSION_SEPARATOR + config.getDataFileExtension();
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -347,7 +483,7 @@ public class Block implements Serializable {
     @Override
     public String toString() {
         return "Block: {" + System.lineSeparator() +
-                "transactions: " + this.transactions.values() + System.lineSeparator() +
+                "transactions: " + this.transactions + System.lineSeparator() +
                 this.blockHeader + System.lineSeparator() +
                 "size: " + this.getSize() + System.lineSeparator() +
                 "transaction counter: " + this.transactionCounter + System.lineSeparator() +
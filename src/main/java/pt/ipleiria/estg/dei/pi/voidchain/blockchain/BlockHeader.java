@@ -5,10 +5,10 @@ import bitcoinj.Base58;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pt.ipleiria.estg.dei.pi.voidchain.util.Converters;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Hash;
 
-import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Objects;
@@ -21,6 +21,9 @@ import java.util.Objects;
  */
 public class BlockHeader implements Serializable {
     /* Attributes */
+    // Pinned to the value computed for the first versions, so blocks and messages they serialized can still be read
+    private static final long serialVersionUID = 1935410157300384033L;
+
     /**
      * The Timestamp.
      */
@@ -40,6 +43,9 @@ public class BlockHeader implements Serializable {
 
     private final byte[] nonce; // much power, unseen. nonce is sith
 
+    // Calculated on the first call of getHash, the header is immutable
+    private transient volatile byte[] hash = null;
+
     private static final transient Logger logger = LoggerFactory.getLogger(BlockHeader.class);
 
     /* Constructors */
@@ -75,54 +81,43 @@ public class BlockHeader implements Serializable {
     }
 
     /**
-     * Calculates all the attributes in byte array format.
-     * <p>
-     * Will return byte[0] if an error occurs.
+     * Gets the nonce.
+     *
+     * @return the nonce
+     */
+    protected byte[] getNonce() {
+        return this.nonce;
+    }
+
+    /**
+     * Calculates all the attributes in byte array format: protocol version (UTF-8), timestamp (big-endian), previous
+     * block hash, nonce and merkle root.
      *
      * @return the data
      */
     public byte[] getData() {
         byte[] protocolVersionBytes = this.protocolVersion.getBytes(StandardCharsets.UTF_8);
-        byte[] timestampBytes;
 
-        try {
-            timestampBytes = Converters.longToByteArray(this.timestamp);
-        } catch (IOException e) {
-            logger.error("Error converting timestamp [" + this.timestamp + "] into byte array");
-            return new byte[0];
-        }
+        return ByteBuffer.allocate(protocolVersionBytes.length + Long.BYTES + this.previousBlockHash.length +
+                this.nonce.length + this.merkleRoot.length).put(protocolVersionBytes).putLong(this.timestamp)
+                .put(this.previousBlockHash).put(this.nonce).put(this.merkleRoot).array();
+    }
 
-        int size = protocolVersionBytes.length + timestampBytes.length + this.previousBlockHash.length +
-                this.nonce.length + this.merkleRoot.length;
-        byte[] dataBytes = new byte[size];
-        int i = 0;
+    /**
+     * Calculates the hash of the block header (the block hash), with the algorithm of its protocol version.
+     * The hash is calculated once and kept with the header, it must not be modified.
+     *
+     * @return the hash
+     */
+    public byte[] getHash() {
+        byte[] hash = this.hash;
 
-        for (byte b : protocolVersionBytes) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : timestampBytes) {
-            dataBytes[i] = b;
-            i++;
+        if (hash == null) {
+            hash = Hash.calculate(this.getData(), this.protocolVersion);
+            this.hash = hash;
         }
-        for (byte b : this.previousBlockHash) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : this.nonce) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : this.merkleRoot) {
-            dataBytes[i] = b;
-            i++;
-        }
-
-        if (i != size)
-            // THIS SHOULDN'T RUN
-            return new byte[0];
 
-        return dataBytes;
+        return hash;
     }
 
     protected BlockHeader clone() {
@@ -14,6 +14,9 @@ import java.util.Objects;
  */
 public class BlockNoTransactions implements Serializable {
     /* Attributes */
+    // Pinned to the value computed for the first versions, so blocks and messages they serialized can still be read
+    private static final long serialVersionUID = -6702835965070512226L;
+
     private final BlockHeader blockHeader;
     private final int transactionCounter;
     private final int blockHeight;
@@ -92,6 +95,15 @@ public class BlockNoTransactions implements Serializable {
         return this.blockHeader.protocolVersion;
     }
 
+    /**
+     * Gets the block header.
+     *
+     * @return the block header
+     */
+    protected BlockHeader getBlockHeader() {
+        return this.blockHeader;
+    }
+
     /**
      * Gets the size of the block, including transactions.
      *
@@ -105,21 +117,14 @@ public class BlockNoTransactions implements Serializable {
      * Calculates the hash of the block.
      * To calculate the hash of a block, we double hash it's header (block header).
      * <br>
-     * SHA3_512(RIPEMD160(blockHeader))
+     * SHA3_512(RIPEMD160(blockHeader)) or BLAKE2b-160(blockHeader), see {@link Hash.Algorithm}
      * <br>
-     * Will return byte[0] if error occurred while calculating hash.
+     * The hash is calculated once and kept with the block header.
      *
      * @return the block hash
      */
     public byte[] getHash() {
-        byte[] blockHeaderData = this.blockHeader.getData();
-        byte[] aux = new byte[0];
-
-        if (Arrays.equals(blockHeaderData, aux)) {
-            return aux;
-        }
-
-        return Hash.calculateSHA3512RIPEMD160(blockHeaderData);
+        return this.blockHeader.getHash();
     }
 
     @Override
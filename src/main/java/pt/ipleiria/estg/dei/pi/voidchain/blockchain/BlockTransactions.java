@@ -0,0 +1,243 @@
+package pt.ipleiria.estg.dei.pi.voidchain.blockchain;
+
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleTree;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The Block transactions are the immutable container of the transactions of a block.
+ * <br>
+ * Transactions and their hashes are stored in two aligned arrays, in merkle tree order (see
+ * {@link MerkleTree#LEAF_ORDER}), so the hashes are the leaves of the merkle tree of the block. The container is
+ * indexed by an open addressing hash table (linear probing) of the positions of the transactions, keyed by their
+ * hash: looking up a transaction by hash is O(1) and doesn't allocate.
+ * <br>
+ * Lists returned by the container are read-only views of its arrays, nothing is copied. The sum of the sizes of the
+ * transactions is calculated once.
+ */
+public final class BlockTransactions implements Serializable {
+    /* Attributes */
+    private static final Comparator<Map.Entry<byte[], Transaction>> ORDER = MerkleTree.LEAF_ORDER;
+
+    private final Transaction[] transactions;
+    private final byte[][] hashes;
+    private final int sizeInBytes;
+
+    // Position + 1 of the transaction with each hash (0 if the slot is empty), rebuilt after deserialization
+    private transient int[] index;
+
+    /* Constructors */
+
+    private BlockTransactions(Transaction[] transactions, byte[][] hashes) {
+        this.transactions = transactions;
+        this.hashes = hashes;
+
+        int sizeInBytes = 0;
+        for (Transaction t : transactions)
+            sizeInBytes += t.getSize();
+        this.sizeInBytes = sizeInBytes;
+
+        this.index = buildIndex(hashes);
+    }
+
+    /**
+     * Creates the container of a list of transactions, calculating their hashes.
+     *
+     * @param transactions the transactions, in any order
+     * @return the block transactions
+     */
+    public static BlockTransactions of(Collection<Transaction> transactions) {
+        List<Map.Entry<byte[], Transaction>> entries = new ArrayList<>(transactions.size());
+        for (Transaction t : transactions)
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(t.getHash(), t));
+
+        return of(entries);
+    }
+
+    /**
+     * Creates the container of a map of transactions, keyed by their (previously calculated) hashes.
+     *
+     * @param transactions the transactions, keyed by their hash
+     * @return the block transactions
+     */
+    public static BlockTransactions of(Map<byte[], Transaction> transactions) {
+        return of(new ArrayList<>(transactions.entrySet()));
+    }
+
+    /**
+     * Creates the container of transactions and their (previously calculated) hashes, used when decoding blocks.
+     *
+     * @param hashes       the transaction hashes
+     * @param transactions the transactions, aligned with their hashes
+     * @return the block transactions
+     */
+    static BlockTransactions of(List<byte[]> hashes, List<Transaction> transactions) {
+        List<Map.Entry<byte[], Transaction>> entries = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++)
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(hashes.get(i), transactions.get(i)));
+
+        return of(entries);
+    }
+
+    private static BlockTransactions of(List<Map.Entry<byte[], Transaction>> entries) {
+        // Already ordered when decoding blocks, the sort only checks it
+        entries.sort(ORDER);
+
+        Transaction[] transactions = new Transaction[entries.size()];
+        byte[][] hashes = new byte[entries.size()][];
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] = entries.get(i).getValue();
+            hashes[i] = entries.get(i).getKey();
+        }
+
+        return new BlockTransactions(transactions, hashes);
+    }
+
+    /* Methods */
+
+    /**
+     * Finds the position of a transaction (in merkle tree order).
+     *
+     * @param transactionHash the transaction hash
+     * @return the position or -1 if the transaction is not in the container
+     */
+    public int indexOf(byte[] transactionHash) {
+        int mask = this.index.length - 1;
+
+        for (int slot = slotOf(transactionHash, mask); ; slot = (slot + 1) & mask) {
+            int position = this.index[slot] - 1;
+            if (position < 0)
+                return -1;
+            if (Arrays.equals(this.hashes[position], transactionHash))
+                return position;
+        }
+    }
+
+    /**
+     * Checks if a transaction is in the container.
+     *
+     * @param transactionHash the transaction hash
+     * @return true if the transaction is in the container or false otherwise
+     */
+    public boolean contains(byte[] transactionHash) {
+        return this.indexOf(transactionHash) != -1;
+    }
+
+    /**
+     * Gets a transaction by hash.
+     *
+     * @param transactionHash the transaction hash
+     * @return the transaction or null if it is not in the container
+     */
+    public Transaction get(byte[] transactionHash) {
+        int position = this.indexOf(transactionHash);
+
+        return position == -1 ? null : this.transactions[position];
+    }
+
+    /**
+     * Gets the transaction in a position (in merkle tree order).
+     *
+     * @param position the position
+     * @return the transaction
+     * @throws IndexOutOfBoundsException index out of bounds exception will be thrown if there is no transaction in the
+     *                                   position
+     */
+    public Transaction get(int position) {
+        return this.transactions[position];
+    }
+
+    private static int[] buildIndex(byte[][] hashes) {
+        // At most half of the slots are used
+        int[] index = new int[Math.max(Integer.highestOneBit(Math.max(hashes.length, 1)) << 2, 2)];
+        int mask = index.length - 1;
+
+        for (int position = 0; position < hashes.length; position++) {
+            int slot = slotOf(hashes[position], mask);
+            while (index[slot] != 0) {
+                // Duplicated transactions are only indexed once, by their first position
+                if (Arrays.equals(hashes[index[slot] - 1], hashes[position]))
+                    break;
+                slot = (slot + 1) & mask;
+            }
+
+            if (index[slot] == 0)
+                index[slot] = position + 1;
+        }
+
+        return index;
+    }
+
+    private static int slotOf(byte[] hash, int mask) {
+        // Hashes are digests, their first bytes are already uniformly distributed
+        int h = hash.length >= Integer.BYTES ? (hash[0] << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) |
+                (hash[3] & 0xFF) : Arrays.hashCode(hash);
+
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.index = buildIndex(this.hashes);
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the number of transactions.
+     *
+     * @return the number of transactions
+     */
+    public int size() {
+        return this.transactions.length;
+    }
+
+    /**
+     * Gets the sum of the sizes of the transactions, in bytes.
+     *
+     * @return the size of the transactions
+     */
+    public int getSizeInBytes() {
+        return this.sizeInBytes;
+    }
+
+    /**
+     * Gets the transactions, in merkle tree order.
+     *
+     * @return a read-only view of the transactions
+     */
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(Arrays.asList(this.transactions));
+    }
+
+    /**
+     * Gets the hashes of the transactions, in merkle tree order (the leaves of the merkle tree).
+     * The hashes are not copied, they must not be modified.
+     *
+     * @return a read-only view of the transaction hashes
+     */
+    public List<byte[]> getHashes() {
+        return Collections.unmodifiableList(Arrays.asList(this.hashes));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BlockTransactions that = (BlockTransactions) o;
+        return Arrays.deepEquals(hashes, that.hashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(hashes);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.transactions);
+    }
+}
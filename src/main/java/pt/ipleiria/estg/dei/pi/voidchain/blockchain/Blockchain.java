@@ -5,11 +5,20 @@ import org.bouncycastle.util.encoders.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockCache;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.EvictionPolicy;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.TransactionIndex;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleTree;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Pair;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -24,11 +33,22 @@ import java.util.*;
  */
 public class Blockchain {
     /* Attributes */
-    private List<Block> blocks;
-    private int sizeInMemory;
+    private volatile Block mostRecentBlock;
+    private final BlockCache blockCache;
+
+    private final Object validationLock = new Object();
+    private int validatedHeight = -1;
+    private byte[] validatedHash = new byte[0];
+    private volatile int invalidHeight = -1;
 
     private static Blockchain INSTANCE = null;
 
+    /**
+     * The constant VALIDATION_FILE_NAME stores the name of the file used to store the height and hash of the most
+     * recent validated block.
+     */
+    public static final String VALIDATION_FILE_NAME = "validation";
+
     private static final String GENESIS_STRING = "What to Know and What to Do About the Global Pandemic";
     private static final byte[] GENESIS_SIGNATURE = Base64.decode(
             "MEQCIFBivzXzZfe1orfaWN8PhZ6b+o0R8E2FQz8PWNfaGhn4AiBQjhCmXE59wk8ynzLGeb3FDTNCT1josFIMQhjhGVmZew=="
@@ -48,14 +68,33 @@ public class Blockchain {
             genesisBlock = new Block(GENESIS_STRING.getBytes(StandardCharsets.UTF_8), GENESIS_SIGNATURE);
 
         genesisBlock.toDisk();
-        this.blocks = new ArrayList<>();
-        this.blocks.add(genesisBlock);
-        this.sizeInMemory = genesisBlock.getSize();
+        TransactionIndex.getInstance().add(genesisBlock);
+        this.blockCache = newBlockCache();
+        this.blockCache.put(genesisBlock);
+        this.mostRecentBlock = genesisBlock;
+        this.loadValidatedBlock();
     }
 
-    private Blockchain(List<Block> blocks, int sizeInMemory) {
-        this.blocks = new ArrayList<>(blocks);
-        this.sizeInMemory = sizeInMemory;
+    private Blockchain(Block mostRecentBlock) {
+        this.blockCache = newBlockCache();
+        this.mostRecentBlock = mostRecentBlock;
+        if (mostRecentBlock != null)
+            this.blockCache.put(mostRecentBlock);
+        this.loadValidatedBlock();
+    }
+
+    private static BlockCache newBlockCache() {
+        Configuration config = Configuration.getInstance();
+
+        EvictionPolicy policy;
+        try {
+            policy = EvictionPolicy.forName(config.getBlockCachePolicy());
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid block cache policy, using " + Configuration.DEFAULT_BLOCK_CACHE_POLICY, e);
+            policy = EvictionPolicy.forName(Configuration.DEFAULT_BLOCK_CACHE_POLICY);
+        }
+
+        return new BlockCache(config.getMemoryUsedForBlocks() * 1000000L, policy);
     }
 
     /* Methods */
@@ -69,27 +108,18 @@ public class Blockchain {
         final boolean newGenesis = false;
 
         if (INSTANCE == null) {
-            Pair<Integer, List<Block>> r = getBlocksListFromDisk();
-            if (r == null) {
+            Block mostRecentBlock = getMostRecentBlockFromDisk();
+            if (mostRecentBlock == null) {
                 try {
                     INSTANCE = new Blockchain(newGenesis);
                 } catch (IOException | NoSuchProviderException | NoSuchAlgorithmException | InvalidKeySpecException |
                         InvalidKeyException | SignatureException e) {
 
                     logger.error("Unable to create Genesis Block", e);
-                    INSTANCE = new Blockchain(new ArrayList<>(), 0);
+                    INSTANCE = new Blockchain(null);
                 }
             } else
-                INSTANCE = new Blockchain(r.getO2(), r.getO1());
-        } else {
-            try {
-                INSTANCE = new Blockchain(newGenesis);
-            } catch (IOException | NoSuchProviderException | NoSuchAlgorithmException | InvalidKeySpecException |
-                    InvalidKeyException | SignatureException e) {
-
-                logger.error("Unable to create Genesis Block", e);
-                INSTANCE = new Blockchain(new ArrayList<>(), 0);
-            }
+                INSTANCE = new Blockchain(mostRecentBlock);
         }
 
         if (newGenesis)
@@ -103,49 +133,260 @@ public class Blockchain {
 
     /**
      * Reloads blocks from disk into memory.
+     * The block cache is emptied, blocks are loaded from disk again when requested.
      */
     public void reloadBlocksFromDisk() {
         logger.info("Refreshing blocks from disk to memory");
-        Pair<Integer, List<Block>> r = getBlocksListFromDisk();
-        this.sizeInMemory = r.getO1();
-        this.blocks = r.getO2();
+        Block mostRecentBlock = getMostRecentBlockFromDisk();
+        if (mostRecentBlock == null) {
+            logger.error("No blocks stored in disk, keeping blocks in memory");
+            return;
+        }
+
+        this.blockCache.clear();
+        this.blockCache.put(mostRecentBlock);
+        this.mostRecentBlock = mostRecentBlock;
     }
 
     /**
      * Tests if this Blockchain is a valid Blockchain.
+     * <br>
+     * Only the blocks added after the most recent validated block are checked, the height and hash of the validated
+     * block are stored in disk. If the validated block is no longer part of the chain, the whole chain is checked.
      *
      * @return true if the block chain is valid or false otherwise
      */
     public boolean isChainValid() {
-        if (this.blocks.size() == 0) return false;
-        if (this.getMostRecentBlock().getBlockHeight() == 0) return true;
+        Block mostRecentBlock = this.mostRecentBlock;
+        if (mostRecentBlock == null) return false;
+
+        int height;
+        byte[] hash;
+        synchronized (this.validationLock) {
+            height = this.validatedHeight;
+            hash = this.validatedHash;
+        }
+
+        this.invalidHeight = -1;
 
         try {
-            Block currentBlock = this.getMostRecentBlock();
-            int previousBlockHeight = currentBlock.getBlockHeight() - 1;
-            Block previousBlock = this.getBlock(previousBlockHeight);
+            if (height < 0 || height > mostRecentBlock.getBlockHeight() ||
+                    !Arrays.equals(this.getBlock(height).getHash(), hash)) {
+
+                logger.info("Validated block is not part of the chain, validating whole chain");
+                height = 0;
+                hash = this.getBlock(0).getHash();
+            }
 
-            if (previousBlockHeight == 0)
-                return Arrays.equals(currentBlock.getPreviousBlockHash(), previousBlock.getHash());
-            else
-                return Arrays.equals(currentBlock.getPreviousBlockHash(), previousBlock.getHash()) &&
-                        recursivePreviousBlockHashValidation(previousBlockHeight, previousBlockHeight - 1);
+            if (height == mostRecentBlock.getBlockHeight())
+                return true;
 
-        } catch (IOException | ClassNotFoundException e) {
+            hash = this.validateBlocks(height, hash, mostRecentBlock.getBlockHeight(), false, 0);
+            if (hash == null)
+                return false;
+
+            this.setValidatedBlock(mostRecentBlock.getBlockHeight(), hash);
+
+            return true;
+        } catch (IOException | NoSuchElementException e) {
             logger.error("Error occurred while validating chain", e);
             return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
-    private boolean recursivePreviousBlockHashValidation(int bH1, int bH2) throws IOException, ClassNotFoundException {
-        Block b1 = this.getBlock(bH1);
-        Block b2 = this.getBlock(bH2);
+    /**
+     * Audits the whole Blockchain, starting at the genesis block.
+     * <br>
+     * Besides the links between blocks, the audit checks the genesis block and recalculates the hash of every
+     * transaction and the merkle tree root of every block. Blocks are read directly from disk (bypassing the block
+     * cache) and the audit is throttled to the number of blocks per second defined in the configuration, this way
+     * it can run in the background without disturbing the node.
+     *
+     * @return true if the block chain is valid or false otherwise
+     * @throws InterruptedException interrupted exception will be thrown if the thread is interrupted while throttled
+     */
+    public boolean auditChain() throws InterruptedException {
+        Block mostRecentBlock = this.mostRecentBlock;
+        if (mostRecentBlock == null) return false;
+
+        logger.info("Auditing blocks [0," + mostRecentBlock.getBlockHeight() + "]");
+        long start = System.currentTimeMillis();
+        this.invalidHeight = -1;
 
-        if (bH2 == 0)
-            return Arrays.equals(b1.getPreviousBlockHash(), b2.getHash());
-        else
-            return Arrays.equals(b1.getPreviousBlockHash(), b2.getHash()) &&
-                    recursivePreviousBlockHashValidation(b2.getBlockHeight(), b2.getBlockHeight() - 1);
+        try {
+            Block genesisBlock = Block.fromDisk(0);
+            Block expectedGenesisBlock = new Block(GENESIS_STRING.getBytes(StandardCharsets.UTF_8),
+                    GENESIS_SIGNATURE);
+
+            if (!Arrays.equals(genesisBlock.getHash(), expectedGenesisBlock.getHash()) ||
+                    !isMerkleRootValid(genesisBlock)) {
+
+                logger.error("Genesis block is invalid");
+                this.invalidHeight = 0;
+                this.setValidatedBlock(-1, new byte[0]);
+                return false;
+            }
+
+            byte[] hash = this.validateBlocks(0, genesisBlock.getHash(), mostRecentBlock.getBlockHeight(), true,
+                    Configuration.getInstance().getChainAuditRate());
+
+            if (hash == null) {
+                this.setValidatedBlock(-1, new byte[0]);
+                return false;
+            }
+
+            this.setValidatedBlock(mostRecentBlock.getBlockHeight(), hash);
+            logger.info("Audit finished in " + (System.currentTimeMillis() - start) + " ms");
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Error occurred while auditing chain", e);
+            return false;
+        }
+    }
+
+    private byte[] validateBlocks(int fromHeight, byte[] fromHash, int toHeight, boolean audit, int blocksPerSecond)
+            throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        byte[] previousBlockHash = fromHash;
+
+        for (int i = fromHeight + 1; i <= toHeight; i++) {
+            Block block;
+            try {
+                block = audit ? Block.fromDisk(i) : this.getBlock(i);
+            } catch (IOException | RuntimeException e) {
+                this.invalidHeight = i;
+                throw e;
+            }
+
+            if (block.getBlockHeight() != i || !Arrays.equals(block.getPreviousBlockHash(), previousBlockHash)) {
+                logger.error("Block " + i + " is not linked to block " + (i - 1));
+                this.invalidHeight = i;
+                return null;
+            }
+
+            if (audit && !isMerkleRootValid(block)) {
+                logger.error("Merkle tree root of block " + i + " doesn't match its transactions");
+                this.invalidHeight = i;
+                return null;
+            }
+
+            previousBlockHash = block.getHash();
+
+            if (blocksPerSecond > 0) {
+                long wait = start + (i - fromHeight) * 1000000000L / blocksPerSecond - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+
+        return previousBlockHash;
+    }
+
+    /**
+     * Tests if the merkle tree root of a block matches its transactions.
+     * The hashes of the transactions are recalculated, not taken from the block.
+     *
+     * @param block the block
+     * @return true if the merkle tree root is valid, false otherwise
+     */
+    public static boolean isMerkleRootValid(Block block) {
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions.size() == 0)
+            return block.getMerkleRoot().length == 0;
+
+        // The hashes of the transactions are recalculated, not taken from the block
+        return Arrays.equals(block.getMerkleRoot(), MerkleTree.getMerkleRoot(BlockTransactions.of(transactions),
+                block.getProtocolVersion()));
+    }
+
+    private void loadValidatedBlock() {
+        Path path = getValidationFilePath();
+        if (!Files.exists(path))
+            return;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(path)))) {
+            int height = in.readInt();
+            byte[] hash = new byte[in.readInt()];
+            in.readFully(hash);
+
+            synchronized (this.validationLock) {
+                this.validatedHeight = height;
+                this.validatedHash = hash;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read validated block, whole chain will be validated", e);
+        }
+    }
+
+    private void setValidatedBlock(int height, byte[] hash) {
+        synchronized (this.validationLock) {
+            if (height == this.validatedHeight && Arrays.equals(hash, this.validatedHash))
+                return;
+
+            this.validatedHeight = height;
+            this.validatedHash = hash;
+
+            Path path = getValidationFilePath();
+            Path temporaryPath = Paths.get(path + ".tmp");
+
+            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                 DataOutputStream out = new DataOutputStream(byteOut)) {
+
+                out.writeInt(height);
+                out.writeInt(hash.length);
+                out.write(hash);
+                out.flush();
+
+                Files.write(temporaryPath, byteOut.toByteArray());
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.error("Unable to store validated block", e);
+            }
+        }
+    }
+
+    private static Path getValidationFilePath() {
+        Configuration config = Configuration.getInstance();
+
+        return Paths.get(config.getBlockFileDirectoryFull(), VALIDATION_FILE_NAME +
+                Configuration.FILE_EXTENSION_SEPARATOR + config.getDataFileExtension());
+    }
+
+    /**
+     * Removes the most recent block of the chain, from memory and disk.
+     *
+     * @return true if the block was removed or false otherwise
+     */
+    public boolean removeMostRecentBlock() {
+        if (this.mostRecentBlock == null) return false;
+
+        Block mostRecentBlock = this.getMostRecentBlock();
+        if (mostRecentBlock.getBlockHeight() == 0) return false;
+
+        if (!BlockStore.getInstance().remove(mostRecentBlock.getBlockHeight()))
+            return false;
+
+        TransactionIndex.getInstance().remove(mostRecentBlock);
+        this.blockCache.remove(mostRecentBlock.getBlockHeight());
+
+        Block newMostRecentBlock = getMostRecentBlockFromDisk();
+        if (newMostRecentBlock != null) {
+            this.blockCache.put(newMostRecentBlock);
+            this.mostRecentBlock = newMostRecentBlock;
+        }
+
+        // The removed block might have been validated, the new most recent one was validated before it
+        synchronized (this.validationLock) {
+            if (newMostRecentBlock != null && this.validatedHeight >= mostRecentBlock.getBlockHeight())
+                this.setValidatedBlock(newMostRecentBlock.getBlockHeight(), newMostRecentBlock.getHash());
+        }
+
+        return true;
     }
 
     /**
@@ -158,83 +399,100 @@ public class Blockchain {
         if (block == null) return false;
         if (block.getBlockHeight() <= this.getMostRecentBlock().getBlockHeight()) return false;
 
-        this.blocks.add(0, block);
-        this.sizeInMemory += block.getSize();
         block.toDisk();
+        TransactionIndex.getInstance().add(block);
 
-        if (this.blocks.size() > 1)
-            while (this.sizeInMemory > (Configuration.getInstance().getMemoryUsedForBlocks() * 1000000)) {
-                Block b = this.blocks.remove(this.blocks.size() - 1);
-                this.sizeInMemory -= b.getSize();
-            }
+        this.blockCache.setMaxSize(Configuration.getInstance().getMemoryUsedForBlocks() * 1000000L);
+        this.blockCache.put(block);
+        this.mostRecentBlock = block;
 
         return true;
     }
 
     /* Getters */
 
-    private static File[] getBlockFilesArray() {
-        Configuration config = Configuration.getInstance();
-
-        return new File(config.getBlockFileDirectoryFull()).listFiles();
+    /**
+     * Gets the height of the block found invalid by the last validation or audit of the chain.
+     * The blocks below it are linked to each other, only the blocks from this height up have to be replaced.
+     *
+     * @return the height of the invalid block or -1 if the chain was valid or the invalid block is unknown
+     */
+    public int getInvalidHeight() {
+        return this.invalidHeight;
     }
 
-    private static Pair<Integer, List<Block>> getBlocksListFromDisk() {
-        List<Integer> blocksDisk = getBlockFileHeightArray();
+    private static Block getMostRecentBlockFromDisk() {
+        BlockStore blockStore = BlockStore.getInstance();
 
-        if (blocksDisk == null)
-            return null;
-
-        List<Block> blocks = new ArrayList<>();
-        int sizeInMemory = 0;
+        // Blocks are loaded into the cache when requested, only the most recent one is loaded now
+        for (int i = blockStore.getHighestHeight(); i >= 0; i--) {
+            if (!blockStore.contains(i))
+                continue;
 
-        for (Integer i : blocksDisk) {
             try {
-                Block b = Block.fromDisk(i);
-                blocks.add(0, b);
-                sizeInMemory += b.getSize();
-            } catch (IOException | ClassNotFoundException ioException) {
+                return Block.fromDisk(i);
+            } catch (IOException ioException) {
                 logger.error("Error retrieving block from disk", ioException);
             }
-
-            if (blocks.size() > 1)
-                while (sizeInMemory > (Configuration.getInstance().getMemoryUsedForBlocks() * 1000000)) {
-                    Block b = blocks.remove(blocksDisk.size() - 1);
-                    sizeInMemory -= b.getSize();
-                }
         }
 
-        return new Pair<>(sizeInMemory, blocks);
+        return null;
     }
 
     /**
-     * Gets the list of block height's from block files stored in disk.
+     * Gets the list of block height's of the blocks stored in disk.
      *
-     * @return the block height list
+     * @return the block height list or null if there are no blocks stored
      */
     public static List<Integer> getBlockFileHeightArray() {
-        Configuration config = Configuration.getInstance();
-        File[] blockFiles = getBlockFilesArray();
+        BlockStore blockStore = BlockStore.getInstance();
 
-        if (blockFiles != null) {
-            List<Integer> blockHeightList = new ArrayList<>();
+        if (blockStore.getBlockCount() == 0)
+            return null;
 
-            for (File blockFile : blockFiles) {
-                String[] aux = blockFile.getName().split(Configuration.FILE_NAME_SEPARATOR);
+        return blockStore.getHeights();
+    }
 
-                if (!aux[0].equals(config.getBlockFileBaseName()))
-                    continue;
+    /**
+     * Finds the block where a transaction is stored, using the transaction index.
+     *
+     * @param transactionHash the transaction hash
+     * @return a pair with the block height (o1) and the position of the transaction in the block (o2),
+     * or null if the transaction is not stored in any block
+     */
+    public Pair<Integer, Integer> getTransactionLocation(byte[] transactionHash) {
+        return TransactionIndex.getInstance().get(transactionHash);
+    }
 
-                String blockHeightString = aux[1].split(Configuration.FILE_EXTENSION_SEPARATOR_SPLIT)[0];
-                int currentFileBlockHeight = Integer.parseInt(blockHeightString);
-                blockHeightList.add(currentFileBlockHeight);
-            }
+    /**
+     * Creates the merkle proof of a transaction stored in the chain.
+     *
+     * @param transactionHash the transaction hash
+     * @return the merkle proof or null if the transaction is not stored in any block
+     * @throws IOException IO exception if an error while loading the block data from disk
+     */
+    public MerkleProof getMerkleProof(byte[] transactionHash) throws IOException {
+        Pair<Integer, Integer> location = this.getTransactionLocation(transactionHash);
+        if (location == null)
+            return null;
 
-            blockHeightList.sort(Integer::compare);
+        Block block = this.getBlock(location.getO1());
 
-            return blockHeightList;
-        } else
-            return null;
+        int position = location.getO2();
+        MerkleProof proof = position < block.getTransactionCounter() ? block.getMerkleProof(position) : null;
+
+        if (proof == null || !Arrays.equals(proof.getTransactionHash(), transactionHash)) {
+            // Positions indexed before the merkle tree order was defined for transactions with the same timestamp
+            position = block.getTransactionPosition(transactionHash);
+            if (position == -1) {
+                logger.error("Transaction index points to block " + block.getBlockHeight() +
+                        " but the transaction is not stored in the block");
+                return null;
+            }
+            proof = block.getMerkleProof(position);
+        }
+
+        return proof;
     }
 
     /**
@@ -242,8 +500,17 @@ public class Blockchain {
      *
      * @return the size in memory
      */
-    public int getSizeInMemory() {
-        return sizeInMemory;
+    public long getSizeInMemory() {
+        return this.blockCache.getSize();
+    }
+
+    /**
+     * Gets the cache used to keep blocks in memory.
+     *
+     * @return the block cache
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
     }
 
     /**
@@ -252,7 +519,7 @@ public class Blockchain {
      * @return the most recently created block
      */
     public Block getMostRecentBlock() {
-        return this.blocks.get(0);
+        return this.mostRecentBlock;
     }
 
     /**
@@ -263,23 +530,28 @@ public class Blockchain {
      * @return the block
      * @throws NoSuchElementException No such element exception will be thrown if no matching block is found
      * @throws IOException            IO exception if an error while loading the block data from disk
-     * @throws ClassNotFoundException Class not found exception if an error while converting block data to Block class instance
      */
-    public Block getBlock(int blockHeight) throws NoSuchElementException, IOException, ClassNotFoundException {
-        if (blockHeight > this.blocks.get(0).getBlockHeight())
+    public Block getBlock(int blockHeight) throws NoSuchElementException, IOException {
+        Block mostRecentBlock = this.mostRecentBlock;
+        if (blockHeight > mostRecentBlock.getBlockHeight())
             throw new NoSuchElementException("Requested block is above the most recent block");
+        if (blockHeight == mostRecentBlock.getBlockHeight())
+            return mostRecentBlock;
 
-        for (Block b : this.blocks)
-            if (b.getBlockHeight() == blockHeight)
-                return b;
+        Block block = this.blockCache.get(blockHeight);
+        if (block == null) {
+            block = Block.fromDisk(blockHeight);
+            this.blockCache.put(block);
+        }
 
-        return Block.fromDisk(blockHeight);
+        return block;
     }
 
     @Override
     public String toString() {
         return "Blockchain: {" + System.lineSeparator() +
-                "blocks: " + blocks + System.lineSeparator() +
+                "mostRecentBlock: " + mostRecentBlock + System.lineSeparator() +
+                "blockCache: " + blockCache + System.lineSeparator() +
                 "}";
     }
 }
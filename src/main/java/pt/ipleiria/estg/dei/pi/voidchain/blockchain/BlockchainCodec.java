@@ -0,0 +1,651 @@
+package pt.ipleiria.estg.dei.pi.voidchain.blockchain;
+
+import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleTree;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The Blockchain codec converts blocks, block headers and transactions into a compact binary format, and back.
+ * <br>
+ * Every encoded object starts with the format version followed by a tag identifying the type of the object.
+ * Byte arrays and strings (UTF-8) are prefixed by their length (int), numbers are stored in big-endian order.
+ * Inside an encoded block, each transaction is preceded by its hash so blocks can be decoded without rehashing
+ * every transaction.
+ * <br>
+ * Data produced with Java serialization (by previous versions) is still accepted by the decode methods.
+ */
+public final class BlockchainCodec {
+    /**
+     * The constant FORMAT_VERSION stores the version of the binary format produced by this codec.
+     */
+    public static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The constant TRANSACTION_TAG identifies an encoded transaction.
+     */
+    public static final byte TRANSACTION_TAG = 1;
+    /**
+     * The constant TRANSACTION_LIST_TAG identifies an encoded list of transactions.
+     */
+    public static final byte TRANSACTION_LIST_TAG = 2;
+    /**
+     * The constant BLOCK_HEADER_TAG identifies an encoded block header.
+     */
+    public static final byte BLOCK_HEADER_TAG = 3;
+    /**
+     * The constant BLOCK_TAG identifies an encoded block.
+     */
+    public static final byte BLOCK_TAG = 4;
+    /**
+     * The constant BLOCK_NO_TRANSACTIONS_TAG identifies an encoded block without transactions.
+     */
+    public static final byte BLOCK_NO_TRANSACTIONS_TAG = 5;
+    /**
+     * The constant COMPACT_BLOCK_TAG identifies an encoded compact block.
+     */
+    public static final byte COMPACT_BLOCK_TAG = 6;
+    /**
+     * The constant TRANSACTION_HASH_LIST_TAG identifies an encoded list of transaction hashes.
+     */
+    public static final byte TRANSACTION_HASH_LIST_TAG = 7;
+
+    private static final int PREFIX_SIZE = 2; // format version, tag
+
+    private BlockchainCodec() {
+    }
+
+    /* Encoders */
+
+    /**
+     * Encodes a transaction.
+     *
+     * @param transaction the transaction
+     * @return the encoded transaction
+     */
+    public static byte[] encodeTransaction(Transaction transaction) {
+        byte[] protocolVersion = transaction.getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + transactionSize(transaction, protocolVersion));
+
+        buffer.put(FORMAT_VERSION).put(TRANSACTION_TAG);
+        putTransaction(buffer, transaction, protocolVersion);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a list of transactions.
+     *
+     * @param transactions the transactions
+     * @return the encoded transactions
+     */
+    public static byte[] encodeTransactions(List<Transaction> transactions) {
+        byte[][] protocolVersions = new byte[transactions.size()][];
+        int size = PREFIX_SIZE + Integer.BYTES;
+
+        for (int i = 0; i < transactions.size(); i++) {
+            protocolVersions[i] = transactions.get(i).getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+            size += transactionSize(transactions.get(i), protocolVersions[i]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION).put(TRANSACTION_LIST_TAG).putInt(transactions.size());
+        for (int i = 0; i < transactions.size(); i++)
+            putTransaction(buffer, transactions.get(i), protocolVersions[i]);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a block header.
+     *
+     * @param blockHeader the block header
+     * @return the encoded block header
+     */
+    public static byte[] encodeBlockHeader(BlockHeader blockHeader) {
+        byte[] protocolVersion = blockHeader.protocolVersion.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + blockHeaderSize(blockHeader, protocolVersion));
+
+        buffer.put(FORMAT_VERSION).put(BLOCK_HEADER_TAG);
+        putBlockHeader(buffer, blockHeader, protocolVersion);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a block, including all of its transactions (ordered by timestamp) and their hashes.
+     *
+     * @param block the block
+     * @return the encoded block
+     */
+    public static byte[] encodeBlock(Block block) {
+        return encodeBlock(block, encodeBlockTransactions(block));
+    }
+
+    /**
+     * Encodes a block using its transactions section, previously encoded with
+     * {@link #encodeBlockTransactions(Block)}. Only the block header and height are encoded, this way a block can be
+     * encoded again (after being relinked) without encoding its transactions.
+     *
+     * @param block               the block
+     * @param encodedTransactions the encoded transactions section of the block
+     * @return the encoded block
+     */
+    public static byte[] encodeBlock(Block block, byte[] encodedTransactions) {
+        byte[] headerProtocolVersion = block.getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + blockHeaderSize(block.getBlockHeader(),
+                headerProtocolVersion) + Integer.BYTES + encodedTransactions.length);
+        buffer.put(FORMAT_VERSION).put(BLOCK_TAG);
+        putBlockHeader(buffer, block.getBlockHeader(), headerProtocolVersion);
+        buffer.putInt(block.getBlockHeight()).put(encodedTransactions);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes the transactions section of a block: the number of transactions followed by every transaction (ordered
+     * by timestamp) and its hash. The section has no prefix, it is only meant to be used by
+     * {@link #encodeBlock(Block, byte[])}.
+     *
+     * @param block the block
+     * @return the encoded transactions section
+     */
+    public static byte[] encodeBlockTransactions(Block block) {
+        BlockTransactions transactions = block.getBlockTransactions();
+        byte[][] protocolVersions = new byte[transactions.size()][];
+
+        int size = Integer.BYTES;
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction t = transactions.get(i);
+            protocolVersions[i] = t.getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + transactions.getHashes().get(i).length + transactionSize(t, protocolVersions[i]);
+        }
+
+        List<byte[]> hashes = transactions.getHashes();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            putBytes(buffer, hashes.get(i));
+            putTransaction(buffer, transactions.get(i), protocolVersions[i]);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a block without transactions.
+     *
+     * @param block the block without transactions
+     * @return the encoded block
+     */
+    public static byte[] encodeBlockNoTransactions(BlockNoTransactions block) {
+        byte[] protocolVersion = block.getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE +
+                blockHeaderSize(block.getBlockHeader(), protocolVersion) + Integer.BYTES * 3);
+
+        buffer.put(FORMAT_VERSION).put(BLOCK_NO_TRANSACTIONS_TAG);
+        putBlockHeader(buffer, block.getBlockHeader(), protocolVersion);
+        buffer.putInt(block.getTransactionCounter()).putInt(block.getBlockHeight()).putInt(block.getSize());
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a block in compact form: the block header, the block height and the hashes of the transactions (in
+     * merkle tree order), without the transactions.
+     *
+     * @param block the block
+     * @return the encoded compact block
+     */
+    public static byte[] encodeCompactBlock(Block block) {
+        byte[] protocolVersion = block.getProtocolVersion().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> hashes = block.getOrderedTransactionHashes();
+
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + blockHeaderSize(block.getBlockHeader(),
+                protocolVersion) + Integer.BYTES + hashListSize(hashes));
+        buffer.put(FORMAT_VERSION).put(COMPACT_BLOCK_TAG);
+        putBlockHeader(buffer, block.getBlockHeader(), protocolVersion);
+        buffer.putInt(block.getBlockHeight());
+        putHashList(buffer, hashes);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a list of transaction hashes.
+     *
+     * @param hashes the transaction hashes
+     * @return the encoded transaction hashes
+     */
+    public static byte[] encodeTransactionHashes(List<byte[]> hashes) {
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + hashListSize(hashes));
+        buffer.put(FORMAT_VERSION).put(TRANSACTION_HASH_LIST_TAG);
+        putHashList(buffer, hashes);
+
+        return buffer.array();
+    }
+
+    /* Decoders */
+
+    /**
+     * Decodes a transaction.
+     *
+     * @param data the encoded transaction
+     * @return the transaction
+     * @throws IOException              io exception will be thrown if the data is malformed or of another type
+     * @throws IllegalArgumentException illegal argument exception will be thrown if transaction size exceeds max
+     *                                  transaction size
+     */
+    public static Transaction decodeTransaction(byte[] data) throws IOException {
+        if (isJavaSerialized(data)) {
+            Transaction t = readJavaSerialized(data, Transaction.class);
+            checkTransactionSize(t, Configuration.getInstance().getTransactionMaxSize());
+
+            return t;
+        }
+
+        ByteBuffer buffer = openBuffer(data, TRANSACTION_TAG);
+        try {
+            Transaction t = getTransaction(buffer);
+            checkTransactionSize(t, Configuration.getInstance().getTransactionMaxSize());
+            checkFullyRead(buffer);
+
+            return t;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded transaction is truncated");
+        }
+    }
+
+    /**
+     * Decodes a list of transactions.
+     *
+     * @param data the encoded transactions
+     * @return the transactions
+     * @throws IOException              io exception will be thrown if the data is malformed or of another type
+     * @throws IllegalArgumentException illegal argument exception will be thrown if a transaction size exceeds max
+     *                                  transaction size
+     */
+    public static List<Transaction> decodeTransactions(byte[] data) throws IOException {
+        if (isJavaSerialized(data)) {
+            int transactionMaxSize = Configuration.getInstance().getTransactionMaxSize();
+            List<?> list = readJavaSerialized(data, List.class);
+            List<Transaction> transactions = new ArrayList<>(list.size());
+
+            for (Object o : list) {
+                if (!(o instanceof Transaction))
+                    throw new InvalidObjectException("Java serialized transaction list with an element of type "
+                            + className(o));
+                checkTransactionSize((Transaction) o, transactionMaxSize);
+                transactions.add((Transaction) o);
+            }
+
+            return transactions;
+        }
+
+        ByteBuffer buffer = openBuffer(data, TRANSACTION_LIST_TAG);
+        try {
+            int transactionMaxSize = Configuration.getInstance().getTransactionMaxSize();
+            int count = getCount(buffer);
+            List<Transaction> transactions = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                Transaction t = getTransaction(buffer);
+                checkTransactionSize(t, transactionMaxSize);
+                transactions.add(t);
+            }
+            checkFullyRead(buffer);
+
+            return transactions;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded transaction list is truncated");
+        }
+    }
+
+    /**
+     * Decodes a block header.
+     *
+     * @param data the encoded block header
+     * @return the block header
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static BlockHeader decodeBlockHeader(byte[] data) throws IOException {
+        if (isJavaSerialized(data))
+            return readJavaSerialized(data, BlockHeader.class);
+
+        ByteBuffer buffer = openBuffer(data, BLOCK_HEADER_TAG);
+        try {
+            BlockHeader blockHeader = getBlockHeader(buffer);
+            checkFullyRead(buffer);
+
+            return blockHeader;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded block header is truncated");
+        }
+    }
+
+    /**
+     * Decodes a block.
+     * The transaction hashes are read from the encoded data and not recalculated, blocks received from other nodes
+     * should be rebuilt from their transactions before being trusted.
+     *
+     * @param data the encoded block
+     * @return the block
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static Block decodeBlock(byte[] data) throws IOException {
+        if (isJavaSerialized(data))
+            return readJavaSerialized(data, Block.class);
+
+        ByteBuffer buffer = openBuffer(data, BLOCK_TAG);
+        try {
+            BlockHeader blockHeader = getBlockHeader(buffer);
+            int blockHeight = buffer.getInt();
+            int count = getCount(buffer);
+            List<byte[]> hashes = new ArrayList<>(count);
+            List<Transaction> transactions = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                hashes.add(getBytes(buffer));
+                transactions.add(getTransaction(buffer));
+            }
+            checkFullyRead(buffer);
+
+            return new Block(blockHeader, blockHeight, BlockTransactions.of(hashes, transactions));
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded block is truncated");
+        }
+    }
+
+    /**
+     * Decodes the header, height and transaction hashes of an encoded block, skipping the transactions, used to check
+     * and index blocks without decoding them.
+     *
+     * @param data              the encoded block
+     * @param transactionHashes the list where the transaction hashes are added (in merkle tree order)
+     * @return the block without transactions
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static BlockNoTransactions decodeBlockSummary(byte[] data, List<byte[]> transactionHashes)
+            throws IOException {
+        if (isJavaSerialized(data)) {
+            Block block = readJavaSerialized(data, Block.class);
+            transactionHashes.addAll(block.getOrderedTransactionHashes());
+
+            return block.getBlockNoTransactions();
+        }
+
+        ByteBuffer buffer = openBuffer(data, BLOCK_TAG);
+        try {
+            BlockHeader blockHeader = getBlockHeader(buffer);
+            int blockHeight = buffer.getInt();
+            int count = getCount(buffer);
+            int size = 0;
+
+            for (int i = 0; i < count; i++) {
+                transactionHashes.add(getBytes(buffer));
+                size += skipTransaction(buffer);
+            }
+            checkFullyRead(buffer);
+
+            return new BlockNoTransactions(blockHeader, count, blockHeight, size);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded block is truncated");
+        }
+    }
+
+    /**
+     * Decodes a block without transactions.
+     *
+     * @param data the encoded block without transactions
+     * @return the block without transactions
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static BlockNoTransactions decodeBlockNoTransactions(byte[] data) throws IOException {
+        if (isJavaSerialized(data))
+            return readJavaSerialized(data, BlockNoTransactions.class);
+
+        ByteBuffer buffer = openBuffer(data, BLOCK_NO_TRANSACTIONS_TAG);
+        try {
+            BlockHeader blockHeader = getBlockHeader(buffer);
+            int transactionCounter = buffer.getInt();
+            int blockHeight = buffer.getInt();
+            int size = buffer.getInt();
+            checkFullyRead(buffer);
+
+            return new BlockNoTransactions(blockHeader, transactionCounter, blockHeight, size);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded block is truncated");
+        }
+    }
+
+    /**
+     * Decodes a compact block.
+     *
+     * @param data the encoded compact block
+     * @return the compact block
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static CompactBlock decodeCompactBlock(byte[] data) throws IOException {
+        ByteBuffer buffer = openBuffer(data, COMPACT_BLOCK_TAG);
+        try {
+            BlockHeader blockHeader = getBlockHeader(buffer);
+            int blockHeight = buffer.getInt();
+            List<byte[]> hashes = getHashList(buffer);
+            checkFullyRead(buffer);
+
+            return new CompactBlock(blockHeader, blockHeight, hashes);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded compact block is truncated");
+        }
+    }
+
+    /**
+     * Decodes a list of transaction hashes.
+     *
+     * @param data the encoded transaction hashes
+     * @return the transaction hashes
+     * @throws IOException io exception will be thrown if the data is malformed or of another type
+     */
+    public static List<byte[]> decodeTransactionHashes(byte[] data) throws IOException {
+        ByteBuffer buffer = openBuffer(data, TRANSACTION_HASH_LIST_TAG);
+        try {
+            List<byte[]> hashes = getHashList(buffer);
+            checkFullyRead(buffer);
+
+            return hashes;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded transaction hash list is truncated");
+        }
+    }
+
+    /**
+     * Checks if the given data is an encoded compact block.
+     *
+     * @param data the data
+     * @return true if the data is an encoded compact block or false otherwise
+     */
+    public static boolean isCompactBlock(byte[] data) {
+        return data.length >= PREFIX_SIZE && data[0] == FORMAT_VERSION && data[1] == COMPACT_BLOCK_TAG;
+    }
+
+    /**
+     * Checks if the given data was produced with Java serialization (starts with the serialization stream magic).
+     *
+     * @param data the data
+     * @return true if the data is Java serialized or false otherwise
+     */
+    public static boolean isJavaSerialized(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8) &&
+                data[1] == (byte) ObjectStreamConstants.STREAM_MAGIC;
+    }
+
+    /* Auxiliary */
+
+    private static int transactionSize(Transaction t, byte[] protocolVersion) {
+        return Long.BYTES + Integer.BYTES * 3 + protocolVersion.length + t.getData().length +
+                t.getSignature().length;
+    }
+
+    private static int blockHeaderSize(BlockHeader h, byte[] protocolVersion) {
+        return Long.BYTES + Integer.BYTES * 4 + protocolVersion.length + h.previousBlockHash.length +
+                h.merkleRoot.length + h.getNonce().length;
+    }
+
+    private static int hashListSize(List<byte[]> hashes) {
+        int size = Integer.BYTES;
+        for (byte[] hash : hashes)
+            size += Integer.BYTES + hash.length;
+
+        return size;
+    }
+
+    private static void putHashList(ByteBuffer buffer, List<byte[]> hashes) {
+        buffer.putInt(hashes.size());
+        for (byte[] hash : hashes)
+            putBytes(buffer, hash);
+    }
+
+    private static void putTransaction(ByteBuffer buffer, Transaction t, byte[] protocolVersion) {
+        buffer.putLong(t.getTimestamp());
+        putBytes(buffer, protocolVersion);
+        putBytes(buffer, t.getData());
+        putBytes(buffer, t.getSignature());
+    }
+
+    private static void putBlockHeader(ByteBuffer buffer, BlockHeader h, byte[] protocolVersion) {
+        buffer.putLong(h.timestamp);
+        putBytes(buffer, protocolVersion);
+        putBytes(buffer, h.previousBlockHash);
+        putBytes(buffer, h.merkleRoot);
+        putBytes(buffer, h.getNonce());
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static Transaction getTransaction(ByteBuffer buffer) throws IOException {
+        long timestamp = buffer.getLong();
+        String protocolVersion = new String(getBytes(buffer), StandardCharsets.UTF_8);
+        byte[] data = getBytes(buffer);
+        byte[] signature = getBytes(buffer);
+
+        return new Transaction(timestamp, data, protocolVersion, signature);
+    }
+
+    private static int skipTransaction(ByteBuffer buffer) throws IOException {
+        buffer.getLong();
+
+        // Same as the transaction size: timestamp, protocol version, data and signature
+        return Long.BYTES + skipBytes(buffer) + skipBytes(buffer) + skipBytes(buffer);
+    }
+
+    private static BlockHeader getBlockHeader(ByteBuffer buffer) throws IOException {
+        long timestamp = buffer.getLong();
+        String protocolVersion = new String(getBytes(buffer), StandardCharsets.UTF_8);
+        byte[] previousBlockHash = getBytes(buffer);
+        byte[] merkleRoot = getBytes(buffer);
+        byte[] nonce = getBytes(buffer);
+
+        return new BlockHeader(previousBlockHash, protocolVersion, timestamp, nonce, merkleRoot);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new StreamCorruptedException("Invalid byte array length " + length);
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    private static int skipBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new StreamCorruptedException("Invalid byte array length " + length);
+
+        buffer.position(buffer.position() + length);
+
+        return length;
+    }
+
+    private static List<byte[]> getHashList(ByteBuffer buffer) throws IOException {
+        int count = getCount(buffer);
+        List<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            hashes.add(getBytes(buffer));
+
+        return hashes;
+    }
+
+    private static int getCount(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining())
+            throw new StreamCorruptedException("Invalid element count " + count);
+
+        return count;
+    }
+
+    private static void checkTransactionSize(Transaction t, int transactionMaxSize) {
+        int size = t.getSize();
+        if (size > transactionMaxSize)
+            throw new IllegalArgumentException("Transaction size is " + size + " but max transaction size is "
+                    + transactionMaxSize);
+    }
+
+    private static ByteBuffer openBuffer(byte[] data, byte tag) throws IOException {
+        if (data.length < PREFIX_SIZE)
+            throw new EOFException("Encoded data is too short");
+        if (data[0] != FORMAT_VERSION)
+            throw new StreamCorruptedException("Unsupported format version " + data[0]);
+        if (data[1] != tag)
+            throw new StreamCorruptedException("Unexpected type tag " + data[1] + " (expected " + tag + ")");
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(PREFIX_SIZE);
+
+        return buffer;
+    }
+
+    private static void checkFullyRead(ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining())
+            throw new StreamCorruptedException(buffer.remaining() + " unexpected bytes after encoded data");
+    }
+
+    /**
+     * Reads Java serialized data (written by the first versions), checking the type of the object read.
+     *
+     * @param data the Java serialized data
+     * @param type the expected type of the object
+     * @param <T>  the expected type of the object
+     * @return the object
+     * @throws IOException io exception will be thrown if the data is malformed or the object of another type
+     */
+    public static <T> T readJavaSerialized(byte[] data, Class<T> type) throws IOException {
+        Object object;
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
+             ObjectInput objIn = new ObjectInputStream(byteIn)) {
+
+            object = objIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidObjectException("Unable to read Java serialized data: " + e.getMessage());
+        }
+
+        if (!type.isInstance(object))
+            throw new InvalidObjectException("Java serialized data of type " + className(object) + ", expected "
+                    + type.getSimpleName());
+
+        return type.cast(object);
+    }
+
+    private static String className(Object object) {
+        return object == null ? "null" : object.getClass().getSimpleName();
+    }
+}
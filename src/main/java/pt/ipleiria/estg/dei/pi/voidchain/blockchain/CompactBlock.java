@@ -0,0 +1,145 @@
+package pt.ipleiria.estg.dei.pi.voidchain.blockchain;
+
+import bitcoinj.Base58;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact block is the form of a block used in block proposals: the block header and the hashes of its transactions
+ * (in merkle tree order), without the transactions.
+ * <br>
+ * Nodes already have the transactions of a proposed block in their memory pool, so they rebuild the block from
+ * them. The rebuilt block is only accepted if its merkle tree root is the one in the header of the proposal.
+ */
+public class CompactBlock {
+    /* Attributes */
+    private final BlockHeader blockHeader;
+    private final int blockHeight;
+    private final List<byte[]> transactionHashes;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Compact block from a block.
+     *
+     * @param block the block
+     */
+    public CompactBlock(Block block) {
+        this(block.getBlockHeader(), block.getBlockHeight(), block.getOrderedTransactionHashes());
+    }
+
+    /**
+     * Instantiates a Compact block from previously calculated data, used when decoding compact blocks.
+     *
+     * @param blockHeader       the block header
+     * @param blockHeight       the block height
+     * @param transactionHashes the transaction hashes, in merkle tree order
+     */
+    protected CompactBlock(BlockHeader blockHeader, int blockHeight, List<byte[]> transactionHashes) {
+        this.blockHeader = blockHeader;
+        this.blockHeight = blockHeight;
+        this.transactionHashes = Collections.unmodifiableList(new ArrayList<>(transactionHashes));
+    }
+
+    /* Methods */
+
+    /**
+     * Rebuilds the block from its transactions, with the timestamp and nonce defined by the consensus.
+     *
+     * @param transactions the transactions of the block, in any order
+     * @param timestamp    the timestamp
+     * @param nonce        the nonce
+     * @return the block or null if the transactions don't match the merkle tree root of the compact block
+     * @throws InstantiationException instantiation exception will be thrown if error occurs while calculating merkle tree root
+     */
+    public Block toBlock(List<Transaction> transactions, long timestamp, byte[] nonce) throws InstantiationException {
+        if (transactions.size() != this.transactionHashes.size())
+            return null;
+
+        Block block = new Block(this.blockHeader.previousBlockHash, this.blockHeader.protocolVersion,
+                this.blockHeight, transactions, timestamp, nonce);
+
+        if (!Arrays.equals(block.getMerkleRoot(), this.blockHeader.merkleRoot))
+            return null;
+
+        return block;
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the block header.
+     *
+     * @return the block header
+     */
+    protected BlockHeader getBlockHeader() {
+        return this.blockHeader;
+    }
+
+    /**
+     * Gets block height.
+     *
+     * @return the block height
+     */
+    public int getBlockHeight() {
+        return this.blockHeight;
+    }
+
+    /**
+     * Gets the hashes of the transactions of the block, in merkle tree order.
+     *
+     * @return the transaction hashes (unmodifiable)
+     */
+    public List<byte[]> getTransactionHashes() {
+        return this.transactionHashes;
+    }
+
+    /**
+     * Gets the number of transactions of the block.
+     *
+     * @return the transaction counter
+     */
+    public int getTransactionCounter() {
+        return this.transactionHashes.size();
+    }
+
+    /**
+     * Gets the transactions merkle tree root, from the block header.
+     *
+     * @return the merkle tree root
+     */
+    public byte[] getMerkleRoot() {
+        return this.blockHeader.merkleRoot;
+    }
+
+    /**
+     * Gets the hash of the previous block in the chain, from the block header.
+     *
+     * @return the previous block hash
+     */
+    public byte[] getPreviousBlockHash() {
+        return this.blockHeader.previousBlockHash;
+    }
+
+    /**
+     * Gets protocol version, from the block header.
+     *
+     * @return the protocol version
+     */
+    public String getProtocolVersion() {
+        return this.blockHeader.protocolVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactBlock: {" + System.lineSeparator() +
+                this.blockHeader + System.lineSeparator() +
+                "transaction counter: " + this.transactionHashes.size() + System.lineSeparator() +
+                "block height: " + this.blockHeight + System.lineSeparator() +
+                "merkle root: " + Base58.encode(this.blockHeader.merkleRoot) + System.lineSeparator() +
+                "}";
+    }
+}
@@ -0,0 +1,150 @@
+package pt.ipleiria.estg.dei.pi.voidchain.blockchain;
+
+import bitcoinj.Base58;
+
+import pt.ipleiria.estg.dei.pi.voidchain.util.Hash;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleEngine;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Merkle proof proves that a transaction is stored in a block, without the other transactions of the block.
+ * <br>
+ * It contains the merkle path of the transaction (the hashes needed to calculate the merkle tree root from the hash of
+ * the transaction) and its position in the block. A client verifies the proof against the merkle tree root of the
+ * block header, which it gets with a GET_BLOCK request.
+ */
+public class MerkleProof implements Serializable {
+    /* Attributes */
+    private final byte[] transactionHash;
+    private final int blockHeight;
+    private final int position;
+    private final int transactionCounter;
+    private final ArrayList<byte[]> path;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Merkle proof.
+     *
+     * @param transactionHash    the transaction hash
+     * @param blockHeight        the height of the block where the transaction is stored
+     * @param position           the position of the transaction in the block (in merkle tree order)
+     * @param transactionCounter the number of transactions in the block
+     * @param path               the merkle path of the transaction
+     */
+    public MerkleProof(byte[] transactionHash, int blockHeight, int position, int transactionCounter,
+                       List<byte[]> path) {
+        this.transactionHash = transactionHash;
+        this.blockHeight = blockHeight;
+        this.position = position;
+        this.transactionCounter = transactionCounter;
+        this.path = new ArrayList<>(path);
+    }
+
+    /* Methods */
+
+    /**
+     * Verifies the proof against a merkle tree root.
+     *
+     * @param merkleRoot the merkle tree root
+     * @return true if the transaction is a leaf of the merkle tree or false otherwise
+     */
+    public boolean verify(byte[] merkleRoot) {
+        return this.verify(merkleRoot, Hash.Algorithm.SHA3_512_RIPEMD160);
+    }
+
+    /**
+     * Verifies the proof against a merkle tree root, calculated with the algorithm of a protocol version.
+     *
+     * @param merkleRoot      the merkle tree root
+     * @param protocolVersion the protocol version of the block
+     * @return true if the transaction is a leaf of the merkle tree or false otherwise
+     */
+    public boolean verify(byte[] merkleRoot, String protocolVersion) {
+        return this.verify(merkleRoot, Hash.Algorithm.forProtocolVersion(protocolVersion));
+    }
+
+    private boolean verify(byte[] merkleRoot, Hash.Algorithm algorithm) {
+        byte[] root = MerkleEngine.getMerkleRoot(this.transactionHash, this.position, this.transactionCounter,
+                this.path, algorithm);
+
+        return root != null && Arrays.equals(root, merkleRoot);
+    }
+
+    /**
+     * Verifies the proof against a block.
+     *
+     * @param block the block, without transactions
+     * @return true if the transaction is stored in the block or false otherwise
+     */
+    public boolean verify(BlockNoTransactions block) {
+        return block.getBlockHeight() == this.blockHeight &&
+                block.getTransactionCounter() == this.transactionCounter &&
+                this.verify(block.getMerkleRoot(), block.getProtocolVersion());
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the transaction hash.
+     *
+     * @return the transaction hash
+     */
+    public byte[] getTransactionHash() {
+        return transactionHash;
+    }
+
+    /**
+     * Gets the height of the block where the transaction is stored.
+     *
+     * @return the block height
+     */
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Gets the position of the transaction in the block (in merkle tree order).
+     *
+     * @return the position
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Gets the number of transactions in the block.
+     *
+     * @return the transaction counter
+     */
+    public int getTransactionCounter() {
+        return transactionCounter;
+    }
+
+    /**
+     * Gets the merkle path of the transaction, from the leaves to the root.
+     *
+     * @return the merkle path
+     */
+    public List<byte[]> getPath() {
+        return new ArrayList<>(path);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder pathString = new StringBuilder();
+        for (byte[] hash : this.path)
+            pathString.append(Base58.encode(hash)).append(" ");
+
+        return "MerkleProof: {" + System.lineSeparator() +
+                "transaction hash: " + Base58.encode(this.transactionHash) + System.lineSeparator() +
+                "block height: " + this.blockHeight + System.lineSeparator() +
+                "position: " + this.position + "/" + this.transactionCounter + System.lineSeparator() +
+                "path: " + pathString.toString().trim() + System.lineSeparator() +
+                "}";
+    }
+}
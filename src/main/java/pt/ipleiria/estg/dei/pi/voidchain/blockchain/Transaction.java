@@ -8,11 +8,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
-import pt.ipleiria.estg.dei.pi.voidchain.util.Converters;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Hash;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Keys;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
@@ -26,13 +26,20 @@ import java.util.*;
  */
 public class Transaction implements Serializable {
     /* Attributes */
+    // Pinned to the value computed for the first versions, so blocks and messages they serialized can still be read
+    private static final long serialVersionUID = 7032120352295876205L;
+
     private static final transient Logger logger = LoggerFactory.getLogger(Transaction.class.getName());
+    private static transient TOMConfiguration verificationTomConf = null;
 
     private final long timestamp;
     private final byte[] data;
     private final String protocolVersion;
     private final byte[] signature;
 
+    // Calculated on the first call of getHash, the transaction is immutable
+    private transient volatile byte[] hash = null;
+
     /* Constructors */
 
     /**
@@ -86,52 +93,35 @@ public class Transaction implements Serializable {
                     + transactionMaxSize);
     }
 
+    /**
+     * Instantiates a Transaction from previously validated data, used when decoding transactions.
+     * The size of the transaction is not checked.
+     *
+     * @param timestamp       the timestamp
+     * @param data            the data
+     * @param protocolVersion the protocol version
+     * @param signature       the signature of data
+     */
+    protected Transaction(long timestamp, byte[] data, String protocolVersion, byte[] signature) {
+        this.timestamp = timestamp;
+        this.data = data;
+        this.protocolVersion = protocolVersion;
+        this.signature = signature;
+    }
+
     /* Methods */
 
     /**
-     * Calculates all the attributes in byte array format.
-     * <br>
-     * Will return byte[0] if an error occurs.
+     * Calculates all the attributes in byte array format: protocol version (UTF-8), timestamp (big-endian), data and
+     * signature.
      *
      * @return the transaction bytes
      */
     public byte[] getBytes() {
         byte[] protocolVersionBytes = protocolVersion.getBytes(StandardCharsets.UTF_8);
-        byte[] timestampBytes;
-
-        try {
-            timestampBytes = Converters.longToByteArray(timestamp);
-        } catch (IOException e) {
-            logger.error("Error converting timestamp [" + timestamp + "] into byte array");
-            return new byte[0];
-        }
-
-        int size = protocolVersionBytes.length + timestampBytes.length + data.length + this.signature.length;
-        byte[] dataBytes = new byte[size];
-        int i = 0;
-
-        for (byte b : protocolVersionBytes) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : timestampBytes) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : data) {
-            dataBytes[i] = b;
-            i++;
-        }
-        for (byte b : this.signature) {
-            dataBytes[i] = b;
-            i++;
-        }
 
-        if (i != size)
-            // THIS SHOULDN'T RUN
-            return new byte[0];
-
-        return dataBytes;
+        return ByteBuffer.allocate(protocolVersionBytes.length + Long.BYTES + data.length + this.signature.length)
+                .put(protocolVersionBytes).putLong(timestamp).put(data).put(this.signature).array();
     }
 
     /* Getters */
@@ -188,7 +178,7 @@ public class Transaction implements Serializable {
     public boolean verifySignature(byte[] pubKey) throws NoSuchAlgorithmException, NoSuchProviderException,
             InvalidKeySpecException, InvalidKeyException, SignatureException, IOException {
 
-        TOMConfiguration tomConf = new TOMConfiguration(-100, Configuration.CONFIG_DIR, null);
+        TOMConfiguration tomConf = getVerificationTomConf();
         String signatureAlgorithm = tomConf.getSignatureAlgorithm();
 
         Signature signature = Signature.getInstance(signatureAlgorithm);
@@ -198,24 +188,32 @@ public class Transaction implements Serializable {
         return signature.verify(this.signature);
     }
 
+    private static synchronized TOMConfiguration getVerificationTomConf() {
+        if (verificationTomConf == null)
+            verificationTomConf = new TOMConfiguration(-100, Configuration.CONFIG_DIR, null);
+
+        return verificationTomConf;
+    }
+
     /**
      * Calculates the hash of the transaction.
-     * To calculate the hash of a transaction, we double hash all it's attributes.
+     * To calculate the hash of a transaction, we hash all it's attributes with the algorithm of its protocol version.
      * <br>
-     * SHA3_512(RIPEMD160(transaction))
+     * SHA3_512(RIPEMD160(transaction)) or BLAKE2b-160(transaction), see {@link Hash.Algorithm}
      * <br>
-     * Will return byte[0] if error occurred while calculating hash.
+     * The hash is calculated once and kept with the transaction, it must not be modified.
      *
-     * @return the block hash
+     * @return the transaction hash
      */
     public byte[] getHash() {
-        byte[] dataBytes = this.getBytes();
-        byte[] aux = new byte[0];
+        byte[] hash = this.hash;
 
-        if (Arrays.equals(dataBytes, aux))
-            return aux;
+        if (hash == null) {
+            hash = Hash.calculate(this.getBytes(), this.protocolVersion);
+            this.hash = hash;
+        }
 
-        return Hash.calculateSHA3512RIPEMD160(dataBytes);
+        return hash;
     }
 
     /**
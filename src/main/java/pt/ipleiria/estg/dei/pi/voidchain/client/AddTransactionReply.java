@@ -0,0 +1,26 @@
+package pt.ipleiria.estg.dei.pi.voidchain.client;
+
+import java.io.Serializable;
+
+/**
+ * The enum Add transaction reply, sent by the nodes after the boolean reply of ADD_TRANSACTION and ADD_TRANSACTIONS
+ * requests.
+ */
+public enum AddTransactionReply implements Serializable {
+    /**
+     * Transaction(s) added to the memory pool.
+     */
+    ADDED,
+    /**
+     * Transaction(s) already in the memory pool.
+     */
+    ALREADY_IN_MEM_POOL,
+    /**
+     * Memory pool is full, the client should retry later.
+     */
+    MEM_POOL_FULL,
+    /**
+     * Transaction(s) with an invalid signature.
+     */
+    INVALID_SIGNATURE
+}
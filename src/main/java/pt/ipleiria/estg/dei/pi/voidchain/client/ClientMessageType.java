@@ -41,5 +41,9 @@ public enum ClientMessageType implements Serializable {
     /**
      * Number nodes client message type.
      */
-    NUMBER_NODES
+    NUMBER_NODES,
+    /**
+     * Get transaction proof (merkle path of a transaction) client message type.
+     */
+    GET_TRANSACTION_PROOF
 }
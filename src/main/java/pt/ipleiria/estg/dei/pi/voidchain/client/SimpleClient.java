@@ -10,10 +10,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockNoTransactions;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.MerkleProof;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Converters;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Keys;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MessageCodec;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Storage;
 
 import javax.swing.*;
@@ -24,6 +27,7 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.time.Instant;
+import java.util.Arrays;
 
 /**
  * The Simple Client class is equivalent to the Lightweight Client described in the VOIDChain report/documentation.
@@ -122,16 +126,10 @@ public class SimpleClient {
     private ActionListener getCurrentBlockButtonActionListener() {
         return e -> {
             logger.debug("Sending GET_MOST_RECENT_BLOCK request to network");
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            try {
 
                 ClientMessage req = new ClientMessage(ClientMessageType.GET_MOST_RECENT_BLOCK);
-                objOut.writeObject(req);
-
-                objOut.flush();
-                byteOut.flush();
-
-                byte[] reply = serviceProxy.invokeUnordered(byteOut.toByteArray());
+                byte[] reply = serviceProxy.invokeUnordered(MessageCodec.encode(req));
 
                 if (reply == null ||reply.length == 0) {
                     logger.error("Empty reply from replicas");
@@ -159,16 +157,10 @@ public class SimpleClient {
     private ActionListener getCurrentBlockHeightButtonActionListener() {
         return e -> {
             logger.debug("Sending GET_MOST_RECENT_BLOCK_HEIGHT request to network");
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            try {
 
                 ClientMessage req = new ClientMessage(ClientMessageType.GET_MOST_RECENT_BLOCK_HEIGHT);
-                objOut.writeObject(req);
-
-                objOut.flush();
-                byteOut.flush();
-
-                byte[] reply = serviceProxy.invokeUnordered(byteOut.toByteArray());
+                byte[] reply = serviceProxy.invokeUnordered(MessageCodec.encode(req));
 
                 if (reply == null ||reply.length == 0) {
                     logger.error("Empty reply from replicas");
@@ -196,8 +188,7 @@ public class SimpleClient {
     private ActionListener getBlockButtonActionListener() {
         return e -> {
             logger.debug("Sending GET_BLOCK ("+ this.blockHeightTextField.getText() + ") request to network");
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            try {
 
                 String blockHeightText = this.blockHeightTextField.getText();
 
@@ -209,12 +200,7 @@ public class SimpleClient {
                 ClientMessage req = new ClientMessage(ClientMessageType.GET_BLOCK,
                         Converters.intToByteArray(blockHeight));
 
-                objOut.writeObject(req);
-
-                objOut.flush();
-                byteOut.flush();
-
-                byte[] reply = serviceProxy.invokeUnordered(byteOut.toByteArray());
+                byte[] reply = serviceProxy.invokeUnordered(MessageCodec.encode(req));
 
                 if (reply == null ||reply.length == 0) {
                     logger.error("Empty reply from replicas");
@@ -242,8 +228,7 @@ public class SimpleClient {
     private ActionListener addTransactionButtonActionListener() {
         return e -> {
             logger.debug("Sending ADD_TRANSACTION request to network");
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            try {
 
                 Configuration config = Configuration.getInstance();
 
@@ -264,25 +249,9 @@ public class SimpleClient {
 
                 this.wallet.addTransaction(t);
 
-                ByteArrayOutputStream byteOut2 = new ByteArrayOutputStream();
-                ObjectOutput objOut2 = new ObjectOutputStream(byteOut2);
-
-                objOut2.writeObject(t);
-                objOut2.flush();
-                byteOut2.flush();
-
-                byte[] tBytes = byteOut2.toByteArray();
-
-                objOut2.close();
-                byteOut2.close();
-
-                ClientMessage req = new ClientMessage(ClientMessageType.ADD_TRANSACTION, tBytes);
-                objOut.writeObject(req);
-
-                objOut.flush();
-                byteOut.flush();
-
-                byte[] reply = serviceProxy.invokeOrdered(byteOut.toByteArray());
+                ClientMessage req = new ClientMessage(ClientMessageType.ADD_TRANSACTION,
+                        BlockchainCodec.encodeTransaction(t));
+                byte[] reply = serviceProxy.invokeOrdered(MessageCodec.encode(req));
 
                 if (reply == null ||reply.length == 0) {
                     logger.error("Empty reply from replicas");
@@ -290,11 +259,17 @@ public class SimpleClient {
                 }
 
                 boolean added;
+                AddTransactionReply addReply = null;
 
                 ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
                 ObjectInput objIn = new ObjectInputStream(byteIn);
 
                 added = objIn.readBoolean();
+                try {
+                    addReply = (AddTransactionReply) objIn.readObject();
+                } catch (EOFException | ClassNotFoundException ignored) {
+                    // Replicas running previous versions only reply with the boolean
+                }
 
                 objIn.close();
                 byteIn.close();
@@ -302,6 +277,12 @@ public class SimpleClient {
                 String message;
                 if (added)
                     message = "Transaction added";
+                else if (addReply == AddTransactionReply.MEM_POOL_FULL)
+                    message = "Transaction not added, memory pool is full, retry later";
+                else if (addReply == AddTransactionReply.ALREADY_IN_MEM_POOL)
+                    message = "Transaction not added, already in memory pool";
+                else if (addReply == AddTransactionReply.INVALID_SIGNATURE)
+                    message = "Transaction not added, invalid signature";
                 else
                     message = "Transaction not added";
 
@@ -318,16 +299,10 @@ public class SimpleClient {
     private ActionListener isChainValidButtonActionListener() {
         return e -> {
             logger.debug("Sending IS_CHAIN_VALID request to network");
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            try {
 
                 ClientMessage req = new ClientMessage(ClientMessageType.IS_CHAIN_VALID);
-                objOut.writeObject(req);
-
-                objOut.flush();
-                byteOut.flush();
-
-                byte[] reply = serviceProxy.invokeOrdered(byteOut.toByteArray());
+                byte[] reply = serviceProxy.invokeOrdered(MessageCodec.encode(req));
 
                 if (reply == null ||reply.length == 0) {
                     logger.error("Empty reply from replicas");
@@ -352,6 +327,55 @@ public class SimpleClient {
         };
     }
 
+    /**
+     * Checks if a transaction is stored in the chain, without downloading the block where it is stored.
+     * The merkle proof of the transaction is requested and verified against the merkle tree root of the block header.
+     *
+     * @param transactionHash the transaction hash
+     * @return true if the transaction is stored in the chain or false otherwise
+     * @throws IOException            the io exception
+     * @throws ClassNotFoundException the class not found exception
+     */
+    public boolean verifyTransaction(byte[] transactionHash) throws IOException, ClassNotFoundException {
+        logger.debug("Sending GET_TRANSACTION_PROOF request to network");
+
+        ClientMessage req = new ClientMessage(ClientMessageType.GET_TRANSACTION_PROOF, transactionHash);
+        byte[] reply = serviceProxy.invokeUnordered(MessageCodec.encode(req));
+
+        if (reply == null || reply.length == 0) {
+            logger.error("Empty reply from replicas");
+            return false;
+        }
+
+        MerkleProof proof;
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
+             ObjectInput objIn = new ObjectInputStream(byteIn)) {
+            proof = (MerkleProof) objIn.readObject();
+        }
+
+        if (proof == null || !Arrays.equals(proof.getTransactionHash(), transactionHash))
+            return false;
+
+        req = new ClientMessage(ClientMessageType.GET_BLOCK, Converters.intToByteArray(proof.getBlockHeight()));
+        reply = serviceProxy.invokeUnordered(MessageCodec.encode(req));
+
+        if (reply == null || reply.length == 0) {
+            logger.error("Empty reply from replicas");
+            return false;
+        }
+
+        BlockNoTransactions block;
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
+             ObjectInput objIn = new ObjectInputStream(byteIn)) {
+            block = (BlockNoTransactions) objIn.readObject();
+        }
+
+        boolean valid = proof.verify(block);
+        logger.debug("Transaction " + Base58.encode(transactionHash) + " proof is " + (valid ? "valid" : "invalid"));
+
+        return valid;
+    }
+
     private void close() {
         this.serviceProxy.close();
     }
@@ -0,0 +1,301 @@
+package pt.ipleiria.estg.dei.pi.voidchain.node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Pair;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Block pipeline prepares the next blocks to be proposed while the current proposal is being ordered by the
+ * network.
+ * <br>
+ * A worker thread reserves full blocks of transactions in the memory pool, builds them (calculating their merkle tree
+ * root) and encodes their transactions, up to the pipeline depth. The hash of the previous block is only known after
+ * the block being ordered is added to the chain (its timestamp and nonce are defined by the consensus), so prepared
+ * blocks are linked to the tip of the chain when taken from the pipeline, which only rebuilds their header.
+ * <br>
+ * Blocks are prepared for an expected height. If the tip of the chain is not the expected one when a block is taken
+ * (a rejected proposal, a block proposed by another leader or a resync of the chain), all the prepared blocks are
+ * discarded and their transactions released in the memory pool. They are also discarded when a transaction older than
+ * the ones already reserved is added to the memory pool (see {@link MemoryPool#getGeneration()}), so blocks always
+ * take the oldest transactions.
+ * <br>
+ * Blocks take the oldest transactions of the memory pool, the ones other nodes never evict, so prepared blocks are
+ * taken in order and when no block is prepared the pipeline stops until the next proposal, leaving the memory pool to
+ * the caller.
+ */
+public class BlockPipeline {
+    /* Attributes */
+    private static final Logger logger = LoggerFactory.getLogger(BlockPipeline.class);
+
+    private final MemoryPool transactionPool;
+    private final ExecutorService worker;
+    private final AtomicBoolean scheduled;
+
+    // Guarded by the deque
+    private final ArrayDeque<PreparedBlock> prepared;
+    private int nextHeight = -1;
+    private long generation = 0;
+    private boolean preparing = false;
+
+    private volatile int depth;
+    private volatile int transactionsPerBlock;
+    private volatile String protocolVersion;
+
+    private long preparedBlocks = 0;
+    private long discardedBlocks = 0;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Block pipeline.
+     *
+     * @param transactionPool the memory pool the transactions are drained from
+     */
+    public BlockPipeline(MemoryPool transactionPool) {
+        this.transactionPool = transactionPool;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Block pipeline");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduled = new AtomicBoolean(false);
+        this.prepared = new ArrayDeque<>();
+    }
+
+    /* Methods */
+
+    /**
+     * Sets the settings of the pipeline.
+     *
+     * @param depth                the max number of prepared blocks (0 disables the pipeline)
+     * @param transactionsPerBlock the number of transactions of each prepared block
+     * @param protocolVersion      the protocol version of the prepared blocks
+     */
+    public void setSettings(int depth, int transactionsPerBlock, String protocolVersion) {
+        this.depth = depth;
+        this.transactionsPerBlock = transactionsPerBlock;
+        this.protocolVersion = protocolVersion;
+
+        if (depth <= 0)
+            this.discard();
+    }
+
+    /**
+     * Starts preparing blocks after a block is proposed. If blocks were already prepared they must follow the proposed
+     * block, otherwise they are discarded.
+     *
+     * @param nextHeight the height of the block after the proposed one
+     */
+    public void proposing(int nextHeight) {
+        synchronized (this.prepared) {
+            PreparedBlock first = this.prepared.peekFirst();
+
+            if (first != null && first.height != nextHeight)
+                this.discardPrepared();
+            if (this.prepared.isEmpty())
+                this.nextHeight = nextHeight;
+        }
+
+        this.fill();
+    }
+
+    /**
+     * Prepares blocks, in the worker thread, until the pipeline is full or the memory pool doesn't have enough
+     * transactions for a block. Does nothing if the pipeline doesn't know the height of the next block.
+     */
+    public void fill() {
+        if (this.depth <= 0 || this.transactionPool.availableSize() < this.transactionsPerBlock)
+            return;
+
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.worker.execute(this::prepare);
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Takes the next prepared block, linked to the tip of the chain. Waits if a block is being prepared.
+     * <br>
+     * If no block is returned the pipeline stops preparing blocks until {@link #proposing(int)} is called, this way
+     * the caller can drain the memory pool itself.
+     *
+     * @param tip the most recent block of the chain
+     * @return the block and its encoding or null if no block is prepared for the tip (prepared blocks of other heights
+     * are discarded)
+     * @throws InterruptedException interrupted exception will be thrown if interrupted while waiting
+     */
+    public Pair<Block, byte[]> take(Block tip) throws InterruptedException {
+        PreparedBlock p;
+
+        synchronized (this.prepared) {
+            while (this.preparing)
+                this.prepared.wait();
+
+            p = this.prepared.peekFirst();
+            if (p == null) {
+                this.nextHeight = -1;
+                return null;
+            }
+
+            if (p.height != tip.getBlockHeight() + 1) {
+                logger.info("Chain tip changed, discarding " + this.prepared.size() + " prepared blocks");
+                this.discardPrepared();
+                return null;
+            }
+
+            if (p.poolGeneration != this.transactionPool.getGeneration()) {
+                logger.info("Older transactions added to the memory pool, discarding " + this.prepared.size() +
+                        " prepared blocks");
+                this.discardPrepared();
+                return null;
+            }
+
+            this.prepared.pollFirst();
+        }
+
+        Block block = p.block.relink(tip.getHash(), p.height);
+
+        return new Pair<>(block, BlockchainCodec.encodeBlock(block, p.encodedTransactions));
+    }
+
+    /**
+     * Discards all the prepared blocks, releasing their transactions in the memory pool.
+     */
+    public void discard() {
+        synchronized (this.prepared) {
+            this.discardPrepared();
+        }
+    }
+
+    /**
+     * Stops the worker thread and discards all the prepared blocks.
+     */
+    public void close() {
+        this.worker.shutdownNow();
+        this.discard();
+    }
+
+    private void prepare() {
+        try {
+            while (true) {
+                long generation;
+                long poolGeneration;
+                int height;
+                List<Transaction> transactions;
+
+                synchronized (this.prepared) {
+                    if (this.nextHeight == -1 || this.prepared.size() >= this.depth ||
+                            this.transactionPool.availableSize() < this.transactionsPerBlock)
+                        return;
+
+                    generation = this.generation;
+                    poolGeneration = this.transactionPool.getGeneration();
+                    height = this.nextHeight;
+                    transactions = this.transactionPool.drain(this.transactionsPerBlock);
+                    this.nextHeight++;
+                    this.preparing = true;
+                }
+
+                // The expensive work (merkle tree and encoding) is done outside the lock
+                PreparedBlock p;
+                try {
+                    Block block = new Block(new byte[0], this.protocolVersion, height, transactions, -1L,
+                            new byte[0]);
+                    p = new PreparedBlock(block, height, poolGeneration,
+                            BlockchainCodec.encodeBlockTransactions(block));
+                } catch (InstantiationException e) {
+                    logger.error("Error creating prepared block instance", e);
+                    p = null;
+                }
+
+                synchronized (this.prepared) {
+                    this.preparing = false;
+                    this.prepared.notifyAll();
+
+                    if (p == null) {
+                        this.transactionPool.release(transactions);
+                        this.discardPrepared();
+                        return;
+                    }
+
+                    // The pipeline was discarded while the block was being prepared
+                    if (generation != this.generation) {
+                        this.transactionPool.release(transactions);
+                        return;
+                    }
+
+                    this.prepared.addLast(p);
+                    this.preparedBlocks++;
+                }
+            }
+        } finally {
+            this.scheduled.set(false);
+        }
+    }
+
+    // Must be called while holding the lock of the deque
+    private void discardPrepared() {
+        this.generation++;
+        this.nextHeight = -1;
+
+        PreparedBlock p;
+        while ((p = this.prepared.pollFirst()) != null) {
+            this.transactionPool.release(p.block.getTransactions());
+            this.discardedBlocks++;
+        }
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the number of prepared blocks waiting to be proposed.
+     *
+     * @return the number of prepared blocks
+     */
+    public int size() {
+        synchronized (this.prepared) {
+            return this.prepared.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this.prepared) {
+            return "BlockPipeline: {" +
+                    "depth: " + depth +
+                    ", prepared: " + prepared.size() +
+                    ", nextHeight: " + nextHeight +
+                    ", preparedBlocks: " + preparedBlocks +
+                    ", discardedBlocks: " + discardedBlocks +
+                    "}";
+        }
+    }
+
+    private static final class PreparedBlock {
+        private final Block block;
+        private final int height;
+        private final long poolGeneration;
+        private final byte[] encodedTransactions;
+
+        private PreparedBlock(Block block, int height, long poolGeneration, byte[] encodedTransactions) {
+            this.block = block;
+            this.height = height;
+            this.poolGeneration = poolGeneration;
+            this.encodedTransactions = encodedTransactions;
+        }
+    }
+}
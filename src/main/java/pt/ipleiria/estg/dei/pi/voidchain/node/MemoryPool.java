@@ -0,0 +1,602 @@
+package pt.ipleiria.estg.dei.pi.voidchain.node;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+import pt.ipleiria.estg.dei.pi.voidchain.client.AddTransactionReply;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Memory pool stores the transactions waiting to be added to a block.
+ * <br>
+ * Transactions are indexed by their hash in a concurrent hash map, used to reject duplicated transactions and to
+ * check if a transaction is in the pool without locking. They are also kept in concurrent skip lists ordered by
+ * timestamp, so the oldest transactions can be drained (to create a block) in logarithmic time. Another skip list
+ * keeps the available transactions in arrival order, to know how long they have been waiting, as the timestamps are
+ * set by the clients.
+ * <br>
+ * Every node executes the same ordered requests against its own pool, so the result of adding a transaction can't
+ * depend on what the node does outside the ordered execution. Drained transactions are only reserved: they are still
+ * in the pool (and count against its limits) until the block is executed, when they are removed, or until the
+ * proposal fails, when they are released. The generation of the pool changes when a transaction older than a
+ * reserved one is added, as blocks reserved before it no longer hold the oldest transactions.
+ * <br>
+ * The pool is limited by a max number of transactions and a max size (in bytes). When a new transaction doesn't fit
+ * the {@link OverflowPolicy} decides if it is rejected or if other transactions are evicted to make room for it. The
+ * oldest transactions of the pool, the ones a leader may be proposing, are protected and never evicted.
+ */
+public class MemoryPool {
+    /* Attributes */
+    private final ConcurrentHashMap<HashKey, Entry> index;
+    private final ConcurrentSkipListSet<Entry> ordered;
+    private final ConcurrentSkipListSet<Entry> available;
+    private final ConcurrentSkipListSet<Entry> arrivals;
+    private long arrivalCount; // guarded by the lock
+    private final ConcurrentHashMap<Integer, ClientUsage> clients;
+    private final AtomicLong size;
+    private final AtomicInteger reserved;
+    private Entry newestReserved; // guarded by the lock
+    private volatile long generation;
+
+    // Every change to the pool is made holding the lock, reads don't lock
+    private final Object lock = new Object();
+    private final OverflowPolicy policy;
+    private volatile int maxTransactions;
+    private volatile long maxSize;
+    private volatile int protectedTransactions;
+
+    private final AtomicLong evictions;
+    private final AtomicLong rejections;
+
+    /**
+     * The constant UNKNOWN_CLIENT is used as client id of transactions added back to the pool (from proposed blocks
+     * or snapshots), those transactions are added even if the pool is full.
+     */
+    public static final int UNKNOWN_CLIENT = -1;
+
+    /**
+     * The enum Overflow policy defines what happens when a transaction doesn't fit in the pool.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The new transaction is rejected.
+         */
+        REJECT,
+        /**
+         * The oldest transactions in the pool are evicted.
+         */
+        EVICT_OLDEST,
+        /**
+         * Every client is entitled to an equal share of the pool. The new transaction is rejected if its client is
+         * using its share, otherwise the oldest transactions of the client using the most of the pool are evicted.
+         */
+        FAIR_SHARE;
+
+        /**
+         * Gets the overflow policy from its name (reject, oldest or fair).
+         *
+         * @param name the policy name
+         * @return the overflow policy
+         * @throws IllegalArgumentException illegal argument exception will be thrown if the name is unknown
+         */
+        public static OverflowPolicy forName(String name) {
+            switch (name.toLowerCase()) {
+                case "reject":
+                    return REJECT;
+                case "oldest":
+                    return EVICT_OLDEST;
+                case "fair":
+                    return FAIR_SHARE;
+                default:
+                    throw new IllegalArgumentException("Unknown memory pool policy '" + name + "'");
+            }
+        }
+    }
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new empty Memory pool.
+     *
+     * @param maxTransactions       the max number of transactions in the pool (0 if unlimited)
+     * @param maxSize               the max size of the transactions in the pool, in bytes (0 if unlimited)
+     * @param protectedTransactions the number of oldest transactions that are never evicted
+     * @param policy                the overflow policy
+     */
+    public MemoryPool(int maxTransactions, long maxSize, int protectedTransactions, OverflowPolicy policy) {
+        this.index = new ConcurrentHashMap<>();
+        this.ordered = new ConcurrentSkipListSet<>();
+        this.available = new ConcurrentSkipListSet<>();
+        this.arrivals = new ConcurrentSkipListSet<>(Comparator.comparingLong(e -> e.arrivalNumber));
+        this.clients = new ConcurrentHashMap<>();
+        this.size = new AtomicLong();
+        this.reserved = new AtomicInteger();
+        this.policy = policy;
+        this.maxTransactions = maxTransactions;
+        this.maxSize = maxSize;
+        this.protectedTransactions = protectedTransactions;
+        this.evictions = new AtomicLong();
+        this.rejections = new AtomicLong();
+    }
+
+    /* Methods */
+
+    /**
+     * Adds a transaction, sent by a client, to the pool.
+     *
+     * @param transaction the transaction
+     * @param clientId    the id of the client
+     * @return ADDED if the transaction was added, ALREADY_IN_MEM_POOL if it is already in the pool or MEM_POOL_FULL
+     * if the transaction doesn't fit in the pool
+     */
+    public AddTransactionReply add(Transaction transaction, int clientId) {
+        Entry e = new Entry(transaction, clientId);
+
+        synchronized (this.lock) {
+            if (this.index.containsKey(e.key))
+                return AddTransactionReply.ALREADY_IN_MEM_POOL;
+
+            if (!this.makeRoom(e)) {
+                this.rejections.incrementAndGet();
+                return AddTransactionReply.MEM_POOL_FULL;
+            }
+
+            this.insert(e);
+        }
+
+        return AddTransactionReply.ADDED;
+    }
+
+    /**
+     * Adds a batch of transactions that are not in the pool (from a snapshot). The limits of the pool are not
+     * enforced.
+     *
+     * @param transactions the transactions
+     * @return the number of transactions added (transactions already in the pool are not added)
+     */
+    public int addAll(Collection<Transaction> transactions) {
+        int added = 0;
+
+        synchronized (this.lock) {
+            for (Transaction t : transactions) {
+                Entry e = new Entry(t, UNKNOWN_CLIENT);
+                if (this.index.containsKey(e.key))
+                    continue;
+
+                this.insert(e);
+                added++;
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Reserves up to a number of available transactions, the oldest ones (by timestamp) first. Reserved transactions
+     * stay in the pool until they are removed (when their block is executed) or released.
+     *
+     * @param max the max number of transactions to reserve
+     * @return the reserved transactions, ordered by timestamp
+     */
+    public List<Transaction> drain(int max) {
+        List<Transaction> transactions = new ArrayList<>(Math.max(Math.min(max, this.availableSize()), 0));
+
+        synchronized (this.lock) {
+            while (transactions.size() < max) {
+                Entry e = this.available.pollFirst();
+                if (e == null)
+                    break;
+
+                this.arrivals.remove(e);
+                e.reserved = true;
+                this.reserved.incrementAndGet();
+                if (this.newestReserved == null || e.compareTo(this.newestReserved) > 0)
+                    this.newestReserved = e;
+                transactions.add(e.transaction);
+            }
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Makes reserved transactions available again, after the proposal of their block failed. Transactions no longer
+     * in the pool (already executed in a block or evicted) are ignored.
+     *
+     * @param transactions the transactions
+     * @return the number of transactions released
+     */
+    public int release(Collection<Transaction> transactions) {
+        int released = 0;
+
+        synchronized (this.lock) {
+            for (Transaction t : transactions) {
+                Entry e = this.index.get(new HashKey(t.getHash()));
+                if (e == null || !e.reserved)
+                    continue;
+
+                e.reserved = false;
+                if (this.reserved.decrementAndGet() == 0)
+                    this.newestReserved = null;
+                this.available.add(e);
+                this.arrivals.add(e);
+                released++;
+            }
+        }
+
+        return released;
+    }
+
+    /**
+     * Removes a transaction, available or reserved, from the pool.
+     *
+     * @param transactionHash the transaction hash
+     * @return true if the transaction was removed or false if it was not in the pool
+     */
+    public boolean remove(byte[] transactionHash) {
+        synchronized (this.lock) {
+            Entry e = this.index.get(new HashKey(transactionHash));
+            if (e == null)
+                return false;
+
+            this.unlink(e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes all the transactions from the pool.
+     */
+    public void clear() {
+        synchronized (this.lock) {
+            Entry e;
+            while ((e = this.ordered.isEmpty() ? null : this.ordered.first()) != null)
+                this.unlink(e);
+        }
+    }
+
+    /**
+     * Checks if a transaction is in the pool, without locking.
+     *
+     * @param transactionHash the transaction hash
+     * @return true if the transaction is in the pool or false otherwise
+     */
+    public boolean contains(byte[] transactionHash) {
+        return this.index.containsKey(new HashKey(transactionHash));
+    }
+
+    /**
+     * Gets a transaction in the pool, available or reserved, without removing it.
+     *
+     * @param transactionHash the transaction hash
+     * @return the transaction or null if it is not in the pool
+     */
+    public Transaction get(byte[] transactionHash) {
+        Entry e = this.index.get(new HashKey(transactionHash));
+
+        return e == null ? null : e.transaction;
+    }
+
+    // Must only be called holding the lock
+    private void insert(Entry e) {
+        e.arrivalNumber = this.arrivalCount++;
+        e.arrival = System.nanoTime();
+
+        this.index.put(e.key, e);
+        this.arrivals.add(e);
+        this.size.addAndGet(e.size);
+        this.clients.compute(e.clientId, (id, usage) -> {
+            if (usage == null)
+                usage = new ClientUsage();
+            usage.add(e);
+            return usage;
+        });
+        this.ordered.add(e);
+        this.available.add(e);
+
+        if (this.newestReserved != null && e.compareTo(this.newestReserved) < 0)
+            this.generation++;
+    }
+
+    // Must only be called holding the lock
+    private void unlink(Entry e) {
+        this.ordered.remove(e);
+        if (e.reserved) {
+            if (this.reserved.decrementAndGet() == 0)
+                this.newestReserved = null;
+        } else
+            this.available.remove(e);
+        this.arrivals.remove(e);
+        this.clients.computeIfPresent(e.clientId, (id, usage) -> usage.remove(e) ? null : usage);
+        this.size.addAndGet(-e.size);
+        this.index.remove(e.key, e);
+    }
+
+    private boolean fits(Entry e) {
+        int maxTransactions = this.maxTransactions;
+        long maxSize = this.maxSize;
+
+        return (maxTransactions <= 0 || this.index.size() < maxTransactions) &&
+                (maxSize <= 0 || this.size.get() + e.size <= maxSize);
+    }
+
+    // Evictions only depend on the logical contents of the pool (reserved transactions included), so every node
+    // evicts the same transactions
+    private boolean makeRoom(Entry e) {
+        if (this.fits(e))
+            return true;
+        if (this.maxSize > 0 && e.size > this.maxSize)
+            return false;
+
+        Entry lastProtected = this.getLastProtected();
+
+        switch (this.policy) {
+            case EVICT_OLDEST:
+                while (!this.fits(e)) {
+                    Entry oldest = lastProtected == null ?
+                            (this.ordered.isEmpty() ? null : this.ordered.first()) :
+                            this.ordered.higher(lastProtected);
+                    if (oldest == null)
+                        return false;
+
+                    this.unlink(oldest);
+                    this.evictions.incrementAndGet();
+                }
+                return true;
+            case FAIR_SHARE:
+                while (!this.fits(e)) {
+                    int clientCount = this.clients.size() + (this.clients.containsKey(e.clientId) ? 0 : 1);
+                    ClientUsage usage = this.clients.get(e.clientId);
+                    long clientSize = usage == null ? 0 : usage.size;
+                    int clientTransactions = usage == null ? 0 : usage.count;
+
+                    if ((this.maxSize > 0 && clientSize + e.size > this.maxSize / clientCount) ||
+                            (this.maxTransactions > 0 && clientTransactions + 1 > this.maxTransactions / clientCount))
+                        return false;
+
+                    Entry victim = this.findFairShareVictim(e.clientId, lastProtected);
+                    if (victim == null)
+                        return false;
+
+                    this.unlink(victim);
+                    this.evictions.incrementAndGet();
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The newest protected entry, null if no entry is protected
+    private Entry getLastProtected() {
+        int protectedTransactions = this.protectedTransactions;
+        if (protectedTransactions <= 0)
+            return null;
+
+        Entry last = null;
+        int count = 0;
+        for (Entry e : this.ordered) {
+            if (count++ == protectedTransactions)
+                break;
+            last = e;
+        }
+
+        return last;
+    }
+
+    private Entry findFairShareVictim(int clientId, Entry lastProtected) {
+        boolean bySize = this.maxSize > 0 && this.size.get() >= this.maxSize / 2;
+        Entry victim = null;
+        int victimId = 0;
+        long victimUsage = -1;
+
+        // Transactions added back to the pool belong to no client, they are never evicted by fair share
+        for (Map.Entry<Integer, ClientUsage> c : this.clients.entrySet()) {
+            int id = c.getKey();
+            if (id == clientId || id == UNKNOWN_CLIENT)
+                continue;
+
+            long usage = bySize ? c.getValue().size : c.getValue().count;
+            // Ties are broken by client id, the iteration order of the map is not the same on every node
+            if (usage < victimUsage || (usage == victimUsage && id > victimId))
+                continue;
+
+            Entry oldest = lastProtected == null ? c.getValue().entries.first() :
+                    c.getValue().entries.higher(lastProtected);
+            if (oldest != null) {
+                victim = oldest;
+                victimId = id;
+                victimUsage = usage;
+            }
+        }
+
+        return victim;
+    }
+
+    /* Getters and Setters */
+
+    /**
+     * Gets the number of transactions in the pool.
+     *
+     * @return the number of transactions
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Gets the number of transactions in the pool that are not reserved.
+     *
+     * @return the number of available transactions
+     */
+    public int availableSize() {
+        return this.index.size() - this.reserved.get();
+    }
+
+    /**
+     * Gets the size of the transactions in the pool (in bytes).
+     *
+     * @return the size in bytes
+     */
+    public long getSizeInBytes() {
+        return this.size.get();
+    }
+
+    /**
+     * Gets the time ({@link System#nanoTime()}) when the available transaction waiting the longest in the pool was
+     * added to the pool. It is not necessarily the next one to be drained, transactions are drained by timestamp.
+     *
+     * @return the time the transaction waiting the longest was added or -1 if no transaction is available
+     */
+    public long getOldestArrival() {
+        try {
+            return this.arrivals.first().arrival;
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the generation of the pool, incremented whenever a transaction older (by timestamp) than the newest reserved
+     * one is added.
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Gets the number of transactions evicted to make room for new ones.
+     *
+     * @return the evictions
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Gets the number of transactions rejected because the pool was full.
+     *
+     * @return the rejections
+     */
+    public long getRejections() {
+        return this.rejections.get();
+    }
+
+    /**
+     * Sets the limits of the pool. Transactions already in the pool are not evicted.
+     * <br>
+     * Must be called at the same point of the ordered execution on every node, so all of them apply the same limits to
+     * the same transactions.
+     *
+     * @param maxTransactions       the max number of transactions in the pool (0 if unlimited)
+     * @param maxSize               the max size of the transactions in the pool, in bytes (0 if unlimited)
+     * @param protectedTransactions the number of oldest transactions that are never evicted
+     */
+    public void setLimits(int maxTransactions, long maxSize, int protectedTransactions) {
+        synchronized (this.lock) {
+            this.maxTransactions = maxTransactions;
+            this.maxSize = maxSize;
+            this.protectedTransactions = protectedTransactions;
+        }
+    }
+
+    /**
+     * Gets a copy of the transactions in the pool (reserved ones included), ordered by timestamp.
+     *
+     * @return the transactions
+     */
+    public List<Transaction> getTransactions() {
+        List<Transaction> transactions = new ArrayList<>(this.size());
+        for (Entry e : this.ordered)
+            transactions.add(e.transaction);
+
+        return transactions;
+    }
+
+    private static final class HashKey {
+        private final byte[] hash;
+        private final int hashCode;
+
+        private HashKey(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            HashKey hashKey = (HashKey) o;
+            return Arrays.equals(hash, hashKey.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final Transaction transaction;
+        private final long timestamp;
+        private final HashKey key;
+        private final int size;
+        private final int clientId;
+        // Set when the entry is inserted (holding the lock), before being visible to other threads
+        private long arrivalNumber;
+        private long arrival;
+        // Guarded by the lock
+        private boolean reserved;
+
+        private Entry(Transaction transaction, int clientId) {
+            this.transaction = transaction;
+            this.timestamp = transaction.getTimestamp();
+            this.key = new HashKey(transaction.getHash());
+            this.size = transaction.getSize();
+            this.clientId = clientId;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Long.compare(this.timestamp, o.timestamp);
+
+            return c != 0 ? c : Arrays.compareUnsigned(this.key.hash, o.key.hash);
+        }
+    }
+
+    // Only modified inside compute methods of the clients map, holding the lock
+    private static final class ClientUsage {
+        private final TreeSet<Entry> entries = new TreeSet<>();
+        private volatile long size;
+        private volatile int count;
+
+        private void add(Entry e) {
+            if (this.entries.add(e)) {
+                this.size += e.size;
+                this.count++;
+            }
+        }
+
+        private boolean remove(Entry e) {
+            if (this.entries.remove(e)) {
+                this.size -= e.size;
+                this.count--;
+            }
+
+            return this.entries.isEmpty();
+        }
+    }
+}
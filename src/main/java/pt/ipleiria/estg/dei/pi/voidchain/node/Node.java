@@ -1,5 +1,6 @@
 package pt.ipleiria.estg.dei.pi.voidchain.node;
 
+import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceProxy;
 import bftsmart.tom.ServiceReplica;
@@ -11,21 +12,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Blockchain;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.CompactBlock;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.TransactionStatus;
+import pt.ipleiria.estg.dei.pi.voidchain.client.AddTransactionReply;
 import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessage;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.TransactionIndex;
 import pt.ipleiria.estg.dei.pi.voidchain.sync.BlockSyncClient;
 import pt.ipleiria.estg.dei.pi.voidchain.sync.BlockSyncServer;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Converters;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Keys;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MessageCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Pair;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Storage;
 
 import java.io.*;
 import java.security.Security;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The class Node represents the actor that actively participates in consensus, meaning it is responsible for the process of messages sent by clients and also for the block creation process.
@@ -37,8 +45,11 @@ public class Node extends DefaultSingleRecoverable {
 
     private final Blockchain blockchain;
 
-    private final ReentrantLock transactionPoolLock = new ReentrantLock();
-    private List<Transaction> transactionPool;
+    private final MemoryPool transactionPool;
+
+    private final TransactionVerifier transactionVerifier;
+
+    private final BlockPipeline blockPipeline;
 
     private final NodeMessenger messenger;
 
@@ -48,12 +59,21 @@ public class Node extends DefaultSingleRecoverable {
     private Block proposedBlock = null;
 
     private Thread blockProposalThread;
-    private boolean blockProposalThreadStop = false;
+    private volatile boolean blockProposalThreadStop = false;
+    private final Object blockProposalMonitor = new Object();
+    private boolean blockProposalSignaled = false;
+    private volatile boolean blockProposalIdle = false;
+    private volatile int transactionsPerBlock = Configuration.DEFAULT_NUM_TRANSACTIONS_BLOCK;
+    private volatile boolean blockchainSynced = false;
+    private final Object blockExecutionMonitor = new Object();
 
     private Thread blockchainValidationCheckThread;
     private boolean blockchainValidationCheckThreadStop = false;
 
-    private int leader = -1;
+    private Thread blockchainAuditThread;
+    private volatile boolean blockchainAuditThreadStop = false;
+
+    private volatile int leader = -1;
 
     private final ServiceReplica replica;
 
@@ -65,21 +85,24 @@ public class Node extends DefaultSingleRecoverable {
      */
     public Node(int id, boolean sync) {
         this.blockchain = Blockchain.getInstance();
-        this.transactionPool = new ArrayList<>();
+        this.transactionPool = newMemoryPool();
+        this.blockPipeline = new BlockPipeline(this.transactionPool);
+        this.transactionVerifier = new TransactionVerifier(new TOMConfiguration(id, Configuration.CONFIG_DIR, null),
+                Configuration.getInstance().getVerificationThreads());
         this.messenger = new NodeMessenger(id);
         this.blockSyncClient = new BlockSyncClient(this.messenger.getServiceProxy());
 
         new Thread(() -> {
             this.blockSyncClient.sync(false);
             this.blockchain.reloadBlocksFromDisk();
+            this.blockchainSynced = true;
+            this.signalBlockProposal();
         }).start();
 
         this.blockchainValidationCheckThread = new Thread(() -> {
             while (true) {
-                if (!this.blockchain.isChainValid()) {
-                    this.blockSyncClient.sync(true);
-                    this.blockchain.reloadBlocksFromDisk();
-                }
+                if (!this.blockchain.isChainValid())
+                    this.resyncBlockchain();
 
                 try {
                     Thread.sleep(Configuration.getInstance().getBlockchainValidTimer());
@@ -92,15 +115,24 @@ public class Node extends DefaultSingleRecoverable {
         });
         this.blockchainValidationCheckThread.start();
 
-        this.blockProposalThread = new Thread(this::processNewBlock);
-        new Thread(() -> {
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException e) {
-                logger.error("Block proposal start thread sleep error", e);
+        this.blockchainAuditThread = new Thread(() -> {
+            while (true) {
+                try {
+                    int auditTimer = Configuration.getInstance().getChainAuditTimer();
+                    Thread.sleep(auditTimer > 0 ? auditTimer : Configuration.getInstance().getBlockchainValidTimer());
+                    if (this.blockchainAuditThreadStop) return;
+
+                    if (auditTimer > 0 && !this.blockchain.auditChain())
+                        this.resyncBlockchain();
+                } catch (InterruptedException e) {
+                    if (!this.blockchainAuditThreadStop)
+                        logger.error("Blockchain Audit Thread interrupted", e);
+                    return;
+                }
             }
-            this.blockProposalThread.start();
-        }).start();
+        });
+        this.blockchainAuditThread.setPriority(Thread.MIN_PRIORITY);
+        this.blockchainAuditThread.start();
 
         this.blockSyncServer = new BlockSyncServer();
         if (sync)
@@ -110,6 +142,10 @@ public class Node extends DefaultSingleRecoverable {
                     "machine is running the service (-s option)");
 
         this.replica = new ServiceReplica(id, this, this);
+
+        // Blocks are only proposed once the replica is running and the local chain is synced
+        this.blockProposalThread = new Thread(this::processNewBlocks);
+        this.blockProposalThread.start();
     }
 
     /**
@@ -170,24 +206,19 @@ public class Node extends DefaultSingleRecoverable {
     }
 
     /**
-     *  Creates a block to propose to the rest of the other nodes or to validate proposed block.
+     * Creates a block to propose to the rest of the other nodes, reserving the oldest transactions of the memory pool.
+     *
+     * @param transactionsInBlock the number of transactions of the block
      */
-    private void createProposedBlock() {
+    private void createProposedBlock(int transactionsInBlock) {
         if (this.proposedBlock != null) return;
 
         Configuration config = Configuration.getInstance();
-        int transactionsPerBlock = config.getNumTransactionsInBlock();
 
-        this.transactionPoolLock.lock();
-        if (this.transactionPool.size() >= transactionsPerBlock) {
+        if (transactionsInBlock > 0 && this.transactionPool.availableSize() >= transactionsInBlock) {
             logger.info("Creating block to be proposed from memory pool transactions");
 
-            List<Transaction> transactions = new ArrayList<>();
-            while (transactions.size() < transactionsPerBlock) {
-                Transaction t = this.transactionPool.get(0);
-                transactions.add(t);
-                this.transactionPool.remove(0);
-            }
+            List<Transaction> transactions = this.transactionPool.drain(transactionsInBlock);
 
             Block previousBlock = this.blockchain.getMostRecentBlock();
 
@@ -197,109 +228,436 @@ public class Node extends DefaultSingleRecoverable {
                 logger.info("Proposed block created");
             } catch (InstantiationException e) {
                 logger.error("Error creating new proposed block instance", e);
-                this.transactionPool.addAll(transactions);
-                this.transactionPool.sort(Comparator.comparingLong(Transaction::getTimestamp));
+                this.transactionPool.release(transactions);
             }
         }
-        this.transactionPoolLock.unlock();
     }
 
     /**
-     * If current node is leader node, creates proposed block and proposes it to the network. If the networks accepts it
-     * the block is added to the local chain, if not all the transactions stored in the proposed block are re added to
-     * the memory pool.
+     * Replaces the blocks in disk that differ from the ones of the network, used when the local chain is invalid.
+     * Only the blocks from the first divergent one up are downloaded again.
      */
-    private void processNewBlock() {
-        if (this.replicaContext.getStaticConfiguration().getProcessId() == leader) {
-            createProposedBlock();
-
-            if (this.proposedBlock != null) {
-                logger.info("Proposing block to the network");
-                if (this.messenger.proposeBlock(this.proposedBlock)) {
-                    this.blockchain.addBlock(this.proposedBlock);
-                    logger.info("Adding proposed block to local blockchain");
-                } else {
-                    this.transactionPoolLock.lock();
-                    this.transactionPool.addAll(this.proposedBlock.getTransactions().values());
-                    this.transactionPool.sort(Comparator.comparingLong(Transaction::getTimestamp));
-                    this.transactionPoolLock.unlock();
+    private synchronized void resyncBlockchain() {
+        this.blockSyncClient.repair(this.blockchain.getInvalidHeight());
+        this.blockchain.reloadBlocksFromDisk();
+    }
+
+    /**
+     * Proposes new blocks until the node is closed.
+     * <br>
+     * A block is proposed as soon as the memory pool has enough transactions for a full block or when the oldest
+     * transaction in the memory pool has waited the block max latency. Between proposals the thread waits, it is woken
+     * up when transactions are added, when the leader changes or when the deadline of the oldest transaction expires.
+     * While the memory pool is empty the thread wakes up every block proposal timer to reload its settings.
+     */
+    private void processNewBlocks() {
+        while (!this.blockProposalThreadStop) {
+            Configuration config = Configuration.getInstance();
+            this.transactionsPerBlock = config.getNumTransactionsInBlock();
+            this.blockPipeline.setSettings(config.getBlockPipelineDepth(), config.getNumTransactionsInBlock(),
+                    config.getProtocolVersion());
+
+            boolean leader = this.isLeader();
+            if (!leader)
+                this.blockPipeline.discard();
+
+            long delay = leader ? this.getBlockProposalDelay(config) : -1;
+
+            try {
+                if (delay == 0) {
+                    if (!this.processNewBlock(config))
+                        // Avoids proposing the same transactions again right after the network rejected them
+                        Thread.sleep(config.getBlockMaxLatency());
+                    continue;
                 }
-                this.proposedBlock = null;
+
+                synchronized (this.blockProposalMonitor) {
+                    if (!this.blockProposalSignaled) {
+                        this.blockProposalIdle = delay < 0;
+                        TimeUnit.NANOSECONDS.timedWait(this.blockProposalMonitor, delay < 0 ?
+                                TimeUnit.MILLISECONDS.toNanos(config.getBlockProposalTimer()) : delay);
+                        this.blockProposalIdle = false;
+                    }
+                    this.blockProposalSignaled = false;
+                }
+            } catch (InterruptedException e) {
+                if (!this.blockProposalThreadStop)
+                    logger.error("Block Proposal Thread interrupted", e);
+                return;
             }
         }
+    }
 
-        try {
-            Thread.sleep(Configuration.getInstance().getBlockProposalTimer());
-            if (this.blockProposalThreadStop) return;
-            processNewBlock();
-        } catch (InterruptedException e) {
-            logger.error("Block Proposal Thread error while waiting", e);
-            this.blockProposalThread = null;
+    /**
+     * If current node is leader node, creates proposed block and proposes it to the network. If the networks accepts it
+     * the block is added to the local chain when this node executes it, if not all the transactions stored in the
+     * proposed block are released in the memory pool.
+     * <br>
+     * The block prepared by the block pipeline is used, if there is one. While the block is being ordered the pipeline
+     * prepares the next ones.
+     *
+     * @param config the configuration in use
+     * @return false if the network rejected the proposed block, true otherwise
+     * @throws InterruptedException interrupted exception will be thrown if interrupted while waiting for the pipeline
+     */
+    private boolean processNewBlock(Configuration config) throws InterruptedException {
+        if (!this.isLeader())
+            return true;
+
+        Pair<Block, byte[]> prepared = null;
+        if (this.proposedBlock == null) {
+            prepared = this.blockPipeline.take(this.blockchain.getMostRecentBlock());
+            if (prepared != null) {
+                this.proposedBlock = prepared.getO1();
+                logger.info("Proposed block taken from block pipeline");
+            } else
+                createProposedBlock(Math.min(this.transactionPool.availableSize(), config.getNumTransactionsInBlock()));
+        }
+
+        if (this.proposedBlock == null)
+            return true;
+
+        this.blockPipeline.proposing(this.proposedBlock.getBlockHeight() + 1);
+
+        logger.info("Proposing block to the network");
+        boolean accepted;
+        // Compact blocks are only proposed once the other nodes confirm they can rebuild them
+        if (config.isCompactBlockProposals() && this.messenger.confirmTransactions(
+                this.proposedBlock.getOrderedTransactionHashes(), config.getCompactBlockTimeout()))
+            accepted = this.messenger.proposeCompactBlock(this.proposedBlock);
+        else if (prepared != null)
+            accepted = this.messenger.proposeBlock(this.proposedBlock, prepared.getO2());
+        else
+            accepted = this.messenger.proposeBlock(this.proposedBlock);
+        if (accepted) {
+            // The network may reply before this node executes the block, the next one must follow it
+            this.waitForBlockExecution(this.proposedBlock.getBlockHeight(), config.getBlockProposalTimer());
+            logger.info("Proposed block added to local blockchain");
+        } else {
+            this.transactionPool.release(this.proposedBlock.getTransactions());
+        }
+        this.proposedBlock = null;
+
+        return accepted;
+    }
+
+    /**
+     * Waits until a block of the given height is added to the local chain or the timeout expires.
+     *
+     * @param blockHeight the height of the block
+     * @param timeout     the max time to wait, in milliseconds
+     * @throws InterruptedException interrupted exception will be thrown if interrupted while waiting
+     */
+    private void waitForBlockExecution(int blockHeight, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        synchronized (this.blockExecutionMonitor) {
+            long remaining;
+            while (this.blockchain.getMostRecentBlock().getBlockHeight() < blockHeight &&
+                    (remaining = deadline - System.nanoTime()) > 0)
+                TimeUnit.NANOSECONDS.timedWait(this.blockExecutionMonitor, remaining);
         }
     }
 
+    /**
+     * Calculates how long the block proposal thread must wait before proposing a block.
+     *
+     * @param config the configuration in use
+     * @return 0 if a block must be proposed now, the time to wait (in nanos) until the oldest transaction in the memory
+     * pool reaches the block max latency or -1 if the memory pool is empty
+     */
+    private long getBlockProposalDelay(Configuration config) {
+        int size = this.transactionPool.availableSize();
+        if (size >= config.getNumTransactionsInBlock() || this.blockPipeline.size() > 0)
+            return 0;
+        if (size == 0)
+            return -1;
+
+        long oldestArrival = this.transactionPool.getOldestArrival();
+        if (oldestArrival == -1)
+            return -1;
+
+        long deadline = oldestArrival + TimeUnit.MILLISECONDS.toNanos(config.getBlockMaxLatency());
+
+        return Math.max(deadline - System.nanoTime(), 0);
+    }
+
+    /**
+     * Wakes up the block proposal thread.
+     */
+    private void signalBlockProposal() {
+        synchronized (this.blockProposalMonitor) {
+            this.blockProposalSignaled = true;
+            this.blockProposalMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Wakes up the block proposal thread after transactions are added to the memory pool, only if this node is the
+     * leader and the memory pool has enough transactions for a block or the thread is waiting for the first one.
+     * The block pipeline is also filled, if a block is being ordered.
+     */
+    private void transactionsAdded() {
+        if (!this.isLeader())
+            return;
+
+        if (this.blockProposalIdle || this.transactionPool.availableSize() >= this.transactionsPerBlock)
+            this.signalBlockProposal();
+        this.blockPipeline.fill();
+    }
+
+    /**
+     * Checks if this node is the current leader and is ready to propose blocks (the replica is running and the local
+     * chain is synced).
+     *
+     * @return true if this node can propose blocks or false otherwise
+     */
+    private boolean isLeader() {
+        return this.blockchainSynced && this.replicaContext != null &&
+                this.replicaContext.getStaticConfiguration().getProcessId() == this.leader;
+    }
+
     /**
      * Adds a single transaction to the memory pool.
      *
      * @param transaction the transaction
-     * @return true if the transaction was successfully added to the memory pool or false otherwise
+     * @param clientId    the id of the client that sent the transaction
+     * @return ADDED if the transaction was added to the memory pool, ALREADY_IN_MEM_POOL if it was already there,
+     * MEM_POOL_FULL if the memory pool is full or INVALID_SIGNATURE if the signature of the transaction is invalid
+     * @throws IllegalStateException illegal state exception will be thrown if the signature can't be verified
      */
-    public boolean addTransaction(Transaction transaction) {
-        int aux = this.transactionPool.size();
-
-        transactionPoolLock.lock();
-        this.transactionPool.add(transaction);
-        transactionPoolLock.unlock();
+    public AddTransactionReply addTransaction(Transaction transaction, int clientId) {
+        if (Configuration.getInstance().isVerifyTransactionSignatures() &&
+                !this.transactionVerifier.verify(transaction, clientId)) {
+            logger.error("Transaction has an invalid signature, transaction rejected");
+            return AddTransactionReply.INVALID_SIGNATURE;
+        }
 
-        if (aux == this.transactionPool.size() || (aux + 1) != this.transactionPool.size()) {
-            logger.error("Error occurred while adding transaction to memory pool", transaction, this.transactionPool);
-            return false;
+        AddTransactionReply reply = this.transactionPool.add(transaction, clientId);
+
+        switch (reply) {
+            case ADDED:
+                logger.info("Transaction added to memory pool");
+                this.transactionsAdded();
+                break;
+            case ALREADY_IN_MEM_POOL:
+                logger.error("Transaction is already in the memory pool");
+                break;
+            case MEM_POOL_FULL:
+                logger.warn("Memory pool is full, transaction rejected");
+                break;
         }
 
-        logger.info("Transaction added to memory pool");
-        return true;
+        return reply;
     }
 
     /**
      * Adds a batch of transactions to the memory pool.
      *
      * @param transactions the transactions
-     * @return true if the transactions were successfully added to the memory pool or false otherwise
+     * @param clientId     the id of the client that sent the transactions
+     * @return ADDED if all the transactions were added to the memory pool, INVALID_SIGNATURE if the signature of any
+     * of them is invalid (the valid ones are still added), MEM_POOL_FULL if any of them was rejected because the memory
+     * pool is full or ALREADY_IN_MEM_POOL if any of them was already there
+     * @throws IllegalStateException illegal state exception will be thrown if the signatures can't be verified
      */
-    public boolean addTransactions(List<Transaction> transactions) {
-        int aux = this.transactionPool.size();
+    public AddTransactionReply addTransactions(List<Transaction> transactions, int clientId) {
+        int duplicated = 0;
+        int rejected = 0;
+        int invalid = 0;
+
+        boolean[] valid = null;
+        if (Configuration.getInstance().isVerifyTransactionSignatures())
+            valid = this.transactionVerifier.verifyAll(transactions, clientId);
+
+        for (int i = 0; i < transactions.size(); i++) {
+            if (valid != null && !valid[i]) {
+                invalid++;
+                continue;
+            }
 
-        transactionPoolLock.lock();
-        this.transactionPool.addAll(transactions);
-        transactionPoolLock.unlock();
+            AddTransactionReply r = this.transactionPool.add(transactions.get(i), clientId);
+            if (r == AddTransactionReply.ALREADY_IN_MEM_POOL)
+                duplicated++;
+            else if (r == AddTransactionReply.MEM_POOL_FULL)
+                rejected++;
+        }
 
-        if (aux == this.transactionPool.size() || (aux + transactions.size()) != this.transactionPool.size()) {
-            logger.error("Error occurred while adding transactions to memory pool", transactions, this.transactionPool);
-            return false;
+        if (duplicated + rejected + invalid < transactions.size())
+            this.transactionsAdded();
+
+        if (invalid > 0) {
+            logger.error(invalid + " of " + transactions.size() + " transactions have an invalid signature");
+            return AddTransactionReply.INVALID_SIGNATURE;
+        }
+
+        if (rejected > 0) {
+            logger.warn("Memory pool is full, " + rejected + " of " + transactions.size() +
+                    " transactions rejected");
+            return AddTransactionReply.MEM_POOL_FULL;
+        }
+
+        if (duplicated > 0) {
+            logger.error(duplicated + " of " + transactions.size() + " transactions are already in the memory pool");
+            return AddTransactionReply.ALREADY_IN_MEM_POOL;
         }
 
         logger.info("Transactions added to memory pool");
+        return AddTransactionReply.ADDED;
+    }
+
+    /**
+     * Executes an ordered block proposal. Every node, the leader included, makes the same checks against the same
+     * ordered state: the block must follow the most recent block of the chain and all its transactions must be in the
+     * memory pool (reserved, in the leader). If so its transactions are removed from the memory pool and the block is
+     * added to the chain.
+     * <br>
+     * A block already in the chain (a request executed again after a state transfer) is accepted, only removing its
+     * transactions from the memory pool.
+     *
+     * @param block the proposed block, with the timestamp and nonces defined by the consensus
+     * @return true if the block was accepted or false otherwise
+     * @throws IllegalStateException illegal state exception will be thrown if a block of the chain can't be loaded
+     */
+    private boolean executeNewBlock(Block block) {
+        Block mostRecentBlock = this.blockchain.getMostRecentBlock();
+
+        if (block.getBlockHeight() <= mostRecentBlock.getBlockHeight()) {
+            Block storedBlock;
+            try {
+                storedBlock = this.blockchain.getBlock(block.getBlockHeight());
+            } catch (NoSuchElementException | IOException e) {
+                throw new IllegalStateException("Unable to load block " + block.getBlockHeight() + " of the chain", e);
+            }
+
+            if (!block.equals(storedBlock))
+                return false;
+
+            this.removeCommittedTransactions(block);
+            return true;
+        }
+
+        if (block.getBlockHeight() != mostRecentBlock.getBlockHeight() + 1 ||
+                !Arrays.equals(block.getPreviousBlockHash(), mostRecentBlock.getHash())) {
+            logger.error("Proposed block doesn't follow the most recent block of the chain, block rejected");
+            return false;
+        }
+
+        for (byte[] hash : block.getOrderedTransactionHashes())
+            if (!this.transactionPool.contains(hash)) {
+                logger.error("Proposed block has transactions that are not in the memory pool, block rejected");
+                return false;
+            }
+
+        if (!this.blockchain.addBlock(block))
+            return false;
+
+        this.removeCommittedTransactions(block);
+        this.updateMemoryPoolLimits();
+
+        synchronized (this.blockExecutionMonitor) {
+            this.blockExecutionMonitor.notifyAll();
+        }
+
         return true;
     }
 
+    /**
+     * Rebuilds a compact block proposal from the memory pool, with the timestamp and nonces defined by the consensus.
+     * <br>
+     * Only the local memory pool is used, the ordered execution never waits on the network. The memory pool is the
+     * same on every node at this point of the execution, so all of them rebuild the block or reject it.
+     *
+     * @param compactBlock the compact block
+     * @param msgCtx       the context of the consensus that ordered the proposal
+     * @return the block or null if transactions are missing or don't match the merkle tree root of the proposal
+     * @throws InstantiationException instantiation exception will be thrown if error occurs while calculating merkle tree root
+     */
+    private Block rebuildCompactBlock(CompactBlock compactBlock, MessageContext msgCtx) throws InstantiationException {
+        List<Transaction> transactions = new ArrayList<>(compactBlock.getTransactionCounter());
+
+        for (byte[] hash : compactBlock.getTransactionHashes()) {
+            Transaction t = this.transactionPool.get(hash);
+            if (t == null) {
+                logger.error("Proposed block has transactions that are not in the memory pool, block rejected");
+                return null;
+            }
+            transactions.add(t);
+        }
+
+        Block block = compactBlock.toBlock(transactions, msgCtx.getTimestamp(), msgCtx.getNonces());
+        if (block == null)
+            logger.error("Transactions of the proposed block don't match its merkle tree root, block rejected");
+
+        return block;
+    }
+
+    /**
+     * Removes the transactions of a block added to the chain from the memory pool, reserved or not.
+     *
+     * @param block the block added to the chain
+     */
+    private void removeCommittedTransactions(Block block) {
+        for (byte[] hash : block.getOrderedTransactionHashes())
+            this.transactionPool.remove(hash);
+    }
+
+    /**
+     * Applies the memory pool limits of the configuration. Only called at the same point of the ordered execution on
+     * every node (after a block is executed or a snapshot installed), so all of them apply the same limits.
+     */
+    private void updateMemoryPoolLimits() {
+        Configuration config = Configuration.getInstance();
+
+        this.transactionPool.setLimits(config.getMemPoolMaxTransactions(), config.getMemoryUsedForMemPool() * 1000000L,
+                getProtectedTransactions(config));
+    }
+
+    /**
+     * Gets the number of oldest transactions of the memory pool that are never evicted, enough for the block being
+     * proposed and the blocks prepared by the block pipeline.
+     *
+     * @param config the configuration in use
+     * @return the number of protected transactions
+     */
+    private static int getProtectedTransactions(Configuration config) {
+        return config.getNumTransactionsInBlock() * (Math.max(config.getBlockPipelineDepth(), 0) + 1);
+    }
+
+    private static MemoryPool newMemoryPool() {
+        Configuration config = Configuration.getInstance();
+
+        MemoryPool.OverflowPolicy policy;
+        try {
+            policy = MemoryPool.OverflowPolicy.forName(config.getMemPoolPolicy());
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid memory pool policy, using " + Configuration.DEFAULT_MEM_POOL_POLICY, e);
+            policy = MemoryPool.OverflowPolicy.forName(Configuration.DEFAULT_MEM_POOL_POLICY);
+        }
+
+        return new MemoryPool(config.getMemPoolMaxTransactions(), config.getMemoryUsedForMemPool() * 1000000L,
+                getProtectedTransactions(config), policy);
+    }
+
     @Override
     public void installSnapshot(byte[] state) {
         if (Arrays.equals(state, new byte[0]))
             return;
 
         logger.info("Installing snapshot from network");
-        List<Transaction> transactionPool2 = this.transactionPool;
 
         try (ByteArrayInputStream byteIn = new ByteArrayInputStream(state);
              ObjectInput objIn = new ObjectInputStream(byteIn)) {
 
-            this.transactionPool = (List<Transaction>) objIn.readObject();
+            List<Transaction> transactions = (List<Transaction>) objIn.readObject();
+            this.transactionPool.clear();
+            this.transactionPool.addAll(transactions);
+            this.updateMemoryPoolLimits();
             this.blockSyncClient.sync(false);
             this.blockchain.reloadBlocksFromDisk();
 
         } catch (IOException | ClassNotFoundException e) {
             logger.error("Error installing snapshot", e);
-            this.transactionPool = transactionPool2;
         }
     }
 
@@ -308,7 +666,7 @@ public class Node extends DefaultSingleRecoverable {
         try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
              ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
 
-            objOut.writeObject(this.transactionPool);
+            objOut.writeObject(this.transactionPool.getTransactions());
 
             objOut.flush();
             byteOut.flush();
@@ -336,15 +694,15 @@ public class Node extends DefaultSingleRecoverable {
         boolean hasReply = false;
 
         logger.debug("Consensus leader is: " + msgCtx.getLeader());
-        if (msgCtx.getLeader() != -1 && msgCtx.getLeader() != this.leader)
+        if (msgCtx.getLeader() != -1 && msgCtx.getLeader() != this.leader) {
             this.leader = msgCtx.getLeader();
+            this.signalBlockProposal();
+        }
 
-        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(command);
-             ObjectInput objIn = new ObjectInputStream(byteIn);
-             ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
              ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
 
-            Object input = objIn.readObject();
+            Object input = MessageCodec.decode(command);
 
             if (input.getClass() == ClientMessage.class) {
                 Block currentBlock = this.blockchain.getMostRecentBlock();
@@ -376,15 +734,12 @@ public class Node extends DefaultSingleRecoverable {
                             if (req.hasContent()) {
                                 logger.info("Processing ADD_TRANSACTION request");
 
-                                ByteArrayInputStream byteIn2 = new ByteArrayInputStream(req.getContent());
-                                ObjectInput objIn2 = new ObjectInputStream(byteIn2);
-
-                                Transaction t = (Transaction) objIn2.readObject();
-
-                                objIn2.close();
-                                byteIn2.close();
+                                Transaction t = BlockchainCodec.decodeTransaction(req.getContent());
 
-                                objOut.writeBoolean(this.addTransaction(t));
+                                // The boolean reply is kept for clients that don't read the reply type
+                                AddTransactionReply r = this.addTransaction(t, msgCtx.getSender());
+                                objOut.writeBoolean(r == AddTransactionReply.ADDED);
+                                objOut.writeObject(r);
                                 hasReply = true;
                             } else
                                 logger.error("Message has no content, ignoring");
@@ -396,15 +751,11 @@ public class Node extends DefaultSingleRecoverable {
                             if (req.hasContent()) {
                                 logger.info("Processing ADD_TRANSACTIONS request");
 
-                                ByteArrayInputStream byteIn2 = new ByteArrayInputStream(req.getContent());
-                                ObjectInput objIn2 = new ObjectInputStream(byteIn2);
-
-                                List<Transaction> tl = (List<Transaction>) objIn2.readObject();
-
-                                objIn2.close();
-                                byteIn2.close();
+                                List<Transaction> tl = BlockchainCodec.decodeTransactions(req.getContent());
 
-                                objOut.writeBoolean(this.addTransactions(tl));
+                                AddTransactionReply r = this.addTransactions(tl, msgCtx.getSender());
+                                objOut.writeBoolean(r == AddTransactionReply.ADDED);
+                                objOut.writeObject(r);
                                 hasReply = true;
                             } else
                                 logger.error("Message has no content, ignoring");
@@ -428,36 +779,24 @@ public class Node extends DefaultSingleRecoverable {
                             byte[] transactionHash = req.getContent();
 
                             TransactionStatus status = TransactionStatus.UNKNOWN;
-                            for (Transaction t : transactionPool)
-                                if (Arrays.equals(transactionHash, t.getHash())) {
-                                    status = TransactionStatus.IN_MEM_POOL;
-                                    break;
-                                }
-
-                            if (status == TransactionStatus.UNKNOWN) {
-                                List<Integer> blocksDisk = Blockchain.getBlockFileHeightArray();
-                                Collections.reverse(blocksDisk);
-
-                                for (Integer i : blocksDisk) {
-                                    Block b;
-                                    try {
-                                        b = this.blockchain.getBlock(i);
-                                    } catch (IOException | ClassNotFoundException e) {
-                                        logger.error("Error while retrieving block from disk", e);
-                                        continue;
-                                    }
-
-                                    for (byte[] hash : b.getTransactions().keySet())
-                                        if (Arrays.equals(transactionHash, hash))
-                                            status = TransactionStatus.IN_BLOCK;
-                                }
-                            }
+                            if (this.transactionPool.contains(transactionHash))
+                                status = TransactionStatus.IN_MEM_POOL;
+                            else if (this.blockchain.getTransactionLocation(transactionHash) != null)
+                                status = TransactionStatus.IN_BLOCK;
 
                             objOut.writeObject(status);
                             hasReply = true;
                         } else
                             logger.error("Message has no content, ignoring");
                         break;
+                    case GET_TRANSACTION_PROOF:
+                        if (req.hasContent()) {
+                            logger.info("Returning merkle proof of transaction to client");
+                            objOut.writeObject(this.blockchain.getMerkleProof(req.getContent()));
+                            hasReply = true;
+                        } else
+                            logger.error("Message has no content, ignoring");
+                        break;
                     case NUMBER_NODES:
                         logger.info("Returning number of active nodes to client");
                         objOut.writeInt(this.replicaContext.getCurrentView().getN());
@@ -471,66 +810,41 @@ public class Node extends DefaultSingleRecoverable {
 
                 switch (req.getType()) {
                     case NEW_BLOCK:
-                        if (req.getSender() != msgCtx.getLeader()) {
+                        // Proposed blocks change the state of the node, they are only executed once ordered
+                        if (!ordered || req.getSender() != msgCtx.getLeader()) {
                             objOut.writeBoolean(false);
                             hasReply = true;
                             break;
                         }
 
                         Block recvBlock;
-
-                        ByteArrayInputStream byteIn2 = new ByteArrayInputStream(req.getContent());
-                        ObjectInput objIn2 = new ObjectInputStream(byteIn2);
-
-                        recvBlock = (Block) objIn2.readObject();
-
-                        objIn2.close();
-                        byteIn2.close();
-
-                        recvBlock = new Block(recvBlock.getPreviousBlockHash(), recvBlock.getProtocolVersion(),
-                                recvBlock.getBlockHeight(), recvBlock.getTransactions(),
-                                msgCtx.getTimestamp(), msgCtx.getNonces());
-
-                        if (req.getSender() == this.replicaContext.getStaticConfiguration().getProcessId()) {
-                            this.proposedBlock = recvBlock;
-                            // TODO: proposed Block lock
-
-                            objOut.writeBoolean(true);
-                            hasReply = true;
-                            break;
+                        if (BlockchainCodec.isCompactBlock(req.getContent()))
+                            recvBlock = this.rebuildCompactBlock(BlockchainCodec.decodeCompactBlock(
+                                    req.getContent()), msgCtx);
+                        else {
+                            recvBlock = BlockchainCodec.decodeBlock(req.getContent());
+                            recvBlock = new Block(recvBlock.getPreviousBlockHash(), recvBlock.getProtocolVersion(),
+                                    recvBlock.getBlockHeight(), recvBlock.getOrderedTransactions(),
+                                    msgCtx.getTimestamp(), msgCtx.getNonces());
                         }
 
-                        createProposedBlock();
-
-                        /*
-                         * TODO
-                         *  Validate if block received height is the same as the last block in the local chain,
-                         *  if it is instead of only seeing if it is equal we should do further checks in case of faulty
-                         *  reply which could cause consensus breaking replica due to different blockchains
-                         */
-
-                        Block mostRecentBlock = this.blockchain.getMostRecentBlock();
-                        if (this.proposedBlock == null)
-                            objOut.writeBoolean(false);
-                        else if (recvBlock.equals(mostRecentBlock)) {
-                            Storage.removeFile(mostRecentBlock.getBlockFileFullName());
-                            this.blockchain.reloadBlocksFromDisk();
-                            this.blockchain.addBlock(recvBlock);
-                            objOut.writeBoolean(true);
-                        } else if (recvBlock.equals(this.proposedBlock)) {
-                            this.blockchain.addBlock(recvBlock);
-                            this.proposedBlock = null;
-                            objOut.writeBoolean(true);
-                        } else {
-                            this.transactionPoolLock.lock();
-                            this.transactionPool.addAll(this.proposedBlock.getTransactions().values());
-                            this.transactionPool.sort(Comparator.comparingLong(Transaction::getTimestamp));
-                            this.transactionPoolLock.unlock();
-                            this.proposedBlock = null;
-                            objOut.writeBoolean(false);
-                        }
+                        objOut.writeBoolean(recvBlock != null && this.executeNewBlock(recvBlock));
                         hasReply = true;
                         break;
+                    case HAS_TRANSACTIONS:
+                        if (req.hasContent()) {
+                            boolean hasTransactions = true;
+                            for (byte[] hash : BlockchainCodec.decodeTransactionHashes(req.getContent()))
+                                if (!this.transactionPool.contains(hash)) {
+                                    hasTransactions = false;
+                                    break;
+                                }
+
+                            objOut.writeBoolean(hasTransactions);
+                            hasReply = true;
+                        } else
+                            logger.error("Message has no content, ignoring");
+                        break;
                     default:
                         logger.error("Unknown type of NodeMessageType");
                 }
@@ -543,8 +857,16 @@ public class Node extends DefaultSingleRecoverable {
                 reply = byteOut.toByteArray();
             }
 
-        } catch (IOException | ClassNotFoundException | InstantiationException e) {
+        } catch (IOException | IllegalArgumentException | InstantiationException e) {
             logger.error("ERROR", e);
+        } catch (IllegalStateException e) {
+            if (!ordered)
+                throw e;
+
+            // The other nodes executed the request, going on without it would leave this node with a different state
+            logger.error("Unable to execute ordered request, stopping node", e);
+            new Thread(this::close, "Node shutdown").start();
+            throw e;
         }
 
         return reply;
@@ -558,6 +880,7 @@ public class Node extends DefaultSingleRecoverable {
         this.blockSyncServer.stop();
         this.messenger.getServiceProxy().close();
         this.blockProposalThreadStop = true;
+        this.signalBlockProposal();
         try {
             this.blockProposalThread.join();
             logger.debug("Block proposal thread has been stopped");
@@ -565,6 +888,7 @@ public class Node extends DefaultSingleRecoverable {
             logger.error("Unable to join block proposal thread", e);
             logger.info("Unable to confirm block proposal thread has stopped, continuing shutdown");
         }
+        this.blockPipeline.close();
         this.blockchainValidationCheckThreadStop = true;
         try {
             this.blockchainValidationCheckThread.join();
@@ -573,6 +897,18 @@ public class Node extends DefaultSingleRecoverable {
             logger.error("Unable to join Blockchain validation thread", e);
             logger.info("Unable to confirm Blockchain validation thread has stopped, continuing shutdown");
         }
+        this.blockchainAuditThreadStop = true;
+        this.blockchainAuditThread.interrupt();
+        try {
+            this.blockchainAuditThread.join();
+            logger.debug("Blockchain audit thread has been stopped");
+        } catch (InterruptedException e) {
+            logger.error("Unable to join Blockchain audit thread", e);
+            logger.info("Unable to confirm Blockchain audit thread has stopped, continuing shutdown");
+        }
         replica.kill();
+        this.transactionVerifier.close();
+        TransactionIndex.getInstance().close();
+        BlockStore.getInstance().close();
     }
 }
@@ -6,5 +6,9 @@ public enum NodeMessageType implements Serializable {
     /**
      * Propose new block replica message type.
      */
-    NEW_BLOCK
+    NEW_BLOCK,
+    /**
+     * Has transactions (by hash) replica message type, used by the leader before proposing a compact block.
+     */
+    HAS_TRANSACTIONS
 }
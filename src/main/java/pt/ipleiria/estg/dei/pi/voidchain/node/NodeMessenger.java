@@ -1,13 +1,29 @@
 package pt.ipleiria.estg.dei.pi.voidchain.node;
 
+import bftsmart.communication.client.ReplyListener;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.tom.AsynchServiceProxy;
+import bftsmart.tom.RequestContext;
 import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MessageCodec;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The Replica messenger is a replica "client" that is tasked with communicating with allowing a replica to communicate
@@ -16,7 +32,7 @@ import java.io.*;
 public class NodeMessenger {
     private static final Logger logger = LoggerFactory.getLogger(NodeMessenger.class);
 
-    private final ServiceProxy serviceProxy;
+    private final AsynchServiceProxy serviceProxy;
 
     /**
      * Instantiates a new Replica messenger.
@@ -24,7 +40,7 @@ public class NodeMessenger {
      * @param id the id
      */
     public NodeMessenger(int id) {
-        this.serviceProxy = new ServiceProxy(id);
+        this.serviceProxy = new AsynchServiceProxy(id);
     }
 
     /**
@@ -34,31 +50,38 @@ public class NodeMessenger {
      * @return true if the proposed block was accepted or false otherwise
      */
     public boolean proposeBlock(Block block) {
-        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-             ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+        return this.proposeBlock(block, BlockchainCodec.encodeBlock(block));
+    }
 
-            NodeMessage req;
+    /**
+     * Proposes a new block to the network, in compact form (the block header and the hashes of its transactions).
+     * Must only be used after {@link #confirmTransactions(List, int)} confirms the other replicas have the
+     * transactions.
+     *
+     * @param block the block
+     * @return true if the proposed block was accepted or false otherwise
+     */
+    public boolean proposeCompactBlock(Block block) {
+        return this.proposeBlock(block, BlockchainCodec.encodeCompactBlock(block));
+    }
 
+    /**
+     * Proposes a new, already encoded (full or compact), block to the network.
+     *
+     * @param block        the block
+     * @param encodedBlock the encoded block
+     * @return true if the proposed block was accepted or false otherwise
+     */
+    public boolean proposeBlock(Block block, byte[] encodedBlock) {
+        try {
             logger.info("Proposing new block (" + block.getBlockHeight() + ") to network");
 
-            try (ByteArrayOutputStream byteOut2 = new ByteArrayOutputStream();
-                 ObjectOutput objOut2 = new ObjectOutputStream(byteOut2)) {
-                objOut2.writeObject(block);
-
-                objOut2.flush();
-                byteOut2.flush();
-
-                req = new NodeMessage(this.serviceProxy.getProcessId(), NodeMessageType.NEW_BLOCK, byteOut2.toByteArray());
-            }
-
-            objOut.writeObject(req);
-
-            objOut.flush();
-            byteOut.flush();
+            NodeMessage req = new NodeMessage(this.serviceProxy.getProcessId(), NodeMessageType.NEW_BLOCK,
+                    encodedBlock);
 
             byte[] reply;
             try {
-                reply = serviceProxy.invokeOrdered(byteOut.toByteArray());
+                reply = serviceProxy.invokeOrdered(MessageCodec.encode(req));
             } catch (RuntimeException e) {
                 logger.error("Error while sending proposed block to network", e);
                 return false;
@@ -86,6 +109,72 @@ public class NodeMessenger {
         }
     }
 
+    /**
+     * Asks the other replicas if they have all the given transactions in their memory pool. The request is unordered,
+     * it only tells the leader if a compact block proposal can be rebuilt by the other replicas, before the proposal
+     * is ordered.
+     *
+     * @param hashes  the transaction hashes
+     * @param timeout the max time (in millis) to wait for the confirmations
+     * @return true if all the correct replicas (n - f, this one included) have the transactions or false otherwise
+     */
+    public boolean confirmTransactions(List<byte[]> hashes, int timeout) {
+        int processId = this.serviceProxy.getProcessId();
+        View view = this.serviceProxy.getViewManager().getCurrentView();
+        int confirmations = view.getN() - view.getF() - 1;
+        if (confirmations <= 0)
+            return true;
+
+        NodeMessage req = new NodeMessage(processId, NodeMessageType.HAS_TRANSACTIONS,
+                BlockchainCodec.encodeTransactionHashes(hashes));
+        int[] targets = Arrays.stream(view.getProcesses()).filter(id -> id != processId).toArray();
+
+        Set<Integer> confirmed = ConcurrentHashMap.newKeySet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        int requestId = this.serviceProxy.invokeAsynchRequest(MessageCodec.encode(req), targets,
+                new ReplyListener() {
+                    @Override
+                    public void reset() {
+                        confirmed.clear();
+                    }
+
+                    @Override
+                    public void replyReceived(RequestContext context, TOMMessage message) {
+                        if (readConfirmation(message.getContent()) && confirmed.add(message.getSender()) &&
+                                confirmed.size() >= confirmations)
+                            reply.complete(true);
+                    }
+                }, TOMMessageType.UNORDERED_REQUEST);
+
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info(confirmed.size() + " of " + confirmations + " replicas confirmed they have the transactions " +
+                    "of the block");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for transaction confirmations");
+        } catch (ExecutionException e) {
+            logger.error("Error while processing transaction confirmations", e);
+        } finally {
+            this.serviceProxy.cleanAsynchRequest(requestId);
+        }
+
+        return false;
+    }
+
+    private static boolean readConfirmation(byte[] reply) {
+        if (reply == null || reply.length == 0)
+            return false;
+
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
+             ObjectInput objIn = new ObjectInputStream(byteIn)) {
+            return objIn.readBoolean();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Returns the bft-smart service proxy used to communicate with the network.
      *
@@ -0,0 +1,286 @@
+package pt.ipleiria.estg.dei.pi.voidchain.node;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Transaction verifier checks the signatures of the transactions sent by clients before they are added to the
+ * memory pool.
+ * <br>
+ * Batches of transactions are split in chunks verified in parallel by a bounded pool of worker threads (when the
+ * queue of the pool is full, chunks are verified by the calling thread). Every thread reuses its own signature engine
+ * and the public keys of clients are decoded once and cached.
+ * <br>
+ * Transactions are verified during the ordered execution, so the result must only depend on the transactions: a chunk
+ * that fails in a worker thread is verified again by the calling thread and when the public key of the client can't
+ * be loaded the verification fails with an exception, instead of rejecting the transactions on this node only.
+ * <br>
+ * The verifier counts verified and invalid transactions and logs its throughput periodically.
+ */
+public class TransactionVerifier {
+    /* Attributes */
+    private static final Logger logger = LoggerFactory.getLogger(TransactionVerifier.class);
+
+    private static final int MIN_CHUNK_SIZE = 16;
+    private static final long METRICS_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+    private final TOMConfiguration tomConf;
+    private final ThreadPoolExecutor workers;
+    private final int threads;
+    private final ThreadLocal<Signature> signatureEngines;
+    private final ConcurrentHashMap<Integer, PublicKey> publicKeys;
+
+    private final LongAdder verified;
+    private final LongAdder invalid;
+    private final LongAdder verificationTime;
+    private final AtomicLong lastMetricsLog;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Transaction verifier.
+     *
+     * @param tomConf the bft-smart configuration, used to load the public keys of the clients
+     * @param threads the number of worker threads
+     */
+    public TransactionVerifier(TOMConfiguration tomConf, int threads) {
+        this.tomConf = tomConf;
+        this.threads = Math.max(threads, 1);
+        this.publicKeys = new ConcurrentHashMap<>();
+
+        String signatureAlgorithm = tomConf.getSignatureAlgorithm();
+        String signatureAlgorithmProvider = tomConf.getSignatureAlgorithmProvider();
+        this.signatureEngines = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm, signatureAlgorithmProvider);
+            } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                throw new IllegalStateException("Signature algorithm " + signatureAlgorithm + " not available", e);
+            }
+        });
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(this.threads * 4), r -> {
+            Thread t = new Thread(r, "Transaction verifier " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        this.verified = new LongAdder();
+        this.invalid = new LongAdder();
+        this.verificationTime = new LongAdder();
+        this.lastMetricsLog = new AtomicLong(System.nanoTime());
+    }
+
+    /* Methods */
+
+    /**
+     * Verifies the signature of a transaction, in the calling thread.
+     *
+     * @param transaction the transaction
+     * @param clientId    the id of the client that signed the transaction
+     * @return true if the signature is valid or false otherwise
+     * @throws IllegalStateException illegal state exception will be thrown if the public key of the client can't be loaded
+     */
+    public boolean verify(Transaction transaction, int clientId) {
+        long start = System.nanoTime();
+
+        PublicKey publicKey = this.getPublicKey(clientId);
+        boolean valid = this.verify(transaction, publicKey);
+
+        this.record(valid ? 1 : 0, valid ? 0 : 1, System.nanoTime() - start);
+
+        return valid;
+    }
+
+    /**
+     * Verifies the signatures of a batch of transactions, in parallel.
+     *
+     * @param transactions the transactions
+     * @param clientId     the id of the client that signed the transactions
+     * @return the result of the verification of each transaction (in the same order)
+     * @throws IllegalStateException illegal state exception will be thrown if the public key of the client can't be loaded
+     */
+    public boolean[] verifyAll(List<Transaction> transactions, int clientId) {
+        long start = System.nanoTime();
+        boolean[] results = new boolean[transactions.size()];
+
+        PublicKey publicKey = this.getPublicKey(clientId);
+
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (transactions.size() + this.threads - 1) / this.threads);
+        List<Future<?>> futures = new ArrayList<>();
+        List<Integer> chunkStarts = new ArrayList<>();
+
+        if (!this.workers.isShutdown()) {
+            for (int from = chunkSize; from < transactions.size(); from += chunkSize) {
+                int chunkStart = from;
+                int chunkEnd = Math.min(from + chunkSize, transactions.size());
+                futures.add(this.workers.submit(() -> this.verifyChunk(transactions, results, publicKey, chunkStart,
+                        chunkEnd)));
+                chunkStarts.add(chunkStart);
+            }
+        }
+
+        // The first chunk is verified by the calling thread, and all of them if the workers are stopped
+        int callerEnd = futures.isEmpty() ? transactions.size() : chunkSize;
+        this.verifyChunk(transactions, results, publicKey, 0, Math.min(callerEnd, transactions.size()));
+
+        // Chunks that fail (or can't be waited for) in a worker are verified again by the calling thread
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            int chunkStart = chunkStarts.get(i);
+            int chunkEnd = Math.min(chunkStart + chunkSize, transactions.size());
+
+            if (!interrupted) {
+                try {
+                    futures.get(i).get();
+                    continue;
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for the transaction verifiers, verifying the remaining " +
+                            "transactions in this thread");
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    logger.warn("Error while verifying transactions in a worker thread, verifying them again in " +
+                            "this thread", e.getCause());
+                }
+            }
+
+            futures.get(i).cancel(false);
+            this.verifyChunk(transactions, results, publicKey, chunkStart, chunkEnd);
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        int valid = 0;
+        for (boolean r : results)
+            if (r)
+                valid++;
+
+        this.record(valid, results.length - valid, System.nanoTime() - start);
+
+        return results;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void close() {
+        this.workers.shutdownNow();
+    }
+
+    private void verifyChunk(List<Transaction> transactions, boolean[] results, PublicKey publicKey, int from,
+                             int to) {
+        for (int i = from; i < to; i++)
+            results[i] = this.verify(transactions.get(i), publicKey);
+    }
+
+    private boolean verify(Transaction transaction, PublicKey publicKey) {
+        Signature signature = this.signatureEngines.get();
+
+        try {
+            signature.initVerify(publicKey);
+            signature.update(transaction.getData());
+
+            return signature.verify(transaction.getSignature());
+        } catch (InvalidKeyException | SignatureException e) {
+            logger.debug("Unable to verify transaction signature", e);
+            return false;
+        }
+    }
+
+    private PublicKey getPublicKey(int clientId) {
+        PublicKey publicKey = this.publicKeys.get(clientId);
+        if (publicKey != null)
+            return publicKey;
+
+        // Loaded again once, the key file may be being written
+        publicKey = this.tomConf.getPublicKey(clientId);
+        if (publicKey == null)
+            publicKey = this.tomConf.getPublicKey(clientId);
+        if (publicKey == null)
+            throw new IllegalStateException("Unable to load public key of client " + clientId + ", transactions " +
+                    "can't be verified");
+
+        this.publicKeys.put(clientId, publicKey);
+
+        return publicKey;
+    }
+
+    private void record(int valid, int invalid, long nanos) {
+        this.verified.add(valid);
+        this.invalid.add(invalid);
+        this.verificationTime.add(nanos);
+
+        long now = System.nanoTime();
+        long last = this.lastMetricsLog.get();
+        if (now - last > METRICS_LOG_INTERVAL && this.lastMetricsLog.compareAndSet(last, now))
+            logger.info(this.toString());
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the number of transactions with a valid signature.
+     *
+     * @return the number of verified transactions
+     */
+    public long getVerified() {
+        return this.verified.sum();
+    }
+
+    /**
+     * Gets the number of transactions with an invalid signature.
+     *
+     * @return the number of invalid transactions
+     */
+    public long getInvalid() {
+        return this.invalid.sum();
+    }
+
+    /**
+     * Gets the throughput of the verifier, the number of transactions verified per second of verification.
+     *
+     * @return the throughput (transactions per second)
+     */
+    public double getThroughput() {
+        long nanos = this.verificationTime.sum();
+        if (nanos == 0)
+            return 0;
+
+        return (this.verified.sum() + this.invalid.sum()) * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionVerifier: {" +
+                "threads: " + threads +
+                ", verified: " + this.getVerified() +
+                ", invalid: " + this.getInvalid() +
+                ", throughput: " + String.format("%.0f", this.getThroughput()) + " transactions/s" +
+                ", cachedPublicKeys: " + this.publicKeys.size() +
+                "}";
+    }
+}
@@ -0,0 +1,196 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Block cache keeps blocks in memory, indexed by their height, up to a max size (in bytes).
+ * When the cache is full, blocks are evicted according to the {@link EvictionPolicy} in use.
+ * <br>
+ * The cache counts hits, misses and evictions, this way the effectiveness of the policy and size in use can be
+ * monitored.
+ */
+public class BlockCache {
+    /* Attributes */
+    private final Map<Integer, Block> blocks;
+    private final EvictionPolicy policy;
+    private long maxSize;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Block cache.
+     *
+     * @param maxSize the max size of the blocks in the cache (in bytes)
+     * @param policy  the eviction policy
+     */
+    public BlockCache(long maxSize, EvictionPolicy policy) {
+        this.blocks = new HashMap<>();
+        this.policy = policy;
+        this.maxSize = maxSize;
+        this.size = 0;
+    }
+
+    /* Methods */
+
+    /**
+     * Gets a block from the cache.
+     *
+     * @param height the block height
+     * @return the block or null if the block is not in the cache
+     */
+    public synchronized Block get(int height) {
+        Block block = this.blocks.get(height);
+
+        if (block == null) {
+            this.misses++;
+            return null;
+        }
+
+        this.hits++;
+        this.policy.accessed(height);
+
+        return block;
+    }
+
+    /**
+     * Adds a block to the cache, replacing the cached block with the same height.
+     * Blocks are evicted until the cache is below its max size.
+     *
+     * @param block the block
+     */
+    public synchronized void put(Block block) {
+        int height = block.getBlockHeight();
+
+        Block previous = this.blocks.put(height, block);
+        if (previous != null)
+            this.size -= previous.getSize();
+
+        this.size += block.getSize();
+        this.policy.inserted(height, block.getSize());
+
+        this.evict();
+    }
+
+    /**
+     * Removes a block from the cache.
+     *
+     * @param height the block height
+     * @return true if the block was in the cache or false otherwise
+     */
+    public synchronized boolean remove(int height) {
+        Block block = this.blocks.remove(height);
+        if (block == null)
+            return false;
+
+        this.size -= block.getSize();
+        this.policy.removed(height);
+
+        return true;
+    }
+
+    /**
+     * Removes all blocks from the cache.
+     * Counters are not reset.
+     */
+    public synchronized void clear() {
+        this.blocks.clear();
+        this.policy.clear();
+        this.size = 0;
+    }
+
+    private void evict() {
+        while (this.size > this.maxSize) {
+            int victim = this.policy.victim();
+            if (victim == -1 || !this.remove(victim))
+                break;
+
+            this.evictions++;
+        }
+    }
+
+    /* Getters and Setters */
+
+    /**
+     * Gets the max size of the cache (in bytes).
+     *
+     * @return the max size
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the max size of the cache (in bytes), evicting blocks if needed.
+     *
+     * @param maxSize the max size
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        this.evict();
+    }
+
+    /**
+     * Gets the size of the blocks in the cache (in bytes).
+     *
+     * @return the size
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of blocks in the cache.
+     *
+     * @return the number of blocks
+     */
+    public synchronized int getBlockCount() {
+        return this.blocks.size();
+    }
+
+    /**
+     * Gets the number of cache hits.
+     *
+     * @return the hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of cache misses.
+     *
+     * @return the misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of blocks evicted from the cache.
+     *
+     * @return the evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlockCache: {" + System.lineSeparator() +
+                "policy: " + policy.getClass().getSimpleName() + System.lineSeparator() +
+                "blocks: " + blocks.size() + System.lineSeparator() +
+                "size: " + size + "/" + maxSize + System.lineSeparator() +
+                "hits: " + hits + System.lineSeparator() +
+                "misses: " + misses + System.lineSeparator() +
+                "evictions: " + evictions + System.lineSeparator() +
+                "}";
+    }
+}
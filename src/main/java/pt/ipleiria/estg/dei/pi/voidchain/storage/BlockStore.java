@@ -0,0 +1,660 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The Block store is an append-only, segmented storage of blocks.
+ * Blocks are appended to fixed-size segment files ('segment_00000.dat', ...) and an index file keeps, for each
+ * block height, the location (segment, offset, length) of the block inside the segment files.
+ * <br>
+ * Every record in a segment starts with the height and length of the block it stores, this way the index can be
+ * rebuilt from the segments if it is lost. Replacing a block appends a new record, removing a block appends a
+ * tombstone record (length -1).
+ */
+public class BlockStore {
+    /* Attributes */
+    private static BlockStore INSTANCE = null;
+
+    /**
+     * The constant SEGMENT_FILE_BASE_NAME stores the base name of the segment files.
+     */
+    public static final String SEGMENT_FILE_BASE_NAME = "segment";
+    /**
+     * The constant INDEX_FILE_NAME stores the name of the block index file.
+     */
+    public static final String INDEX_FILE_NAME = "index";
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2; // height, length
+    private static final int INDEX_ENTRY_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES; // segment, offset, length
+    private static final int TOMBSTONE = -1;
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockStore.class);
+
+    private final String directory;
+    private final String dataFileExtension;
+    private final long segmentMaxSize;
+
+    private final List<FileChannel> segments;
+    private FileChannel indexChannel;
+
+    private int[] entrySegment;
+    private long[] entryOffset;
+    private int[] entryLength; // 0 means there is no block stored for the height
+    private int highestHeight;
+    private int blockCount;
+    private long modificationCount;
+
+    /* Constructors */
+
+    private BlockStore(String directory, String dataFileExtension, long segmentMaxSize) throws IOException {
+        this.directory = directory;
+        this.dataFileExtension = dataFileExtension;
+        this.segmentMaxSize = segmentMaxSize;
+        this.segments = new ArrayList<>();
+
+        this.open();
+    }
+
+    /* Methods */
+
+    /**
+     * Gets the instance of the Block store Singleton class.
+     * On the first call the store is opened and block files using the previous one file per block layout are
+     * migrated into the store.
+     *
+     * @return the Block store instance
+     * @throws UncheckedIOException unchecked io exception will be thrown if the store can't be opened
+     */
+    public static synchronized BlockStore getInstance() {
+        if (INSTANCE == null) {
+            Configuration config = Configuration.getInstance();
+
+            try {
+                INSTANCE = new BlockStore(config.getBlockFileDirectoryFull(), config.getDataFileExtension(),
+                        config.getSegmentMaxSize() * 1000000L);
+                INSTANCE.migrateLegacyBlockFiles(config.getBlockFileBaseName());
+            } catch (IOException e) {
+                logger.error("Unable to open block store", e);
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return INSTANCE;
+    }
+
+    private void open() throws IOException {
+        Path dir = Paths.get(this.directory);
+        if (Files.notExists(dir))
+            Files.createDirectories(dir);
+
+        for (int i = 0; Files.exists(this.getSegmentPath(i)); i++)
+            this.segments.add(FileChannel.open(this.getSegmentPath(i), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+
+        this.entrySegment = new int[1024];
+        this.entryOffset = new long[1024];
+        this.entryLength = new int[1024];
+        this.highestHeight = -1;
+        this.blockCount = 0;
+
+        Path indexPath = this.getIndexPath();
+        boolean indexExists = Files.exists(indexPath);
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        if (indexExists && this.loadIndex())
+            return;
+
+        if (this.segments.size() > 0) {
+            logger.warn("Block index is missing or damaged, rebuilding it from segment files");
+            this.rebuildIndex();
+        }
+    }
+
+    private boolean loadIndex() throws IOException {
+        long entries = this.indexChannel.size() / INDEX_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+        long position = 0;
+        int height = 0;
+
+        while (height < entries) {
+            buffer.clear();
+            int read = this.indexChannel.read(buffer, position);
+            if (read <= 0)
+                break;
+
+            position += read;
+            buffer.flip();
+
+            while (buffer.remaining() >= INDEX_ENTRY_SIZE && height < entries) {
+                int segment = buffer.getInt();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+
+                if (length > 0) {
+                    if (segment < 0 || segment >= this.segments.size() || offset < 0 ||
+                            offset + RECORD_HEADER_SIZE + length > this.segments.get(segment).size()) {
+                        logger.error("Block index entry for block " + height + " points outside segment files");
+                        return false;
+                    }
+
+                    this.setEntry(height, segment, offset, length);
+                }
+
+                height++;
+            }
+
+            // Keep the unread remainder of an entry for the next read
+            position -= buffer.remaining();
+        }
+
+        return true;
+    }
+
+    private void rebuildIndex() throws IOException {
+        this.indexChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        for (int segment = 0; segment < this.segments.size(); segment++) {
+            FileChannel channel = this.segments.get(segment);
+            long size = channel.size();
+            long offset = 0;
+
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                channel.read(header, offset);
+                header.flip();
+
+                int height = header.getInt();
+                int length = header.getInt();
+
+                if (height < 0 || (length != TOMBSTONE && (length <= 0 ||
+                        offset + RECORD_HEADER_SIZE + length > size))) {
+                    logger.warn("Discarding incomplete record at the end of segment " + segment);
+                    channel.truncate(offset);
+                    break;
+                }
+
+                if (length == TOMBSTONE) {
+                    this.writeIndexEntry(height, 0, 0L, 0);
+                    offset += RECORD_HEADER_SIZE;
+                } else {
+                    this.writeIndexEntry(height, segment, offset, length);
+                    offset += RECORD_HEADER_SIZE + length;
+                }
+            }
+        }
+
+        this.indexChannel.force(false);
+    }
+
+    private void migrateLegacyBlockFiles(String blockFileBaseName) throws IOException {
+        File[] files = new File(this.directory).listFiles();
+        if (files == null)
+            return;
+
+        TreeMap<Integer, File> legacyFiles = new TreeMap<>();
+        for (File f : files) {
+            String[] aux = f.getName().split(Configuration.FILE_NAME_SEPARATOR);
+
+            if (aux.length != 2 || !aux[0].equals(blockFileBaseName))
+                continue;
+
+            String[] nameExtension = aux[1].split(Configuration.FILE_EXTENSION_SEPARATOR_SPLIT);
+            if (nameExtension.length != 2 || !nameExtension[1].equals(this.dataFileExtension))
+                continue;
+
+            try {
+                legacyFiles.put(Integer.parseInt(nameExtension[0]), f);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        if (legacyFiles.isEmpty())
+            return;
+
+        logger.info("Migrating " + legacyFiles.size() + " block files into the block store");
+
+        // Only the files whose block is in the store (and synced) are removed, the others are kept for the next start
+        List<File> migratedFiles = new ArrayList<>(legacyFiles.size());
+        for (File f : legacyFiles.values()) {
+            Block b;
+            try {
+                b = (Block) Storage.readObjectFromDisk(f.getPath());
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                logger.error("Unable to read block file '" + f.getName() + "', keeping it", e);
+                continue;
+            }
+
+            if (this.contains(b.getBlockHeight()) || this.write(b))
+                migratedFiles.add(f);
+            else
+                logger.error("Unable to store the block of file '" + f.getName() + "', keeping it");
+        }
+
+        this.force();
+
+        for (File f : migratedFiles)
+            if (!f.delete())
+                logger.warn("Unable to remove migrated block file '" + f.getName() + "'");
+
+        if (migratedFiles.size() == legacyFiles.size())
+            logger.info("Block files migration completed");
+        else
+            logger.warn("Block files migration incomplete, " + (legacyFiles.size() - migratedFiles.size())
+                    + " block files were kept");
+    }
+
+    /**
+     * Writes a block to the store. If a block with the same height is already stored it will be replaced.
+     *
+     * @param block the block
+     * @return true if the block was stored or false if an error occurred
+     */
+    public boolean write(Block block) {
+        return this.write(block.getBlockHeight(), BlockchainCodec.encodeBlock(block));
+    }
+
+    /**
+     * Writes the encoded data of a block to the store.
+     *
+     * @param height the block height
+     * @param data   the block data
+     * @return true if the block was stored or false if an error occurred
+     */
+    public synchronized boolean write(int height, byte[] data) {
+        if (height < 0 || data.length == 0)
+            return false;
+
+        try {
+            int segment = this.getWritableSegment(RECORD_HEADER_SIZE + data.length);
+            FileChannel channel = this.segments.get(segment);
+            long offset = channel.size();
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+            buffer.putInt(height).putInt(data.length).put(data).flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer, offset + buffer.position());
+
+            if (this.contains(height))
+                this.modificationCount++;
+            this.writeIndexEntry(height, segment, offset, data.length);
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Error while writing block " + height + " to block store", e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads a block from the store.
+     *
+     * @param height the block height
+     * @return the block
+     * @throws FileNotFoundException file not found exception will be thrown if the block is not in the store
+     * @throws IOException           io exception will be thrown if the block can't be read or decoded
+     */
+    public Block read(int height) throws IOException {
+        return BlockchainCodec.decodeBlock(this.readBytes(height));
+    }
+
+    /**
+     * Reads the encoded data of a block from the store.
+     * Blocks written by previous versions of the store are Java serialized.
+     *
+     * @param height the block height
+     * @return the block data
+     * @throws FileNotFoundException file not found exception will be thrown if the block is not in the store
+     * @throws IOException           the io exception
+     */
+    public byte[] readBytes(int height) throws IOException {
+        FileChannel channel;
+        long offset;
+        int length;
+
+        synchronized (this) {
+            if (!this.contains(height))
+                throw new FileNotFoundException("Block " + height + " is not in the block store");
+
+            channel = this.segments.get(this.entrySegment[height]);
+            offset = this.entryOffset[height];
+            length = this.entryLength[height];
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of segment while reading block " + height);
+
+        buffer.flip();
+        if (buffer.getInt() != height || buffer.getInt() != length)
+            throw new IOException("Block store record does not match block " + height);
+
+        byte[] data = new byte[length];
+        buffer.get(data);
+
+        return data;
+    }
+
+    /**
+     * Finds the records of consecutive blocks, from a height up to another, that are stored one after the other in
+     * the same segment file, this way they can be transferred at once (see
+     * {@link #transferTo(RecordRange, long, long, WritableByteChannel)}).
+     *
+     * @param bottom the height of the first block
+     * @param top    the height of the last block wanted
+     * @return the range of records or null if the first block is not in the store
+     */
+    public synchronized RecordRange getRecordRange(int bottom, int top) {
+        if (!this.contains(bottom))
+            return null;
+
+        int segment = this.entrySegment[bottom];
+        long offset = this.entryOffset[bottom];
+        long end = offset + RECORD_HEADER_SIZE + this.entryLength[bottom];
+        int height = bottom + 1;
+
+        while (height <= top && this.contains(height) && this.entrySegment[height] == segment &&
+                this.entryOffset[height] == end) {
+            end += RECORD_HEADER_SIZE + this.entryLength[height];
+            height++;
+        }
+
+        return new RecordRange(segment, offset, end - offset, bottom, height - bottom);
+    }
+
+    /**
+     * Transfers part of a range of records to a channel, as they are stored (height, length and block data of each
+     * block), without copying them to memory (see {@link FileChannel#transferTo(long, long, WritableByteChannel)}).
+     * Records are never overwritten, so the range stays valid while the segment files exist.
+     *
+     * @param range    the range of records
+     * @param position the position inside the range
+     * @param count    the max number of bytes to transfer
+     * @param target   the target channel
+     * @return the number of bytes transferred
+     * @throws IOException the io exception
+     */
+    public long transferTo(RecordRange range, long position, long count, WritableByteChannel target)
+            throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = this.segments.get(range.segment);
+        }
+
+        return channel.transferTo(range.offset + position, Math.min(count, range.size - position), target);
+    }
+
+    /**
+     * Removes a block from the store.
+     *
+     * @param height the block height
+     * @return true if the block was removed or false otherwise
+     */
+    public synchronized boolean remove(int height) {
+        if (!this.contains(height))
+            return false;
+
+        try {
+            int segment = this.getWritableSegment(RECORD_HEADER_SIZE);
+            FileChannel channel = this.segments.get(segment);
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            buffer.putInt(height).putInt(TOMBSTONE).flip();
+            channel.write(buffer, channel.size());
+
+            this.modificationCount++;
+            this.writeIndexEntry(height, 0, 0L, 0);
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Error while removing block " + height + " from block store", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes all the blocks from the store, deleting all segment files.
+     */
+    public synchronized void clear() {
+        logger.info("Removing all blocks from block store");
+
+        try {
+            this.closeChannels();
+
+            for (int i = 0; Files.exists(this.getSegmentPath(i)); i++)
+                Files.delete(this.getSegmentPath(i));
+            Files.deleteIfExists(this.getIndexPath());
+
+            this.segments.clear();
+            this.modificationCount++;
+            this.open();
+        } catch (IOException e) {
+            logger.error("Error while clearing block store", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces all the pending writes to the storage device.
+     */
+    public synchronized void sync() {
+        try {
+            this.force();
+        } catch (IOException e) {
+            logger.error("Error while syncing block store to disk", e);
+        }
+    }
+
+    private synchronized void force() throws IOException {
+        for (FileChannel channel : this.segments)
+            channel.force(false);
+        this.indexChannel.force(false);
+    }
+
+    /**
+     * Syncs and closes all the files used by the store.
+     */
+    public synchronized void close() {
+        this.sync();
+
+        try {
+            this.closeChannels();
+        } catch (IOException e) {
+            logger.error("Error while closing block store", e);
+        }
+
+        INSTANCE = null;
+    }
+
+    private void closeChannels() throws IOException {
+        for (FileChannel channel : this.segments)
+            channel.close();
+        this.indexChannel.close();
+    }
+
+    private int getWritableSegment(int recordSize) throws IOException {
+        int last = this.segments.size() - 1;
+
+        if (last < 0 || (this.segments.get(last).size() > 0 &&
+                this.segments.get(last).size() + recordSize > this.segmentMaxSize)) {
+
+            last++;
+            logger.debug("Creating block segment " + last);
+            this.segments.add(FileChannel.open(this.getSegmentPath(last), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+
+        return last;
+    }
+
+    private void writeIndexEntry(int height, int segment, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        buffer.putInt(segment).putLong(offset).putInt(length).flip();
+
+        long position = (long) height * INDEX_ENTRY_SIZE;
+        while (buffer.hasRemaining())
+            this.indexChannel.write(buffer, position + buffer.position());
+
+        this.setEntry(height, segment, offset, length);
+    }
+
+    private void setEntry(int height, int segment, long offset, int length) {
+        if (height >= this.entryLength.length) {
+            int capacity = Math.max(height + 1, this.entryLength.length * 2);
+            this.entrySegment = Arrays.copyOf(this.entrySegment, capacity);
+            this.entryOffset = Arrays.copyOf(this.entryOffset, capacity);
+            this.entryLength = Arrays.copyOf(this.entryLength, capacity);
+        }
+
+        boolean existed = this.entryLength[height] > 0;
+
+        this.entrySegment[height] = segment;
+        this.entryOffset[height] = offset;
+        this.entryLength[height] = length;
+
+        if (length > 0) {
+            if (!existed)
+                this.blockCount++;
+            if (height > this.highestHeight)
+                this.highestHeight = height;
+        } else {
+            if (existed)
+                this.blockCount--;
+            if (height == this.highestHeight)
+                while (this.highestHeight >= 0 && this.entryLength[this.highestHeight] == 0)
+                    this.highestHeight--;
+        }
+    }
+
+    private Path getSegmentPath(int segment) {
+        return Paths.get(this.directory, SEGMENT_FILE_BASE_NAME + Configuration.FILE_NAME_SEPARATOR +
+                String.format("%05d", segment) + Configuration.FILE_EXTENSION_SEPARATOR + this.dataFileExtension);
+    }
+
+    private Path getIndexPath() {
+        return Paths.get(this.directory, INDEX_FILE_NAME + Configuration.FILE_EXTENSION_SEPARATOR +
+                this.dataFileExtension);
+    }
+
+    /* Getters */
+
+    /**
+     * Checks if a block with the given height is stored.
+     *
+     * @param height the block height
+     * @return true if the block is stored or false otherwise
+     */
+    public synchronized boolean contains(int height) {
+        return height >= 0 && height < this.entryLength.length && this.entryLength[height] > 0;
+    }
+
+    /**
+     * Gets the height of the highest block stored.
+     *
+     * @return the highest block height or -1 if the store is empty
+     */
+    public synchronized int getHighestHeight() {
+        return this.highestHeight;
+    }
+
+    /**
+     * Gets the number of blocks stored.
+     *
+     * @return the block count
+     */
+    public synchronized int getBlockCount() {
+        return this.blockCount;
+    }
+
+    /**
+     * Gets the number of times blocks were replaced or removed since the store was opened, this way data read from
+     * the store can be cached until the count changes (appending blocks doesn't change it).
+     *
+     * @return the modification count
+     */
+    public synchronized long getModificationCount() {
+        return this.modificationCount;
+    }
+
+    /**
+     * Gets the list of heights of the blocks stored, in ascending order.
+     *
+     * @return the block height list
+     */
+    public synchronized List<Integer> getHeights() {
+        List<Integer> heights = new ArrayList<>(this.blockCount);
+
+        for (int i = 0; i <= this.highestHeight; i++)
+            if (this.entryLength[i] > 0)
+                heights.add(i);
+
+        return heights;
+    }
+
+    /**
+     * A range of records of consecutive blocks, stored one after the other in a segment file.
+     */
+    public static final class RecordRange {
+        private final int segment;
+        private final long offset;
+        private final long size;
+        private final int bottom;
+        private final int count;
+
+        private RecordRange(int segment, long offset, long size, int bottom, int count) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.bottom = bottom;
+            this.count = count;
+        }
+
+        /**
+         * Gets the size of the records (in bytes).
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the height of the first block.
+         *
+         * @return the height of the first block
+         */
+        public int getBottom() {
+            return bottom;
+        }
+
+        /**
+         * Gets the number of blocks.
+         *
+         * @return the number of blocks
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+/**
+ * An Eviction policy decides which block should be removed from the {@link BlockCache} when the cache is full.
+ * Blocks are identified by their height.
+ * <br>
+ * Policies are only called by the cache, while holding its lock, so implementations don't need to be thread safe.
+ */
+public interface EvictionPolicy {
+    /**
+     * The constant LRU stores the name of the least recently used policy.
+     */
+    String LRU = "lru";
+    /**
+     * The constant SEGMENTED_LRU stores the name of the segmented least recently used policy.
+     */
+    String SEGMENTED_LRU = "slru";
+    /**
+     * The constant SIZE_AWARE stores the name of the size aware (greedy dual size) policy.
+     */
+    String SIZE_AWARE = "size";
+
+    /**
+     * Creates a new eviction policy from its name.
+     *
+     * @param name the policy name (lru, slru or size)
+     * @return the eviction policy
+     * @throws IllegalArgumentException illegal argument exception will be thrown if the name is unknown
+     */
+    static EvictionPolicy forName(String name) {
+        switch (name.toLowerCase()) {
+            case LRU:
+                return new LruEvictionPolicy();
+            case SEGMENTED_LRU:
+                return new SegmentedLruEvictionPolicy();
+            case SIZE_AWARE:
+                return new SizeAwareEvictionPolicy();
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy '" + name + "'");
+        }
+    }
+
+    /**
+     * Called after a block is inserted in the cache.
+     *
+     * @param height the block height
+     * @param size   the block size
+     */
+    void inserted(int height, int size);
+
+    /**
+     * Called when a cached block is accessed.
+     *
+     * @param height the block height
+     */
+    void accessed(int height);
+
+    /**
+     * Called after a block is removed from the cache (evicted or explicitly removed).
+     *
+     * @param height the block height
+     */
+    void removed(int height);
+
+    /**
+     * Chooses the block to be evicted.
+     *
+     * @return the height of the block to evict or -1 if there are no blocks
+     */
+    int victim();
+
+    /**
+     * Removes all the blocks from the policy.
+     */
+    void clear();
+}
@@ -0,0 +1,50 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used eviction policy, evicts the block that was accessed the longest time ago.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+    /* Attributes */
+    private final LinkedHashMap<Integer, Integer> blocks;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Lru eviction policy.
+     */
+    public LruEvictionPolicy() {
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /* Methods */
+
+    @Override
+    public void inserted(int height, int size) {
+        this.blocks.put(height, size);
+    }
+
+    @Override
+    public void accessed(int height) {
+        this.blocks.get(height);
+    }
+
+    @Override
+    public void removed(int height) {
+        this.blocks.remove(height);
+    }
+
+    @Override
+    public int victim() {
+        Iterator<Integer> it = this.blocks.keySet().iterator();
+
+        return it.hasNext() ? it.next() : -1;
+    }
+
+    @Override
+    public void clear() {
+        this.blocks.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Segmented least recently used eviction policy.
+ * <br>
+ * New blocks enter a probation segment and are promoted to the protected segment when accessed again.
+ * Blocks are evicted from the probation segment first, this way a scan over many old blocks (for example a client
+ * fetching the whole chain) does not evict the blocks that are requested frequently.
+ * The protected segment is limited to a fraction of the cached bytes, when it grows above that limit its least
+ * recently used blocks are moved back to the probation segment.
+ */
+public class SegmentedLruEvictionPolicy implements EvictionPolicy {
+    /* Attributes */
+    /**
+     * The constant PROTECTED_RATIO stores the max fraction of the cached bytes used by the protected segment.
+     */
+    public static final double PROTECTED_RATIO = 0.8;
+
+    private final LinkedHashMap<Integer, Integer> probation;
+    private final LinkedHashMap<Integer, Integer> protectedSegment;
+    private long probationSize;
+    private long protectedSize;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Segmented lru eviction policy.
+     */
+    public SegmentedLruEvictionPolicy() {
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /* Methods */
+
+    @Override
+    public void inserted(int height, int size) {
+        this.removed(height);
+        this.probation.put(height, size);
+        this.probationSize += size;
+    }
+
+    @Override
+    public void accessed(int height) {
+        if (this.protectedSegment.get(height) != null)
+            return;
+
+        Integer size = this.probation.remove(height);
+        if (size == null)
+            return;
+
+        this.probationSize -= size;
+        this.protectedSegment.put(height, size);
+        this.protectedSize += size;
+
+        // Demote least recently used protected blocks, always keeping the promoted block
+        Iterator<Map.Entry<Integer, Integer>> it = this.protectedSegment.entrySet().iterator();
+        while (this.protectedSegment.size() > 1 &&
+                this.protectedSize > (this.protectedSize + this.probationSize) * PROTECTED_RATIO) {
+
+            Map.Entry<Integer, Integer> e = it.next();
+            it.remove();
+            this.protectedSize -= e.getValue();
+            this.probation.put(e.getKey(), e.getValue());
+            this.probationSize += e.getValue();
+        }
+    }
+
+    @Override
+    public void removed(int height) {
+        Integer size = this.probation.remove(height);
+        if (size != null) {
+            this.probationSize -= size;
+            return;
+        }
+
+        size = this.protectedSegment.remove(height);
+        if (size != null)
+            this.protectedSize -= size;
+    }
+
+    @Override
+    public int victim() {
+        Iterator<Integer> it = this.probation.keySet().iterator();
+        if (it.hasNext())
+            return it.next();
+
+        it = this.protectedSegment.keySet().iterator();
+
+        return it.hasNext() ? it.next() : -1;
+    }
+
+    @Override
+    public void clear() {
+        this.probation.clear();
+        this.protectedSegment.clear();
+        this.probationSize = 0;
+        this.protectedSize = 0;
+    }
+}
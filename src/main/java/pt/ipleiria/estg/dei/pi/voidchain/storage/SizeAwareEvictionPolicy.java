@@ -0,0 +1,96 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Size aware eviction policy, based on the Greedy Dual Size algorithm.
+ * <br>
+ * Every block has a priority equal to the current inflation value plus the inverse of its size, refreshed on every
+ * access. The block with the lowest priority is evicted and its priority becomes the new inflation value, this way
+ * large blocks are evicted before small ones while blocks that are not accessed eventually age out.
+ */
+public class SizeAwareEvictionPolicy implements EvictionPolicy {
+    /* Attributes */
+    private final Map<Integer, Entry> blocks;
+    private final TreeSet<Entry> priorities;
+    private double inflation;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Size aware eviction policy.
+     */
+    public SizeAwareEvictionPolicy() {
+        this.blocks = new HashMap<>();
+        this.priorities = new TreeSet<>();
+        this.inflation = 0;
+    }
+
+    /* Methods */
+
+    @Override
+    public void inserted(int height, int size) {
+        this.removed(height);
+
+        Entry e = new Entry(height, Math.max(size, 1));
+        e.priority = this.inflation + 1.0 / e.size;
+        this.blocks.put(height, e);
+        this.priorities.add(e);
+    }
+
+    @Override
+    public void accessed(int height) {
+        Entry e = this.blocks.get(height);
+        if (e == null)
+            return;
+
+        this.priorities.remove(e);
+        e.priority = this.inflation + 1.0 / e.size;
+        this.priorities.add(e);
+    }
+
+    @Override
+    public void removed(int height) {
+        Entry e = this.blocks.remove(height);
+        if (e != null)
+            this.priorities.remove(e);
+    }
+
+    @Override
+    public int victim() {
+        if (this.priorities.isEmpty())
+            return -1;
+
+        Entry e = this.priorities.first();
+        this.inflation = e.priority;
+
+        return e.height;
+    }
+
+    @Override
+    public void clear() {
+        this.blocks.clear();
+        this.priorities.clear();
+        this.inflation = 0;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final int height;
+        private final int size;
+        private double priority;
+
+        private Entry(int height, int size) {
+            this.height = height;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Double.compare(this.priority, o.priority);
+
+            return c != 0 ? c : Integer.compare(this.height, o.height);
+        }
+    }
+}
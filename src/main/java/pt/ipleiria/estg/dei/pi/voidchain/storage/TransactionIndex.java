@@ -0,0 +1,508 @@
+package pt.ipleiria.estg.dei.pi.voidchain.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
+import pt.ipleiria.estg.dei.pi.voidchain.util.Pair;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The Transaction index is a persistent hash table, stored in disk, that maps the hash of a transaction to the
+ * height of the block where the transaction is stored and to its position inside the block (following the order
+ * used to calculate the merkle tree).
+ * <br>
+ * The table uses open addressing with linear probing and is grown by rebuilding it into a new file which then
+ * atomically replaces the old one. The index keeps the height up to which all blocks are indexed, blocks above
+ * that height are (re)indexed from the block store when the index is opened, this way a crash can never leave the
+ * index missing transactions.
+ */
+public class TransactionIndex {
+    /* Attributes */
+    private static TransactionIndex INSTANCE = null;
+
+    /**
+     * The constant INDEX_FILE_NAME stores the name of the transaction index file.
+     */
+    public static final String INDEX_FILE_NAME = "transaction_index";
+    /**
+     * The constant KEY_SIZE stores the size of the transaction hashes stored in the index.
+     */
+    public static final int KEY_SIZE = 20;
+
+    private static final int MAGIC = 0x56435458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64; // magic, version, capacity, used, entries, indexed height
+    private static final int SLOT_SIZE = KEY_SIZE + Integer.BYTES * 2; // key, height + 1, position
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD_FACTOR = 0.6;
+    private static final int PROBE_BATCH = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionIndex.class);
+
+    private final Path path;
+    private FileChannel channel;
+
+    private long capacity;
+    private long used; // slots in use, including deleted ones
+    private long entries;
+    private int indexedHeight;
+
+    // Heights above the indexed height that are already indexed (blocks can be synced out of order)
+    private final TreeSet<Integer> indexedAbove;
+
+    /* Constructors */
+
+    private TransactionIndex(Path path) throws IOException {
+        this.path = path;
+        this.indexedAbove = new TreeSet<>();
+
+        Files.deleteIfExists(this.getTemporaryPath());
+
+        if (!Files.exists(path) || !this.open()) {
+            logger.info("Creating transaction index");
+            this.create(INITIAL_CAPACITY);
+        }
+    }
+
+    /* Methods */
+
+    /**
+     * Gets the instance of the Transaction index Singleton class.
+     * When opened, all the blocks stored in disk that are not yet indexed are added to the index.
+     *
+     * @return the Transaction index instance
+     * @throws UncheckedIOException unchecked io exception will be thrown if the index can't be opened
+     */
+    public static synchronized TransactionIndex getInstance() {
+        if (INSTANCE == null) {
+            Configuration config = Configuration.getInstance();
+
+            try {
+                INSTANCE = new TransactionIndex(Paths.get(config.getBlockFileDirectoryFull(), INDEX_FILE_NAME +
+                        Configuration.FILE_EXTENSION_SEPARATOR + config.getDataFileExtension()));
+                INSTANCE.catchUp(BlockStore.getInstance());
+            } catch (IOException e) {
+                logger.error("Unable to open transaction index", e);
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return INSTANCE;
+    }
+
+    private boolean open() throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        this.channel.read(header, 0);
+        header.flip();
+
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            logger.warn("Transaction index is damaged or of an unknown version, it will be rebuilt");
+            this.channel.close();
+            return false;
+        }
+
+        this.capacity = header.getLong();
+        this.used = header.getLong();
+        this.entries = header.getLong();
+        this.indexedHeight = header.getInt();
+
+        if (this.capacity <= 0 || this.channel.size() < HEADER_SIZE + this.capacity * SLOT_SIZE) {
+            logger.warn("Transaction index is truncated, it will be rebuilt");
+            this.channel.close();
+            return false;
+        }
+
+        return true;
+    }
+
+    private void create(long capacity) throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        initialize(this.channel, capacity);
+
+        this.capacity = capacity;
+        this.used = 0;
+        this.entries = 0;
+        this.indexedHeight = -1;
+        this.indexedAbove.clear();
+        this.writeHeader();
+    }
+
+    private static void initialize(FileChannel channel, long capacity) throws IOException {
+        // Extending the file fills every slot with zeros (empty)
+        channel.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity * SLOT_SIZE - 1);
+    }
+
+    private void catchUp(BlockStore blockStore) {
+        int highestHeight = blockStore.getHighestHeight();
+        if (this.indexedHeight >= highestHeight)
+            return;
+
+        logger.info("Indexing transactions of blocks [" + (this.indexedHeight + 1) + "," + highestHeight + "]");
+
+        for (int i = this.indexedHeight + 1; i <= highestHeight; i++) {
+            if (!blockStore.contains(i))
+                continue;
+
+            try {
+                this.add(blockStore.read(i));
+            } catch (IOException e) {
+                logger.error("Unable to index transactions of block " + i, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds all the transactions of a block to the index.
+     *
+     * @param block the block
+     * @return true if the transactions were indexed or false if an error occurred
+     */
+    public boolean add(Block block) {
+        return this.add(block.getBlockHeight(), block.getOrderedTransactionHashes());
+    }
+
+    /**
+     * Adds the transactions of a block to the index, from their hashes.
+     *
+     * @param height the block height
+     * @param hashes the transaction hashes, in merkle tree order
+     * @return true if the transactions were indexed or false if an error occurred
+     */
+    public synchronized boolean add(int height, List<byte[]> hashes) {
+        try {
+            if ((this.used + hashes.size()) > this.capacity * MAX_LOAD_FACTOR)
+                this.grow(this.used + hashes.size());
+
+            for (int i = 0; i < hashes.size(); i++)
+                this.put(hashes.get(i), height, i);
+
+            this.channel.force(false);
+            this.markIndexed(height);
+            this.writeHeader();
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Error while indexing transactions of block " + height, e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes all the transactions of a block from the index.
+     * Transactions that are indexed as stored in another block are kept.
+     *
+     * @param block the block
+     * @return true if the transactions were removed or false if an error occurred
+     */
+    public boolean remove(Block block) {
+        return this.remove(block.getBlockHeight(), block.getOrderedTransactionHashes());
+    }
+
+    /**
+     * Removes the transactions of a block from the index, from their hashes.
+     * Transactions that are indexed as stored in another block are kept.
+     *
+     * @param height the block height
+     * @param hashes the transaction hashes
+     * @return true if the transactions were removed or false if an error occurred
+     */
+    public synchronized boolean remove(int height, List<byte[]> hashes) {
+        try {
+            for (byte[] hash : hashes) {
+                Probe p = this.probe(hash);
+                if (p.found && p.height == height) {
+                    this.writeSlot(p.slot, hash, DELETED, 0);
+                    this.entries--;
+                }
+            }
+
+            this.indexedAbove.remove(height);
+            if (height <= this.indexedHeight)
+                this.indexedHeight = height - 1;
+
+            this.channel.force(false);
+            this.writeHeader();
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Error while removing transactions of block " + height + " from index", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes all the transactions from the index.
+     */
+    public synchronized void clear() {
+        logger.info("Removing all transactions from index");
+
+        try {
+            this.channel.close();
+            this.create(INITIAL_CAPACITY);
+        } catch (IOException e) {
+            logger.error("Error while clearing transaction index", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Finds where a transaction is stored.
+     *
+     * @param hash the transaction hash
+     * @return a pair with the block height (o1) and the position of the transaction in the block (o2),
+     * or null if the transaction is not indexed
+     */
+    public synchronized Pair<Integer, Integer> get(byte[] hash) {
+        if (hash.length != KEY_SIZE)
+            return null;
+
+        try {
+            Probe p = this.probe(hash);
+            if (!p.found)
+                return null;
+
+            return new Pair<>(p.height, p.position);
+        } catch (IOException e) {
+            logger.error("Error while reading transaction index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Syncs and closes the index file.
+     */
+    public synchronized void close() {
+        try {
+            this.channel.force(true);
+            this.channel.close();
+        } catch (IOException e) {
+            logger.error("Error while closing transaction index", e);
+        }
+
+        INSTANCE = null;
+    }
+
+    private void markIndexed(int height) {
+        if (height <= this.indexedHeight)
+            return;
+
+        this.indexedAbove.add(height);
+        while (this.indexedAbove.remove(this.indexedHeight + 1))
+            this.indexedHeight++;
+    }
+
+    private void put(byte[] hash, int height, int position) throws IOException {
+        if (hash.length != KEY_SIZE) {
+            logger.warn("Transaction hash with unexpected size (" + hash.length + ") not indexed");
+            return;
+        }
+
+        Probe p = this.probe(hash);
+
+        if (!p.found) {
+            if (p.slotState == EMPTY)
+                this.used++;
+            this.entries++;
+        }
+
+        this.writeSlot(p.slot, hash, height + 1, position);
+    }
+
+    private Probe probe(byte[] hash) throws IOException {
+        return probe(this.channel, this.capacity, hash);
+    }
+
+    private static Probe probe(FileChannel channel, long capacity, byte[] hash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE * PROBE_BATCH);
+        byte[] key = new byte[KEY_SIZE];
+        long slot = slotOf(hash, capacity);
+        long firstDeleted = -1;
+        long probed = 0;
+
+        while (probed < capacity) {
+            int batch = (int) Math.min(PROBE_BATCH, capacity - slot);
+
+            buffer.clear().limit(batch * SLOT_SIZE);
+            long position = HEADER_SIZE + slot * SLOT_SIZE;
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of transaction index");
+            buffer.flip();
+
+            for (int i = 0; i < batch; i++) {
+                buffer.get(key);
+                int state = buffer.getInt();
+                int position2 = buffer.getInt();
+
+                if (state == EMPTY) {
+                    Probe p = new Probe();
+                    p.slot = firstDeleted != -1 ? firstDeleted : slot + i;
+                    p.slotState = firstDeleted != -1 ? DELETED : EMPTY;
+                    return p;
+                }
+
+                if (state == DELETED) {
+                    if (firstDeleted == -1)
+                        firstDeleted = slot + i;
+                } else if (Arrays.equals(key, hash)) {
+                    Probe p = new Probe();
+                    p.found = true;
+                    p.slot = slot + i;
+                    p.height = state - 1;
+                    p.position = position2;
+                    return p;
+                }
+            }
+
+            probed += batch;
+            slot = (slot + batch) % capacity;
+        }
+
+        if (firstDeleted == -1)
+            throw new IOException("Transaction index is full");
+
+        Probe p = new Probe();
+        p.slot = firstDeleted;
+        p.slotState = DELETED;
+        return p;
+    }
+
+    private static long slotOf(byte[] hash, long capacity) {
+        // Hashes are uniformly distributed, the first 8 bytes are enough to choose the slot
+        return (ByteBuffer.wrap(hash, 0, Long.BYTES).getLong() & Long.MAX_VALUE) % capacity;
+    }
+
+    private void writeSlot(long slot, byte[] hash, int state, int position) throws IOException {
+        writeSlot(this.channel, slot, hash, state, position);
+    }
+
+    private static void writeSlot(FileChannel channel, long slot, byte[] hash, int state, int position)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        buffer.put(hash).putInt(state).putInt(position).flip();
+
+        long filePosition = HEADER_SIZE + slot * SLOT_SIZE;
+        while (buffer.hasRemaining())
+            channel.write(buffer, filePosition + buffer.position());
+    }
+
+    private void writeHeader() throws IOException {
+        writeHeader(this.channel, this.capacity, this.used, this.entries, this.indexedHeight);
+    }
+
+    private static void writeHeader(FileChannel channel, long capacity, long used, long entries, int indexedHeight)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(capacity).putLong(used).putLong(entries)
+                .putInt(indexedHeight);
+        header.clear();
+
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    private void grow(long required) throws IOException {
+        long newCapacity = this.capacity * 2;
+        while (required > newCapacity * MAX_LOAD_FACTOR)
+            newCapacity *= 2;
+
+        logger.info("Growing transaction index to " + newCapacity + " slots");
+
+        Path temporaryPath = this.getTemporaryPath();
+        long newEntries = 0;
+
+        try (FileChannel newChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            initialize(newChannel, newCapacity);
+
+            ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE * 4096);
+            long position = HEADER_SIZE;
+            long end = HEADER_SIZE + this.capacity * SLOT_SIZE;
+
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining())
+                    if (this.channel.read(buffer, position + buffer.position()) < 0)
+                        throw new IOException("Unexpected end of transaction index");
+                position += buffer.limit();
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    byte[] key = new byte[KEY_SIZE];
+                    buffer.get(key);
+                    int state = buffer.getInt();
+                    int slotPosition = buffer.getInt();
+
+                    if (state != EMPTY && state != DELETED) {
+                        writeSlot(newChannel, probe(newChannel, newCapacity, key).slot, key, state, slotPosition);
+                        newEntries++;
+                    }
+                }
+            }
+
+            writeHeader(newChannel, newCapacity, newEntries, newEntries, this.indexedHeight);
+            newChannel.force(true);
+        }
+
+        this.channel.close();
+        Files.move(temporaryPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.capacity = newCapacity;
+        this.used = newEntries;
+        this.entries = newEntries;
+    }
+
+    private Path getTemporaryPath() {
+        return Paths.get(this.path + ".tmp");
+    }
+
+    /* Getters */
+
+    /**
+     * Gets the number of transactions in the index.
+     *
+     * @return the number of transactions
+     */
+    public synchronized long getSize() {
+        return this.entries;
+    }
+
+    /**
+     * Gets the height up to which all blocks are indexed.
+     *
+     * @return the indexed height
+     */
+    public synchronized int getIndexedHeight() {
+        return this.indexedHeight;
+    }
+
+    private static class Probe {
+        private long slot;
+        private boolean found;
+        private int slotState;
+        private int height;
+        private int position;
+    }
+}
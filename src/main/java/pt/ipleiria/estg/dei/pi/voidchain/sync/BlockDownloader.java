@@ -0,0 +1,496 @@
+package pt.ipleiria.estg.dei.pi.voidchain.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Blockchain;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.TransactionIndex;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Block downloader downloads an interval of blocks from several block sync servers at the same time.
+ * <br>
+ * The interval is split in chunks. Every server is served by its own worker threads, which always take the lowest
+ * chunk not downloaded yet, this way fast servers download more chunks than slow ones. The chunks of a server that
+ * fails are put back to be downloaded from the others, and when there are no chunks left, idle workers also download
+ * the chunks that are taking longer than expected in other servers (the first copy downloaded is kept and the other
+ * download is cancelled).
+ * <br>
+ * Chunks are written to the block store in height order, as soon as all the chunks below them are written, this way
+ * an interrupted download is resumed from the highest block stored. Only a window of chunks above the lowest missing
+ * block is downloaded at a time, so memory use doesn't depend on the size of the interval.
+ * <br>
+ * The download works as a pipeline of three stages, each one running in its own threads: the workers download the
+ * chunks, the verifiers check them and the thread calling {@link #download} writes them. Blocks are checked against
+ * the {@link HeaderChain} downloaded before them: the hash of each block must match the hash of its header and the
+ * merkle tree root of its header must match its transactions (hashed again, not taken from the block). A chunk that
+ * doesn't pass is downloaded again from another server and its server is no longer used.
+ * <br>
+ * Blocks are downloaded in raw mode (see {@link BlockSyncSession}) and the data received is written as it is to the
+ * block store.
+ */
+class BlockDownloader {
+    /**
+     * The constant WORKERS_PER_PEER stores the number of chunks downloaded at the same time from each server.
+     */
+    static final int WORKERS_PER_PEER = 2;
+
+    // Consecutive failures before a server is no longer used
+    private static final int MAX_PEER_FAILURES = 3;
+    // Chunks downloaded ahead of the lowest missing block, per worker
+    private static final int WINDOW_CHUNKS_PER_WORKER = 2;
+    // Chunks are only downloaded again from another server after this time (in millis)
+    private static final long MIN_SLOW_CHUNK_TIME = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockDownloader.class);
+
+    private final int chunkSize;
+    private final int timeout;
+    private final long maxBlockSize;
+    private final HeaderChain headers;
+
+    private final PriorityQueue<Chunk> pending;
+    private final List<Chunk> inFlight;
+    private final Map<Integer, Chunk> completed;
+    private final Map<InetSocketAddress, Integer> peerChunks;
+    private final Set<InetSocketAddress> invalidPeers;
+    private int nextHeight;
+    private long window;
+    private int activeWorkers;
+    private int verifying;
+    private long chunkTimeSum;
+    private int chunkTimeCount;
+    private boolean stopped;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Block downloader.
+     *
+     * @param chunkSize    the number of blocks requested at once from a server
+     * @param timeout      the max time (in millis) waiting for data from a server
+     * @param maxBlockSize the max size (in bytes) of a block sent by a server
+     * @param headers      the header chain of the blocks
+     */
+    BlockDownloader(int chunkSize, int timeout, long maxBlockSize, HeaderChain headers) {
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.timeout = timeout;
+        this.maxBlockSize = maxBlockSize;
+        this.headers = headers;
+        this.pending = new PriorityQueue<>(Comparator.comparingInt(c -> c.bottom));
+        this.inFlight = new ArrayList<>();
+        this.completed = new HashMap<>();
+        this.peerChunks = new HashMap<>();
+        this.invalidPeers = new HashSet<>();
+    }
+
+    /* Methods */
+
+    /**
+     * Downloads the blocks of the header chain and writes them to the block store and transaction index, in height
+     * order. Returns when all the blocks are written or there are no servers left to download the missing ones from.
+     *
+     * @param peers the addresses of the block sync servers
+     * @return the height of the highest block written (bottom - 1 if no block was written)
+     */
+    int download(Collection<InetSocketAddress> peers) {
+        long start = System.currentTimeMillis();
+        int bottom = this.headers.getBottom();
+        int top = this.headers.getTop();
+        List<Thread> workers = new ArrayList<>();
+        AtomicInteger verifierCount = new AtomicInteger();
+        ExecutorService verifiers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "Block verifier " + verifierCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        synchronized (this) {
+            for (int h = bottom; h <= top; h += this.chunkSize)
+                this.pending.add(new Chunk(h, Math.min(h + this.chunkSize - 1, top)));
+
+            this.nextHeight = bottom;
+            this.window = (long) this.chunkSize * WINDOW_CHUNKS_PER_WORKER * WORKERS_PER_PEER * peers.size();
+
+            for (InetSocketAddress peer : peers) {
+                this.peerChunks.put(peer, 0);
+
+                for (int i = 0; i < WORKERS_PER_PEER; i++) {
+                    Thread t = new Thread(() -> this.work(peer, verifiers), "Block downloader " + peer + " " + i);
+                    t.setDaemon(true);
+                    workers.add(t);
+                    this.activeWorkers++;
+                }
+            }
+        }
+
+        logger.info("Downloading blocks [" + bottom + "," + top + "] in " + this.pending.size() + " chunks from " +
+                peers.size() + " servers");
+        workers.forEach(Thread::start);
+
+        BlockStore blockStore = BlockStore.getInstance();
+        TransactionIndex transactionIndex = TransactionIndex.getInstance();
+
+        while (true) {
+            Chunk chunk;
+
+            synchronized (this) {
+                while (!this.completed.containsKey(this.nextHeight) && (this.activeWorkers > 0 ||
+                        this.verifying > 0) && !this.stopped)
+                    this.waitUninterruptibly(0);
+
+                // Blocks were checked by the verifiers, they are written as they are
+                chunk = this.completed.remove(this.nextHeight);
+                if (chunk == null)
+                    break;
+            }
+
+            boolean stored = true;
+            for (DownloadedBlock b : chunk.blocks) {
+                int height = b.height;
+                if (!blockStore.write(height, b.data)) {
+                    logger.error("Unable to store block " + height);
+                    stored = false;
+                    break;
+                }
+                transactionIndex.add(height, b.transactionHashes);
+            }
+
+            if (!stored)
+                break;
+
+            logger.debug("Stored blocks [" + chunk.bottom + "," + chunk.top + "]");
+
+            synchronized (this) {
+                this.nextHeight = chunk.top + 1;
+                // The window moved, workers may be waiting for it
+                this.notifyAll();
+            }
+        }
+
+        this.stop(workers);
+        verifiers.shutdownNow();
+
+        int highest = this.nextHeight - 1;
+        if (highest < top)
+            logger.error("Unable to download blocks [" + (highest + 1) + "," + top + "]");
+
+        logger.info("Downloaded " + (highest - bottom + 1) + " blocks in " + (System.currentTimeMillis() - start) +
+                " ms, chunks per server: " + this.peerChunks);
+
+        return highest;
+    }
+
+    private void stop(List<Thread> workers) {
+        synchronized (this) {
+            this.stopped = true;
+            for (Chunk chunk : this.inFlight)
+                chunk.cancel(null);
+            this.notifyAll();
+        }
+
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void work(InetSocketAddress peer, ExecutorService verifiers) {
+        int failures = 0;
+
+        while (true) {
+            Chunk chunk;
+            Fetch fetch;
+
+            synchronized (this) {
+                chunk = this.takeChunk(peer);
+                if (chunk == null)
+                    break;
+
+                fetch = new Fetch(peer);
+                if (chunk.fetches.isEmpty()) {
+                    // Chunks downloaded again keep their first start time, this way they are soon seen as slow
+                    if (chunk.startTime == 0)
+                        chunk.startTime = fetch.startTime;
+                    this.inFlight.add(chunk);
+                }
+                chunk.fetches.add(fetch);
+            }
+
+            try {
+                List<byte[]> blocks = this.fetch(fetch, chunk);
+
+                synchronized (this) {
+                    chunk.fetches.remove(fetch);
+
+                    // The first copy received is checked, the other downloads are cancelled
+                    if (this.inFlight.remove(chunk)) {
+                        chunk.cancel(fetch);
+                        this.verifying++;
+                        this.chunkTimeSum += System.currentTimeMillis() - fetch.startTime;
+                        this.chunkTimeCount++;
+                        verifiers.execute(() -> this.verify(chunk, peer, blocks));
+                    }
+                }
+
+                failures = 0;
+            } catch (IOException e) {
+                synchronized (this) {
+                    chunk.fetches.remove(fetch);
+
+                    // Cancelled, another server was faster
+                    if (fetch.cancelled || this.stopped)
+                        continue;
+
+                    if (chunk.fetches.isEmpty() && this.inFlight.contains(chunk)) {
+                        this.inFlight.remove(chunk);
+                        this.pending.add(chunk);
+                        this.notifyAll();
+                    }
+                }
+
+                failures++;
+                logger.warn("Error while downloading blocks [" + chunk.bottom + "," + chunk.top + "] from " + peer +
+                        ": " + e);
+
+                if (e instanceof ConnectException || failures >= MAX_PEER_FAILURES) {
+                    logger.error("No longer downloading blocks from block sync server " + peer);
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            this.activeWorkers--;
+            this.notifyAll();
+        }
+    }
+
+    private void verify(Chunk chunk, InetSocketAddress peer, List<byte[]> blocks) {
+        List<DownloadedBlock> verified = new ArrayList<>(blocks.size());
+        String error = null;
+
+        for (int h = chunk.bottom; h <= chunk.top && error == null; h++) {
+            byte[] data = blocks.get(h - chunk.bottom);
+
+            try {
+                Block block = BlockchainCodec.decodeBlock(data);
+                error = this.checkBlock(block, h);
+                if (error == null)
+                    verified.add(new DownloadedBlock(h, data,
+                            new ArrayList<>(block.getOrderedTransactionHashes())));
+            } catch (IOException | RuntimeException e) {
+                error = "Block " + h + " is malformed: " + e;
+            }
+        }
+
+        synchronized (this) {
+            this.verifying--;
+
+            if (error == null) {
+                chunk.blocks = verified;
+                this.completed.put(chunk.bottom, chunk);
+                this.peerChunks.merge(peer, 1, Integer::sum);
+            } else {
+                logger.error("Invalid blocks received from block sync server " + peer + ", no longer downloading " +
+                        "blocks from it: " + error);
+                this.invalidPeers.add(peer);
+                this.pending.add(chunk);
+            }
+
+            this.notifyAll();
+        }
+    }
+
+    private String checkBlock(Block block, int height) {
+        if (block.getBlockHeight() != height)
+            return "Server sent block " + block.getBlockHeight() + " instead of block " + height;
+
+        // The header chain was checked, blocks with the same hash have the same header
+        if (!Arrays.equals(block.getHash(), this.headers.getHash(height)))
+            return "Block " + height + " doesn't match its header";
+
+        List<Transaction> transactions = block.getOrderedTransactions();
+        List<byte[]> transactionHashes = block.getOrderedTransactionHashes();
+        for (int i = 0; i < transactions.size(); i++) {
+            if (!Arrays.equals(transactions.get(i).getHash(), transactionHashes.get(i)))
+                return "Transaction hashes of block " + height + " don't match its transactions";
+        }
+
+        if (!Blockchain.isMerkleRootValid(block))
+            return "Merkle tree root of block " + height + " doesn't match its transactions";
+
+        return null;
+    }
+
+    private Chunk takeChunk(InetSocketAddress peer) {
+        while (!this.stopped && !this.invalidPeers.contains(peer)) {
+            Chunk chunk = this.pending.peek();
+
+            if (chunk != null && chunk.bottom < this.nextHeight + this.window)
+                return this.pending.poll();
+
+            // Nothing else to download (or the window is full), help with the slow chunks
+            Chunk slow = this.findSlowChunk(peer);
+            if (slow != null) {
+                logger.debug("Downloading slow blocks [" + slow.bottom + "," + slow.top + "] from " + peer);
+                return slow;
+            }
+
+            // Chunks not written yet may still have to be downloaded again
+            if (chunk == null && this.inFlight.isEmpty() && this.verifying == 0 && this.completed.isEmpty())
+                return null;
+
+            this.waitUninterruptibly(MIN_SLOW_CHUNK_TIME / 4);
+        }
+
+        return null;
+    }
+
+    private Chunk findSlowChunk(InetSocketAddress peer) {
+        long slowTime = Math.max(MIN_SLOW_CHUNK_TIME, this.chunkTimeCount == 0 ? 0 :
+                2 * this.chunkTimeSum / this.chunkTimeCount);
+        long now = System.currentTimeMillis();
+        Chunk slowest = null;
+
+        for (Chunk chunk : this.inFlight) {
+            if (chunk.fetches.size() > 1 || now - chunk.startTime < slowTime || chunk.isFetchedFrom(peer))
+                continue;
+
+            if (slowest == null || chunk.startTime < slowest.startTime)
+                slowest = chunk;
+        }
+
+        return slowest;
+    }
+
+    private List<byte[]> fetch(Fetch fetch, Chunk chunk) throws IOException {
+        try (Socket s = fetch.socket) {
+            s.connect(fetch.peer, this.timeout);
+            s.setSoTimeout(this.timeout);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+            out.writeInt(BlockSyncSession.RAW_REQUEST);
+            out.writeInt(chunk.bottom);
+            out.writeInt(chunk.top);
+            out.flush();
+
+            // Blocks are sent from bottom to top, as stored by the server (height, length and data)
+            List<byte[]> blocks = new ArrayList<>(chunk.top - chunk.bottom + 1);
+            for (int h = chunk.bottom; h <= chunk.top; h++) {
+                int height = in.readInt();
+                int length = in.readInt();
+                if (length <= 0)
+                    throw new IOException("Server was unable to send block " + h);
+                if (height != h)
+                    throw new IOException("Server sent block " + height + " instead of block " + h);
+                // The length is sent by the server, it is checked before allocating the block
+                if (length > this.maxBlockSize)
+                    throw new IOException("Server sent block " + h + " of " + length + " bytes, above the max block " +
+                            "size");
+
+                byte[] data = new byte[length];
+                in.readFully(data);
+                blocks.add(data);
+            }
+
+            return blocks;
+        }
+    }
+
+    private void waitUninterruptibly(long millis) {
+        try {
+            this.wait(millis);
+        } catch (InterruptedException e) {
+            this.stopped = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A chunk of consecutive blocks, downloaded from one server at once.
+     */
+    private static class Chunk {
+        private final int bottom;
+        private final int top;
+        private final List<Fetch> fetches;
+        private long startTime;
+        private List<DownloadedBlock> blocks;
+
+        private Chunk(int bottom, int top) {
+            this.bottom = bottom;
+            this.top = top;
+            this.fetches = new ArrayList<>(2);
+        }
+
+        private boolean isFetchedFrom(InetSocketAddress peer) {
+            for (Fetch fetch : this.fetches)
+                if (fetch.peer.equals(peer))
+                    return true;
+
+            return false;
+        }
+
+        private void cancel(Fetch except) {
+            for (Fetch fetch : this.fetches) {
+                if (fetch == except)
+                    continue;
+
+                fetch.cancelled = true;
+                try {
+                    fetch.socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A download of a chunk from a server.
+     */
+    private static class Fetch {
+        private final InetSocketAddress peer;
+        private final Socket socket;
+        private final long startTime;
+        private boolean cancelled;
+
+        private Fetch(InetSocketAddress peer) {
+            this.peer = peer;
+            this.socket = new Socket();
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A block downloaded and checked, its data and the hashes of its transactions, used to index it.
+     */
+    private static class DownloadedBlock {
+        private final int height;
+        private final byte[] data;
+        private final List<byte[]> transactionHashes;
+
+        private DownloadedBlock(int height, byte[] data, List<byte[]> transactionHashes) {
+            this.height = height;
+            this.data = data;
+            this.transactionHashes = transactionHashes;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package pt.ipleiria.estg.dei.pi.voidchain.sync;
+
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The Block records region is a range of block records of the {@link BlockStore}, written by Netty straight from the
+ * segment file to the socket (zero-copy, with {@link java.nio.channels.FileChannel#transferTo}).
+ * <br>
+ * Unlike Netty's DefaultFileRegion, releasing the region doesn't close the segment file, which is shared by the
+ * store and all the sync sessions.
+ */
+class BlockRecordsRegion extends AbstractReferenceCounted implements FileRegion {
+    private final BlockStore store;
+    private final BlockStore.RecordRange range;
+    private long transferred;
+
+    /**
+     * Instantiates a new Block records region.
+     *
+     * @param store the block store
+     * @param range the range of records
+     */
+    BlockRecordsRegion(BlockStore store, BlockStore.RecordRange range) {
+        this.store = store;
+        this.range = range;
+    }
+
+    @Override
+    public long position() {
+        return 0;
+    }
+
+    @Override
+    @Deprecated
+    public long transfered() {
+        return this.transferred;
+    }
+
+    @Override
+    public long transferred() {
+        return this.transferred;
+    }
+
+    @Override
+    public long count() {
+        return this.range.getSize();
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target, long position) throws IOException {
+        long count = this.range.getSize() - position;
+        if (count < 0 || position < 0)
+            throw new IllegalArgumentException("position out of range: " + position + " (expected: 0 - " +
+                    (this.range.getSize() - 1) + ')');
+        if (count == 0)
+            return 0L;
+
+        long written = this.store.transferTo(this.range, position, count, target);
+        if (written > 0)
+            this.transferred += written;
+
+        return written;
+    }
+
+    @Override
+    public FileRegion retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public FileRegion retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public FileRegion touch() {
+        return this;
+    }
+
+    @Override
+    public FileRegion touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+    }
+}
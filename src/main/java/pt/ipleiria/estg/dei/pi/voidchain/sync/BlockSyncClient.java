@@ -1,27 +1,32 @@
 package pt.ipleiria.estg.dei.pi.voidchain.sync;
 
+import bftsmart.reconfiguration.views.View;
 import bftsmart.tom.ServiceProxy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
-import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Blockchain;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
 import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessage;
 import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessageType;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.TransactionIndex;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
-import pt.ipleiria.estg.dei.pi.voidchain.util.Storage;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MessageCodec;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 
+/**
+ * The Block sync client is responsible for downloading the blocks missing in disk from the block sync servers of the
+ * other nodes. The headers of the missing blocks are downloaded and checked first (see {@link HeaderChain}), then the
+ * blocks themselves (see {@link BlockDownloader}).
+ */
 public class BlockSyncClient {
     private static final Logger logger = LoggerFactory.getLogger(BlockSyncClient.class);
 
@@ -60,16 +65,21 @@ public class BlockSyncClient {
         if (highestBlockHeight == -1)
             return;
 
-        List<Integer> heightArray = Blockchain.getBlockFileHeightArray();
+        BlockStore blockStore = BlockStore.getInstance();
+        TransactionIndex transactionIndex = TransactionIndex.getInstance();
+        int highestBlockHeightDisk = blockStore.getHighestHeight();
 
-        if (allBlocks && heightArray != null)
-            Storage.cleanDirectory(Configuration.getInstance().getBlockFileDirectoryFull());
+        if (allBlocks && highestBlockHeightDisk != -1) {
+            blockStore.clear();
+            transactionIndex.clear();
+            highestBlockHeightDisk = -1;
+        }
 
         int top = highestBlockHeight;
-        if (heightArray == null) {
-            logger.warn("No block files in disk");
+        if (highestBlockHeightDisk == -1) {
+            logger.warn("No blocks in disk");
             allBlocks = true;
-        } else if (heightArray.get(heightArray.size() - 1) == highestBlockHeight) {
+        } else if (highestBlockHeightDisk >= highestBlockHeight) {
             logger.info("Highest block from network is equal to the highest block in disk");
             return;
         }
@@ -78,121 +88,247 @@ public class BlockSyncClient {
         if (allBlocks)
             bottom = 0;
         else
-            bottom = heightArray.get(heightArray.size() - 1) + 1;
+            bottom = highestBlockHeightDisk + 1;
 
         logger.info("Requesting [" + bottom + "," + top + "] blocks");
 
+        List<InetSocketAddress> peers = this.getPeers();
+        if (peers.isEmpty()) {
+            logger.error("There are no other replicas to sync from");
+            return;
+        }
+
+        this.download(peers, bottom, top);
+    }
+
+    /**
+     * Repairs the blocks stored in disk when the local chain is invalid, replacing only the blocks from the first one
+     * that differs from the chain of the network.
+     * <br>
+     * The blocks stored below the invalid block are linked to each other, so they match the chain of a block sync
+     * server up to some height and no further: that height is found by binary search, comparing the hashes of the
+     * stored blocks with the hashes of the headers of the server. The server is one of the servers that confirmed the
+     * highest block of the network (see {@link HeaderChain#confirm}), and the headers above that height must link to
+     * the blocks kept and up to the confirmed block. Only then are the blocks above it removed and downloaded again,
+     * so the blocks in disk are kept when the headers can't be downloaded.
+     *
+     * @param invalidHeight the height of the block found invalid, -1 if unknown
+     */
+    public void repair(int invalidHeight) {
+        logger.info("Attempting block repair" + (invalidHeight >= 0 ? ", block " + invalidHeight + " is invalid" : ""));
+
+        if (this.serviceProxy == null) {
+            logger.error("BFT-SMaRt service proxy is not defined");
+            return;
+        }
+
+        int highestBlockHeight;
+        try {
+            highestBlockHeight = this.getHighestBlockHeight();
+            logger.info("Highest block in the chain: " + highestBlockHeight);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error while retrieving highest block height in the chain", e);
+            return;
+        }
+        if (highestBlockHeight == -1)
+            return;
+
+        List<InetSocketAddress> peers = this.getPeers();
+        if (peers.isEmpty()) {
+            logger.error("There are no other replicas to repair from");
+            return;
+        }
+
         Configuration config = Configuration.getInstance();
+        HeaderChain.Confirmation confirmation = HeaderChain.confirm(peers, highestBlockHeight, this.getF(),
+                config.getBlockSyncTimeout(), config.getBlockSyncMaxBlockSize() * 1000000L);
+        if (confirmation == null) {
+            logger.error("Unable to confirm block " + highestBlockHeight + " with the other replicas, blocks in disk " +
+                    "were kept");
+            return;
+        }
 
-        int blockNum;
-        if (bottom == 0)
-            blockNum = top;
-        else
-            blockNum = top - bottom + 1;
+        BlockStore blockStore = BlockStore.getInstance();
+        TransactionIndex transactionIndex = TransactionIndex.getInstance();
+        int highestBlockHeightDisk = blockStore.getHighestHeight();
 
-        int[] processes = this.serviceProxy.getViewManager().getCurrentView().getProcesses();
-        Map<Long, InetAddress> pingTimesAdd = new TreeMap<>();
+        int limit = Math.min(highestBlockHeightDisk, highestBlockHeight);
+        if (invalidHeight >= 0)
+            limit = Math.min(limit, invalidHeight - 1);
 
-        for (int p : processes) {
-            if (p == this.serviceProxy.getViewManager().getStaticConf().getProcessId())
-                continue;
-            InetAddress address = this.serviceProxy.getViewManager().getCurrentView().getAddress(p).getAddress();
-            logger.info("Pinging replica " + p + " on " + address.toString());
+        int divergentHeight = -1;
+        HeaderChain headers = null;
+        for (InetSocketAddress peer : confirmation.getPeers()) {
             try {
-                long time = Instant.now().toEpochMilli();
-                // 2 second timeout
-                if (address.isReachable(2000)) {
-                    time = Instant.now().toEpochMilli() - time;
-                    logger.info("Pinged replica " + p + " in " + time + " milliseconds");
-                    pingTimesAdd.put(time, address);
-                } else
-                    logger.error("Replica " + p + " is unreachable");
-            } catch (IOException ioException) {
-                logger.error("Error while pinging replica " + p + " on " + address.toString());
+                divergentHeight = this.findDivergentHeight(peer, limit);
+            } catch (IOException e) {
+                logger.warn("Error while comparing blocks with " + peer + ": " + e);
+                continue;
             }
+
+            if (divergentHeight > highestBlockHeight)
+                break;
+
+            // A server that sent a wrong height is found out here, the headers wouldn't link to the blocks kept
+            headers = this.downloadHeaders(peers, divergentHeight, confirmation);
+            if (headers != null)
+                break;
+
+            logger.warn("Unable to download the headers above block " + (divergentHeight - 1) + ", found with " +
+                    peer);
+            divergentHeight = -1;
         }
 
-        if (pingTimesAdd.size() == 0)
+        if (divergentHeight == -1) {
+            logger.error("Unable to compare the blocks in disk with the confirmed chain, blocks in disk were kept");
             return;
+        }
+
+        logger.info("Blocks in disk diverge from the chain at block " + divergentHeight + ", replacing blocks [" +
+                divergentHeight + "," + highestBlockHeight + "]");
+
+        if (divergentHeight == 0) {
+            blockStore.clear();
+            transactionIndex.clear();
+        } else {
+            for (int h = highestBlockHeightDisk; h >= divergentHeight; h--)
+                this.removeBlock(blockStore, transactionIndex, h);
+        }
+
+        if (headers != null)
+            this.downloadBlocks(peers, headers);
+    }
 
-        ArrayList<Long> pingTimes = new ArrayList<>(pingTimesAdd.keySet());
-        pingTimes.sort(Long::compare);
+    /**
+     * Finds the lowest block stored in disk that is not part of the chain of a block sync server, by binary search
+     * over the hashes of its headers.
+     *
+     * @param peer  the address of the block sync server
+     * @param limit the height of the highest block known to be linked to the blocks below it
+     * @return the height of the lowest divergent block (limit + 1 if all blocks match)
+     * @throws IOException io exception will be thrown if the headers couldn't be downloaded
+     */
+    private int findDivergentHeight(InetSocketAddress peer, int limit) throws IOException {
+        Configuration config = Configuration.getInstance();
+        int timeout = config.getBlockSyncTimeout();
+        long maxBlockSize = config.getBlockSyncMaxBlockSize() * 1000000L;
+        int low = 0;
+        int high = limit + 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            byte[] storedHash = HeaderChain.getStoredHash(middle);
+
+            if (storedHash != null && Arrays.equals(storedHash, HeaderChain.downloadHash(peer, middle, timeout,
+                    maxBlockSize)))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
 
-        InetSocketAddress add = new InetSocketAddress(pingTimesAdd.get(pingTimes.get(0)), config.getBlockSyncPort());
+    private void removeBlock(BlockStore blockStore, TransactionIndex transactionIndex, int height) {
+        if (!blockStore.contains(height))
+            return;
 
-        logger.info("Lowest ping replica (ip: " + pingTimesAdd.get(pingTimes.get(0)) +
-                ", ping time: " + pingTimes.get(0) + ")");
-        Socket s;
         try {
-            s = new Socket(add.getAddress(), config.getBlockSyncPort());
+            List<byte[]> transactionHashes = new ArrayList<>();
+            BlockchainCodec.decodeBlockSummary(blockStore.readBytes(height), transactionHashes);
+            transactionIndex.remove(height, transactionHashes);
         } catch (IOException e) {
-            logger.error("Error while opening socket to server", e);
-            return;
+            logger.warn("Unable to read block " + height + ", its transactions are kept in the index: " + e);
         }
-        ObjectOutputStream objOut = null;
-        ObjectInputStream objIn = null;
-        try {
-            objOut = new ObjectOutputStream(s.getOutputStream());
-            objIn = new ObjectInputStream(s.getInputStream());
 
-            objOut.writeInt(bottom);
-            objOut.writeInt(top);
+        blockStore.remove(height);
+    }
 
-            objOut.flush();
-        } catch (IOException e) {
-            logger.error("Error", e);
-            try {
-                objIn.close();
-                objOut.close();
-                s.close();
-            } catch (IOException ioException) {
-                logger.error("Unable to close socket to server", ioException);
-            }
+    /**
+     * Downloads the headers of an interval of blocks and then the blocks.
+     *
+     * @param peers  the addresses of the block sync servers
+     * @param bottom the height of the lowest block
+     * @param top    the height of the highest block
+     */
+    private void download(List<InetSocketAddress> peers, int bottom, int top) {
+        Configuration config = Configuration.getInstance();
+        HeaderChain.Confirmation confirmation = HeaderChain.confirm(peers, top, this.getF(),
+                config.getBlockSyncTimeout(), config.getBlockSyncMaxBlockSize() * 1000000L);
+        if (confirmation == null) {
+            logger.error("Unable to confirm block " + top + " with the other replicas, blocks were not synced");
             return;
         }
 
-        for (int i = 0; i < blockNum; i++) {
-            Block b;
-            try {
-                b = (Block) objIn.readObject();
-                if (b == null)
-                    throw new IllegalArgumentException();
-
-                logger.info("Received Block " + b.getBlockHeight());
-                b.toDisk();
-            } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
-                logger.error("Error while retrieving block from server", e);
-                break;
-            }
+        // Headers first, blocks are only downloaded if the chain is valid
+        HeaderChain headers = this.downloadHeaders(peers, bottom, confirmation);
+        if (headers == null) {
+            logger.error("Unable to download a valid header chain, blocks were not synced");
+            return;
         }
 
-        try {
-            objIn.close();
-            objOut.close();
-            s.close();
-            logger.debug("Server socket closed");
-        } catch (IOException e) {
-            logger.error("Unable to close socket to server", e);
+        this.downloadBlocks(peers, headers);
+    }
+
+    /**
+     * Downloads the headers of an interval of blocks, linked to the block stored below the interval and up to a
+     * confirmed block.
+     *
+     * @param peers        the addresses of the block sync servers
+     * @param bottom       the height of the lowest block
+     * @param confirmation the confirmed hash of the highest block
+     * @return the header chain or null if it couldn't be downloaded
+     */
+    private HeaderChain downloadHeaders(List<InetSocketAddress> peers, int bottom,
+                                        HeaderChain.Confirmation confirmation) {
+        byte[] previousHash = null;
+        if (bottom > 0) {
+            previousHash = HeaderChain.getStoredHash(bottom - 1);
+            if (previousHash == null)
+                logger.warn("Unable to read block " + (bottom - 1) + ", downloaded headers will not be linked to it");
         }
+
+        Configuration config = Configuration.getInstance();
+        return HeaderChain.download(peers, bottom, confirmation, previousHash, config.getBlockSyncTimeout(),
+                config.getBlockSyncMaxBlockSize() * 1000000L);
     }
 
-    private int getHighestBlockHeight() throws IOException {
-        logger.info("Retrieving highest block in the chain from network");
+    private void downloadBlocks(List<InetSocketAddress> peers, HeaderChain headers) {
+        Configuration config = Configuration.getInstance();
+        new BlockDownloader(config.getBlockSyncChunkSize(), config.getBlockSyncTimeout(),
+                config.getBlockSyncMaxBlockSize() * 1000000L, headers).download(peers);
+    }
 
-        ClientMessage cm = new ClientMessage(ClientMessageType.GET_MOST_RECENT_BLOCK_HEIGHT);
+    /**
+     * Gets the addresses of the block sync servers of the other replicas in the current view.
+     * Replicas running on the same machine share a single address.
+     *
+     * @return the block sync server addresses
+     */
+    private List<InetSocketAddress> getPeers() {
+        int port = Configuration.getInstance().getBlockSyncPort();
+        View view = this.serviceProxy.getViewManager().getCurrentView();
+        int id = this.serviceProxy.getViewManager().getStaticConf().getProcessId();
+        Set<InetSocketAddress> peers = new LinkedHashSet<>();
+
+        for (int p : view.getProcesses()) {
+            if (p != id)
+                peers.add(new InetSocketAddress(view.getAddress(p).getAddress(), port));
+        }
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        ObjectOutput objOut = new ObjectOutputStream(byteOut);
+        return new ArrayList<>(peers);
+    }
 
-        objOut.writeObject(cm);
+    private int getF() {
+        return this.serviceProxy.getViewManager().getCurrentView().getF();
+    }
 
-        objOut.flush();
-        byteOut.flush();
+    private int getHighestBlockHeight() throws IOException {
+        logger.info("Retrieving highest block in the chain from network");
 
-        byte[] reply = this.serviceProxy.invokeUnordered(byteOut.toByteArray());
+        ClientMessage cm = new ClientMessage(ClientMessageType.GET_MOST_RECENT_BLOCK_HEIGHT);
 
-        objOut.close();
-        byteOut.close();
+        byte[] reply = this.serviceProxy.invokeUnordered(MessageCodec.encode(cm));
 
         if (reply == null ||reply.length == 0) {
             logger.error("Empty reply from replicas");
@@ -1,156 +1,120 @@
 package pt.ipleiria.estg.dei.pi.voidchain.sync;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Block sync server is a service that is responsible for sending block files located in disk to other nodes
  * in order to maintain synchronicity between nodes.
+ * <br>
+ * The server is non-blocking (Netty, NIO) and serves many clients at the same time, each one in its own
+ * {@link BlockSyncSession}. Blocks are read by a separate group of threads, so reading from disk never delays the
+ * network threads, and kept in a {@link SyncBlockCache} shared by all the sessions. In raw mode, blocks are sent
+ * straight from the block store files (zero-copy), without being read by the server.
  */
 public class BlockSyncServer {
+    /**
+     * The constant REQUEST_TIMEOUT stores the max time (in seconds) a client has to send its request after connecting.
+     */
+    public static final int REQUEST_TIMEOUT = 30;
+
     private static final Logger logger = LoggerFactory.getLogger(BlockSyncServer.class);
 
-    private ServerSocket serverSocket;
-    private boolean running;
-    private Thread thread;
-    private boolean stop;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private EventExecutorGroup sessionGroup;
+    private SyncBlockCache cache;
+    private Channel serverChannel;
+    private volatile boolean running;
 
     /**
-     * This will start a new thread to execute the server and wait for client connections.
+     * This will start the server and wait for client connections, without blocking the caller.
      */
-    public void run() {
+    public synchronized void run() {
         if (running)
             return;
 
         logger.info("Block Sync server is starting.");
-        this.thread = new Thread(this::execute);
-        this.thread.start();
-    }
-
-    private void execute() {
         Configuration config = Configuration.getInstance();
 
+        int sessionBuffer = config.getBlockSyncSessionBuffer() * 1000;
+        this.cache = new SyncBlockCache(config.getBlockSyncCacheSize() * 1000000L);
+        this.bossGroup = new NioEventLoopGroup(1);
+        this.workerGroup = new NioEventLoopGroup();
+        this.sessionGroup = new DefaultEventExecutorGroup(config.getBlockSyncThreads());
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(this.bossGroup, this.workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(sessionBuffer / 2, sessionBuffer))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ReadTimeoutHandler(REQUEST_TIMEOUT));
+                        ch.pipeline().addLast(new BlockSyncSession.RequestDecoder());
+                        ch.pipeline().addLast(sessionGroup, new BlockSyncSession(cache, activeSessions));
+                    }
+                });
+
         try {
-            this.serverSocket = new ServerSocket(config.getBlockSyncPort());
-        } catch (IOException e) {
+            this.serverChannel = bootstrap.bind(config.getBlockSyncPort()).syncUninterruptibly().channel();
+        } catch (Exception e) {
             logger.error("Error while starting Server socket", e);
             logger.error("Block sync server not working");
+            this.shutdownGroups();
             return;
         }
 
         this.running = true;
-        this.stop = false;
         logger.info("Block Sync Server Running");
-
-        while (true) {
-            if (stop || !running) {
-                this.stop = false;
-                this.running = false;
-                break;
-            }
-
-            Socket s;
-            try {
-                s = this.serverSocket.accept();
-                logger.info("Accepted client with ip: " + s.getInetAddress());
-            } catch (IOException e) {
-                logger.error("Error while accepting client", e);
-                continue;
-            }
-
-            ObjectOutputStream objOut;
-            ObjectInputStream objIn;
-
-            int bottom;
-            int top;
-
-            try {
-                objOut = new ObjectOutputStream(s.getOutputStream());
-                objIn = new ObjectInputStream(s.getInputStream());
-
-                bottom = objIn.readInt();
-                top = objIn.readInt();
-                logger.info("Read interval of blocks to send [" + bottom + "," + top + "]");
-            } catch (IOException e) {
-                logger.error("Error", e);
-                try {
-                    s.close();
-                    continue;
-                } catch (IOException ioException) {
-                    logger.error("Error while closing client socket", ioException);
-                    continue;
-                }
-            }
-
-            for (int i = top; i >= bottom; i--) {
-                try {
-                    logger.info("Sending block " + i + " to client");
-                    objOut.writeObject(Block.fromDisk(i));
-                    objOut.flush();
-                } catch (IOException | ClassNotFoundException e) {
-                    logger.error("Error while trying to retrieve block", e);
-                    try {
-                        objOut.writeObject(null);
-                    } catch (IOException ioException) {
-                        logger.error("Unable to write null to client after error", ioException);
-                    }
-                    break;
-                }
-            }
-
-            try {
-                logger.info("Order completed, closing connection");
-                objIn.close();
-                objOut.flush();
-                objOut.close();
-                s.close();
-            } catch (IOException e) {
-                logger.error("Error while closing client socket", e);
-            }
-        }
-
-        try {
-            this.serverSocket.close();
-        } catch (IOException ioException) {
-            ioException.printStackTrace();
-            logger.error("Error while closing server socket", ioException);
-        }
     }
 
     /**
      * This will stop the the server from receiving any more client connections and shutdown the execution.
+     * Sessions in progress are closed.
      */
-    public void stop() {
+    public synchronized void stop() {
         if (running) {
             logger.info("Stopping Block Sync server");
-            try {
-                this.stop = true;
-                this.serverSocket.close();
-                this.running = false;
-                this.thread.join();
-                this.thread = null;
-                logger.info("Block Sync server has stopped");
-            } catch (IOException e) {
-                logger.error("Unable to stop the service", e);
-            } catch (InterruptedException e) {
-                logger.error("Error while joining threads", e);
-            }
+            this.serverChannel.close().syncUninterruptibly();
+            this.shutdownGroups();
+            this.running = false;
+            logger.debug(this.cache.toString());
+            logger.info("Block Sync server has stopped");
         }
     }
 
+    private void shutdownGroups() {
+        this.bossGroup.shutdownGracefully().syncUninterruptibly();
+        this.workerGroup.shutdownGracefully().syncUninterruptibly();
+        this.sessionGroup.shutdownGracefully().syncUninterruptibly();
+    }
+
     /**
      * This will stop the execution of the server and restart it right after.
      */
-    public void restart() {
+    public synchronized void restart() {
         if (running) {
             logger.info("Block Sync server restarting");
             this.stop();
@@ -167,4 +131,13 @@ public class BlockSyncServer {
     public boolean isRunning() {
         return running;
     }
+
+    /**
+     * Gets the number of clients being synchronized.
+     *
+     * @return the number of active sessions
+     */
+    public int getActiveSessions() {
+        return this.activeSessions.get();
+    }
 }
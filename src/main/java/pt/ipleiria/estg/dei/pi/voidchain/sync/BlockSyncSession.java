@@ -0,0 +1,288 @@
+package pt.ipleiria.estg.dei.pi.voidchain.sync;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Block sync session sends an interval of blocks to one client of the {@link BlockSyncServer}.
+ * <br>
+ * The client sends the interval ([bottom, top], two ints) and the session sends the blocks, from top to bottom, each
+ * one as its length (int) followed by its encoded data. A length of 0 means the server was unable to send the next
+ * block and ends the session.
+ * <br>
+ * In raw mode (the request starts with {@link #RAW_REQUEST}) the blocks are sent from bottom to top, as stored in the
+ * block store: the height (int) and length (int) followed by the data of each block. Consecutive records of the same
+ * segment file are sent at once, straight from the file to the socket, without reading them into memory (see
+ * {@link BlockRecordsRegion}). A length of 0 means the server was unable to send the block.
+ * <br>
+ * In headers mode (the request starts with {@link #HEADERS_REQUEST}) only the headers of the blocks are sent, from
+ * bottom to top, each one as its length (int) followed by the encoded block without transactions. Clients download
+ * and check the header chain before downloading the blocks.
+ * <br>
+ * Blocks are only read while the channel is writable, when the data queued for the client reaches the session buffer
+ * size the session pauses until the client reads it. This way a slow client only holds its own buffer, and the
+ * threads reading blocks are free to serve the other sessions.
+ */
+class BlockSyncSession extends ChannelInboundHandlerAdapter {
+    /**
+     * The constant RAW_REQUEST stores the first int of a raw mode request (followed by the bottom and top heights).
+     */
+    static final int RAW_REQUEST = -1;
+    /**
+     * The constant HEADERS_REQUEST stores the first int of a headers mode request (followed by the bottom and top
+     * heights).
+     */
+    static final int HEADERS_REQUEST = -2;
+    /**
+     * The constant MAX_RECORDS_REGION stores the max number of blocks sent at once in raw mode.
+     */
+    static final int MAX_RECORDS_REGION = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockSyncSession.class);
+
+    private final SyncBlockCache cache;
+    private final AtomicInteger activeSessions;
+
+    private Mode mode;
+    private int bottom;
+    private int top;
+    private int next;
+    private boolean started;
+    private boolean completed;
+    private int sentBlocks;
+    private long sentBytes;
+    private long startTime;
+
+    /**
+     * Instantiates a new Block sync session.
+     *
+     * @param cache          the cache shared by the sessions
+     * @param activeSessions the counter of active sessions of the server
+     */
+    BlockSyncSession(SyncBlockCache cache, AtomicInteger activeSessions) {
+        this.cache = cache;
+        this.activeSessions = activeSessions;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (this.started)
+            return;
+
+        Request request = (Request) msg;
+        this.mode = request.mode;
+        this.bottom = request.bottom;
+        this.top = request.top;
+        this.next = this.mode == Mode.ENCODED ? this.top : this.bottom;
+
+        this.started = true;
+        this.startTime = System.currentTimeMillis();
+        ctx.pipeline().remove(ReadTimeoutHandler.class);
+
+        logger.info("Client " + ctx.channel().remoteAddress() + " requested blocks [" + this.bottom + "," + this.top +
+                "]" + (this.mode != Mode.ENCODED ? " in " + this.mode.name().toLowerCase() + " mode" : "") +
+                " (" + this.activeSessions.incrementAndGet() + " active sessions)");
+
+        if (this.bottom < 0 || this.bottom > this.top) {
+            logger.error("Invalid interval of blocks requested by " + ctx.channel().remoteAddress());
+            this.fail(ctx);
+            return;
+        }
+
+        this.sendBlocks(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (this.started && !this.completed && ctx.channel().isWritable())
+            this.sendBlocks(ctx);
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (this.started) {
+            this.activeSessions.decrementAndGet();
+
+            if (!this.completed)
+                logger.warn("Client " + ctx.channel().remoteAddress() + " disconnected after " + this.sentBlocks +
+                        " blocks");
+        }
+
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof ReadTimeoutException)
+            logger.warn("Client " + ctx.channel().remoteAddress() + " didn't send a request, closing connection");
+        else
+            logger.error("Error in block sync session with " + ctx.channel().remoteAddress(), cause);
+        ctx.close();
+    }
+
+    private void sendBlocks(ChannelHandlerContext ctx) {
+        boolean sent;
+        switch (this.mode) {
+            case RAW:
+                sent = this.sendRecords(ctx);
+                break;
+            case HEADERS:
+                sent = this.sendHeaders(ctx);
+                break;
+            default:
+                sent = this.sendEncodedBlocks(ctx);
+        }
+        if (!sent)
+            return;
+
+        if (this.mode == Mode.ENCODED ? this.next >= this.bottom : this.next <= this.top) {
+            ctx.flush();
+            return;
+        }
+
+        this.completed = true;
+        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+
+        logger.info("Order completed, sent " + this.sentBlocks + " blocks (" + this.sentBytes + " bytes) to " +
+                ctx.channel().remoteAddress() + " in " + (System.currentTimeMillis() - this.startTime) + " ms");
+    }
+
+    private boolean sendEncodedBlocks(ChannelHandlerContext ctx) {
+        while (this.next >= this.bottom && ctx.channel().isWritable()) {
+            byte[] data;
+            try {
+                data = this.cache.read(this.next);
+            } catch (IOException e) {
+                logger.error("Error while trying to retrieve block " + this.next, e);
+                this.fail(ctx);
+                return false;
+            }
+
+            logger.debug("Sending block " + this.next + " to client");
+            ctx.write(Unpooled.copyInt(data.length));
+            ctx.write(Unpooled.wrappedBuffer(data));
+
+            this.next--;
+            this.sentBlocks++;
+            this.sentBytes += Integer.BYTES + data.length;
+        }
+
+        return true;
+    }
+
+    private boolean sendHeaders(ChannelHandlerContext ctx) {
+        while (this.next <= this.top && ctx.channel().isWritable()) {
+            byte[] data;
+            try {
+                data = this.cache.readHeader(this.next);
+            } catch (IOException e) {
+                logger.error("Error while trying to retrieve header of block " + this.next, e);
+                this.fail(ctx);
+                return false;
+            }
+
+            ctx.write(Unpooled.copyInt(data.length));
+            ctx.write(Unpooled.wrappedBuffer(data));
+
+            this.next++;
+            this.sentBlocks++;
+            this.sentBytes += Integer.BYTES + data.length;
+        }
+
+        return true;
+    }
+
+    private boolean sendRecords(ChannelHandlerContext ctx) {
+        BlockStore store = BlockStore.getInstance();
+
+        while (this.next <= this.top && ctx.channel().isWritable()) {
+            BlockStore.RecordRange range = store.getRecordRange(this.next,
+                    (int) Math.min(this.top, (long) this.next + MAX_RECORDS_REGION - 1));
+
+            if (range == null) {
+                logger.error("Error while trying to retrieve block " + this.next + ", it is not in the block store");
+                ctx.write(Unpooled.copyInt(this.next));
+                this.fail(ctx);
+                return false;
+            }
+
+            logger.debug("Sending blocks [" + this.next + "," + (this.next + range.getCount() - 1) + "] to client");
+            ctx.write(new BlockRecordsRegion(store, range));
+
+            this.next += range.getCount();
+            this.sentBlocks += range.getCount();
+            this.sentBytes += range.getSize();
+        }
+
+        return true;
+    }
+
+    private void fail(ChannelHandlerContext ctx) {
+        this.completed = true;
+        ctx.writeAndFlush(Unpooled.copyInt(0)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * The modes of a sync session.
+     */
+    private enum Mode {
+        ENCODED,
+        RAW,
+        HEADERS
+    }
+
+    /**
+     * A sync request, the interval of blocks wanted by the client.
+     */
+    static final class Request {
+        private final Mode mode;
+        private final int bottom;
+        private final int top;
+
+        private Request(Mode mode, int bottom, int top) {
+            this.mode = mode;
+            this.bottom = bottom;
+            this.top = top;
+        }
+    }
+
+    /**
+     * The Request decoder reads the sync request of the client, in any mode.
+     */
+    static final class RequestDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (in.readableBytes() < Integer.BYTES * 2)
+                return;
+
+            int first = in.getInt(in.readerIndex());
+            if (first != RAW_REQUEST && first != HEADERS_REQUEST) {
+                out.add(new Request(Mode.ENCODED, in.readInt(), in.readInt()));
+                return;
+            }
+
+            if (in.readableBytes() < Integer.BYTES * 3)
+                return;
+
+            in.skipBytes(Integer.BYTES);
+            out.add(new Request(first == RAW_REQUEST ? Mode.RAW : Mode.HEADERS, in.readInt(), in.readInt()));
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package pt.ipleiria.estg.dei.pi.voidchain.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockNoTransactions;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Header chain is the chain of the hashes of an interval of blocks, downloaded from the block sync servers (in
+ * headers mode, see {@link BlockSyncSession}) before the blocks themselves.
+ * <br>
+ * The hash of the highest block is confirmed first: f + 1 servers must send the same one, so at least one correct
+ * server agrees with it. Headers are checked as they are received: each one must have the expected height and link to
+ * the previous one (previous block hash), the first one to the highest block stored, and the highest one must have the
+ * confirmed hash, which confirms the whole chain. When a server fails the download goes on from another server, from
+ * the last header checked.
+ * <br>
+ * Blocks downloaded afterwards only have to match the hash of their header (see {@link BlockDownloader}), so they can
+ * be checked in any order, as soon as they are received.
+ */
+class HeaderChain {
+    private static final Logger logger = LoggerFactory.getLogger(HeaderChain.class);
+
+    private final int bottom;
+    private final int top;
+    private final byte[][] hashes;
+    private int next;
+
+    /* Constructors */
+
+    private HeaderChain(int bottom, int top) {
+        this.bottom = bottom;
+        this.top = top;
+        this.hashes = new byte[top - bottom + 1][];
+        this.next = bottom;
+    }
+
+    /* Methods */
+
+    /**
+     * Asks the block sync servers for the hash of a block, until f + 1 of them send the same hash. At most f servers
+     * are faulty, so at least one correct server sent it.
+     * <br>
+     * When there are fewer servers than f + 1 (replicas running on the same machine share a single server), all of
+     * them must send the same hash.
+     *
+     * @param peers        the addresses of the block sync servers
+     * @param height       the block height
+     * @param f            the max number of faulty replicas
+     * @param timeout      the max time (in millis) waiting for data from a server
+     * @param maxBlockSize the max size (in bytes) of a header sent by a server
+     * @return the confirmed hash and the servers that sent it or null if it couldn't be confirmed
+     */
+    static Confirmation confirm(List<InetSocketAddress> peers, int height, int f, int timeout, long maxBlockSize) {
+        int required = Math.min(f + 1, peers.size());
+        Map<ByteBuffer, List<InetSocketAddress>> answers = new HashMap<>();
+
+        for (InetSocketAddress peer : peers) {
+            byte[] hash;
+            try {
+                hash = downloadHash(peer, height, timeout, maxBlockSize);
+            } catch (IOException e) {
+                logger.warn("Unable to get header " + height + " from block sync server " + peer + ": " + e);
+                continue;
+            }
+
+            List<InetSocketAddress> servers = answers.computeIfAbsent(ByteBuffer.wrap(hash), k -> new ArrayList<>());
+            servers.add(peer);
+            if (servers.size() >= required) {
+                if (answers.size() > 1)
+                    logger.warn("Block sync servers sent " + answers.size() + " different headers " + height +
+                            ", using the one sent by " + servers);
+
+                return new Confirmation(height, hash, servers);
+            }
+        }
+
+        logger.error("Header " + height + " couldn't be confirmed by " + required + " block sync servers, " +
+                answers.size() + " different headers received");
+
+        return null;
+    }
+
+    /**
+     * Downloads and checks the headers of an interval of blocks, up to a confirmed block. The headers are downloaded
+     * from the servers that confirmed the block first.
+     *
+     * @param peers        the addresses of the block sync servers
+     * @param bottom       the height of the lowest block
+     * @param confirmation the confirmed hash of the highest block
+     * @param previousHash the hash of the block below the interval (null if unknown)
+     * @param timeout      the max time (in millis) waiting for data from a server
+     * @param maxBlockSize the max size (in bytes) of a header sent by a server
+     * @return the header chain or null if it couldn't be downloaded
+     */
+    static HeaderChain download(List<InetSocketAddress> peers, int bottom, Confirmation confirmation,
+                                byte[] previousHash, int timeout, long maxBlockSize) {
+        long start = System.currentTimeMillis();
+        int top = confirmation.getHeight();
+        HeaderChain chain = new HeaderChain(bottom, top);
+
+        Set<InetSocketAddress> servers = new LinkedHashSet<>(confirmation.getPeers());
+        servers.addAll(peers);
+
+        for (InetSocketAddress peer : servers) {
+            if (chain.next > top)
+                break;
+
+            int from = chain.next;
+
+            try {
+                chain.fetch(peer, from > bottom ? chain.getHash(from - 1) : previousHash, confirmation.getHash(),
+                        timeout, maxBlockSize);
+            } catch (HeaderLinkException e) {
+                // Headers sent by this server are not trusted, even the ones that linked
+                logger.error("Invalid headers received from block sync server " + peer + ": " + e.getMessage());
+                chain.next = from;
+            } catch (IOException e) {
+                // Headers already checked are kept, the next server sends the rest
+                logger.warn("Error while downloading headers from " + peer + ": " + e);
+            }
+        }
+
+        if (chain.next <= top) {
+            logger.error("Unable to download headers [" + chain.next + "," + top + "]");
+            return null;
+        }
+
+        logger.info("Downloaded headers [" + bottom + "," + top + "] in " + (System.currentTimeMillis() - start) +
+                " ms");
+
+        return chain;
+    }
+
+    /**
+     * Downloads the hash of a block from a block sync server, from its header.
+     *
+     * @param peer         the address of the block sync server
+     * @param height       the block height
+     * @param timeout      the max time (in millis) waiting for data from the server
+     * @param maxBlockSize the max size (in bytes) of a header sent by the server
+     * @return the block hash
+     * @throws IOException io exception will be thrown if the header couldn't be downloaded
+     */
+    static byte[] downloadHash(InetSocketAddress peer, int height, int timeout, long maxBlockSize)
+            throws IOException {
+        HeaderChain chain = new HeaderChain(height, height);
+        chain.fetch(peer, null, null, timeout, maxBlockSize);
+
+        return chain.getHash(height);
+    }
+
+    /**
+     * Gets the hash of a block stored in the block store.
+     *
+     * @param height the block height
+     * @return the block hash or null if the block is not stored or can't be read
+     */
+    static byte[] getStoredHash(int height) {
+        BlockStore blockStore = BlockStore.getInstance();
+        if (!blockStore.contains(height))
+            return null;
+
+        try {
+            return BlockchainCodec.decodeBlockSummary(blockStore.readBytes(height), new ArrayList<>()).getHash();
+        } catch (IOException e) {
+            logger.warn("Unable to read block " + height, e);
+            return null;
+        }
+    }
+
+    private void fetch(InetSocketAddress peer, byte[] previousHash, byte[] topHash, int timeout, long maxBlockSize)
+            throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(peer, timeout);
+            s.setSoTimeout(timeout);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+            out.writeInt(BlockSyncSession.HEADERS_REQUEST);
+            out.writeInt(this.next);
+            out.writeInt(this.top);
+            out.flush();
+
+            for (int h = this.next; h <= this.top; h++) {
+                int length = in.readInt();
+                if (length <= 0)
+                    throw new IOException("Server was unable to send header " + h);
+                // The length is sent by the server, it is checked before allocating the header
+                if (length > maxBlockSize)
+                    throw new IOException("Server sent header " + h + " of " + length + " bytes, above the max " +
+                            "block size");
+
+                byte[] data = new byte[length];
+                in.readFully(data);
+
+                BlockNoTransactions header = BlockchainCodec.decodeBlockNoTransactions(data);
+                if (header.getBlockHeight() != h)
+                    throw new HeaderLinkException("Server sent header " + header.getBlockHeight() +
+                            " instead of header " + h);
+                if (previousHash != null && !Arrays.equals(header.getPreviousBlockHash(), previousHash))
+                    throw new HeaderLinkException("Header " + h + " doesn't link to block " + (h - 1));
+
+                previousHash = header.getHash();
+                if (h == this.top && topHash != null && !Arrays.equals(previousHash, topHash))
+                    throw new HeaderLinkException("Header " + h + " doesn't match the confirmed header");
+
+                this.hashes[h - this.bottom] = previousHash;
+                this.next = h + 1;
+            }
+        }
+    }
+
+    /**
+     * Gets the hash of a block of the chain.
+     *
+     * @param height the block height
+     * @return the block hash
+     */
+    byte[] getHash(int height) {
+        return this.hashes[height - this.bottom];
+    }
+
+    /**
+     * Gets the height of the lowest block of the chain.
+     *
+     * @return the height of the lowest block
+     */
+    int getBottom() {
+        return this.bottom;
+    }
+
+    /**
+     * Gets the height of the highest block of the chain.
+     *
+     * @return the height of the highest block
+     */
+    int getTop() {
+        return this.top;
+    }
+
+    /**
+     * The hash of a block confirmed by f + 1 block sync servers and the servers that sent it.
+     */
+    static class Confirmation {
+        private final int height;
+        private final byte[] hash;
+        private final List<InetSocketAddress> peers;
+
+        private Confirmation(int height, byte[] hash, List<InetSocketAddress> peers) {
+            this.height = height;
+            this.hash = hash;
+            this.peers = peers;
+        }
+
+        /**
+         * Gets the height of the confirmed block.
+         *
+         * @return the block height
+         */
+        int getHeight() {
+            return this.height;
+        }
+
+        /**
+         * Gets the confirmed hash of the block.
+         *
+         * @return the block hash
+         */
+        byte[] getHash() {
+            return this.hash;
+        }
+
+        /**
+         * Gets the addresses of the block sync servers that sent the confirmed hash.
+         *
+         * @return the block sync server addresses
+         */
+        List<InetSocketAddress> getPeers() {
+            return this.peers;
+        }
+    }
+
+    /**
+     * Thrown when a server sends a header that doesn't follow the chain.
+     */
+    private static class HeaderLinkException extends IOException {
+        private HeaderLinkException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package pt.ipleiria.estg.dei.pi.voidchain.sync;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.BlockStore;
+import pt.ipleiria.estg.dei.pi.voidchain.storage.EvictionPolicy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Sync block cache keeps the encoded data of the blocks recently sent by the {@link BlockSyncServer}, shared by
+ * all the sync sessions. Nodes restarted together request the same blocks, this way each block is read from the
+ * block store once instead of once per node.
+ * <br>
+ * Blocks are kept up to a max size (in bytes) and evicted in least recently used order. The encoded headers of the
+ * blocks (sent to the clients downloading the header chain) are kept apart, up to {@link #MAX_HEADERS}. The cache is
+ * emptied when blocks are replaced or removed from the block store.
+ */
+class SyncBlockCache {
+    /**
+     * The constant MAX_HEADERS stores the max number of block headers in the cache.
+     */
+    static final int MAX_HEADERS = 100000;
+
+    /* Attributes */
+    private final Map<Integer, byte[]> blocks;
+    private final Map<Integer, byte[]> headers;
+    private final EvictionPolicy policy;
+    private final long maxSize;
+    private long size;
+
+    private BlockStore store;
+    private long storeModificationCount;
+
+    private long hits;
+    private long misses;
+
+    /* Constructors */
+
+    /**
+     * Instantiates a new Sync block cache.
+     *
+     * @param maxSize the max size of the blocks in the cache (in bytes)
+     */
+    SyncBlockCache(long maxSize) {
+        this.blocks = new HashMap<>();
+        this.headers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return this.size() > MAX_HEADERS;
+            }
+        };
+        this.policy = EvictionPolicy.forName(EvictionPolicy.LRU);
+        this.maxSize = maxSize;
+        this.size = 0;
+    }
+
+    /* Methods */
+
+    /**
+     * Reads the encoded data of a block, from the cache or from the block store.
+     * Blocks stored by previous versions of the store (Java serialized) are encoded with the {@link BlockchainCodec}.
+     *
+     * @param height the block height
+     * @return the block data
+     * @throws IOException io exception will be thrown if the block is not stored or can't be read
+     */
+    byte[] read(int height) throws IOException {
+        BlockStore store = BlockStore.getInstance();
+
+        synchronized (this) {
+            this.checkStore(store);
+
+            byte[] data = this.blocks.get(height);
+            if (data != null) {
+                this.hits++;
+                this.policy.accessed(height);
+                return data;
+            }
+
+            this.misses++;
+        }
+
+        // Read outside the lock, sessions missing different blocks read them concurrently
+        byte[] data = store.readBytes(height);
+        if (BlockchainCodec.isJavaSerialized(data))
+            data = BlockchainCodec.encodeBlock(BlockchainCodec.decodeBlock(data));
+
+        synchronized (this) {
+            if (store == this.store && store.getModificationCount() == this.storeModificationCount)
+                this.put(height, data);
+        }
+
+        return data;
+    }
+
+    /**
+     * Reads the encoded header of a block, as a block without transactions (see
+     * {@link BlockchainCodec#encodeBlockNoTransactions}), from the cache or from the block store.
+     *
+     * @param height the block height
+     * @return the encoded block without transactions
+     * @throws IOException io exception will be thrown if the block is not stored or can't be read
+     */
+    byte[] readHeader(int height) throws IOException {
+        BlockStore store = BlockStore.getInstance();
+
+        synchronized (this) {
+            this.checkStore(store);
+
+            byte[] data = this.headers.get(height);
+            if (data != null) {
+                this.hits++;
+                return data;
+            }
+
+            this.misses++;
+        }
+
+        byte[] data = BlockchainCodec.encodeBlockNoTransactions(BlockchainCodec.decodeBlockSummary(
+                store.readBytes(height), new ArrayList<>()));
+
+        synchronized (this) {
+            if (store == this.store && store.getModificationCount() == this.storeModificationCount)
+                this.headers.put(height, data);
+        }
+
+        return data;
+    }
+
+    private void checkStore(BlockStore store) {
+        long modificationCount = store.getModificationCount();
+        if (store != this.store || modificationCount != this.storeModificationCount) {
+            this.clear();
+            this.store = store;
+            this.storeModificationCount = modificationCount;
+        }
+    }
+
+    private void put(int height, byte[] data) {
+        if (data.length > this.maxSize)
+            return;
+
+        byte[] previous = this.blocks.put(height, data);
+        if (previous != null) {
+            this.size -= previous.length;
+            this.policy.removed(height);
+        }
+
+        this.size += data.length;
+        this.policy.inserted(height, data.length);
+
+        while (this.size > this.maxSize) {
+            int victim = this.policy.victim();
+            if (victim == -1)
+                break;
+
+            this.size -= this.blocks.remove(victim).length;
+            this.policy.removed(victim);
+        }
+    }
+
+    /**
+     * Removes all blocks from the cache.
+     * Counters are not reset.
+     */
+    synchronized void clear() {
+        this.blocks.clear();
+        this.headers.clear();
+        this.policy.clear();
+        this.size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncBlockCache: {" + System.lineSeparator() +
+                "blocks: " + blocks.size() + System.lineSeparator() +
+                "size: " + size + "/" + maxSize + System.lineSeparator() +
+                "headers: " + headers.size() + System.lineSeparator() +
+                "hits: " + hits + System.lineSeparator() +
+                "misses: " + misses + System.lineSeparator() +
+                "}";
+    }
+}
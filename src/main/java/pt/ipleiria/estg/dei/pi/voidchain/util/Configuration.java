@@ -55,6 +55,24 @@ public class Configuration {
      * to store blocks in memory.
      */
     public static final int DEFAULT_MEMORY_USED_FOR_BLOCKS = 128; // in MB
+    /**
+     * The constant DEFAULT_BLOCK_CACHE_POLICY stores the default value of the eviction policy used by the block cache.
+     */
+    public static final String DEFAULT_BLOCK_CACHE_POLICY = "lru";
+    /**
+     * The constant DEFAULT_MEM_POOL_MAX_TRANSACTIONS stores the default value of the max number of transactions in the
+     * memory pool.
+     */
+    public static final int DEFAULT_MEM_POOL_MAX_TRANSACTIONS = 100000;
+    /**
+     * The constant DEFAULT_MEMORY_USED_FOR_MEM_POOL stores the default value of how much memory can be used by the
+     * transactions in the memory pool.
+     */
+    public static final int DEFAULT_MEMORY_USED_FOR_MEM_POOL = 128; // in MB
+    /**
+     * The constant DEFAULT_MEM_POOL_POLICY stores the default value of the policy used when the memory pool is full.
+     */
+    public static final String DEFAULT_MEM_POOL_POLICY = "reject";
     /**
      * The constant DEFAULT_DATA_FILE_EXTENSION stores the default value of data file extension.
      */
@@ -96,6 +114,36 @@ public class Configuration {
      * The constant DEFAULT_BLOCK_SYNC_PORT stores the default value of the Block Synchronization service port.
      */
     public static final int DEFAULT_BLOCK_SYNC_PORT = 18189;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_THREADS stores the default value of the number of threads used by the Block
+     * Synchronization service to read blocks (0 to use one thread per processor).
+     */
+    public static final int DEFAULT_BLOCK_SYNC_THREADS = 0;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_SESSION_BUFFER stores the default value of the max amount of data (in KB) queued
+     * to be sent to a Block Synchronization client before the server stops reading blocks for it.
+     */
+    public static final int DEFAULT_BLOCK_SYNC_SESSION_BUFFER = 1024;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_CACHE_SIZE stores the default value of the amount of RAM (in MB) used by the
+     * Block Synchronization service to keep recently sent blocks.
+     */
+    public static final int DEFAULT_BLOCK_SYNC_CACHE_SIZE = 64;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_CHUNK_SIZE stores the default value of the number of blocks requested at once
+     * from a node while synchronizing.
+     */
+    public static final int DEFAULT_BLOCK_SYNC_CHUNK_SIZE = 200;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_TIMEOUT stores the default value of the max time (in millis) waiting for data
+     * from a node while synchronizing, before trying another node.
+     */
+    public static final int DEFAULT_BLOCK_SYNC_TIMEOUT = 10000;
+    /**
+     * The constant DEFAULT_BLOCK_SYNC_MAX_BLOCK_SIZE stores the default value of the max size (in MB) of a block
+     * received from a node while synchronizing.
+     */
+    public static final int DEFAULT_BLOCK_SYNC_MAX_BLOCK_SIZE = 64;
     /**
      * The constant DEFAULT_EC_PARAM stores the default value of the Elliptic Curve Domain Param.
      */
@@ -104,11 +152,53 @@ public class Configuration {
      * The constant DEFAULT_BLOCK_PROPOSAL_TIMER stores the default value of the sleep timer of block proposal thread.
      */
     public static final int DEFAULT_BLOCK_PROPOSAL_TIMER = 5000;
+    /**
+     * The constant DEFAULT_BLOCK_MAX_LATENCY stores the default value of the max time (in millis) the oldest transaction
+     * in the memory pool waits before a block is proposed, even if the block is not full.
+     */
+    public static final int DEFAULT_BLOCK_MAX_LATENCY = 1000;
+    /**
+     * The constant DEFAULT_BLOCK_PIPELINE_DEPTH stores the default value of the number of blocks prepared while the
+     * proposed block is being ordered.
+     */
+    public static final int DEFAULT_BLOCK_PIPELINE_DEPTH = 1;
+    /**
+     * The constant DEFAULT_COMPACT_BLOCK_PROPOSALS stores the default value of the use of compact block proposals
+     * (block header and transaction hashes only).
+     */
+    public static final boolean DEFAULT_COMPACT_BLOCK_PROPOSALS = true;
+    /**
+     * The constant DEFAULT_COMPACT_BLOCK_TIMEOUT stores the default value of the max time (in millis) the leader waits
+     * for the other nodes to confirm they have the transactions of a block, before proposing it in compact form.
+     */
+    public static final int DEFAULT_COMPACT_BLOCK_TIMEOUT = 500;
     /**
      * The constant DEFAULT_BLOCKCHAIN_VALIDATION_TIMER stores the default value of the sleep timer of blockchain validity
      * verifier thread
      */
     public static final int DEFAULT_BLOCKCHAIN_VALIDATION_TIMER = 60000;
+    /**
+     * The constant DEFAULT_CHAIN_AUDIT_TIMER stores the default value of the sleep timer of blockchain audit thread.
+     */
+    public static final int DEFAULT_CHAIN_AUDIT_TIMER = 3600000;
+    /**
+     * The constant DEFAULT_CHAIN_AUDIT_RATE stores the default value of the max number of blocks audited per second.
+     */
+    public static final int DEFAULT_CHAIN_AUDIT_RATE = 100;
+    /**
+     * The constant DEFAULT_VERIFY_TRANSACTION_SIGNATURES stores the default value of the verification of the signature
+     * of transactions sent by clients.
+     */
+    public static final boolean DEFAULT_VERIFY_TRANSACTION_SIGNATURES = true;
+    /**
+     * The constant DEFAULT_VERIFICATION_THREADS stores the default value of the number of threads used to verify the
+     * signature of transactions (0 to use one thread per processor).
+     */
+    public static final int DEFAULT_VERIFICATION_THREADS = 0;
+    /**
+     * The constant DEFAULT_SEGMENT_MAX_SIZE stores the default value of the max size of a block segment file.
+     */
+    public static final int DEFAULT_SEGMENT_MAX_SIZE = 64; // in MB
 
     private static final Logger logger = LoggerFactory.getLogger(Configuration.class);
 
@@ -116,6 +206,10 @@ public class Configuration {
     private int transactionMaxSize = DEFAULT_TRANSACTION_MAX_SIZE;
     private int numTransactionsInBlock = DEFAULT_NUM_TRANSACTIONS_BLOCK;
     private int memoryUsedForBlocks = DEFAULT_MEMORY_USED_FOR_BLOCKS;
+    private String blockCachePolicy = DEFAULT_BLOCK_CACHE_POLICY;
+    private int memPoolMaxTransactions = DEFAULT_MEM_POOL_MAX_TRANSACTIONS;
+    private int memoryUsedForMemPool = DEFAULT_MEMORY_USED_FOR_MEM_POOL;
+    private String memPoolPolicy = DEFAULT_MEM_POOL_POLICY;
     private String dataFileExtension = DEFAULT_DATA_FILE_EXTENSION;
     private String blockFileBaseName = DEFAULT_BLOCK_FILE_BASE_NAME;
     private String dataDirectory = DEFAULT_DATA_DIRECTORY;
@@ -123,9 +217,24 @@ public class Configuration {
     private String walletFileDirectory = DEFAULT_WALLET_FILE_DIRECTORY;
     private String walletFileBaseName = DEFAULT_WALLET_FILE_BASE_NAME;
     private int blockSyncPort = DEFAULT_BLOCK_SYNC_PORT;
+    private int blockSyncThreads = DEFAULT_BLOCK_SYNC_THREADS;
+    private int blockSyncSessionBuffer = DEFAULT_BLOCK_SYNC_SESSION_BUFFER;
+    private int blockSyncCacheSize = DEFAULT_BLOCK_SYNC_CACHE_SIZE;
+    private int blockSyncChunkSize = DEFAULT_BLOCK_SYNC_CHUNK_SIZE;
+    private int blockSyncTimeout = DEFAULT_BLOCK_SYNC_TIMEOUT;
+    private int blockSyncMaxBlockSize = DEFAULT_BLOCK_SYNC_MAX_BLOCK_SIZE;
     private String ecParam = DEFAULT_EC_PARAM;
     private int blockProposalTimer = DEFAULT_BLOCK_PROPOSAL_TIMER;
+    private int blockMaxLatency = DEFAULT_BLOCK_MAX_LATENCY;
+    private int blockPipelineDepth = DEFAULT_BLOCK_PIPELINE_DEPTH;
+    private boolean compactBlockProposals = DEFAULT_COMPACT_BLOCK_PROPOSALS;
+    private int compactBlockTimeout = DEFAULT_COMPACT_BLOCK_TIMEOUT;
     private int blockchainValidTimer = DEFAULT_BLOCKCHAIN_VALIDATION_TIMER;
+    private int chainAuditTimer = DEFAULT_CHAIN_AUDIT_TIMER;
+    private int chainAuditRate = DEFAULT_CHAIN_AUDIT_RATE;
+    private boolean verifyTransactionSignatures = DEFAULT_VERIFY_TRANSACTION_SIGNATURES;
+    private int verificationThreads = DEFAULT_VERIFICATION_THREADS;
+    private int segmentMaxSize = DEFAULT_SEGMENT_MAX_SIZE;
 
     private Configuration() {
         this.loadConfigurationFromDisk();
@@ -234,11 +343,42 @@ public class Configuration {
                                 }
                             }
                             continue;
+                        case "system.voidchain.storage.segment_max_size":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.segmentMaxSize = Integer.parseInt(aux);
+                            }
+                            continue;
                         case "system.voidchain.memory.block_megabytes":
                             aux = str.nextToken().trim();
                             if (aux != null)
                                 this.memoryUsedForBlocks = Integer.parseInt(aux);
                             continue;
+                        case "system.voidchain.memory.block_cache_policy":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.blockCachePolicy = aux;
+                            }
+                            continue;
+                        case "system.voidchain.memory.mem_pool_max_transactions":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.memPoolMaxTransactions = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.memory.mem_pool_megabytes":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.memoryUsedForMemPool = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.memory.mem_pool_policy":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.memPoolPolicy = aux;
+                            }
+                            continue;
                         case "system.voidchain.sync.block_sync_port":
                             if (firstRun) {
                                 aux = str.nextToken().trim();
@@ -246,6 +386,42 @@ public class Configuration {
                                     this.blockSyncPort = Integer.parseInt(aux);
                             }
                             continue;
+                        case "system.voidchain.sync.server_threads":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.blockSyncThreads = Integer.parseInt(aux);
+                            }
+                            continue;
+                        case "system.voidchain.sync.session_buffer_size":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.blockSyncSessionBuffer = Integer.parseInt(aux);
+                            }
+                            continue;
+                        case "system.voidchain.sync.cache_size":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.blockSyncCacheSize = Integer.parseInt(aux);
+                            }
+                            continue;
+                        case "system.voidchain.sync.chunk_size":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.blockSyncChunkSize = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.sync.timeout":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.blockSyncTimeout = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.sync.max_block_size":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.blockSyncMaxBlockSize = Integer.parseInt(aux);
+                            continue;
                         case "system.voidchain.crypto.ec_param":
                             aux = str.nextToken().trim();
                             if (aux != null)
@@ -256,11 +432,53 @@ public class Configuration {
                             if (aux != null)
                                 this.blockProposalTimer = Integer.parseInt(aux) * 1000;
                             continue;
+                        case "system.voidchain.core.block_max_latency":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.blockMaxLatency = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.core.block_pipeline_depth":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.blockPipelineDepth = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.core.compact_block_proposals":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.compactBlockProposals = Boolean.parseBoolean(aux);
+                            continue;
+                        case "system.voidchain.core.compact_block_timeout":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.compactBlockTimeout = Integer.parseInt(aux);
+                            continue;
                         case "system.voidchain.blockchain.chain_valid_timer":
                             aux = str.nextToken().trim();
                             if (aux != null)
                                 this.blockchainValidTimer = Integer.parseInt(aux) * 1000;
                             continue;
+                        case "system.voidchain.blockchain.chain_audit_timer":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.chainAuditTimer = Integer.parseInt(aux) * 1000;
+                            continue;
+                        case "system.voidchain.blockchain.chain_audit_rate":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.chainAuditRate = Integer.parseInt(aux);
+                            continue;
+                        case "system.voidchain.transaction.verify_signatures":
+                            aux = str.nextToken().trim();
+                            if (aux != null)
+                                this.verifyTransactionSignatures = Boolean.parseBoolean(aux);
+                            continue;
+                        case "system.voidchain.transaction.verification_threads":
+                            if (firstRun) {
+                                aux = str.nextToken().trim();
+                                if (aux != null)
+                                    this.verificationThreads = Integer.parseInt(aux);
+                            }
+                            continue;
                     }
                 }
             }
@@ -348,6 +566,42 @@ public class Configuration {
         return memoryUsedForBlocks;
     }
 
+    /**
+     * Gets the eviction policy used by the block cache (lru, slru or size).
+     *
+     * @return the block cache policy
+     */
+    public String getBlockCachePolicy() {
+        return blockCachePolicy;
+    }
+
+    /**
+     * Gets the max number of transactions in the memory pool (0 if unlimited).
+     *
+     * @return the memory pool max transactions
+     */
+    public int getMemPoolMaxTransactions() {
+        return memPoolMaxTransactions;
+    }
+
+    /**
+     * Gets how much memory (in MB) can be used by the transactions in the memory pool (0 if unlimited).
+     *
+     * @return the memory used for the memory pool
+     */
+    public int getMemoryUsedForMemPool() {
+        return memoryUsedForMemPool;
+    }
+
+    /**
+     * Gets the policy used when the memory pool is full (reject, oldest or fair).
+     *
+     * @return the memory pool policy
+     */
+    public String getMemPoolPolicy() {
+        return memPoolPolicy;
+    }
+
     /**
      * Gets the port to be used in the Block Synchronization service.
      *
@@ -357,6 +611,60 @@ public class Configuration {
         return blockSyncPort;
     }
 
+    /**
+     * Gets the number of threads used by the Block Synchronization service to read blocks.
+     *
+     * @return the number of block sync threads
+     */
+    public int getBlockSyncThreads() {
+        return blockSyncThreads > 0 ? blockSyncThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Gets the max amount of data (in KB) queued to be sent to a Block Synchronization client.
+     *
+     * @return the session buffer size
+     */
+    public int getBlockSyncSessionBuffer() {
+        return blockSyncSessionBuffer;
+    }
+
+    /**
+     * Gets the amount of RAM (in MB) used by the Block Synchronization service to keep recently sent blocks.
+     *
+     * @return the block sync cache size
+     */
+    public int getBlockSyncCacheSize() {
+        return blockSyncCacheSize;
+    }
+
+    /**
+     * Gets the number of blocks requested at once from a node while synchronizing.
+     *
+     * @return the block sync chunk size
+     */
+    public int getBlockSyncChunkSize() {
+        return blockSyncChunkSize;
+    }
+
+    /**
+     * Gets the max time (in millis) waiting for data from a node while synchronizing.
+     *
+     * @return the block sync timeout
+     */
+    public int getBlockSyncTimeout() {
+        return blockSyncTimeout;
+    }
+
+    /**
+     * Gets the max size (in MB) of a block received from a node while synchronizing.
+     *
+     * @return the block sync max block size
+     */
+    public int getBlockSyncMaxBlockSize() {
+        return blockSyncMaxBlockSize;
+    }
+
     /**
      * Gets the Elliptic Curve param to be used in the creation of new Key pairs.
      *
@@ -411,6 +719,44 @@ public class Configuration {
         return blockProposalTimer;
     }
 
+    /**
+     * Gets the max time (in millis) the oldest transaction in the memory pool waits before a block is proposed.
+     *
+     * @return the block max latency
+     */
+    public int getBlockMaxLatency() {
+        return blockMaxLatency;
+    }
+
+    /**
+     * Gets the number of blocks prepared while the proposed block is being ordered (0 if disabled).
+     *
+     * @return the block pipeline depth
+     */
+    public int getBlockPipelineDepth() {
+        return blockPipelineDepth;
+    }
+
+    /**
+     * Checks if blocks are proposed in compact form, with the hashes of their transactions instead of the
+     * transactions.
+     *
+     * @return true if compact block proposals are used or false otherwise
+     */
+    public boolean isCompactBlockProposals() {
+        return compactBlockProposals;
+    }
+
+    /**
+     * Gets the max time (in millis) the leader waits for the other nodes to confirm they have the transactions of a
+     * compact block proposal.
+     *
+     * @return the compact block timeout
+     */
+    public int getCompactBlockTimeout() {
+        return compactBlockTimeout;
+    }
+
     /**
      * Gets blockchain valid timer.
      *
@@ -420,6 +766,51 @@ public class Configuration {
         return blockchainValidTimer;
     }
 
+    /**
+     * Gets timer (in millis) for blockchain audit thread, 0 if the audit is disabled.
+     *
+     * @return the chain audit timer
+     */
+    public int getChainAuditTimer() {
+        return chainAuditTimer;
+    }
+
+    /**
+     * Gets the max number of blocks audited per second, 0 if the audit is not throttled.
+     *
+     * @return the chain audit rate
+     */
+    public int getChainAuditRate() {
+        return chainAuditRate;
+    }
+
+    /**
+     * Checks if the signature of transactions sent by clients is verified before adding them to the memory pool.
+     *
+     * @return true if signatures are verified or false otherwise
+     */
+    public boolean isVerifyTransactionSignatures() {
+        return verifyTransactionSignatures;
+    }
+
+    /**
+     * Gets the number of threads used to verify the signature of transactions.
+     *
+     * @return the number of verification threads
+     */
+    public int getVerificationThreads() {
+        return verificationThreads > 0 ? verificationThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Gets the max size (in MB) of a block segment file.
+     *
+     * @return the segment max size
+     */
+    public int getSegmentMaxSize() {
+        return segmentMaxSize;
+    }
+
     /**
      * Gets bft smart key loader.
      *
@@ -457,6 +848,10 @@ public class Configuration {
                 "\ttransactionMaxSize: " + transactionMaxSize + System.lineSeparator() +
                 "\tnumTransactionsInBlock: " + numTransactionsInBlock + System.lineSeparator() +
                 "\tmemoryUsedForBlocks: " + memoryUsedForBlocks + System.lineSeparator() +
+                "\tblockCachePolicy: " + blockCachePolicy + System.lineSeparator() +
+                "\tmemPoolMaxTransactions: " + memPoolMaxTransactions + System.lineSeparator() +
+                "\tmemoryUsedForMemPool: " + memoryUsedForMemPool + System.lineSeparator() +
+                "\tmemPoolPolicy: " + memPoolPolicy + System.lineSeparator() +
                 "\tdataFileExtension: " + dataFileExtension + System.lineSeparator() +
                 "\tblockFileBaseName: " + blockFileBaseName + System.lineSeparator() +
                 "\tdataDirectory: " + dataDirectory + System.lineSeparator() +
@@ -464,7 +859,22 @@ public class Configuration {
                 "\twalletFileDirectory: " + walletFileDirectory + System.lineSeparator() +
                 "\twalletFileBaseName: " + walletFileBaseName + System.lineSeparator() +
                 "\tblockSyncPort: " + blockSyncPort + System.lineSeparator() +
+                "\tblockSyncThreads: " + blockSyncThreads + System.lineSeparator() +
+                "\tblockSyncSessionBuffer: " + blockSyncSessionBuffer + System.lineSeparator() +
+                "\tblockSyncCacheSize: " + blockSyncCacheSize + System.lineSeparator() +
+                "\tblockSyncChunkSize: " + blockSyncChunkSize + System.lineSeparator() +
+                "\tblockSyncTimeout: " + blockSyncTimeout + System.lineSeparator() +
+                "\tblockSyncMaxBlockSize: " + blockSyncMaxBlockSize + System.lineSeparator() +
                 "\tecParam: " + ecParam + System.lineSeparator() +
-                "\tblockProposalTimer: " + blockProposalTimer;
+                "\tblockProposalTimer: " + blockProposalTimer + System.lineSeparator() +
+                "\tblockMaxLatency: " + blockMaxLatency + System.lineSeparator() +
+                "\tblockPipelineDepth: " + blockPipelineDepth + System.lineSeparator() +
+                "\tcompactBlockProposals: " + compactBlockProposals + System.lineSeparator() +
+                "\tcompactBlockTimeout: " + compactBlockTimeout + System.lineSeparator() +
+                "\tchainAuditTimer: " + chainAuditTimer + System.lineSeparator() +
+                "\tchainAuditRate: " + chainAuditRate + System.lineSeparator() +
+                "\tverifyTransactionSignatures: " + verifyTransactionSignatures + System.lineSeparator() +
+                "\tverificationThreads: " + verificationThreads + System.lineSeparator() +
+                "\tsegmentMaxSize: " + segmentMaxSize;
     }
 }
@@ -20,11 +20,7 @@ public class Converters {
      */
     // https://javadeveloperzone.com/java-basic/java-convert-long-to-byte-array/#2_long_to_byte_array
     public static byte[] longToByteArray(final long l) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(bos);
-        dos.writeLong(l);
-        dos.flush();
-        return bos.toByteArray();
+        return ByteBuffer.allocate(Long.BYTES).putLong(l).array();
     }
 
     /**
@@ -48,11 +44,7 @@ public class Converters {
      */
     // https://javadeveloperzone.com/java-basic/java-convert-int-to-byte-array/
     public static byte[] intToByteArray(final int i) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(bos);
-        dos.writeInt(i);
-        dos.flush();
-        return bos.toByteArray();
+        return ByteBuffer.allocate(Integer.BYTES).putInt(i).array();
     }
 
     /**
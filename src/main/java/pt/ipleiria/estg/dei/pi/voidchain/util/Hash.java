@@ -1,9 +1,131 @@
 package pt.ipleiria.estg.dei.pi.voidchain.util;
 
-import org.bouncycastle.jcajce.provider.digest.RIPEMD160;
-import org.bouncycastle.jcajce.provider.digest.SHA3;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.SHA3Digest;
+
+/**
+ * The Hash class is the hashing service used by the blockchain.
+ * <br>
+ * Digest engines are created once per thread and reused, so hashing doesn't allocate anything but the result.
+ * <br>
+ * Transactions, blocks and merkle trees are hashed with the algorithm of their protocol version (see
+ * {@link Algorithm#forProtocolVersion(String)}): protocol versions before 2 use RIPEMD160(SHA3_512(data)), later
+ * ones use BLAKE2b with a 160 bit digest, which has the same size but is faster. Every object keeps its own protocol
+ * version, so chains created by older versions still validate.
+ */
+public final class Hash {
+    /**
+     * The hash algorithms of transactions, blocks and merkle trees.
+     */
+    public enum Algorithm {
+        /**
+         * RIPEMD160(SHA3_512(data)), used by protocol versions before 2.
+         */
+        SHA3_512_RIPEMD160,
+        /**
+         * BLAKE2b with a 160 bit digest, used by protocol version 2 and later.
+         */
+        BLAKE2B_160;
+
+        /**
+         * Gets the algorithm of a protocol version.
+         *
+         * @param protocolVersion the protocol version (major.minor)
+         * @return BLAKE2B_160 if the major version is 2 or later, SHA3_512_RIPEMD160 otherwise
+         */
+        public static Algorithm forProtocolVersion(String protocolVersion) {
+            int major = 0;
+            for (int i = 0; i < protocolVersion.length(); i++) {
+                char c = protocolVersion.charAt(i);
+                if (c < '0' || c > '9')
+                    break;
+
+                // Saturated, only the comparison with the first BLAKE2b version matters
+                major = Math.min(major * 10 + (c - '0'), BLAKE2B_PROTOCOL_VERSION);
+            }
+
+            return major >= BLAKE2B_PROTOCOL_VERSION ? BLAKE2B_160 : SHA3_512_RIPEMD160;
+        }
+    }
+
+    /**
+     * The constant HASH_SIZE stores the size (in bytes) of the hashes of transactions, blocks and merkle tree nodes.
+     */
+    public static final int HASH_SIZE = 20;
+    /**
+     * The constant BLAKE2B_PROTOCOL_VERSION stores the first major protocol version hashed with BLAKE2b.
+     */
+    public static final int BLAKE2B_PROTOCOL_VERSION = 2;
+
+    private static final ThreadLocal<Engines> engines = ThreadLocal.withInitial(Engines::new);
+
+    private Hash() {
+    }
+
+    /**
+     * Calculates the hash of the given byte array with the algorithm of a protocol version.
+     *
+     * @param data            the data
+     * @param protocolVersion the protocol version
+     * @return the hash
+     */
+    public static byte[] calculate(byte[] data, String protocolVersion) {
+        return calculate(data, Algorithm.forProtocolVersion(protocolVersion));
+    }
+
+    /**
+     * Calculates the hash of the given byte array.
+     *
+     * @param data      the data
+     * @param algorithm the algorithm
+     * @return the hash
+     */
+    public static byte[] calculate(byte[] data, Algorithm algorithm) {
+        byte[] hash = new byte[HASH_SIZE];
+        Engines e = engines.get();
+
+        if (algorithm == Algorithm.BLAKE2B_160) {
+            e.blake2b.update(data, 0, data.length);
+            e.blake2b.doFinal(hash, 0);
+        } else {
+            e.sha3_512.update(data, 0, data.length);
+            e.sha3_512.doFinal(e.sha3Out, 0);
+            e.ripemd160.update(e.sha3Out, 0, e.sha3Out.length);
+            e.ripemd160.doFinal(hash, 0);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Hashes two nodes of a merkle tree (the concatenation of both) into their parent.
+     *
+     * @param left      the array of the left node
+     * @param lOff      the offset of the left node
+     * @param right     the array of the right node
+     * @param rOff      the offset of the right node
+     * @param out       the array of the parent node
+     * @param outOff    the offset of the parent node
+     * @param algorithm the algorithm
+     */
+    public static void hashNodes(byte[] left, int lOff, byte[] right, int rOff, byte[] out, int outOff,
+                                 Algorithm algorithm) {
+        Engines e = engines.get();
+
+        if (algorithm == Algorithm.BLAKE2B_160) {
+            e.blake2b.update(left, lOff, HASH_SIZE);
+            e.blake2b.update(right, rOff, HASH_SIZE);
+            e.blake2b.doFinal(out, outOff);
+        } else {
+            e.sha3_512.update(left, lOff, HASH_SIZE);
+            e.sha3_512.update(right, rOff, HASH_SIZE);
+            e.sha3_512.doFinal(e.sha3Out, 0);
+            e.ripemd160.update(e.sha3Out, 0, e.sha3Out.length);
+            e.ripemd160.doFinal(out, outOff);
+        }
+    }
 
-public class Hash {
     /**
      * Calculates ripemd-160 hash of sha3-512 hash of given byte array.
      *
@@ -11,10 +133,17 @@ public class Hash {
      * @return the hash
      */
     public static byte[] calculateSHA3512RIPEMD160(byte[] data) {
-        SHA3.Digest512 sha3_512 = new SHA3.Digest512();
-        RIPEMD160.Digest ripemd160 = new RIPEMD160.Digest();
+        return calculate(data, Algorithm.SHA3_512_RIPEMD160);
+    }
 
-        return ripemd160.digest(sha3_512.digest(data));
+    /**
+     * Calculates blake2b-160 hash of given byte array.
+     *
+     * @param data the data
+     * @return the hash
+     */
+    public static byte[] calculateBLAKE2b160(byte[] data) {
+        return calculate(data, Algorithm.BLAKE2B_160);
     }
 
     /**
@@ -24,8 +153,20 @@ public class Hash {
      * @return the hash
      */
     public static byte[] calculateSHA3256(byte[] data) {
-        SHA3.Digest256 sha3_256 = new SHA3.Digest256();
+        SHA3Digest sha3_256 = engines.get().sha3_256;
+        byte[] hash = new byte[sha3_256.getDigestSize()];
+
+        sha3_256.update(data, 0, data.length);
+        sha3_256.doFinal(hash, 0);
+
+        return hash;
+    }
 
-        return sha3_256.digest(data);
+    private static final class Engines {
+        private final SHA3Digest sha3_512 = new SHA3Digest(512);
+        private final SHA3Digest sha3_256 = new SHA3Digest(256);
+        private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        private final Blake2bDigest blake2b = new Blake2bDigest(HASH_SIZE * 8);
+        private final byte[] sha3Out = new byte[64];
     }
 }
@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -17,6 +18,8 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class Keys {
@@ -25,6 +28,9 @@ public class Keys {
      */
     protected static final Logger logger = LoggerFactory.getLogger(Keys.class);
 
+    // Decoded public keys, by encoded key
+    private static final Map<ByteBuffer, PublicKey> publicKeys = new ConcurrentHashMap<>();
+
     /**
      * The constant SECRET.
      */
@@ -165,7 +171,8 @@ public class Keys {
     }
 
     /**
-     * Converts an encoded private key into a PrivateKey instance according to current system configurations.
+     * Converts an encoded public key into a PublicKey instance according to current system configurations.
+     * Decoded keys are cached.
      *
      * @param pubKey  the public key
      * @param tomConf the tom configuration
@@ -178,13 +185,21 @@ public class Keys {
     public static PublicKey getPubKey(byte[] pubKey, TOMConfiguration tomConf) throws IOException,
             NoSuchProviderException, NoSuchAlgorithmException, InvalidKeySpecException {
 
+        ByteBuffer encodedKey = ByteBuffer.wrap(pubKey.clone());
+        PublicKey publicKey = publicKeys.get(encodedKey);
+        if (publicKey != null)
+            return publicKey;
+
         String signatureAlgorithmProvider = tomConf.getSignatureAlgorithmProvider();
 
         KeyFactory keyFactory = KeyFactory.getInstance(Configuration.getInstance().getBftSmartKeyLoader(),
                 signatureAlgorithmProvider);
         EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pubKey);
 
-        return keyFactory.generatePublic(pubKeySpec);
+        publicKey = keyFactory.generatePublic(pubKeySpec);
+        publicKeys.put(encodedKey, publicKey);
+
+        return publicKey;
     }
 
     /**
@@ -0,0 +1,342 @@
+package pt.ipleiria.estg.dei.pi.voidchain.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The Merkle engine calculates merkle tree roots iteratively, in place, over a flat array of digests.
+ * <br>
+ * Every level of the tree is written over the previous one: the parent of the nodes 2i and 2i+1 is stored in the
+ * node i, so the only allocation is the digest array itself. If a level has an odd number of nodes the last one is
+ * promoted to the next level without being hashed, the same tree built by {@link MerkleTree#merkleTree}.
+ * <br>
+ * Nodes are hashed by the {@link Hash} service, with the algorithm of the protocol version of the block (the methods
+ * without an algorithm use RIPEMD160(SHA3_512)). For large trees the lower levels are split in subtrees hashed in
+ * parallel by the common fork-join pool, only the upper levels are hashed by the calling thread.
+ * <br>
+ * The engine can also keep every level of a tree, to create merkle paths (inclusion proofs) of its leaves, and
+ * calculate the root of a tree from a leaf and its path.
+ */
+public final class MerkleEngine {
+    /* Attributes */
+    /**
+     * The constant HASH_SIZE stores the size of the nodes of the tree (RIPEMD160 digests).
+     */
+    public static final int HASH_SIZE = Hash.HASH_SIZE;
+    /**
+     * The constant PARALLEL_THRESHOLD stores the min number of leaves of a tree hashed in parallel.
+     */
+    public static final int PARALLEL_THRESHOLD = 8192;
+
+    // Number of leaves of each subtree hashed in parallel, must be a power of 2
+    private static final int SUBTREE_SIZE = 2048;
+    private static final int SUBTREE_LEVELS = Integer.numberOfTrailingZeros(SUBTREE_SIZE);
+
+    private static final Hash.Algorithm DEFAULT_ALGORITHM = Hash.Algorithm.SHA3_512_RIPEMD160;
+
+    /* Constructors */
+
+    private MerkleEngine() {
+    }
+
+    /* Methods */
+
+    /**
+     * Calculates the merkle tree root of a list of hashes (the leaves of the tree, in order).
+     *
+     * @param hashes the hashes
+     * @return the merkle tree root
+     * @throws IllegalArgumentException illegal argument exception will be thrown if the list is empty or a hash
+     *                                  doesn't have {@link #HASH_SIZE} bytes
+     */
+    public static byte[] getMerkleRoot(List<byte[]> hashes) {
+        return getMerkleRoot(hashes, DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Calculates the merkle tree root of a list of hashes (the leaves of the tree, in order).
+     *
+     * @param hashes    the hashes
+     * @param algorithm the algorithm used to hash the nodes
+     * @return the merkle tree root
+     * @throws IllegalArgumentException illegal argument exception will be thrown if the list is empty or a hash
+     *                                  doesn't have {@link #HASH_SIZE} bytes
+     */
+    public static byte[] getMerkleRoot(List<byte[]> hashes, Hash.Algorithm algorithm) {
+        return getMerkleRoot(toDigests(hashes), hashes.size(), hashes.size() >= PARALLEL_THRESHOLD, algorithm);
+    }
+
+    /**
+     * Calculates the merkle tree root of a flat array of digests, in place (the array is overwritten).
+     *
+     * @param digests  the digests, {@link #HASH_SIZE} bytes each
+     * @param count    the number of digests
+     * @param parallel if the lower levels of the tree are hashed in parallel
+     * @return the merkle tree root
+     * @throws IllegalArgumentException illegal argument exception will be thrown if there are no digests
+     */
+    public static byte[] getMerkleRoot(byte[] digests, int count, boolean parallel) {
+        return getMerkleRoot(digests, count, parallel, DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Calculates the merkle tree root of a flat array of digests, in place (the array is overwritten).
+     *
+     * @param digests   the digests, {@link #HASH_SIZE} bytes each
+     * @param count     the number of digests
+     * @param parallel  if the lower levels of the tree are hashed in parallel
+     * @param algorithm the algorithm used to hash the nodes
+     * @return the merkle tree root
+     * @throws IllegalArgumentException illegal argument exception will be thrown if there are no digests
+     */
+    public static byte[] getMerkleRoot(byte[] digests, int count, boolean parallel, Hash.Algorithm algorithm) {
+        if (count == 0)
+            throw new IllegalArgumentException("Received Hash List is empty");
+
+        if (parallel && count > SUBTREE_SIZE) {
+            int subtrees = (count + SUBTREE_SIZE - 1) / SUBTREE_SIZE;
+            ForkJoinPool.commonPool().invoke(new SubtreeTask(digests, count, 0, subtrees, algorithm));
+
+            // The root of every subtree is in its first node, they are moved to the start of the array
+            for (int i = 1; i < subtrees; i++)
+                System.arraycopy(digests, i * SUBTREE_SIZE * HASH_SIZE, digests, i * HASH_SIZE, HASH_SIZE);
+            count = subtrees;
+        }
+
+        reduce(digests, 0, count, Integer.MAX_VALUE, algorithm);
+
+        byte[] root = new byte[HASH_SIZE];
+        System.arraycopy(digests, 0, root, 0, HASH_SIZE);
+
+        return root;
+    }
+
+    /**
+     * Calculates all the levels of the merkle tree of a list of hashes (the leaves of the tree, in order).
+     * Each level is a flat array of digests, the first level has the leaves and the last one has the root.
+     *
+     * @param hashes the hashes
+     * @return the levels of the tree
+     * @throws IllegalArgumentException illegal argument exception will be thrown if the list is empty or a hash
+     *                                  doesn't have {@link #HASH_SIZE} bytes
+     */
+    public static byte[][] getMerkleLevels(List<byte[]> hashes) {
+        return getMerkleLevels(hashes, DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Calculates all the levels of the merkle tree of a list of hashes (the leaves of the tree, in order).
+     *
+     * @param hashes    the hashes
+     * @param algorithm the algorithm used to hash the nodes
+     * @return the levels of the tree
+     * @throws IllegalArgumentException illegal argument exception will be thrown if the list is empty or a hash
+     *                                  doesn't have {@link #HASH_SIZE} bytes
+     */
+    public static byte[][] getMerkleLevels(List<byte[]> hashes, Hash.Algorithm algorithm) {
+        if (hashes.isEmpty())
+            throw new IllegalArgumentException("Received Hash List is empty");
+
+        int count = hashes.size();
+        byte[][] levels = new byte[levelCount(count)][];
+        levels[0] = toDigests(hashes);
+
+        for (int level = 1; level < levels.length; level++) {
+            int pairs = count / 2;
+            byte[] previous = levels[level - 1];
+            byte[] current = new byte[(pairs + count % 2) * HASH_SIZE];
+
+            for (int i = 0; i < pairs; i++)
+                Hash.hashNodes(previous, 2 * i * HASH_SIZE, previous, (2 * i + 1) * HASH_SIZE, current, i * HASH_SIZE,
+                        algorithm);
+            if (count % 2 == 1)
+                System.arraycopy(previous, (count - 1) * HASH_SIZE, current, pairs * HASH_SIZE, HASH_SIZE);
+
+            levels[level] = current;
+            count = pairs + count % 2;
+        }
+
+        return levels;
+    }
+
+    /**
+     * Gets the merkle path of a leaf: the siblings of the leaf and of its ancestors, from the leaves to the root.
+     * Levels where the node has no sibling (it is promoted) are skipped.
+     *
+     * @param levels   the levels of the tree, from {@link #getMerkleLevels(List)}
+     * @param position the position of the leaf
+     * @return the merkle path
+     * @throws IndexOutOfBoundsException index out of bounds exception will be thrown if the position is not a leaf
+     */
+    public static List<byte[]> getMerklePath(byte[][] levels, int position) {
+        int count = levels[0].length / HASH_SIZE;
+        if (position < 0 || position >= count)
+            throw new IndexOutOfBoundsException("Leaf " + position + " of a tree with " + count + " leaves");
+
+        List<byte[]> path = new ArrayList<>(levels.length - 1);
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = position ^ 1;
+            if (sibling < count) {
+                int from = sibling * HASH_SIZE;
+                path.add(Arrays.copyOfRange(levels[level], from, from + HASH_SIZE));
+            }
+
+            position /= 2;
+            count = (count + 1) / 2;
+        }
+
+        return path;
+    }
+
+    /**
+     * Calculates the merkle tree root from a leaf and its merkle path.
+     *
+     * @param leaf      the leaf
+     * @param position  the position of the leaf
+     * @param leafCount the number of leaves of the tree
+     * @param path      the merkle path of the leaf, from {@link #getMerklePath(byte[][], int)}
+     * @return the merkle tree root or null if the path doesn't match the position and the number of leaves
+     */
+    public static byte[] getMerkleRoot(byte[] leaf, int position, int leafCount, List<byte[]> path) {
+        return getMerkleRoot(leaf, position, leafCount, path, DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Calculates the merkle tree root from a leaf and its merkle path.
+     *
+     * @param leaf      the leaf
+     * @param position  the position of the leaf
+     * @param leafCount the number of leaves of the tree
+     * @param path      the merkle path of the leaf, from {@link #getMerklePath(byte[][], int)}
+     * @param algorithm the algorithm used to hash the nodes
+     * @return the merkle tree root or null if the path doesn't match the position and the number of leaves
+     */
+    public static byte[] getMerkleRoot(byte[] leaf, int position, int leafCount, List<byte[]> path,
+                                       Hash.Algorithm algorithm) {
+        if (leaf.length != HASH_SIZE || position < 0 || position >= leafCount)
+            return null;
+
+        byte[] node = leaf.clone();
+        int next = 0;
+
+        for (int count = leafCount; count > 1; count = (count + 1) / 2, position /= 2) {
+            int sibling = position ^ 1;
+            if (sibling >= count)
+                continue;
+
+            if (next == path.size() || path.get(next).length != HASH_SIZE)
+                return null;
+
+            byte[] parent = new byte[HASH_SIZE];
+            if (sibling < position)
+                Hash.hashNodes(path.get(next), 0, node, 0, parent, 0, algorithm);
+            else
+                Hash.hashNodes(node, 0, path.get(next), 0, parent, 0, algorithm);
+
+            node = parent;
+            next++;
+        }
+
+        return next == path.size() ? node : null;
+    }
+
+    /**
+     * Copies a list of hashes to a flat array of digests.
+     *
+     * @param hashes the hashes
+     * @return the digests
+     * @throws IllegalArgumentException illegal argument exception will be thrown if a hash doesn't have
+     *                                  {@link #HASH_SIZE} bytes
+     */
+    public static byte[] toDigests(List<byte[]> hashes) {
+        byte[] digests = new byte[hashes.size() * HASH_SIZE];
+
+        int i = 0;
+        for (byte[] hash : hashes) {
+            if (hash.length != HASH_SIZE)
+                throw new IllegalArgumentException("Hash has " + hash.length + " bytes, expected " + HASH_SIZE);
+
+            System.arraycopy(hash, 0, digests, i, HASH_SIZE);
+            i += HASH_SIZE;
+        }
+
+        return digests;
+    }
+
+    /**
+     * Hashes two nodes of a tree into their parent.
+     *
+     * @param left   the array of the left node
+     * @param lOff   the offset of the left node
+     * @param right  the array of the right node
+     * @param rOff   the offset of the right node
+     * @param out    the array of the parent node
+     * @param outOff the offset of the parent node
+     */
+    public static void hashNodes(byte[] left, int lOff, byte[] right, int rOff, byte[] out, int outOff) {
+        Hash.hashNodes(left, lOff, right, rOff, out, outOff, DEFAULT_ALGORITHM);
+    }
+
+    private static int levelCount(int leaves) {
+        int levels = 1;
+        for (int count = leaves; count > 1; count = (count + 1) / 2)
+            levels++;
+
+        return levels;
+    }
+
+    /**
+     * Reduces the nodes [from, from + count) of the array, up to a number of levels or until a single node is left.
+     * The nodes of each level are written over the first nodes of the previous level.
+     */
+    private static void reduce(byte[] digests, int from, int count, int levels, Hash.Algorithm algorithm) {
+        for (int level = 0; level < levels && count > 1; level++) {
+            int pairs = count / 2;
+
+            for (int i = 0; i < pairs; i++) {
+                int left = (from + 2 * i) * HASH_SIZE;
+                Hash.hashNodes(digests, left, digests, left + HASH_SIZE, digests, (from + i) * HASH_SIZE, algorithm);
+            }
+
+            // If odd number of nodes, the last node is promoted to the next level
+            if (count % 2 == 1)
+                System.arraycopy(digests, (from + count - 1) * HASH_SIZE, digests, (from + pairs) * HASH_SIZE,
+                        HASH_SIZE);
+
+            count = pairs + count % 2;
+        }
+    }
+
+    private static final class SubtreeTask extends RecursiveAction {
+        private final byte[] digests;
+        private final int count;
+        private final int first;
+        private final int last;
+        private final Hash.Algorithm algorithm;
+
+        private SubtreeTask(byte[] digests, int count, int first, int last, Hash.Algorithm algorithm) {
+            this.digests = digests;
+            this.count = count;
+            this.first = first;
+            this.last = last;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.last - this.first > 1) {
+                int middle = (this.first + this.last) >>> 1;
+                invokeAll(new SubtreeTask(this.digests, this.count, this.first, middle, this.algorithm),
+                        new SubtreeTask(this.digests, this.count, middle, this.last, this.algorithm));
+                return;
+            }
+
+            // Subtrees are aligned to their size, so their nodes are the same as in the full tree
+            int from = this.first * SUBTREE_SIZE;
+            reduce(this.digests, from, Math.min(SUBTREE_SIZE, this.count - from), SUBTREE_LEVELS, this.algorithm);
+        }
+    }
+}
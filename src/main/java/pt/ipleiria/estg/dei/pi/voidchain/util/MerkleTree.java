@@ -3,6 +3,7 @@ package pt.ipleiria.estg.dei.pi.voidchain.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockTransactions;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
 
 import java.util.*;
@@ -11,6 +12,14 @@ import java.util.*;
 public class MerkleTree {
     private static final Logger logger = LoggerFactory.getLogger(MerkleTree.class);
 
+    /**
+     * The constant LEAF_ORDER defines the order of the leaves of the merkle tree of a block: transactions are ordered
+     * by timestamp and transactions with the same timestamp by hash (the same order of the memory pool).
+     */
+    public static final Comparator<Map.Entry<byte[], Transaction>> LEAF_ORDER =
+            Comparator.<Map.Entry<byte[], Transaction>>comparingLong(e -> e.getValue().getTimestamp())
+                    .thenComparing(Map.Entry::getKey, Arrays::compareUnsigned);
+
     /**
      * Return the merkle root of the given set of hashes.
      * <br>
@@ -21,12 +30,33 @@ public class MerkleTree {
      */
     public static byte[] getMerkleRoot(Map<byte[], Transaction> transactionMap) {
         try {
-            ArrayList<byte[]> hashList = new ArrayList<>();
             List<Map.Entry<byte[], Transaction>> entryList = new ArrayList<>(transactionMap.entrySet());
-            entryList.sort(Comparator.comparingLong(o -> o.getValue().getTimestamp()));
+            entryList.sort(LEAF_ORDER);
+
+            List<byte[]> hashList = new ArrayList<>(entryList.size());
             entryList.forEach(t -> hashList.add(t.getKey()));
 
-            return merkleTree(hashList).get(0);
+            return MerkleEngine.getMerkleRoot(hashList);
+        } catch (RuntimeException e) {
+            logger.error("Error occurred while calculating merkle tree", e);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Return the merkle root of the transactions of a block, which are already in merkle tree order, hashed with the
+     * algorithm of the protocol version of the block.
+     * <br>
+     * Returns byte[0] if error occurred while calculating the merkle tree.
+     *
+     * @param transactions    the block transactions
+     * @param protocolVersion the protocol version of the block
+     * @return the merkle root
+     */
+    public static byte[] getMerkleRoot(BlockTransactions transactions, String protocolVersion) {
+        try {
+            return MerkleEngine.getMerkleRoot(transactions.getHashes(),
+                    Hash.Algorithm.forProtocolVersion(protocolVersion));
         } catch (RuntimeException e) {
             logger.error("Error occurred while calculating merkle tree", e);
             return new byte[0];
@@ -34,7 +64,8 @@ public class MerkleTree {
     }
 
     /**
-     * Creates merkle tree of given list of hashes.
+     * Creates merkle tree of given list of hashes, recursively.
+     * Kept as reference, the merkle root of blocks is calculated by the {@link MerkleEngine}.
      *
      * @param hashList the hash list
      * @return the merkle tree array list
@@ -0,0 +1,154 @@
+package pt.ipleiria.estg.dei.pi.voidchain.util;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessage;
+import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessageType;
+import pt.ipleiria.estg.dei.pi.voidchain.node.NodeMessage;
+import pt.ipleiria.estg.dei.pi.voidchain.node.NodeMessageType;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The Message codec converts the messages exchanged between clients and nodes (client and node messages) into a
+ * compact binary format, and back.
+ * <br>
+ * The format follows the one used by the {@link BlockchainCodec}: format version, type tag and then the message
+ * fields. Message types are stored as the ordinal of the enum and the content is prefixed by its length
+ * (-1 if the message has no content).
+ * <br>
+ * Messages produced with Java serialization (by previous versions) are still accepted by the decode method.
+ */
+public final class MessageCodec {
+    /**
+     * The constant CLIENT_MESSAGE_TAG identifies an encoded client message.
+     */
+    public static final byte CLIENT_MESSAGE_TAG = 16;
+    /**
+     * The constant NODE_MESSAGE_TAG identifies an encoded node message.
+     */
+    public static final byte NODE_MESSAGE_TAG = 17;
+
+    private static final int PREFIX_SIZE = 2; // format version, tag
+
+    private static final ClientMessageType[] CLIENT_MESSAGE_TYPES = ClientMessageType.values();
+    private static final NodeMessageType[] NODE_MESSAGE_TYPES = NodeMessageType.values();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a client message.
+     *
+     * @param message the client message
+     * @return the encoded message
+     */
+    public static byte[] encode(ClientMessage message) {
+        byte[] content = message.getContent();
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + 1 + Integer.BYTES +
+                (content == null ? 0 : content.length));
+
+        buffer.put(BlockchainCodec.FORMAT_VERSION).put(CLIENT_MESSAGE_TAG);
+        buffer.put((byte) message.getType().ordinal());
+        putContent(buffer, content);
+
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a node message.
+     *
+     * @param message the node message
+     * @return the encoded message
+     */
+    public static byte[] encode(NodeMessage message) {
+        byte[] content = message.getContent();
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + Integer.BYTES + 1 + Integer.BYTES +
+                (content == null ? 0 : content.length));
+
+        buffer.put(BlockchainCodec.FORMAT_VERSION).put(NODE_MESSAGE_TAG);
+        buffer.putInt(message.getSender());
+        buffer.put((byte) message.getType().ordinal());
+        putContent(buffer, content);
+
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a client or node message.
+     *
+     * @param data the encoded message
+     * @return the message (ClientMessage or NodeMessage instance)
+     * @throws IOException io exception will be thrown if the data is malformed or not a message
+     */
+    public static Object decode(byte[] data) throws IOException {
+        if (BlockchainCodec.isJavaSerialized(data)) {
+            Object message = BlockchainCodec.readJavaSerialized(data, Object.class);
+            if (!(message instanceof ClientMessage) && !(message instanceof NodeMessage))
+                throw new InvalidObjectException("Java serialized data is not a message");
+
+            return message;
+        }
+
+        if (data.length < PREFIX_SIZE)
+            throw new EOFException("Encoded message is too short");
+        if (data[0] != BlockchainCodec.FORMAT_VERSION)
+            throw new StreamCorruptedException("Unsupported format version " + data[0]);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(PREFIX_SIZE);
+
+        try {
+            Object message;
+            switch (data[1]) {
+                case CLIENT_MESSAGE_TAG:
+                    ClientMessageType clientMessageType = getType(buffer, CLIENT_MESSAGE_TYPES);
+                    message = new ClientMessage(clientMessageType, getContent(buffer));
+                    break;
+                case NODE_MESSAGE_TAG:
+                    int sender = buffer.getInt();
+                    NodeMessageType nodeMessageType = getType(buffer, NODE_MESSAGE_TYPES);
+                    message = new NodeMessage(sender, nodeMessageType, getContent(buffer));
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown message tag " + data[1]);
+            }
+
+            if (buffer.hasRemaining())
+                throw new StreamCorruptedException(buffer.remaining() + " unexpected bytes after encoded message");
+
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Encoded message is truncated");
+        }
+    }
+
+    private static void putContent(ByteBuffer buffer, byte[] content) {
+        if (content == null)
+            buffer.putInt(-1);
+        else
+            buffer.putInt(content.length).put(content);
+    }
+
+    private static byte[] getContent(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > buffer.remaining())
+            throw new StreamCorruptedException("Invalid content length " + length);
+
+        byte[] content = new byte[length];
+        buffer.get(content);
+
+        return content;
+    }
+
+    private static <T> T getType(ByteBuffer buffer, T[] types) throws IOException {
+        int ordinal = buffer.get();
+        if (ordinal < 0 || ordinal >= types.length)
+            throw new StreamCorruptedException("Unknown message type " + ordinal);
+
+        return types[ordinal];
+    }
+}
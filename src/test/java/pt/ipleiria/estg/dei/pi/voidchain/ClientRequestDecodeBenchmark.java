@@ -0,0 +1,99 @@
+package pt.ipleiria.estg.dei.pi.voidchain;
+
+import bftsmart.communication.client.netty.NettyClientServerSession;
+import bftsmart.communication.client.netty.NettyTOMMessageDecoder;
+import bftsmart.communication.client.netty.NettyTOMMessageEncoder;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Checks that client requests survive a round trip through the Netty encoder and decoder, then compares the time and
+ * the bytes allocated per request by the decoder against reading the requests with streams (as it used to).
+ * <br>
+ * USAGE: ClientRequestDecodeBenchmark [request size] [iterations]
+ */
+public class ClientRequestDecodeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int requestSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Random random = new Random(42);
+        byte[] content = new byte[requestSize];
+        byte[] signature = new byte[71];
+        random.nextBytes(content);
+        random.nextBytes(signature);
+
+        TOMMessage request = new TOMMessage(1001, 3, 7, 9, content, 0, TOMMessageType.ORDERED_REQUEST);
+        request.serializedMessage = TOMMessage.messageToBytes(request);
+        request.serializedMessageSignature = signature;
+        request.signed = true;
+
+        ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable = new ConcurrentHashMap<>();
+        ReentrantReadWriteLock rl = new ReentrantReadWriteLock();
+        EmbeddedChannel client = new EmbeddedChannel(new NettyTOMMessageEncoder(true, sessionTable, rl));
+        EmbeddedChannel server = new EmbeddedChannel(new NettyTOMMessageDecoder(false, sessionTable, null, rl));
+
+        client.writeOutbound(request);
+        ByteBuf frame = client.readOutbound();
+        server.writeInbound(frame.retainedDuplicate());
+        TOMMessage decoded = server.readInbound();
+        if (decoded == null || !decoded.equals(request) || decoded.getId() != request.getId()
+                || decoded.getReqType() != request.getReqType() || !Arrays.equals(decoded.getContent(), content)
+                || !Arrays.equals(decoded.serializedMessage, request.serializedMessage)
+                || !Arrays.equals(decoded.serializedMessageSignature, signature) || !decoded.signed
+                || !Arrays.equals(TOMMessage.messageToBytes(decoded), request.serializedMessage)) {
+            throw new IllegalStateException("Round trip failed for " + request);
+        }
+        System.out.println("Round trip OK, frame of " + frame.readableBytes() + " bytes");
+
+        // legacy: copy the request and read it with streams
+        byte[] legacy = new byte[request.serializedMessage.length];
+        for (int run = 0; run < 2; run++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                frame.getBytes(2 * Integer.BYTES, legacy = new byte[legacy.length]);
+                TOMMessage tm = new TOMMessage();
+                tm.rExternal(new DataInputStream(new ByteArrayInputStream(legacy)));
+                tm.serializedMessage = legacy;
+            }
+            report(run, "streams", start, bytes, iterations);
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                server.writeInbound(frame.retainedDuplicate());
+                server.readInbound();
+            }
+            report(run, "decoder", start, bytes, iterations);
+        }
+
+        frame.release();
+        client.finishAndReleaseAll();
+        server.finishAndReleaseAll();
+    }
+
+    private static void report(int run, String name, long start, long bytes, int iterations) {
+        if (run == 0)
+            return;
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-8s %8.1f ns/request  %8d bytes/request%n", name, (double) elapsed / iterations,
+                (allocatedBytes() - bytes) / iterations);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
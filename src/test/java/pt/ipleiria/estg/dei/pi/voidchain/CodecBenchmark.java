@@ -0,0 +1,98 @@
+package pt.ipleiria.estg.dei.pi.voidchain;
+
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Block;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the size and throughput of the blockchain codec against Java serialization.
+ * <br>
+ * USAGE: CodecBenchmark [transactions per block] [transaction data size] [iterations]
+ */
+public class CodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        int transactionsPerBlock = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Random random = new Random(42);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < transactionsPerBlock; i++) {
+            byte[] data = new byte[dataSize];
+            byte[] signature = new byte[71]; // DER encoded secp256k1 ECDSA signature
+            random.nextBytes(data);
+            random.nextBytes(signature);
+            transactions.add(new Transaction(data, "1.0", 1600000000000L + i, signature));
+        }
+
+        byte[] previousHash = new byte[20];
+        random.nextBytes(previousHash);
+        Block block = new Block(previousHash, "1.0", 1, transactions, 1600000000000L, new byte[10]);
+
+        byte[] serialized = javaSerialize(block);
+        byte[] encoded = BlockchainCodec.encodeBlock(block);
+
+        System.out.println("Block with " + transactionsPerBlock + " transactions of " + dataSize + " bytes");
+        System.out.println("Java serialization size: " + serialized.length + " bytes");
+        System.out.println("Codec size:              " + encoded.length + " bytes (" +
+                (100 - encoded.length * 100 / serialized.length) + "% smaller)");
+
+        // Warm up
+        for (int i = 0; i < iterations / 4; i++) {
+            javaDeserialize(javaSerialize(block));
+            BlockchainCodec.decodeBlock(BlockchainCodec.encodeBlock(block));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            javaSerialize(block);
+        long javaEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            javaDeserialize(serialized);
+        long javaDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            BlockchainCodec.encodeBlock(block);
+        long codecEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            BlockchainCodec.decodeBlock(encoded);
+        long codecDecode = System.nanoTime() - start;
+
+        print("Java serialization encode", javaEncode, iterations, transactionsPerBlock);
+        print("Java serialization decode", javaDecode, iterations, transactionsPerBlock);
+        print("Codec encode", codecEncode, iterations, transactionsPerBlock);
+        print("Codec decode", codecDecode, iterations, transactionsPerBlock);
+    }
+
+    private static void print(String name, long nanos, int iterations, int transactionsPerBlock) {
+        double microsPerBlock = nanos / 1000.0 / iterations;
+        System.out.printf("%-26s %10.1f us/block %10.0f transactions/s%n", name, microsPerBlock,
+                transactionsPerBlock * 1000000.0 / microsPerBlock);
+    }
+
+    private static byte[] javaSerialize(Object o) throws IOException {
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+             ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
+            objOut.writeObject(o);
+            objOut.flush();
+            return byteOut.toByteArray();
+        }
+    }
+
+    private static Object javaDeserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
+             ObjectInput objIn = new ObjectInputStream(byteIn)) {
+            return objIn.readObject();
+        }
+    }
+}
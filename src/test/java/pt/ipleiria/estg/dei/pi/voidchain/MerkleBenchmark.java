@@ -0,0 +1,82 @@
+package pt.ipleiria.estg.dei.pi.voidchain;
+
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleEngine;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MerkleTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the recursive merkle tree with the merkle engine (serial and parallel), after checking that all of them
+ * calculate the same roots.
+ * <br>
+ * USAGE: MerkleBenchmark [leaves...]
+ */
+public class MerkleBenchmark {
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() :
+                new int[]{100, 10000, 100000};
+
+        Random random = new Random(42);
+        for (int leaves : new int[]{1, 2, 3, 5, 7, 2047, 2049, 8193, 20001}) {
+            List<byte[]> hashes = randomHashes(random, leaves);
+            byte[] expected = MerkleTree.merkleTree(new ArrayList<>(hashes)).get(0);
+
+            if (!Arrays.equals(expected, MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, false)) ||
+                    !Arrays.equals(expected, MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, true)))
+                throw new IllegalStateException("Merkle engine root differs for " + leaves + " leaves");
+        }
+        System.out.println("Merkle engine roots match the recursive merkle tree");
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+
+        for (int leaves : sizes) {
+            List<byte[]> hashes = randomHashes(random, leaves);
+            int iterations = Math.max(5, 2000000 / leaves);
+
+            // Warm up
+            for (int i = 0; i < iterations / 2; i++) {
+                MerkleTree.merkleTree(new ArrayList<>(hashes));
+                MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, false);
+                MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, true);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                MerkleTree.merkleTree(new ArrayList<>(hashes));
+            long recursive = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, false);
+            long serial = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                MerkleEngine.getMerkleRoot(MerkleEngine.toDigests(hashes), leaves, true);
+            long parallel = System.nanoTime() - start;
+
+            System.out.println(leaves + " leaves (" + iterations + " iterations)");
+            print("Recursive merkle tree", recursive, iterations, recursive);
+            print("Merkle engine (serial)", serial, iterations, recursive);
+            print("Merkle engine (parallel)", parallel, iterations, recursive);
+        }
+    }
+
+    private static List<byte[]> randomHashes(Random random, int count) {
+        List<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[MerkleEngine.HASH_SIZE];
+            random.nextBytes(hash);
+            hashes.add(hash);
+        }
+
+        return hashes;
+    }
+
+    private static void print(String name, long nanos, int iterations, long baseline) {
+        System.out.printf("  %-26s %12.1f us/root %8.2fx%n", name, nanos / 1000.0 / iterations,
+                (double) baseline / nanos);
+    }
+}
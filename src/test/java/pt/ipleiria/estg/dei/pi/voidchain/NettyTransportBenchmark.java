@@ -0,0 +1,181 @@
+package pt.ipleiria.estg.dei.pi.voidchain;
+
+import bftsmart.communication.NettyTransport;
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Netty transports (NIO and, if available, native epoll) used by the client/server communication layers,
+ * with the socket options and event loop sizes of system.config.
+ * <br>
+ * Each client connection sends a request, waits for the server to echo it and sends the next one, reporting the
+ * requests per second and the latency percentiles of all the connections.
+ * <br>
+ * USAGE: NettyTransportBenchmark [config dir] [connections] [request size] [seconds]
+ */
+public class NettyTransportBenchmark {
+    private static final int PORT = 18300;
+
+    public static void main(String[] args) throws Exception {
+        String configHome = args.length > 0 ? args[0] : "src/main/resources/config";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requestSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        TOMConfiguration conf = new TOMConfiguration(0, configHome, null);
+
+        List<NettyTransport> transports = new ArrayList<>();
+        transports.add(NettyTransport.NIO);
+        if (Epoll.isAvailable())
+            transports.add(NettyTransport.EPOLL);
+        else
+            System.out.println("Epoll is not available: " + Epoll.unavailabilityCause());
+
+        System.out.println(connections + " connections, requests of " + requestSize + " bytes, " + seconds + " s");
+        for (NettyTransport transport : transports) {
+            run(transport, conf, connections, requestSize, 2, false);
+            run(transport, conf, connections, requestSize, seconds, true);
+        }
+    }
+
+    private static void run(NettyTransport transport, TOMConfiguration conf, int connections, int requestSize,
+                            int seconds, boolean report) throws Exception {
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(conf.getBossThreads(), "Benchmark acceptor");
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(conf.getWorkerThreads(), "Benchmark server");
+        EventLoopGroup clientGroup = transport.newEventLoopGroup(conf.getClientWorkerThreads(), "Benchmark client");
+
+        try {
+            ServerBootstrap sb = new ServerBootstrap().group(bossGroup, workerGroup)
+                    .channel(transport.getServerSocketChannelClass())
+                    .option(ChannelOption.SO_REUSEADDR, true)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        public void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
+                            ch.pipeline().addLast(new LengthFieldPrepender(4));
+                            ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                                @Override
+                                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                    ctx.writeAndFlush(msg);
+                                }
+                            });
+                        }
+                    });
+            NettyTransport.setSocketOptions(sb, conf);
+            Channel server = sb.bind(new InetSocketAddress("127.0.0.1", PORT)).sync().channel();
+
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            Client[] clients = new Client[connections];
+            for (int i = 0; i < connections; i++) {
+                Client client = new Client(requestSize, end);
+                Bootstrap b = new Bootstrap().group(clientGroup).channel(transport.getSocketChannelClass())
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            public void initChannel(SocketChannel ch) {
+                                ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0,
+                                        4));
+                                ch.pipeline().addLast(new LengthFieldPrepender(4));
+                                ch.pipeline().addLast(client);
+                            }
+                        });
+                NettyTransport.setSocketOptions(b, conf);
+                b.connect(server.localAddress()).sync();
+                clients[i] = client;
+            }
+
+            long start = System.nanoTime();
+            for (Client client : clients)
+                client.done.sync();
+            long elapsed = System.nanoTime() - start;
+
+            server.close().sync();
+
+            if (!report)
+                return;
+
+            int count = 0;
+            for (Client client : clients)
+                count += client.count;
+            long[] latencies = new long[count];
+            int i = 0;
+            for (Client client : clients) {
+                System.arraycopy(client.latencies, 0, latencies, i, client.count);
+                i += client.count;
+            }
+            Arrays.sort(latencies);
+
+            System.out.printf("%-5s %10.0f requests/s  p50 %7.1f us  p99 %7.1f us  p99.9 %7.1f us%n", transport,
+                    count / (elapsed / 1e9), percentile(latencies, 0.5), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999));
+        } finally {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+    }
+
+    /**
+     * A client connection, sends requests in a closed loop and records their latency (in nanos).
+     */
+    private static class Client extends ChannelInboundHandlerAdapter {
+        private final byte[] request;
+        private final long end;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private long sentAt;
+        private final Promise<Void> done = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+        private Client(int requestSize, long end) {
+            this.request = new byte[requestSize];
+            this.end = end;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            this.send(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ((ByteBuf) msg).release();
+            long now = System.nanoTime();
+
+            if (this.count == this.latencies.length)
+                this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+            this.latencies[this.count++] = now - this.sentAt;
+
+            if (now < this.end)
+                this.send(ctx);
+            else
+                ctx.close().addListener(f -> this.done.setSuccess(null));
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            this.sentAt = System.nanoTime();
+            ctx.writeAndFlush(ctx.alloc().buffer(this.request.length).writeBytes(this.request));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package pt.ipleiria.estg.dei.pi.voidchain;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.durability.CSTRequestF1;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.util.TOMUtil;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that every replica message survives a round trip through the system message codec (and that Java serialized
+ * messages are still decoded), then compares the size and throughput of the codec against Java serialization for
+ * consensus messages.
+ * <br>
+ * USAGE: SystemMessageCodecBenchmark [value size] [iterations]
+ */
+public class SystemMessageCodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        int valueSize = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Random random = new Random(42);
+        byte[] value = new byte[valueSize];
+        byte[] signature = new byte[71];
+        random.nextBytes(value);
+        random.nextBytes(signature);
+
+        // Consensus
+        ConsensusMessage propose = new ConsensusMessage(MessageFactory.PROPOSE, 10, 2, 1, value);
+        ConsensusMessage accept = new ConsensusMessage(MessageFactory.ACCEPT, 10, 2, 3, null);
+        accept.setProof(signature);
+        ConsensusMessage write = new ConsensusMessage(MessageFactory.WRITE, 10, 2, 0, value);
+        write.setProof(new byte[][]{signature, value});
+        for (ConsensusMessage cm : new ConsensusMessage[]{propose, accept, write}) {
+            ConsensusMessage decoded = (ConsensusMessage) roundTrip(cm);
+            check(decoded.getNumber() == cm.getNumber() && decoded.getEpoch() == cm.getEpoch() &&
+                    decoded.getType() == cm.getType() && Arrays.equals(decoded.getValue(), cm.getValue()) &&
+                    proofEquals(decoded.getProof(), cm.getProof()), cm);
+        }
+
+        // Leader change
+        LCMessage stop = new LCMessage(2, TOMUtil.STOP, 5, value);
+        LCMessage stopData = new LCMessage(2, TOMUtil.STOPDATA, 5, null);
+        for (LCMessage lcm : new LCMessage[]{stop, stopData}) {
+            LCMessage decoded = (LCMessage) roundTrip(lcm);
+            check(decoded.getType() == lcm.getType() && decoded.getReg() == lcm.getReg() &&
+                    Arrays.equals(decoded.getPayload(), lcm.getPayload()) && !decoded.TRIGGER_LC_LOCALLY, lcm);
+        }
+        checkRejected(new LCMessage(-1, TOMUtil.TRIGGER_LC_LOCALLY, 5, null));
+
+        // Forwarded requests
+        for (boolean signed : new boolean[]{false, true}) {
+            TOMMessage request = new TOMMessage(1001, 1, 7, 3, value, 0, TOMMessageType.ORDERED_REQUEST);
+            request.serializedMessage = TOMMessage.messageToBytes(request);
+            request.signed = signed;
+            request.serializedMessageSignature = signed ? signature : null;
+
+            ForwardedMessage fm = new ForwardedMessage(3, request);
+            TOMMessage decoded = ((ForwardedMessage) roundTrip(fm)).getRequest();
+            check(decoded.equals(request) && Arrays.equals(decoded.getContent(), value) &&
+                    Arrays.equals(decoded.serializedMessage, request.serializedMessage) &&
+                    Arrays.equals(decoded.serializedMessageSignature, request.serializedMessageSignature), fm);
+        }
+
+        // State transfer
+        View view = new View(1, new int[]{0, 1, 2, 3}, 1, new InetSocketAddress[]{
+                new InetSocketAddress("127.0.0.1", 11000), new InetSocketAddress("127.0.0.1", 11010),
+                new InetSocketAddress("127.0.0.1", 11020), new InetSocketAddress("127.0.0.1", 11030)});
+        DefaultApplicationState state = new DefaultApplicationState(null, 9, 10, value, signature, 2);
+        CSTRequestF1 cstConfig = new CSTRequestF1(10);
+
+        StandardSMMessage smRequest = new StandardSMMessage(2, 10, TOMUtil.SM_REQUEST, 1, null, null, -1, -1);
+        StandardSMMessage smReply = new StandardSMMessage(1, 10, TOMUtil.SM_REPLY, -1, state, view, 3, 0);
+        CSTSMMessage cstRequest = new CSTSMMessage(2, 10, TOMUtil.SM_REQUEST, cstConfig, null, null, -1, -1);
+        CSTSMMessage cstReply = new CSTSMMessage(1, 10, TOMUtil.SM_REPLY, null, state, view, 3, 0);
+        for (SMMessage smm : new SMMessage[]{smRequest, smReply, cstRequest, cstReply}) {
+            SMMessage decoded = (SMMessage) roundTrip(smm);
+            boolean equal = decoded.getClass() == smm.getClass() && decoded.getCID() == smm.getCID() &&
+                    decoded.getType() == smm.getType() && decoded.getRegency() == smm.getRegency() &&
+                    decoded.getLeader() == smm.getLeader() && !decoded.TRIGGER_SM_LOCALLY &&
+                    (smm.getView() == null ? decoded.getView() == null : smm.getView().equals(decoded.getView())) &&
+                    (smm.getState() == null ? decoded.getState() == null :
+                            Arrays.equals(smm.getState().getSerializedState(), decoded.getState().getSerializedState()));
+            if (smm instanceof StandardSMMessage)
+                equal &= ((StandardSMMessage) decoded).getReplica() == ((StandardSMMessage) smm).getReplica();
+            else if (((CSTSMMessage) smm).getCstConfig() != null)
+                equal &= ((CSTSMMessage) decoded).getCstConfig().getCheckpointReplica() ==
+                        ((CSTSMMessage) smm).getCstConfig().getCheckpointReplica();
+            check(equal, smm);
+        }
+        checkRejected(new StandardSMMessage(-1, 10, TOMUtil.TRIGGER_SM_LOCALLY, 1, null, null, -1, -1));
+
+        // Other messages are Java serialized
+        VMMessage vmm = new VMMessage(7, null);
+        check(roundTrip(vmm) instanceof VMMessage && SystemMessageCodec.encode(vmm)[1] ==
+                SystemMessageCodec.JAVA_SERIALIZED_TAG, vmm);
+
+        // Messages of replicas without the codec
+        ConsensusMessage legacy = (ConsensusMessage) SystemMessageCodec.decode(javaSerialize(accept));
+        check(legacy.getNumber() == accept.getNumber() && proofEquals(legacy.getProof(), accept.getProof()), legacy);
+
+        System.out.println("All message types passed the round trip");
+
+        byte[] serialized = javaSerialize(accept);
+        byte[] encoded = SystemMessageCodec.encode(accept);
+        System.out.println("Consensus message with a " + signature.length + " byte proof");
+        System.out.println("Java serialization size: " + serialized.length + " bytes");
+        System.out.println("Codec size:              " + encoded.length + " bytes");
+
+        // Warm up
+        for (int i = 0; i < iterations / 4; i++) {
+            javaDeserialize(javaSerialize(accept));
+            SystemMessageCodec.decode(SystemMessageCodec.encode(accept));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            javaDeserialize(javaSerialize(accept));
+        long java = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            SystemMessageCodec.decode(SystemMessageCodec.encode(accept));
+        long codec = System.nanoTime() - start;
+
+        System.out.println("Java serialization round trip: " + java / iterations + " ns/message");
+        System.out.println("Codec round trip:              " + codec / iterations + " ns/message");
+    }
+
+    private static SystemMessage roundTrip(SystemMessage sm) throws IOException, ClassNotFoundException {
+        SystemMessage decoded = SystemMessageCodec.decode(SystemMessageCodec.encode(sm));
+        check(decoded.getSender() == sm.getSender(), sm);
+        return decoded;
+    }
+
+    private static void checkRejected(SystemMessage sm) throws IOException, ClassNotFoundException {
+        try {
+            SystemMessageCodec.decode(SystemMessageCodec.encode(sm));
+        } catch (StreamCorruptedException e) {
+            return;
+        }
+
+        throw new IllegalStateException("Local message accepted: " + sm);
+    }
+
+    private static boolean proofEquals(Object a, Object b) {
+        return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+    }
+
+    private static void check(boolean condition, SystemMessage sm) {
+        if (!condition)
+            throw new IllegalStateException("Round trip failed: " + sm.getClass().getSimpleName() + " " + sm);
+    }
+
+    private static byte[] javaSerialize(Object object) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(object);
+        return bOut.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] data) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -9,12 +9,15 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pt.ipleiria.estg.dei.pi.voidchain.blockchain.BlockchainCodec;
 import pt.ipleiria.estg.dei.pi.voidchain.blockchain.Transaction;
+import pt.ipleiria.estg.dei.pi.voidchain.client.AddTransactionReply;
 import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessage;
 import pt.ipleiria.estg.dei.pi.voidchain.client.ClientMessageType;
 import pt.ipleiria.estg.dei.pi.voidchain.client.Wallet;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Configuration;
 import pt.ipleiria.estg.dei.pi.voidchain.util.Keys;
+import pt.ipleiria.estg.dei.pi.voidchain.util.MessageCodec;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -75,43 +78,41 @@ public class TestingMain {
             logger.info("Created Transaction " + i);
             //transactions.add(t);
             // Send Transaction
-            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                 ObjectOutput objOut = new ObjectOutputStream(byteOut)) {
-
-                objOut.writeObject(t);
-                objOut.flush();
-                byteOut.flush();
-                byte[] tBytes = byteOut.toByteArray();
-
+            try {
                 logger.info("Creating Message to send");
-                ClientMessage cm = new ClientMessage(ClientMessageType.ADD_TRANSACTION, tBytes);
+                ClientMessage cm = new ClientMessage(ClientMessageType.ADD_TRANSACTION,
+                        BlockchainCodec.encodeTransaction(t));
 
-                ByteArrayOutputStream byteOut2 = new ByteArrayOutputStream();
-                ObjectOutput objOut2 = new ObjectOutputStream(byteOut2);
+                boolean added = false;
+                AddTransactionReply addReply = null;
+                long backoff = 100;
 
-                objOut2.writeObject(cm);
-                objOut2.flush();
-                byteOut2.flush();
+                do {
+                    logger.info("Sending transaction - " + i);
+                    byte[] reply = serviceProxy.invokeOrdered(MessageCodec.encode(cm));
 
-                logger.info("Sending transaction - " + i);
-                byte[] reply = serviceProxy.invokeOrdered(byteOut2.toByteArray());
-
-                if (reply == null || reply.length == 0) {
-                    System.out.println("Empty reply from replicas");
-                    continue;
-                }
+                    if (reply == null || reply.length == 0) {
+                        System.out.println("Empty reply from replicas");
+                        break;
+                    }
 
-                logger.info("Got reply from nodes");
+                    logger.info("Got reply from nodes");
 
-                boolean added;
+                    ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
+                    ObjectInput objIn = new ObjectInputStream(byteIn);
 
-                ByteArrayInputStream byteIn = new ByteArrayInputStream(reply);
-                ObjectInput objIn = new ObjectInputStream(byteIn);
+                    added = objIn.readBoolean();
+                    addReply = (AddTransactionReply) objIn.readObject();
 
-                added = objIn.readBoolean();
+                    objIn.close();
+                    byteIn.close();
 
-                objIn.close();
-                byteIn.close();
+                    if (addReply == AddTransactionReply.MEM_POOL_FULL) {
+                        System.out.println("Memory pool full, retrying transaction " + i + " in " + backoff + " ms");
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, 10000);
+                    }
+                } while (addReply == AddTransactionReply.MEM_POOL_FULL);
 
                 System.out.println("Transaction " + i + " added: " + added);
 
@@ -120,8 +121,8 @@ public class TestingMain {
                     wallet.addTransaction(t);
                 }
 
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+            } catch (IOException | ClassNotFoundException | InterruptedException exception) {
+                exception.printStackTrace();
             }
             /*try {
                 Thread.sleep(1000);